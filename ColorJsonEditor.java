@@ -2,19 +2,68 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.datatransfer.*;
 import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * JSON Color Palette Editor with:
@@ -34,13 +83,9 @@ import java.util.regex.Pattern;
  */
 public class ColorJsonEditor extends JFrame {
 
-    // Regex: "name": "#RRGGBB" or "#RRGGBBAA"
-    private static final Pattern COLOR_ENTRY =
-            Pattern.compile("\"([^\"]+)\"\\s*:\\s*\"(#[0-9a-fA-F]{6}(?:[0-9a-fA-F]{2})?)\"");
-
     private JTextField searchField;
     private JList<PaletteEntry> list;
-    private DefaultListModel<PaletteEntry> listModel;
+    private FilteredPaletteModel listModel;
     private JButton editBtn, saveBtn, saveAsBtn, openBtn, revertBtn;
     private JTextField hexField;
     private JPanel previewPanel;
@@ -48,18 +93,146 @@ public class ColorJsonEditor extends JFrame {
     // Favorites (User Palette)
     private DefaultListModel<Favorite> favModel;
     private JList<Favorite> favList;
-    private JButton addFavBtn, removeFavBtn;
+    private JButton addFavBtn, removeFavBtn, applyFavBtn;
+    private PaletteLibrary library; // named palettes; null until opened in the background at startup
+    private Throwable libraryError; // why it couldn't be opened
 
     private Path currentFile;
-    private String originalJson;
-    private String workingJson;
-    private List<PaletteEntry> entries;
+    private ThemeDocument document;   // set once the document is fully loaded and editable
+    private PaletteStore store;        // rows shown in the list (may still be loading)
+    private EditHistory history = new EditHistory();
+
+    // Search: lowercase index built while parsing, debounced queries
+    private static final int SEARCH_DEBOUNCE_MS = 150;
+    private static final int SEARCH_OFF_EDT_THRESHOLD = 50_000;
+    private SearchIndex searchIndex;
+    private Timer searchTimer;
+    private SwingWorker<int[], Void> searchTask;
+    private int searchGeneration;
+    private String lastQuery = "";
+    private int[] lastRows;       // rows of lastQuery (null = all)
+    private int lastIndexVersion;
+
+    // Saving: one background writer, optional autosave after a quiet period
+    private static final int AUTOSAVE_QUIET_MS = 2000;
+    private final SaveWriter saver = new SaveWriter();
+    private Timer autosaveTimer;
+    private JCheckBoxMenuItem autosaveItem;
+    private long editCount, savedEditCount; // edits applied / included in the last completed save
+    private int savesPending;
+    private IOException saveError;           // last failed save, until the next one starts
+
+    // External changes to the open file: watched, debounced, then merged in by a ThemeSync
+    private static final int SYNC_DEBOUNCE_MS = 300;
+    private final FileWatcher watcher = new FileWatcher();
+    private Timer syncTimer;
+    private SwingWorker<ThemeSync, Void> syncTask;
+    private String savedStamp; // size and mtime of the file after our last save
+    private JLabel syncLabel;
+
+    // Perceptual color lookups: an OKLab index over the theme, rebuilt after edits
+    private static final int NEAR_DUPLICATES_DEBOUNCE_MS = 500;
+    private OklabTree themeTree;
+    private PaletteStore themeTreeStore;
+    private long themeTreeEdit;
+    private int themeTreeSize;
+    private JCheckBoxMenuItem nearDuplicatesItem;
+    private double nearDuplicateDeltaE = 2;
+    private Timer nearDuplicatesTimer;
+    private SwingWorker<BitSet, Void> nearDuplicatesTask;
+
+    // Accessibility: a WCAG contrast report over rule-paired entries, kept current while shown
+    private ContrastReport contrast; // null while not shown or still being built
+    private String contrastRules = ContrastReport.DEFAULT_RULES;
+    private JDialog contrastDialog;
+    private AbstractTableModel contrastModel;
+    private JLabel contrastLabel;
+    private SwingWorker<ContrastReport, Void> contrastTask;
+
+    // Key tree: the visible entries grouped by key segments, rebuilt shortly after the rows change
+    private static final int KEY_TREE_DEBOUNCE_MS = 150;
+    private JPanel listCards;
+    private JToggleButton treeViewBtn;
+    private JTree keyTree;
+    private KeyTree keyTreeModel; // null while the list is shown
+    private JComboBox<String> keyTreeMode;
+    private Timer keyTreeTimer;
+    private SwingWorker<KeyTree, Void> keyTreeTask;
+
+    // Scripting server: local tools read and edit the shown document over HTTP (off by default)
+    private ScriptServer scriptServer;
+    private JCheckBoxMenuItem scriptServerItem;
+    private int scriptServerPort = ScriptServer.DEFAULT_PORT;
+
+    // Theme preview: a schematic screen drawn from the theme's keys, redrawn per edited entry
+    private ThemePreview themePreview;
+    private JDialog themePreviewDialog;
+    private JLabel themePreviewLabel;
+    private SwingWorker<int[], Void> themePreviewTask;
+
+    // Open themes, one tab each. The shown tab's state lives in the fields above; background
+    // tabs keep their document, parse columns and history, and clean ones are unloaded
+    // (least recently used first) once the background tabs outgrow the memory budget.
+    private static final long DEFAULT_TAB_BUDGET_MB = 256;
+    private final List<ThemeTab> tabs = new ArrayList<ThemeTab>();
+    private ThemeTab activeTab;
+    private JTabbedPane tabBar;
+    private boolean switchingTabs; // tab bar changes made by the editor itself
+    private NameTable names = new NameTable();
+    private long tabBudgetBytes = DEFAULT_TAB_BUDGET_MB << 20;
+    private long tabClock;
+
+    // Instrumentation: EDT stall detection and the Help → Performance panel
+    private static final int PERF_REFRESH_MS = 1000;
+    private EdtWatchdog watchdog;
+    private JDialog perfDialog;
+    private Timer perfTimer;
+    private long perfAllocated = -1, perfAllocatedAt;
+
+    // Background file loading
+    private ThemeLoader loader;
+    private JPanel loadPanel;
+    private JProgressBar loadProgress;
+    private JLabel loadLabel;
     
     // Persistent last directory
     private Path lastDirectory;
 
+    private static String version; // see getVersion()
+
     // ===== Startup / Main =====
     public static void main(String[] args) {
+        // The scripting server (com.sun.net.httpserver, used for nothing else) sends small replies that
+        // would otherwise wait for delayed ACKs. The JDK reads this once, when the first server starts.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(BatchRecolor.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--diff")) {
+            System.exit(ThemeDiff.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--bench")) {
+            System.exit(Benchmarks.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--startup-bench")) {
+            System.exit(StartupBench.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--server-load")) {
+            System.exit(ScriptLoadTest.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--self-test")) {
+            System.exit(SelfTest.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        final Path startFile;
+        try {
+            startFile = args.length > 0 && args[0].equals("--startup-probe") ? StartupBench.probe(args)
+                    : args.length == 1 ? Paths.get(args[0]) : null;
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(2);
+            return;
+        }
+
         // Show exceptions even when launched via javaw/double-click
         Thread.setDefaultUncaughtExceptionHandler((t, ex) -> {
             StringBuilder sb = new StringBuilder();
@@ -70,28 +243,73 @@ public class ColorJsonEditor extends JFrame {
 
         SwingUtilities.invokeLater(() -> {
             ColorJsonEditor app = new ColorJsonEditor();
+            if (StartupBench.probing) {
+                app.addWindowListener(new WindowAdapter() {
+                    @Override public void windowOpened(WindowEvent e) { StartupBench.frameShown(); }
+                });
+            }
             app.setVisible(true);
-            if (args.length == 1) app.openFile(Paths.get(args[0]));
+            if (startFile != null) app.openFile(startFile);
+            app.warmUpInBackground();
         });
     }
 
+    /**
+     * Startup work that the first frame doesn't need, done on a low-priority thread once it
+     * is up: generating the Flight Recorder event types and loading the file chooser's
+     * file-system view (slow the first time, especially on Windows).
+     */
+    private void warmUpInBackground() {
+        Thread t = new Thread(() -> {
+            JfrType.createAll();
+            javax.swing.filechooser.FileSystemView fsv = javax.swing.filechooser.FileSystemView.getFileSystemView();
+            fsv.getRoots();
+            fsv.getDefaultDirectory();
+        }, "startup warm-up");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
     public ColorJsonEditor() {
         super("JSON Color Palette Editor");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(1240, 740);
         setLocationRelativeTo(null);
+        watchdog = EdtWatchdog.install();
         buildUI();
 
         // Initialize last directory to user's home directory
         lastDirectory = Paths.get(System.getProperty("user.home", "."));
 
-        // Auto-load favorites on startup (ignore if file missing or invalid)
+        // Auto-load favorites in the background (ignore if file missing or invalid)
         tryAutoLoadDefaultUserPalette();
 
         // Auto-save favorites on exit
         addWindowListener(new WindowAdapter() {
-            @Override public void windowClosing(WindowEvent e) { tryAutoSaveDefaultUserPalette(); }
+            @Override public void windowClosing(WindowEvent e) {
+                tryAutoSaveDefaultUserPalette();
+                stopScriptServer();
+                if (autosaveItem.isSelected()) autosave();
+                saver.drain(30_000);
+            }
+        });
+    }
+
+    /** A menu whose items {@code fill} makes the first time it opens; only for menus without accelerators. */
+    private static JMenu lazyMenu(String title, Consumer<JMenu> fill) {
+        final JMenu menu = new JMenu(title);
+        menu.addMenuListener(new MenuListener() {
+            private boolean filled;
+            @Override public void menuSelected(MenuEvent e) {
+                if (filled) return;
+                filled = true;
+                fill.accept(menu);
+            }
+            @Override public void menuDeselected(MenuEvent e) { }
+            @Override public void menuCanceled(MenuEvent e) { }
         });
+        return menu;
     }
 
     private void buildUI() {
@@ -105,24 +323,95 @@ public class ColorJsonEditor extends JFrame {
         JMenuItem miSave = new JMenuItem("Save");
         JMenuItem miSaveAs = new JMenuItem("Save As…");
         JMenuItem miRevert = new JMenuItem("Revert");
+        JMenuItem miCompare = new JMenuItem("Compare With…");
+        JMenuItem miCloseTab = new JMenuItem("Close Tab");
+        JMenuItem miTabMemory = new JMenuItem("Background Tab Memory…");
+        miCloseTab.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_W, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
         mFile.add(miOpen);
         mFile.add(miSave);
         mFile.add(miSaveAs);
+        mFile.add(miCloseTab);
         mFile.addSeparator();
         mFile.add(miRevert);
+        mFile.add(miCompare);
+        autosaveItem = new JCheckBoxMenuItem("Autosave");
+        autosaveItem.setToolTipText("Save automatically " + AUTOSAVE_QUIET_MS / 1000 + " s after the last edit");
+        mFile.add(autosaveItem);
+        mFile.add(miTabMemory);
+        scriptServerItem = new JCheckBoxMenuItem("Scripting Server…");
+        scriptServerItem.setToolTipText("Let local tools read and edit the shown theme over HTTP on 127.0.0.1");
+        mFile.add(scriptServerItem);
         mb.add(mFile);
+        scriptServerItem.addActionListener(e -> {
+            if (scriptServerItem.isSelected()) startScriptServer();
+            else stopScriptServer();
+        });
+        miCloseTab.addActionListener(e -> onCloseTab());
+        miTabMemory.addActionListener(e -> onTabMemory());
+
+        autosaveTimer = new Timer(AUTOSAVE_QUIET_MS, e -> autosave());
+        autosaveTimer.setRepeats(false);
+        syncTimer = new Timer(SYNC_DEBOUNCE_MS, e -> syncWithDisk());
+        syncTimer.setRepeats(false);
+        nearDuplicatesTimer = new Timer(NEAR_DUPLICATES_DEBOUNCE_MS, e -> findNearDuplicates());
+        nearDuplicatesTimer.setRepeats(false);
+        autosaveItem.addActionListener(e -> {
+            if (autosaveItem.isSelected() && isDirty()) autosaveTimer.restart();
+            else autosaveTimer.stop();
+        });
 
-        JMenu mUser = new JMenu("User Palette");
-        JMenuItem miUserSave = new JMenuItem("Save…");
-        JMenuItem miUserLoad = new JMenuItem("Load…");
-        mUser.add(miUserSave);
-        mUser.add(miUserLoad);
-        mb.add(mUser);
+        JMenu mEdit = new JMenu("Edit");
+        JMenuItem miUndo = new JMenuItem("Undo");
+        JMenuItem miRedo = new JMenuItem("Redo");
+        int menuMask = Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+        miUndo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, menuMask));
+        miRedo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, menuMask));
+        mEdit.add(miUndo);
+        mEdit.add(miRedo);
+        mEdit.addSeparator();
+        JMenuItem miReplace = new JMenuItem("Replace Color…");
+        JMenuItem miApplyFav = new JMenuItem("Apply Favorite to Selected");
+        JMenuItem miAdjust = new JMenuItem("Adjust Colors…");
+        mEdit.add(miReplace);
+        mEdit.add(miApplyFav);
+        mEdit.add(miAdjust);
+        mEdit.addSeparator();
+        JMenuItem miSimilar = new JMenuItem("Find Similar Colors…");
+        JMenuItem miSnap = new JMenuItem("Snap to Favorites…");
+        nearDuplicatesItem = new JCheckBoxMenuItem("Highlight Near-Duplicates");
+        nearDuplicatesItem.setToolTipText("Mark entries whose color is almost, but not exactly, another entry's (≈)");
+        mEdit.add(miSimilar);
+        mEdit.add(miSnap);
+        mEdit.add(nearDuplicatesItem);
+        JMenuItem miConsolidate = new JMenuItem("Consolidate Colors…");
+        JMenuItem miContrast = new JMenuItem("Contrast Report…");
+        JMenuItem miThemePreview = new JMenuItem("Theme Preview…");
+        mEdit.add(miConsolidate);
+        mEdit.add(miContrast);
+        mEdit.add(miThemePreview);
+        mb.add(mEdit);
 
-        JMenu mHelp = new JMenu("Help");
-        JMenuItem miAbout = new JMenuItem("About…");
-        mHelp.add(miAbout);
-        mb.add(mHelp);
+        // Menus without accelerators get their items when first opened
+        mb.add(lazyMenu("User Palette", mUser -> {
+            JMenuItem miUserLibrary = new JMenuItem("Library…");
+            JMenuItem miUserSave = new JMenuItem("Export…");
+            JMenuItem miUserLoad = new JMenuItem("Import…");
+            mUser.add(miUserLibrary);
+            mUser.addSeparator();
+            mUser.add(miUserSave);
+            mUser.add(miUserLoad);
+            miUserLibrary.addActionListener(e -> onPaletteLibrary());
+            miUserSave.addActionListener(e -> onSaveUserPalette());
+            miUserLoad.addActionListener(e -> onLoadUserPalette());
+        }));
+        mb.add(lazyMenu("Help", mHelp -> {
+            JMenuItem miPerf = new JMenuItem("Performance…");
+            JMenuItem miAbout = new JMenuItem("About…");
+            mHelp.add(miPerf);
+            mHelp.add(miAbout);
+            miPerf.addActionListener(e -> onPerformance());
+            miAbout.addActionListener(e -> showAboutDialog());
+        }));
 
         setJMenuBar(mb);
 
@@ -141,31 +430,102 @@ public class ColorJsonEditor extends JFrame {
         tb.add(new JLabel("Search: "));
         searchField = new JTextField(28);
         tb.add(searchField);
+        tb.add(Box.createHorizontalStrut(6));
+        treeViewBtn = new JToggleButton("Key Tree");
+        treeViewBtn.setToolTipText("Group the parameters by the parts of their keys");
+        tb.add(treeViewBtn);
+        tb.add(Box.createHorizontalStrut(12));
+        syncLabel = new JLabel();
+        tb.add(syncLabel);
         add(tb, BorderLayout.NORTH);
 
         // Hook menu+toolbar actions
         miOpen.addActionListener(this::onOpen);
         miSave.addActionListener(this::onSave);
         miSaveAs.addActionListener(this::onSaveAs);
-        miRevert.addActionListener(e -> { if (originalJson != null) { workingJson = originalJson; reparse(); } });
+        miRevert.addActionListener(e -> revertToSaved());
+        miCompare.addActionListener(e -> onCompareWith());
 
         openBtn.addActionListener(this::onOpen);
         saveBtn.addActionListener(this::onSave);
         saveAsBtn.addActionListener(this::onSaveAs);
-        revertBtn.addActionListener(e -> { if (originalJson != null) { workingJson = originalJson; reparse(); } });
+        revertBtn.addActionListener(e -> revertToSaved());
 
-        miUserSave.addActionListener(e -> onSaveUserPalette());
-        miUserLoad.addActionListener(e -> onLoadUserPalette());
-        miAbout.addActionListener(e -> showAboutDialog());
+        miUndo.addActionListener(e -> undo());
+        miRedo.addActionListener(e -> redo());
+        miReplace.addActionListener(e -> onReplaceColor());
+        miApplyFav.addActionListener(e -> onApplyFavoriteToSelected());
+        miAdjust.addActionListener(e -> onAdjustColors());
+        miSimilar.addActionListener(e -> onFindSimilar());
+        miSnap.addActionListener(e -> onSnapToFavorites());
+        nearDuplicatesItem.addActionListener(e -> onHighlightNearDuplicates());
+        miConsolidate.addActionListener(e -> onConsolidateColors());
+        miContrast.addActionListener(e -> onContrastReport());
+        miThemePreview.addActionListener(e -> onThemePreview());
 
         // ===== Left: parameters list =====
-        listModel = new DefaultListModel<>();
+        listModel = new FilteredPaletteModel();
         list = new JList<>(listModel);
-        list.setCellRenderer(new PaletteCellRenderer());
+        PaletteCellRenderer paletteRenderer = new PaletteCellRenderer();
+        list.setCellRenderer(paletteRenderer);
+        paletteRenderer.install(list, 240);
         list.setDropMode(DropMode.ON);
         list.setTransferHandler(new HexImportTransferHandler()); // accept drops
         JScrollPane listScroll = new JScrollPane(list);
 
+        keyTree = new JTree(new javax.swing.tree.DefaultTreeModel(null));
+        keyTree.setLargeModel(true);
+        keyTree.setRowHeight(20);
+        keyTree.setShowsRootHandles(true);
+        keyTree.setCellRenderer(new KeyTreeRenderer());
+        keyTree.setDropMode(DropMode.ON);
+        keyTree.setTransferHandler(new TransferHandler() { // a favorite dropped on a node recolors all of it
+            @Override public boolean canImport(TransferSupport support) {
+                return support.isDrop() && support.isDataFlavorSupported(DataFlavor.stringFlavor);
+            }
+            @Override public boolean importData(TransferSupport support) {
+                if (!canImport(support) || keyTreeModel == null) return false;
+                javax.swing.tree.TreePath path = ((JTree.DropLocation) support.getDropLocation()).getPath();
+                if (path == null) return false;
+                try {
+                    String favHex = normalizeHex((String) support.getTransferable().getTransferData(DataFlavor.stringFlavor));
+                    if (favHex == null) return false;
+                    applyToEntries(favHex, keyTreeModel.entries(path.getLastPathComponent()));
+                    return true;
+                } catch (Exception ex) {
+                    showError("Drop failed:\n" + ex.getMessage());
+                    return false;
+                }
+            }
+        });
+        keyTree.addTreeSelectionListener(e -> { // the list selection drives the detail panel and the Edit menu
+            if (keyTree.getSelectionCount() > 0) selectInList(keyTreeSelection());
+        });
+        keyTree.addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override public void mousePressed(java.awt.event.MouseEvent e) { if (e.isPopupTrigger()) showKeyTreeMenu(e); }
+            @Override public void mouseReleased(java.awt.event.MouseEvent e) { if (e.isPopupTrigger()) showKeyTreeMenu(e); }
+        });
+        keyTreeMode = new JComboBox<>(KeyTree.MODES);
+        keyTreeMode.addActionListener(e -> rebuildKeyTree());
+        JPanel treeTop = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 2));
+        treeTop.add(new JLabel("Group by:"));
+        treeTop.add(keyTreeMode);
+        JPanel treePanel = new JPanel(new BorderLayout());
+        treePanel.add(treeTop, BorderLayout.NORTH);
+        treePanel.add(new JScrollPane(keyTree), BorderLayout.CENTER);
+        listCards = new JPanel(new CardLayout());
+        listCards.add(listScroll, "list");
+        listCards.add(treePanel, "tree");
+
+        keyTreeTimer = new Timer(KEY_TREE_DEBOUNCE_MS, e -> rebuildKeyTree());
+        keyTreeTimer.setRepeats(false);
+        listModel.addListDataListener(new javax.swing.event.ListDataListener() { // new rows: regroup them
+            @Override public void intervalAdded(javax.swing.event.ListDataEvent e) { keyTreeRowsChanged(); }
+            @Override public void intervalRemoved(javax.swing.event.ListDataEvent e) { keyTreeRowsChanged(); }
+            @Override public void contentsChanged(javax.swing.event.ListDataEvent e) { keyTreeRowsChanged(); }
+        });
+        treeViewBtn.addActionListener(e -> showKeyTree(treeViewBtn.isSelected()));
+
         // ===== Right: detail panel =====
         JPanel right = new JPanel(new BorderLayout());
         right.setBorder(new EmptyBorder(12, 12, 12, 12));
@@ -229,8 +589,15 @@ public class ColorJsonEditor extends JFrame {
         favPanel.add(favTitle, BorderLayout.NORTH);
 
         favModel = new DefaultListModel<>();
+        favModel.addListDataListener(new javax.swing.event.ListDataListener() { // scripts see the current favorites
+            @Override public void intervalAdded(javax.swing.event.ListDataEvent e) { scriptServerFavoritesChanged(); }
+            @Override public void intervalRemoved(javax.swing.event.ListDataEvent e) { scriptServerFavoritesChanged(); }
+            @Override public void contentsChanged(javax.swing.event.ListDataEvent e) { scriptServerFavoritesChanged(); }
+        });
         favList = new JList<>(favModel);
-        favList.setCellRenderer(new FavoriteCellRenderer());
+        FavoriteCellRenderer favoriteRenderer = new FavoriteCellRenderer();
+        favList.setCellRenderer(favoriteRenderer);
+        favoriteRenderer.install(favList, 160);
         favList.setVisibleRowCount(12);
         favList.setDragEnabled(true); // enable drag from favorites
         favList.setTransferHandler(new HexExportTransferHandler());
@@ -240,8 +607,10 @@ public class ColorJsonEditor extends JFrame {
         JPanel favButtons = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 6));
         addFavBtn = new JButton("Add Selected");
         removeFavBtn = new JButton("Remove");
+        applyFavBtn = new JButton("Apply to Selected");
         favButtons.add(addFavBtn);
         favButtons.add(removeFavBtn);
+        favButtons.add(applyFavBtn);
         favPanel.add(favButtons, BorderLayout.SOUTH);
 
         addFavBtn.addActionListener(e -> {
@@ -257,44 +626,299 @@ public class ColorJsonEditor extends JFrame {
             int idx = favList.getSelectedIndex();
             if (idx >= 0) favModel.remove(idx);
         });
+        applyFavBtn.addActionListener(e -> onApplyFavoriteToSelected());
 
         // ===== Split panes =====
-        JSplitPane centerSplit = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, listScroll, right);
+        JSplitPane centerSplit = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, listCards, right);
         centerSplit.setDividerLocation(480);
         JSplitPane outerSplit = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, centerSplit, favPanel);
         outerSplit.setDividerLocation(900);
 
-        add(outerSplit, BorderLayout.CENTER);
+        // ===== Tabs: one strip over the shared views =====
+        tabBar = new JTabbedPane(JTabbedPane.TOP, JTabbedPane.SCROLL_TAB_LAYOUT);
+        tabBar.addChangeListener(e -> {
+            int i = tabBar.getSelectedIndex();
+            if (!switchingTabs && i >= 0) activateTab(tabs.get(i));
+        });
+        JPanel center = new JPanel(new BorderLayout());
+        center.add(tabBar, BorderLayout.NORTH);
+        center.add(outerSplit, BorderLayout.CENTER);
+        add(center, BorderLayout.CENTER);
+        activeTab = new ThemeTab();
+        tabs.add(activeTab);
+        tabBar.addTab(activeTab.title(), new JPanel());
+
+        // ===== Bottom: load progress (visible while a file is loading) =====
+        loadPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 4));
+        loadLabel = new JLabel();
+        loadProgress = new JProgressBar(0, 100);
+        JButton cancelLoadBtn = new JButton("Cancel");
+        loadPanel.add(loadLabel);
+        loadPanel.add(loadProgress);
+        loadPanel.add(cancelLoadBtn);
+        loadPanel.setVisible(false);
+        add(loadPanel, BorderLayout.SOUTH);
+        cancelLoadBtn.addActionListener(e -> { if (loader != null) loader.cancel(true); });
 
-        // ===== Search filter =====
+        // ===== Search filter (debounced; see refilter()) =====
+        searchTimer = new Timer(SEARCH_DEBOUNCE_MS, e -> refilter());
+        searchTimer.setRepeats(false);
         searchField.getDocument().addDocumentListener(new DocumentListener() {
-            void refilter() {
-                String q = searchField.getText().trim().toLowerCase();
-                listModel.clear();
-                if (entries != null) {
-                    for (PaletteEntry p : entries) {
-                        if (q.isEmpty()
-                                || p.name.toLowerCase().contains(q)
-                                || p.hex.toLowerCase().contains(q)) {
-                            listModel.addElement(p);
-                        }
-                    }
-                }
-            }
-            public void insertUpdate(DocumentEvent e) { refilter(); }
-            public void removeUpdate(DocumentEvent e) { refilter(); }
-            public void changedUpdate(DocumentEvent e) { refilter(); }
+            public void insertUpdate(DocumentEvent e) { searchTimer.restart(); }
+            public void removeUpdate(DocumentEvent e) { searchTimer.restart(); }
+            public void changedUpdate(DocumentEvent e) { searchTimer.restart(); }
         });
 
         setButtonsEnabled(false);
     }
 
+    private String searchQuery() {
+        return searchField.getText().trim().toLowerCase(Locale.ROOT);
+    }
+
+    /** Direct match, used only for entries that arrive while the index is still being built. */
+    private static boolean matchesSearch(PaletteEntry p, String q) {
+        return q.isEmpty()
+                || p.name.toLowerCase(Locale.ROOT).contains(q)
+                || p.hex.toLowerCase(Locale.ROOT).contains(q);
+    }
+
+    /**
+     * Runs the current search against the index. A query that extends the previous
+     * one only rescans the previous matches; large themes are filtered off the EDT,
+     * and a newer query cancels any result still being computed.
+     */
+    private void refilter() {
+        cancelSearch();
+        final int generation = searchGeneration;
+        final String q = searchQuery();
+        if (store == null) return;
+        final Span span = Perf.SEARCH.beginAsync();
+        if (searchIndex == null) { // still loading: the list only holds what has arrived so far
+            int[] rows = new int[store.size()];
+            int n = 0;
+            for (int i = 0; i < store.size(); i++) {
+                if (matchesSearch(store.entry(i), q)) rows[n++] = i;
+            }
+            applyRows(q.isEmpty() ? null : Arrays.copyOf(rows, n), q);
+            span.close();
+            return;
+        }
+        if (q.isEmpty()) {
+            applyRows(null, q);
+            span.close();
+            return;
+        }
+        final int[] within = lastIndexVersion == searchIndex.version() && !lastQuery.isEmpty()
+                && q.contains(lastQuery) ? lastRows : null;
+        final SearchIndex.Snapshot snap = searchIndex.snapshot();
+        if ((within != null ? within.length : snap.count) < SEARCH_OFF_EDT_THRESHOLD) {
+            applyRows(snap.query(q, within, null), q);
+            span.close();
+            return;
+        }
+        searchTask = new SwingWorker<int[], Void>() {
+            @Override protected int[] doInBackground() {
+                return snap.query(q, within, this::isCancelled);
+            }
+            @Override protected void done() {
+                if (generation != searchGeneration || isCancelled()) return;
+                searchTask = null;
+                try {
+                    applyRows(get(), q);
+                    span.close();
+                } catch (InterruptedException | ExecutionException ignored) {
+                    // superseded or cancelled query
+                }
+            }
+        };
+        searchTask.execute();
+    }
+
+    /** Drops any query still running so its result can't land on a different document. */
+    private void cancelSearch() {
+        if (searchTask != null) {
+            searchTask.cancel(true);
+            searchTask = null;
+        }
+        searchGeneration++;
+    }
+
+    /** Swaps the visible rows in one model event, keeping the selected entry if it is still shown. */
+    private void applyRows(int[] rows, String q) {
+        PaletteEntry sel = list.getSelectedValue();
+        list.clearSelection();
+        listModel.setRows(rows);
+        lastQuery = q;
+        lastRows = rows;
+        lastIndexVersion = searchIndex != null ? searchIndex.version() : -1;
+        int row = sel != null ? listModel.rowOf(sel.index) : -1;
+        if (row >= 0) {
+            list.setSelectedIndex(row);
+            list.ensureIndexIsVisible(row);
+        } else {
+            showSelected();
+        }
+    }
+
+    // ===== Key tree: the visible entries grouped by key segments =====
+
+    /** Shows the key tree instead of the flat list (or back), building it for the current rows. */
+    private void showKeyTree(boolean show) {
+        ((CardLayout) listCards.getLayout()).show(listCards, show ? "tree" : "list");
+        if (show) {
+            rebuildKeyTree();
+        } else { // nothing to keep current while hidden
+            keyTreeTimer.stop();
+            if (keyTreeTask != null) keyTreeTask.cancel(true);
+            keyTreeModel = null;
+            keyTree.setModel(new javax.swing.tree.DefaultTreeModel(null));
+        }
+    }
+
+    private void keyTreeRowsChanged() {
+        if (treeViewBtn.isSelected()) keyTreeTimer.restart();
+    }
+
+    /** Sorts the visible entries into a new tree off the EDT, keeping the expanded groups expanded. */
+    private void rebuildKeyTree() {
+        if (keyTreeTask != null) keyTreeTask.cancel(true);
+        if (!treeViewBtn.isSelected()) return;
+        final PaletteStore target = store;
+        final int[] entries = listModel.visibleEntries();
+        final int mode = keyTreeMode.getSelectedIndex();
+        final List<String> expanded = new ArrayList<String>();
+        if (keyTreeModel != null && keyTreeModel.mode == mode) {
+            java.util.Enumeration<javax.swing.tree.TreePath> open = keyTree.getExpandedDescendants(new javax.swing.tree.TreePath(keyTreeModel.root));
+            while (open != null && open.hasMoreElements()) {
+                expanded.add(((KeyTree.Group) open.nextElement().getLastPathComponent()).path);
+            }
+        }
+        if (target == null) {
+            keyTreeModel = null;
+            keyTree.setModel(new javax.swing.tree.DefaultTreeModel(null));
+            return;
+        }
+        keyTreeTask = new SwingWorker<KeyTree, Void>() {
+            @Override protected KeyTree doInBackground() {
+                return new KeyTree(target, entries, mode, this::isCancelled);
+            }
+            @Override protected void done() {
+                if (keyTreeTask != this || isCancelled()) return;
+                keyTreeTask = null;
+                if (target != store || !treeViewBtn.isSelected()) return;
+                try {
+                    keyTreeModel = get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException ex) {
+                    showError("Could not build the key tree:\n" + ex.getCause().getMessage());
+                    return;
+                }
+                keyTree.setModel(keyTreeModel);
+                for (String path : expanded) {
+                    Object[] nodes = keyTreeModel.pathTo(path);
+                    if (nodes != null) keyTree.expandPath(new javax.swing.tree.TreePath(nodes));
+                }
+                if (expanded.isEmpty()) keyTree.expandRow(0);
+            }
+        };
+        keyTreeTask.execute();
+    }
+
+    /** Entries under the selected tree nodes, ascending and without repeats. */
+    private int[] keyTreeSelection() {
+        javax.swing.tree.TreePath[] paths = keyTree.getSelectionPaths();
+        if (paths == null || keyTreeModel == null) return new int[0];
+        BitSet entries = new BitSet();
+        for (javax.swing.tree.TreePath path : paths) {
+            for (int e : keyTreeModel.entries(path.getLastPathComponent())) entries.set(e);
+        }
+        return entries.stream().toArray();
+    }
+
+    /** Selects {@code entries} (ascending) in the list as one selection change; entries not shown are skipped. */
+    private void selectInList(int[] entries) {
+        ListSelectionModel sm = list.getSelectionModel();
+        sm.setValueIsAdjusting(true);
+        try {
+            sm.clearSelection();
+            int first = -1, start = -1, last = -2;
+            for (int e : entries) {
+                int row = listModel.rowOf(e);
+                if (row < 0) continue;
+                if (first < 0) first = row;
+                if (row != last + 1) {
+                    if (start >= 0) sm.addSelectionInterval(start, last);
+                    start = row;
+                }
+                last = row;
+            }
+            if (start >= 0) sm.addSelectionInterval(start, last);
+            if (first >= 0) list.ensureIndexIsVisible(first);
+        } finally {
+            sm.setValueIsAdjusting(false);
+        }
+    }
+
+    /** Right-click menu of the key tree: edits of every entry under the clicked node, each one undo step. */
+    private void showKeyTreeMenu(java.awt.event.MouseEvent e) {
+        javax.swing.tree.TreePath path = keyTree.getPathForLocation(e.getX(), e.getY());
+        if (path == null || keyTreeModel == null) return;
+        if (!keyTree.isPathSelected(path)) keyTree.setSelectionPath(path);
+        final int[] entries = keyTreeSelection();
+        JPopupMenu menu = new JPopupMenu();
+        JMenuItem applyFav = new JMenuItem("Apply Selected Favorite to " + entries.length + " Entr" + (entries.length == 1 ? "y" : "ies"));
+        JMenuItem adjust = new JMenuItem("Adjust Colors…");
+        JMenuItem replace = new JMenuItem("Replace Color…");
+        applyFav.setEnabled(favList.getSelectedValue() != null);
+        applyFav.addActionListener(ev -> applyToEntries(favList.getSelectedValue().hex, entries));
+        adjust.addActionListener(ev -> onAdjustColors()); // tree selection = list selection = the "Selected" scope
+        replace.addActionListener(ev -> onReplaceColor());
+        menu.add(applyFav);
+        menu.add(adjust);
+        menu.add(replace);
+        menu.show(keyTree, e.getX(), e.getY());
+    }
+
+    /** Swatch, key and hex of entries, label and size of groups. */
+    private final class KeyTreeRenderer extends javax.swing.tree.DefaultTreeCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        private Color swatch;
+        private final Icon swatchIcon = new Icon() {
+            @Override public void paintIcon(Component c, Graphics g, int x, int y) {
+                g.setColor(swatch);
+                g.fillRect(x, y, 22, 12);
+                g.setColor(Color.GRAY);
+                g.drawRect(x, y, 21, 11);
+            }
+            @Override public int getIconWidth() { return 22; }
+            @Override public int getIconHeight() { return 12; }
+        };
+
+        @Override public Component getTreeCellRendererComponent(JTree tree, Object value, boolean sel, boolean expanded,
+                                                                boolean leaf, int row, boolean hasFocus) {
+            super.getTreeCellRendererComponent(tree, value, sel, expanded, leaf, row, hasFocus);
+            if (value instanceof Integer && keyTreeModel != null) {
+                int e = (Integer) value;
+                PaletteStore s = keyTreeModel.store;
+                setText(s.name(e) + "   " + s.shownHex(e));
+                swatch = new Color(s.shownArgb(e) & 0xFFFFFF);
+                setIcon(swatchIcon);
+            }
+            return this;
+        }
+    }
+
     private void setButtonsEnabled(boolean hasDoc) {
         saveBtn.setEnabled(hasDoc);
         saveAsBtn.setEnabled(hasDoc);
         revertBtn.setEnabled(hasDoc);
         editBtn.setEnabled(hasDoc);
         addFavBtn.setEnabled(hasDoc);
+        applyFavBtn.setEnabled(hasDoc);
     }
 
     // ===== File operations =====
@@ -316,21 +940,17 @@ public class ColorJsonEditor extends JFrame {
     }
 
     private void onSave(ActionEvent e) {
+        if (document == null) return;
         if (currentFile == null) {
             onSaveAs(e);
             return;
         }
-        try {
-            Files.write(currentFile, workingJson.getBytes(StandardCharsets.UTF_8),
-                    StandardOpenOption.TRUNCATE_EXISTING);
-            originalJson = workingJson;
-            JOptionPane.showMessageDialog(this, "Saved:\n" + currentFile.toAbsolutePath());
-        } catch (IOException ex) {
-            showError("Failed to save:\n" + ex.getMessage());
-        }
+        autosaveTimer.stop();
+        saveInBackground(currentFile, true);
     }
 
     private void onSaveAs(ActionEvent e) {
+        if (document == null) return;
         JFileChooser fc = new JFileChooser();
         fc.setDialogTitle("Save As…");
         fc.setAcceptAllFileFilterUsed(false);
@@ -346,376 +966,8724 @@ public class ColorJsonEditor extends JFrame {
             if (!out.getFileName().toString().toLowerCase().endsWith(".json")) {
                 out = out.resolveSibling(out.getFileName().toString() + ".json");
             }
-            try {
-                Files.write(out, workingJson.getBytes(StandardCharsets.UTF_8),
-                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                currentFile = out;
-                originalJson = workingJson;
-                lastDirectory = out.getParent();
-                setTitle("JSON Color Palette Editor — " + out.getFileName());
-                JOptionPane.showMessageDialog(this, "Saved:\n" + out.toAbsolutePath());
-            } catch (IOException ex) {
-                showError("Failed to save:\n" + ex.getMessage());
-            }
+            autosaveTimer.stop();
+            currentFile = out;
+            lastDirectory = out.getParent();
+            setTitle("JSON Color Palette Editor — " + out.getFileName());
+            activeTab.file = out;
+            watcher.watch(out);
+            saveInBackground(out, true);
         }
     }
 
-    // ===== Parsing & list refresh =====
+    /** Diffs the shown theme, unsaved edits included, against another file and offers to merge. */
+    private void onCompareWith() {
+        if (document == null) return;
+        JFileChooser fc = new JFileChooser();
+        fc.setDialogTitle("Compare With…");
+        fc.setAcceptAllFileFilterUsed(false);
+        FileNameExtensionFilter jsonFilter = new FileNameExtensionFilter("JSON files (*.json)", "json");
+        fc.addChoosableFileFilter(jsonFilter);
+        fc.setFileFilter(jsonFilter);
+        if (lastDirectory != null) fc.setCurrentDirectory(lastDirectory.toFile());
+        if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        final Path other = fc.getSelectedFile().toPath();
+        final ThemeDiff diff = new ThemeDiff(store);
+        new SwingWorker<ThemeDiff, Void>() {
+            @Override protected ThemeDiff doInBackground() throws IOException {
+                return diff.compare(ThemeDocument.read(other));
+            }
+            @Override protected void done() {
+                if (diff.ours != store) return;
+                try {
+                    showDiff(get(), other);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    JOptionPane.showMessageDialog(ColorJsonEditor.this,
+                            "Failed to compare:\n" + ex.getCause().getMessage(),
+                            "Compare Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
 
-    private void openFile(Path p) {
-        try {
-            String txt = new String(Files.readAllBytes(p), StandardCharsets.UTF_8);
-            currentFile = p;
-            originalJson = txt;
-            workingJson = txt;
-            reparse();
-            setTitle("JSON Color Palette Editor — " + p.getFileName());
-            setButtonsEnabled(true);
-        } catch (IOException ex) {
-            showError("Failed to open file:\n" + ex.getMessage());
+    /**
+     * Lists the differences; checked changes are taken over as one undo step. Added and
+     * removed keys are shown for reference only, since edits never add or drop keys.
+     */
+    private void showDiff(final ThemeDiff diff, Path other) {
+        if (diff.changed + diff.added + diff.removedRow.length == 0) {
+            JOptionPane.showMessageDialog(this, "No differences: all " + diff.unchanged
+                    + " entries have the same color in " + other.getFileName() + ".",
+                    "Compare With", JOptionPane.INFORMATION_MESSAGE);
+            return;
         }
-    }
+        final boolean[] apply = new boolean[diff.changed];
+        Arrays.fill(apply, true);
+        final String[] columns = {"Apply", "Change", "Key", "Ours", "Theirs", "ΔE"};
+        final AbstractTableModel model = new AbstractTableModel() {
+            @Override public int getRowCount() { return diff.changed + diff.added + diff.removedRow.length; }
+            @Override public int getColumnCount() { return columns.length; }
+            @Override public String getColumnName(int c) { return columns[c]; }
+            @Override public Class<?> getColumnClass(int c) {
+                return c == 0 ? Boolean.class : c == 5 ? Float.class : String.class;
+            }
+            @Override public boolean isCellEditable(int r, int c) { return c == 0 && r < diff.changed; }
+            @Override public void setValueAt(Object v, int r, int c) {
+                apply[r] = (Boolean) v;
+                fireTableCellUpdated(r, c);
+            }
+            @Override public Object getValueAt(int r, int c) {
+                if (r < diff.changed) {
+                    int i = diff.changedRow[r];
+                    switch (c) {
+                        case 0: return apply[r];
+                        case 1: return "changed";
+                        case 2: return store.name(i);
+                        case 3: return store.hex(i);
+                        case 4: return diff.changedHex[r];
+                        default: return diff.changedDeltaE[r];
+                    }
+                }
+                r -= diff.changed;
+                if (r < diff.added) {
+                    switch (c) {
+                        case 0: return false;
+                        case 1: return "added";
+                        case 2: return diff.addedName[r];
+                        case 4: return diff.addedHex[r];
+                        default: return null;
+                    }
+                }
+                int i = diff.removedRow[r - diff.added];
+                switch (c) {
+                    case 0: return false;
+                    case 1: return "removed";
+                    case 2: return store.name(i);
+                    case 3: return store.hex(i);
+                    default: return null;
+                }
+            }
+        };
+        JTable table = new JTable(model);
+        table.setRowSorter(new TableRowSorter<AbstractTableModel>(model));
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(0).setMaxWidth(50);
+        table.getColumnModel().getColumn(1).setMaxWidth(70);
+        table.getColumnModel().getColumn(2).setPreferredWidth(260);
+        table.getColumnModel().getColumn(5).setMaxWidth(60);
+        JScrollPane scroll = new JScrollPane(table);
+        scroll.setPreferredSize(new Dimension(720, 420));
+
+        JButton all = new JButton("Check All");
+        JButton none = new JButton("Check None");
+        all.addActionListener(e -> {
+            Arrays.fill(apply, true);
+            model.fireTableDataChanged();
+        });
+        none.addActionListener(e -> {
+            Arrays.fill(apply, false);
+            model.fireTableDataChanged();
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 0));
+        buttons.add(all);
+        buttons.add(none);
+        JPanel panel = new JPanel(new BorderLayout(0, 6));
+        panel.add(new JLabel(diff.changed + " changed, " + diff.added + " only in " + other.getFileName()
+                + ", " + diff.removedRow.length + " only here, " + diff.unchanged + " unchanged."), BorderLayout.NORTH);
+        panel.add(scroll, BorderLayout.CENTER);
+        panel.add(buttons, BorderLayout.SOUTH);
 
-    private void reparse() {
-        entries = new ArrayList<PaletteEntry>();
-        Matcher m = COLOR_ENTRY.matcher(workingJson);
-        while (m.find()) {
-            String name = m.group(1);
-            String hex = m.group(2);
-            int start = m.start(2);
-            int end = m.end(2);
-            entries.add(new PaletteEntry(name, hex, start, end));
+        int ok = JOptionPane.showConfirmDialog(this, panel, "Compare With " + other.getFileName(),
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (ok != JOptionPane.OK_OPTION || diff.changed == 0 || diff.ours != store) return;
+        int[] rows = new int[diff.changed];
+        String[] hexes = new String[diff.changed];
+        int n = 0;
+        for (int k = 0; k < diff.changed; k++) {
+            if (!apply[k]) continue;
+            rows[n] = diff.changedRow[k];
+            hexes[n++] = diff.changedHex[k];
         }
-        refreshList();
+        updateEntriesHex(rows, hexes, n);
     }
 
-    private void refreshList() {
-        listModel.clear();
-        if (entries != null) {
-            for (PaletteEntry e : entries) listModel.addElement(e);
-        }
-        if (!listModel.isEmpty()) list.setSelectedIndex(0);
-        else {
-            previewPanel.setBackground(UIManager.getColor("Panel.background"));
-            hexField.setText("");
-        }
+    private static void writeDocument(ThemeDocument document, Path out) throws IOException {
+        writeDocument(document, document.pieces(), out);
     }
 
-    private void showSelected() {
-        PaletteEntry sel = list.getSelectedValue();
-        if (sel == null) {
-            previewPanel.setBackground(UIManager.getColor("Panel.background"));
-            hexField.setText("");
-            return;
+    /**
+     * Streams a version of the document to a sibling temp file, forces it to disk and
+     * atomically moves it over the target, so a crash or full disk leaves either the old
+     * or the new file, never a partial one. The target is never truncated in place, and no
+     * document maps it (see {@link ThemeDocument#read}), so it can be replaced on Windows too.
+     */
+    private static void writeDocument(ThemeDocument document, String[] pieces, Path out) throws IOException {
+        Path tmp = out.resolveSibling("." + out.getFileName() + ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                document.writeTo(ch, pieces);
+                ch.force(true);
+            }
+            try {
+                Files.move(tmp, out, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+            }
+            syncDirectory(out.toAbsolutePath().getParent());
+        } finally {
+            Files.deleteIfExists(tmp);
         }
-        previewPanel.setBackground(sel.getAwtColorRGB());
-        hexField.setText(sel.hex);
     }
 
-    private void updateEntryHex(PaletteEntry entry, String newHex) {
-        if (newHex == null || newHex.equalsIgnoreCase(entry.hex)) return;
-
-        StringBuilder sb = new StringBuilder(workingJson);
-        sb.replace(entry.start, entry.end, newHex);
-        workingJson = sb.toString();
+    /** Makes a rename durable where the platform allows it (directories can't be opened on Windows). */
+    private static void syncDirectory(Path dir) {
+        if (dir == null) return;
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ignored) {
+            // best effort
+        }
+    }
 
-        int delta = newHex.length() - (entry.end - entry.start);
-        entry.hex = newHex;
-        entry.refreshColor();
+    /**
+     * Single background thread that writes saves in request order. A request for a target
+     * that is still waiting replaces the waiting one, so a burst of saves writes once.
+     * Results are reported on the EDT.
+     */
+    private final class SaveWriter {
+        private final Map<Path, SaveJob> waiting = new LinkedHashMap<Path, SaveJob>();
+        private final ExecutorService thread = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "theme-save");
+            t.setDaemon(true);
+            return t;
+        });
 
-        if (delta != 0) {
-            boolean past = false;
-            for (PaletteEntry pe : entries) {
-                if (pe == entry) { past = true; continue; }
-                if (past) {
-                    pe.start += delta;
-                    pe.end += delta;
+        void submit(SaveJob job) {
+            synchronized (waiting) {
+                SaveJob replaced = waiting.put(job.out, job);
+                if (replaced != null) {
+                    SwingUtilities.invokeLater(() -> saveFinished(replaced, null, true));
+                    return;
                 }
             }
+            thread.execute(this::writeNext);
         }
 
-        list.repaint();
-        showSelected();
-    }
-
-    // ===== User Palette (Favorites) Save/Load (manual) =====
-
-    private void onSaveUserPalette() {
-        JFileChooser fc = new JFileChooser();
-        fc.setDialogTitle("Save User Palette (*.palette)");
-        fc.setAcceptAllFileFilterUsed(false);
-        FileNameExtensionFilter palFilter = new FileNameExtensionFilter("Palette files (*.palette)", "palette");
-        fc.addChoosableFileFilter(palFilter);
-        fc.setFileFilter(palFilter);
-        if (lastDirectory != null) fc.setCurrentDirectory(lastDirectory.toFile());
-        int sel = fc.showSaveDialog(this);
-        if (sel == JFileChooser.APPROVE_OPTION) {
-            Path out = fc.getSelectedFile().toPath();
-            // auto-append .palette if missing
-            if (!out.getFileName().toString().toLowerCase().endsWith(".palette")) {
-                out = out.resolveSibling(out.getFileName().toString() + ".palette");
+        private void writeNext() {
+            SaveJob job;
+            synchronized (waiting) {
+                Iterator<SaveJob> it = waiting.values().iterator();
+                if (!it.hasNext()) return;
+                job = it.next();
+                it.remove();
             }
+            IOException error = null;
+            Span span = Perf.SAVE.begin();
             try {
-                saveUserPaletteTo(out);
-                lastDirectory = out.getParent();
-                JOptionPane.showMessageDialog(this, "Saved user palette:\n" + out.toAbsolutePath());
+                writeDocument(job.doc, job.pieces, job.out);
             } catch (IOException ex) {
-                showError("Failed to save user palette:\n" + ex.getMessage());
+                error = ex;
+            } catch (Throwable ex) { // still report it: the Save button waits for saveFinished
+                error = new IOException(ex.toString(), ex);
+            } finally {
+                span.close();
             }
+            IOException e = error;
+            SwingUtilities.invokeLater(() -> saveFinished(job, e, false));
         }
-    }
 
-    private void onLoadUserPalette() {
-        JFileChooser fc = new JFileChooser();
-        fc.setDialogTitle("Load User Palette (*.palette)");
-        fc.setAcceptAllFileFilterUsed(false);
-        FileNameExtensionFilter palFilter = new FileNameExtensionFilter("Palette files (*.palette)", "palette");
-        fc.addChoosableFileFilter(palFilter);
-        fc.setFileFilter(palFilter);
-        if (lastDirectory != null) fc.setCurrentDirectory(lastDirectory.toFile());
-        int sel = fc.showOpenDialog(this);
-        if (sel == JFileChooser.APPROVE_OPTION) {
-            Path in = fc.getSelectedFile().toPath();
+        /** Lets queued writes finish, e.g. before the JVM exits. */
+        void drain(long timeoutMs) {
+            thread.shutdown();
             try {
-                loadUserPaletteFrom(in, true);
-                lastDirectory = in.getParent();
-            } catch (Exception ex) {
-                showError("Failed to load user palette:\n" + ex.getMessage());
+                thread.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
             }
         }
     }
 
-    // ===== Auto-load/save helpers =====
+    /** One save: an immutable version of a document and where it goes. */
+    private static final class SaveJob {
+        final ThemeDocument doc;
+        final String[] pieces;
+        final Path out;
+        final long editCount;   // edits included in this version
+        final boolean explicit; // user-requested (errors get a dialog) rather than autosave
 
-    private void tryAutoLoadDefaultUserPalette() {
-        try {
-            Path p = getDefaultUserPalettePath();
-            if (Files.exists(p)) {
-                loadUserPaletteFrom(p, true);
-            }
-        } catch (Exception ignored) {
-            // Quiet on startup
+        SaveJob(ThemeDocument doc, Path out, long editCount, boolean explicit) {
+            this.doc = doc;
+            this.pieces = doc.pieces();
+            this.out = out;
+            this.editCount = editCount;
+            this.explicit = explicit;
         }
     }
 
-    private void tryAutoSaveDefaultUserPalette() {
-        try {
-            if (favModel != null && !favModel.isEmpty()) {
-                Path p = getDefaultUserPalettePath();
-                ensureParentDir(p);
-                saveUserPaletteTo(p);
+    /** Queues a save of the current document; the Save button tracks its progress. */
+    private void saveInBackground(Path out, boolean explicit) {
+        savesPending++;
+        saveError = null;
+        saver.submit(new SaveJob(document, out, editCount, explicit));
+        updateSaveStatus();
+    }
+
+    private void saveFinished(SaveJob job, IOException error, boolean superseded) {
+        savesPending--;
+        if (!superseded && job.doc == document) {
+            if (error == null) {
+                document.markSaved(job.pieces);
+                savedEditCount = Math.max(savedEditCount, job.editCount);
+                if (job.out.equals(currentFile)) savedStamp = fileStamp(job.out);
+                if (store.conflictCount() > 0) {
+                    store.clearConflicts(); // the editor's values are on disk now
+                    syncLabel.setText("");
+                    list.repaint();
+                }
+            } else {
+                saveError = error;
+                if (job.explicit) showError("Failed to save:\n" + error.getMessage());
             }
-        } catch (Exception ignored) {
-            // Don't block exit
+        } else if (!superseded) {
+            backgroundSaveFinished(job, error);
         }
+        updateSaveStatus();
     }
 
-    private Path getDefaultUserPalettePath() {
-        String os = System.getProperty("os.name", "").toLowerCase();
-        if (os.contains("win")) {
-            String appdata = System.getenv("APPDATA");
-            if (appdata != null && !appdata.isEmpty()) {
-                return Paths.get(appdata, "ColorJsonEditor", "user-palette.palette");
+    /** A save of a tab that is no longer shown completed; its state lives in the tab. */
+    private void backgroundSaveFinished(SaveJob job, IOException error) {
+        boolean open = false;
+        for (ThemeTab t : tabs) {
+            if (t == activeTab || t.document != job.doc) continue;
+            open = true;
+            if (error == null) {
+                t.document.markSaved(job.pieces);
+                t.savedEditCount = Math.max(t.savedEditCount, job.editCount);
+                if (job.out.equals(t.file)) t.savedStamp = fileStamp(job.out);
+                t.store.clearConflicts();
+                t.syncText = "";
+            } else {
+                t.saveError = error;
+                if (job.explicit) showError("Failed to save " + job.out.getFileName() + ":\n" + error.getMessage());
             }
+            updateTabTitle(t, t.isDirty());
         }
-        String home = System.getProperty("user.home", ".");
-        return Paths.get(home, ".colorjsoneditor", "user-palette.palette");
+        if (!open && error != null) showError("Failed to save " + job.out.getFileName() + ":\n" + error.getMessage()); // tab already closed
     }
 
-    private void ensureParentDir(Path file) throws IOException {
-        Path parent = file.getParent();
-        if (parent != null && !Files.exists(parent)) {
-            Files.createDirectories(parent);
-        }
+    private boolean isDirty() {
+        return editCount != savedEditCount;
     }
 
-    private void saveUserPaletteTo(Path out) throws IOException {
-        ensureParentDir(out);
-        StringBuilder sb = new StringBuilder();
-        sb.append("[\n");
-        for (int i = 0; i < favModel.size(); i++) {
-            String hex = favModel.get(i).hex;
-            sb.append("  \"").append(hex).append("\"");
-            if (i < favModel.size() - 1) sb.append(",");
-            sb.append("\n");
+    private void updateSaveStatus() {
+        updateTabTitle(activeTab, document != null && isDirty());
+        if (savesPending > 0) {
+            saveBtn.setText("Saving…");
+            saveBtn.setToolTipText(null);
+        } else if (saveError != null) {
+            saveBtn.setText("Save (failed)");
+            saveBtn.setToolTipText(saveError.getMessage());
+        } else if (document != null && !isDirty() && currentFile != null) {
+            saveBtn.setText("Saved");
+            saveBtn.setToolTipText(currentFile.toAbsolutePath().toString());
+        } else {
+            saveBtn.setText("Save");
+            saveBtn.setToolTipText(null);
         }
-        sb.append("]\n");
-        Files.write(out, sb.toString().getBytes(StandardCharsets.UTF_8),
-                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
     }
 
-    private void loadUserPaletteFrom(Path in, boolean replace) throws IOException {
-        String txt = new String(Files.readAllBytes(in), StandardCharsets.UTF_8).trim();
-        if (!txt.startsWith("[") || !txt.endsWith("]")) {
-            throw new IllegalArgumentException("Expected JSON array of hex strings.");
+    /** Called after every change to the document; restarts the autosave quiet period. */
+    private void documentEdited() {
+        editCount++;
+        if (saveError == null && savesPending == 0) updateSaveStatus();
+        else updateTabTitle(activeTab, true);
+        if (autosaveItem.isSelected()) autosaveTimer.restart();
+        if (nearDuplicatesItem.isSelected()) nearDuplicatesTimer.restart();
+    }
+
+    private void autosave() {
+        if (document == null || currentFile == null || !isDirty()) return;
+        saveInBackground(currentFile, false);
+    }
+
+    // ===== External changes =====
+
+    /**
+     * Watches the directory of the open file on a daemon thread and reports changes to
+     * that file on the EDT. Watching is best effort: a file system that can't be watched
+     * simply never reports.
+     */
+    private final class FileWatcher {
+        private WatchService service;
+        private WatchKey key;
+        private volatile Path watched;
+
+        void watch(Path file) {
+            Path abs = file.toAbsolutePath();
+            stop();
+            try {
+                if (service == null) {
+                    service = abs.getFileSystem().newWatchService();
+                    Thread t = new Thread(this::run, "theme-watch");
+                    t.setDaemon(true);
+                    t.start();
+                }
+                key = abs.getParent().register(service,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watched = abs;
+            } catch (IOException | UnsupportedOperationException ex) {
+                watched = null;
+            }
         }
-        String body = txt.substring(1, txt.length() - 1); // inside brackets
-        String[] parts = body.split(",");
-        List<String> hexes = new ArrayList<String>();
-        for (String p : parts) {
-            String t = p.trim();
-            if (t.startsWith("\"") && t.endsWith("\"") && t.length() >= 2) {
-                t = t.substring(1, t.length() - 1);
+
+        void stop() {
+            watched = null;
+            if (key != null) key.cancel();
+            key = null;
+        }
+
+        private void run() {
+            while (true) {
+                WatchKey k;
+                try {
+                    k = service.take();
+                } catch (InterruptedException | ClosedWatchServiceException ex) {
+                    return;
+                }
+                Path dir = (Path) k.watchable();
+                for (WatchEvent<?> ev : k.pollEvents()) {
+                    Path w = watched;
+                    if (w == null) break;
+                    if (ev.kind() == StandardWatchEventKinds.OVERFLOW || dir.resolve((Path) ev.context()).equals(w)) {
+                        SwingUtilities.invokeLater(() -> fileChangedOnDisk(w));
+                        break;
+                    }
+                }
+                k.reset();
             }
-            String norm = normalizeHex(t);
-            if (norm != null) hexes.add(norm);
         }
-        if (replace) favModel.clear();
-        for (String h : hexes) favModel.addElement(new Favorite(h));
     }
 
-    // ===== Helpers =====
-
-    /** Normalize "#RRGGBB" or "#RRGGBBAA"; returns null if invalid. */
-    private static String normalizeHex(String text) {
-        if (text == null) return null;
-        String t = text.trim();
-        if (t.isEmpty()) return null;
-        t = t.startsWith("#") ? t.substring(1) : t;
-        t = t.toUpperCase();
-        if (!(t.length() == 6 || t.length() == 8)) return null;
-        if (!t.matches("[0-9A-F]{6}([0-9A-F]{2})?")) return null;
-        return "#" + t;
+    /** Restarts the quiet period; scripts and editors often write a file in several steps. */
+    private void fileChangedOnDisk(Path file) {
+        if (currentFile != null && file.equals(currentFile.toAbsolutePath())) syncTimer.restart();
     }
 
-    /** Keep target alpha if target was 8-digit. */
-    private static String toHexPreservingAlphaFromEntryTarget(Color c, String targetHex) {
-        String rgb = String.format("#%02X%02X%02X", c.getRed(), c.getGreen(), c.getBlue());
-        if (targetHex != null && targetHex.length() == 9) {
-            String aa = targetHex.substring(7, 9);
-            return rgb + aa;
+    /** Size and modification time, to recognize the file as we last wrote it. */
+    private static String fileStamp(Path p) {
+        try {
+            return Files.size(p) + "@" + Files.getLastModifiedTime(p);
+        } catch (IOException ex) {
+            return null;
         }
-        return rgb;
     }
 
-    /** Merge favorite hex onto target hex using alpha rules. */
-    private static String mergeFavoriteOntoTarget(String favoriteHex, String targetHex) {
-        if (favoriteHex == null || targetHex == null) return favoriteHex;
-        boolean favHasAlpha = favoriteHex.length() == 9;
-        boolean tgtHasAlpha = targetHex.length() == 9;
-        if (favHasAlpha) {
-            if (tgtHasAlpha) return favoriteHex;            // RGBA -> RGBA
-            return favoriteHex.substring(0, 7);             // RGBA -> RGB (drop AA)
+    /** Merges the file's current contents into the open document off the EDT. */
+    private void syncWithDisk() {
+        if (document == null || currentFile == null || loader != null) return;
+        if (syncTask != null || savesPending > 0) { // try again once those are done
+            syncTimer.restart();
+            return;
+        }
+        String stamp = fileStamp(currentFile);
+        if (stamp == null || stamp.equals(savedStamp)) return; // gone (mid-replace) or our own save
+        final ThemeSync sync = new ThemeSync(currentFile, store, searchIndex, editCount);
+        syncTask = new SwingWorker<ThemeSync, Void>() {
+            @Override protected ThemeSync doInBackground() throws IOException {
+                sync.run();
+                return sync;
+            }
+
+            @Override protected void done() {
+                syncTask = null;
+                try {
+                    applySync(get(), stamp);
+                } catch (InterruptedException | CancellationException ex) {
+                    // superseded
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    syncLabel.setText("Couldn't reload " + currentFile.getFileName() + ": " + cause.getMessage());
+                }
+            }
+        };
+        syncTask.execute();
+    }
+
+    /** Swaps in a finished {@link ThemeSync}, keeping the selection, the search and the undo history. */
+    private void applySync(ThemeSync sync, String stamp) {
+        if (sync.old != store || document == null) return; // another file was opened meanwhile
+        if (sync.editCount != editCount || savesPending > 0) { // merge again against the current state
+            syncTimer.restart();
+            return;
+        }
+        savedStamp = stamp;
+        if (sync.unchanged) return;
+
+        ThemeDocument oldDoc = document;
+        PaletteEntry sel = list.getSelectedValue();
+        int selected = sel != null ? sync.remap[sel.index] : -1;
+        cancelSearch();
+        document = sync.doc;
+        store = sync.store;
+        searchIndex = sync.index;
+        history.remap(sync.remap, i -> JsonSpanScanner.decode(oldDoc.source(), oldDoc.sourceStart(i), oldDoc.sourceEnd(i)));
+        boolean carried = document.changedSinceSave().length > 0;
+        savedEditCount = carried ? -1 : editCount;
+        list.clearSelection();
+        listModel.setSource(store);
+        lastQuery = "";
+        if (selected >= 0) list.setSelectedIndex(selected);
+        refilter();
+        updateSaveStatus();
+        if (nearDuplicatesItem.isSelected()) findNearDuplicates();
+        if (contrastDialog != null && contrastDialog.isShowing()) analyzeContrast();
+        if (themePreviewDialog != null && themePreviewDialog.isShowing()) bindThemePreview();
+        if (scriptServer != null) scriptServer.publish(store);
+
+        String msg = "Reloaded from disk (" + sync.rescanned + " entries rescanned)";
+        int conflicts = store.conflictCount();
+        if (conflicts > 0) msg += " — " + conflicts + " edited entr" + (conflicts == 1 ? "y" : "ies") + " also changed on disk (⚠)";
+        if (sync.dropped > 0) msg += " — " + sync.dropped + " edit(s) dropped, entry removed";
+        syncLabel.setText(msg);
+    }
+
+    // ===== Tabs =====
+
+    /** One open theme. While it is the active tab, its state lives in the editor's fields. */
+    private static final class ThemeTab {
+        Path file;               // null until a load completes
+        ThemeDocument document;  // null = not loaded: new, or unloaded to stay within the budget
+        PaletteStore store;
+        SearchIndex searchIndex; // dropped in the background, rebuilt from the store
+        EditHistory history = new EditHistory();
+        long editCount, savedEditCount;
+        String savedStamp;
+        IOException saveError;
+        String syncText = "";
+        int selected = -1;       // entry index
+        long lastUsed;           // tab clock at the last activation
+
+        boolean isDirty() { return editCount != savedEditCount; }
+
+        /** Approximate heap held while in the background. */
+        long heapBytes() { return document == null ? 0 : store.heapBytes() + history.heapBytes(); }
+
+        String title() { return file != null ? file.getFileName().toString() : "Untitled"; }
+
+        /** Drops everything that is reloaded from the file when the tab is selected again. */
+        void unload() {
+            document = null;
+            store = null;
+            searchIndex = null;
+            history = new EditHistory();
+            savedStamp = null;
+            syncText = "";
+        }
+    }
+
+    private ThemeTab tabFor(Path p) {
+        Path abs = p.toAbsolutePath().normalize();
+        for (ThemeTab t : tabs) {
+            Path f = t == activeTab ? currentFile : t.file;
+            if (f != null && f.toAbsolutePath().normalize().equals(abs)) return t;
+        }
+        return null;
+    }
+
+    private void updateTabTitle(ThemeTab t, boolean dirty) {
+        int i = tabs.indexOf(t);
+        if (i < 0) return;
+        String title = t == activeTab ? (currentFile != null ? currentFile.getFileName().toString() : "Untitled") : t.title();
+        if (dirty) title += " *";
+        if (!title.equals(tabBar.getTitleAt(i))) tabBar.setTitleAt(i, title);
+        Path f = t == activeTab ? currentFile : t.file;
+        String tip = f == null ? null : t != activeTab && t.document == null
+                ? f.toAbsolutePath() + " (unloaded to save memory; reloads when selected)" : f.toAbsolutePath().toString();
+        tabBar.setToolTipTextAt(i, tip);
+    }
+
+    /**
+     * Shows {@code t}. The tab being left keeps its document, parse columns and history,
+     * but not its search index, which is rebuilt from the columns when it comes back.
+     */
+    private void activateTab(ThemeTab t) {
+        if (t == activeTab || loader != null) {
+            selectTabInBar(activeTab);
+            return;
+        }
+        ThemeTab left = activeTab;
+        if (autosaveItem.isSelected()) autosave();
+        stash(left);
+        left.searchIndex = null;
+        if (left.store != null) left.store.trim();
+        showTab(t);
+        selectTabInBar(t);
+        updateTabTitle(left, left.document != null && left.isDirty());
+        enforceTabBudget();
+        if (document == null && t.file != null) load(t.file);
+    }
+
+    private void selectTabInBar(ThemeTab t) {
+        switchingTabs = true;
+        tabBar.setSelectedIndex(tabs.indexOf(t));
+        switchingTabs = false;
+    }
+
+    /** Moves the shown document's state into its tab. */
+    private void stash(ThemeTab t) {
+        t.file = currentFile;
+        t.document = document;
+        t.store = store;
+        t.searchIndex = searchIndex;
+        t.history = history;
+        t.editCount = editCount;
+        t.savedEditCount = savedEditCount;
+        t.savedStamp = savedStamp;
+        t.saveError = saveError;
+        t.syncText = syncLabel.getText();
+        PaletteEntry sel = list.getSelectedValue();
+        t.selected = sel != null ? sel.index : -1;
+    }
+
+    /** Makes {@code t} the shown tab, restoring its state into the editor's fields. */
+    private void showTab(ThemeTab t) {
+        cancelSearch();
+        syncTimer.stop();
+        autosaveTimer.stop();
+        nearDuplicatesTimer.stop();
+        activeTab = t;
+        t.lastUsed = ++tabClock;
+        currentFile = t.file;
+        document = t.document;
+        store = t.store;
+        if (store != null && t.searchIndex == null) t.searchIndex = SearchIndex.of(store, names);
+        searchIndex = t.searchIndex;
+        history = t.history;
+        editCount = t.editCount;
+        savedEditCount = t.savedEditCount;
+        savedStamp = t.savedStamp;
+        saveError = t.saveError;
+        syncLabel.setText(t.syncText);
+        setTitle(currentFile != null ? "JSON Color Palette Editor — " + currentFile.getFileName() : "JSON Color Palette Editor");
+        setButtonsEnabled(document != null);
+        list.clearSelection();
+        listModel.setSource(store);
+        lastQuery = "";
+        if (store != null) {
+            refilter();
+            int row = t.selected >= 0 ? listModel.rowOf(t.selected) : -1;
+            if (row >= 0) {
+                list.setSelectedIndex(row);
+                list.ensureIndexIsVisible(row);
+            }
+        }
+        showSelected();
+        if (document != null && currentFile != null) {
+            watcher.watch(currentFile);
+            String stamp = fileStamp(currentFile);
+            if (stamp != null && !stamp.equals(savedStamp)) syncTimer.restart(); // changed while in the background
+            if (nearDuplicatesItem.isSelected()) findNearDuplicates();
+            if (contrastDialog != null && contrastDialog.isShowing()) analyzeContrast();
+            if (themePreviewDialog != null && themePreviewDialog.isShowing()) bindThemePreview();
+            if (scriptServer != null) scriptServer.publish(store);
         } else {
-            if (tgtHasAlpha) return favoriteHex + targetHex.substring(7, 9); // RGB + keep target AA
-            return favoriteHex;                              // RGB -> RGB
+            watcher.stop();
+        }
+        updateSaveStatus();
+    }
+
+    /** Unloads clean background tabs, least recently used first, until the rest fit the budget. */
+    private void enforceTabBudget() {
+        long used = 0;
+        for (ThemeTab t : tabs) if (t != activeTab) used += t.heapBytes();
+        while (used > tabBudgetBytes) {
+            ThemeTab lru = null;
+            for (ThemeTab t : tabs) {
+                if (t == activeTab || t.document == null || t.isDirty()) continue;
+                if (lru == null || t.lastUsed < lru.lastUsed) lru = t;
+            }
+            if (lru == null) break; // the rest have unsaved edits
+            used -= lru.heapBytes();
+            lru.unload();
+            updateTabTitle(lru, false);
+        }
+    }
+
+    /** A load failed or was cancelled; the tab it was for is left empty, so it goes unless it is the only one. */
+    private void abandonLoad() {
+        clearDocument();
+        if (tabs.size() > 1) removeActiveTab();
+    }
+
+    private void onCloseTab() {
+        if (loader != null) return;
+        if (document != null && isDirty()) {
+            int choice = JOptionPane.showConfirmDialog(this,
+                    "Save changes to " + currentFile.getFileName() + " before closing it?",
+                    "Close Tab", JOptionPane.YES_NO_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE);
+            if (choice == JOptionPane.CANCEL_OPTION || choice == JOptionPane.CLOSED_OPTION) return;
+            if (choice == JOptionPane.YES_OPTION) saveInBackground(currentFile, true);
+        }
+        removeActiveTab();
+    }
+
+    private void removeActiveTab() {
+        int i = tabs.indexOf(activeTab);
+        tabs.remove(i);
+        switchingTabs = true;
+        tabBar.removeTabAt(i);
+        switchingTabs = false;
+        if (tabs.isEmpty()) {
+            names = new NameTable(); // nothing refers to the old names any more
+            tabs.add(new ThemeTab());
+            switchingTabs = true;
+            tabBar.addTab("Untitled", new JPanel());
+            switchingTabs = false;
+        }
+        ThemeTab next = tabs.get(Math.min(i, tabs.size() - 1));
+        showTab(next);
+        selectTabInBar(next);
+        if (document == null && next.file != null) load(next.file);
+    }
+
+    private void onTabMemory() {
+        long used = 0;
+        int loaded = 0, unloaded = 0;
+        for (ThemeTab t : tabs) {
+            if (t == activeTab) continue;
+            if (t.document != null) {
+                used += t.heapBytes();
+                loaded++;
+            } else if (t.file != null) {
+                unloaded++;
+            }
+        }
+        String answer = JOptionPane.showInputDialog(this, String.format(
+                "Background tabs: %d loaded (about %d MB), %d unloaded.%nShared entry names: %,d (about %d MB).%n%n"
+                        + "Clean background tabs are unloaded, least recently used first,%n"
+                        + "when the loaded ones need more than this many MB:",
+                loaded, used >> 20, unloaded, names.size(), names.heapBytes() >> 20), String.valueOf(tabBudgetBytes >> 20));
+        if (answer == null) return;
+        try {
+            long mb = Long.parseLong(answer.trim());
+            if (mb < 0) throw new NumberFormatException();
+            tabBudgetBytes = mb << 20;
+            enforceTabBudget();
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "Please enter a whole number of MB (0 or more).",
+                    "Background Tab Memory", JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
+    // ===== Parsing & list refresh =====
+
+    /**
+     * Starts loading {@code p} in the background; a load still in flight is cancelled.
+     * The current document stays editable until the new one starts delivering entries.
+     */
+    private void openFile(Path p) {
+        if (loader != null) { // a newer request wins; the tab it was loading into is reused or reloads later
+            loader.cancel(true);
+            loader = null;
+            loadPanel.setVisible(false);
+            tabBar.setEnabled(true);
+        }
+        ThemeTab open = tabFor(p);
+        if (open != null && open != activeTab) {
+            activateTab(open);
+            return;
+        }
+        if (open == null && (activeTab.file != null || currentFile != null || document != null)) {
+            ThemeTab t = new ThemeTab();
+            tabs.add(t);
+            switchingTabs = true;
+            tabBar.addTab(t.title(), new JPanel());
+            switchingTabs = false;
+            activateTab(t);
+        }
+        load(p);
+    }
+
+    /** Loads {@code p} into the active tab. */
+    private void load(Path p) {
+        if (loader != null) loader.cancel(true);
+        tabBar.setEnabled(false); // the list belongs to the load until it is done
+        loader = new ThemeLoader(p);
+        loader.addPropertyChangeListener(ev -> {
+            if ("progress".equals(ev.getPropertyName()) && ev.getSource() == loader) {
+                loadProgress.setValue((Integer) ev.getNewValue());
+            }
+        });
+        loadLabel.setText("Loading " + p.getFileName() + "…");
+        loadProgress.setValue(0);
+        loadPanel.setVisible(true);
+        loader.execute();
+    }
+
+    /**
+     * Scans {@code doc} for color entries and hands them over in {@link RowChunk}s,
+     * in document order. Only reads the document's source bytes, so it may run off the EDT.
+     */
+    private static void reparse(ThemeDocument doc, Consumer<RowChunk> out) {
+        Span span = Perf.REPARSE.begin();
+        try {
+            RowCollector rows = new RowCollector(doc.source(), new HashMap<String, Integer>(), 0, out);
+            JsonSpanScanner.scan(doc.source(), rows);
+            rows.flush();
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Packs scanned colors into {@link RowChunk}s, numbering container paths in order of
+     * appearance, and keeps a scanner checkpoint every {@link #CHECKPOINT_INTERVAL} rows
+     * so a later {@link ThemeSync} can rescan from the middle of the file.
+     */
+    private static class RowCollector implements JsonSpanScanner.Sink {
+        static final int CHECKPOINT_INTERVAL = 256;
+
+        private final ByteBuffer src;
+        private final Map<String, Integer> pathIds;
+        private final Consumer<RowChunk> out;
+        private RowChunk chunk = new RowChunk();
+        private String lastPath;
+        private int lastPathId = -1;
+        int rows; // index of the next row
+
+        RowCollector(ByteBuffer src, Map<String, Integer> pathIds, int firstRow, Consumer<RowChunk> out) {
+            this.src = src;
+            this.pathIds = pathIds;
+            this.rows = firstRow;
+            this.out = out;
+        }
+
+        @Override public void color(String path, int keyStart, int keyEnd, int valueStart, int valueEnd) {
+            if (path != lastPath) { // same container as the previous entry in the common case
+                Integer id = pathIds.get(path);
+                if (id == null) {
+                    pathIds.put(path, id = pathIds.size());
+                    chunk.newPaths.add(path);
+                }
+                lastPath = path;
+                lastPathId = id;
+            }
+            long color = ColorCodec.parse(src, valueStart, valueEnd, true);
+            add(keyStart, keyEnd, valueStart, valueEnd, lastPathId, (int) color, ColorCodec.formatOf(color));
+        }
+
+        @Override public boolean afterColor(JsonSpanScanner.State state) {
+            if (rows % CHECKPOINT_INTERVAL == 0) checkpoint(state.copy(rows - 1));
+            flushIfFull();
+            return true;
+        }
+
+        /** Adds a row whose path id, color and value format are already known. */
+        void add(int keyStart, int keyEnd, int valueStart, int valueEnd, int pathId, int argb, int format) {
+            RowChunk c = chunk;
+            int n = c.count++;
+            c.keyStart[n] = keyStart;
+            c.keyEnd[n] = keyEnd;
+            c.valueStart[n] = valueStart;
+            c.valueEnd[n] = valueEnd;
+            c.pathId[n] = pathId;
+            c.argb[n] = argb;
+            c.format[n] = (byte) format;
+            rows++;
+        }
+
+        void checkpoint(JsonSpanScanner.State state) {
+            chunk.checkpoints.add(state);
+        }
+
+        /** Rows added outside a scan flush here; {@link #afterColor} flushes during one. */
+        void flushIfFull() {
+            if (chunk.count == RowChunk.CAPACITY) {
+                out.accept(chunk);
+                chunk = new RowChunk();
+            }
+        }
+
+        /** Hands over the rows so far, even if the chunk isn't full. */
+        void flush() {
+            if (chunk.count > 0 || !chunk.newPaths.isEmpty() || !chunk.checkpoints.isEmpty()) out.accept(chunk);
+            chunk = new RowChunk();
+        }
+    }
+
+    /**
+     * Reads and parses a theme off the EDT, handing rows to the list chunk by chunk as they are found.
+     * The list's {@link PaletteStore} is only ever touched on the EDT; finished chunks travel through
+     * a queue. The document becomes editable once the scan has completed.
+     */
+    private class ThemeLoader extends SwingWorker<SearchIndex, Integer> {
+        private final Path path;
+        private final Queue<RowChunk> pending = new ConcurrentLinkedQueue<RowChunk>();
+        private volatile ThemeDocument doc;
+        private boolean showing; // EDT only: list switched over to this load's entries
+        private final NameTable table = names;
+        private final Span opening = Perf.OPEN.beginAsync();
+
+        ThemeLoader(Path path) { this.path = path; }
+
+        @Override protected SearchIndex doInBackground() throws Exception {
+            Span span = Perf.LOAD.begin();
+            try {
+                ThemeDocument d = ThemeDocument.read(path);
+                doc = d;
+                final int limit = Math.max(1, d.source().limit());
+                final int[] lastPercent = {0};
+                SearchIndex idx = new SearchIndex(table);
+                reparse(d, chunk -> {
+                    if (isCancelled()) throw new CancellationException();
+                    idx.append(chunk, d.source());
+                    pending.add(chunk);
+                    publish(chunk.count);
+                    int percent = chunk.count == 0 ? 100 : (int) (100L * chunk.valueEnd[chunk.count - 1] / limit);
+                    if (percent != lastPercent[0]) setProgress(lastPercent[0] = percent);
+                });
+                return idx;
+            } finally {
+                span.close();
+            }
+        }
+
+        /** Chunks may still be pending after completion; {@link #done()} drains whatever is left. */
+        @Override protected void process(List<Integer> counts) {
+            if (loader != this || isDone()) return;
+            drainPending();
+            if (list.getSelectedIndex() < 0 && listModel.getSize() > 0) list.setSelectedIndex(0);
+        }
+
+        @Override protected void done() {
+            if (loader != this) return;
+            loader = null;
+            loadPanel.setVisible(false);
+            tabBar.setEnabled(true);
+            try {
+                SearchIndex index = get();
+                if (!showing) beginShowing();
+                drainPending();
+                document = doc;
+                searchIndex = index;
+                lastQuery = "";
+                currentFile = path;
+                savedStamp = null;
+                watcher.watch(path);
+                syncLabel.setText("");
+                setTitle("JSON Color Palette Editor — " + path.getFileName());
+                setButtonsEnabled(true);
+                activeTab.file = path;
+                updateSaveStatus();
+                if (listModel.getSize() > 0 && list.getSelectedIndex() < 0) list.setSelectedIndex(0);
+                else showSelected();
+                if (nearDuplicatesItem.isSelected()) findNearDuplicates();
+                if (contrastDialog != null && contrastDialog.isShowing()) analyzeContrast();
+                if (themePreviewDialog != null && themePreviewDialog.isShowing()) bindThemePreview();
+                if (scriptServer != null) scriptServer.publish(store);
+                opening.close();
+                if (StartupBench.probing) StartupBench.themeShown();
+            } catch (CancellationException | InterruptedException ex) {
+                if (showing || document == null) abandonLoad();
+            } catch (ExecutionException ex) {
+                if (showing || document == null) abandonLoad();
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                showError("Failed to open file:\n" + cause.getMessage());
+            }
+        }
+
+        /** Retires the previous document and switches the list over to this load. */
+        private void beginShowing() {
+            showing = true;
+            cancelSearch();
+            document = null;
+            searchIndex = null;
+            store = new PaletteStore(doc);
+            history.clear();
+            autosaveTimer.stop();
+            editCount = savedEditCount = 0;
+            saveError = null;
+            setButtonsEnabled(false);
+            list.clearSelection();
+            listModel.setSource(store);
+            listModel.setRows(searchQuery().isEmpty() ? null : new int[0]);
+        }
+
+        /** Appends the chunks that have arrived, firing a single model event for all of them. */
+        private void drainPending() {
+            if (pending.isEmpty()) return;
+            if (!showing) beginShowing();
+            int from = store.size();
+            for (RowChunk c; (c = pending.poll()) != null; ) store.append(c);
+            String q = searchQuery();
+            listModel.sourceGrew(from, q.isEmpty() ? null : i -> matchesSearch(store.entry(i), q));
+        }
+    }
+
+    private void clearDocument() {
+        document = null;
+        currentFile = null;
+        store = null;
+        if (scriptServer != null) scriptServer.publish(null);
+        history.clear();
+        watcher.stop();
+        autosaveTimer.stop();
+        editCount = savedEditCount = 0;
+        saveError = null;
+        searchIndex = null;
+        cancelSearch();
+        setTitle("JSON Color Palette Editor");
+        setButtonsEnabled(false);
+        activeTab.file = null;
+        updateSaveStatus();
+        refreshList();
+    }
+
+    /** Restores the last saved values as one undoable step. */
+    private void revertToSaved() {
+        if (document == null) return;
+        int[] rows = document.changedSinceSave();
+        String[] values = new String[rows.length];
+        for (int k = 0; k < rows.length; k++) values[k] = document.savedAt(rows[k]);
+        applyValues(rows, values, rows.length, true);
+    }
+
+    private void refreshList() {
+        list.clearSelection();
+        listModel.setSource(store);
+        lastQuery = "";
+        if (store != null && !searchQuery().isEmpty()) refilter();
+        if (listModel.getSize() > 0) list.setSelectedIndex(0);
+        else {
+            previewPanel.setBackground(UIManager.getColor("Panel.background"));
+            hexField.setText("");
+        }
+    }
+
+    private void showSelected() {
+        PaletteEntry sel = list.getSelectedValue();
+        if (sel == null) {
+            previewPanel.setBackground(UIManager.getColor("Panel.background"));
+            hexField.setText("");
+            return;
+        }
+        previewPanel.setBackground(sel.getAwtColorRGB());
+        hexField.setText(sel.hex);
+    }
+
+    private void updateEntryHex(PaletteEntry entry, String newHex) {
+        if (document == null) return; // still loading
+        if (newHex == null || newHex.equalsIgnoreCase(entry.hex)) return;
+
+        // O(log n): the piece table records the replacement and the Fenwick
+        // tree absorbs the length delta; later entries resolve their offsets lazily.
+        applyValues(new int[]{entry.index}, new String[]{newHex}, 1, true);
+    }
+
+    /**
+     * Sets raw span values (null = original bytes) of entries {@code rows[k]}, {@code k < n},
+     * keeping the search index and the view in sync. Recorded edits become one undo step.
+     */
+    private void applyValues(int[] rows, String[] values, int n, boolean record) {
+        if (n == 0) return;
+        Span span = Perf.EDIT.begin();
+        try {
+            if (record) {
+                String[] before = new String[n];
+                for (int k = 0; k < n; k++) before[k] = document.replacementAt(rows[k]);
+                history.record(rows, before, values, n);
+            }
+            store.setHexes(rows, values, n);
+            for (int k = 0; k < n; k++) {
+                searchIndex.setHex(rows[k], store.argb(rows[k]), store.hasAlpha(rows[k]));
+            }
+            contrastEdited(rows, n);
+            if (themePreview != null && themePreview.store() == store) themePreview.entriesChanged(rows, n);
+            if (scriptServer != null) scriptServer.edited(store, rows, n);
+            documentEdited();
+            list.repaint();
+            keyTree.repaint();
+            showSelected();
+        } finally {
+            span.close();
+        }
+    }
+
+    private void undo() {
+        if (document == null) return;
+        EditHistory.Delta d = history.undo();
+        if (d != null) applyValues(d.rows, d.values, d.rows.length, false);
+    }
+
+    private void redo() {
+        if (document == null) return;
+        EditHistory.Delta d = history.redo();
+        if (d != null) applyValues(d.rows, d.values, d.rows.length, false);
+    }
+
+    // ===== Bulk edits =====
+
+    /**
+     * Applies {@code hexes[k]} to entry {@code rows[k]} for {@code k < n} as one batch
+     * and one undo step. Unchanged entries are skipped; the document shifts its offsets
+     * once for the whole batch. Returns the number of entries changed.
+     */
+    private int updateEntriesHex(int[] rows, String[] hexes, int n) {
+        if (document == null) return 0;
+        int changed = 0;
+        for (int k = 0; k < n; k++) {
+            if (hexes[k] == null || hexes[k].equalsIgnoreCase(store.hex(rows[k]))) continue;
+            rows[changed] = rows[k];
+            hexes[changed] = hexes[k];
+            changed++;
+        }
+        applyValues(rows, hexes, changed, true);
+        return changed;
+    }
+
+    /** Entry indices of the selected rows, ascending. */
+    private int[] selectedEntries() {
+        int[] sel = list.getSelectedIndices();
+        for (int k = 0; k < sel.length; k++) sel[k] = listModel.entryIndexAt(sel[k]);
+        Arrays.sort(sel);
+        return sel;
+    }
+
+    /** Drops {@code favoriteHex} onto every entry in {@code rows}, using the per-entry alpha rules. */
+    private int applyToEntries(String favoriteHex, int[] rows) {
+        String[] hexes = new String[rows.length];
+        for (int k = 0; k < rows.length; k++) hexes[k] = mergeFavoriteOntoTarget(favoriteHex, store.hex(rows[k]));
+        return updateEntriesHex(rows, hexes, rows.length);
+    }
+
+    private void onApplyFavoriteToSelected() {
+        if (document == null) return;
+        Favorite fav = favList.getSelectedValue();
+        int[] rows = selectedEntries();
+        if (fav == null || rows.length == 0) {
+            JOptionPane.showMessageDialog(this, "Select a favorite and one or more parameters first.",
+                    "Apply Favorite", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        applyToEntries(fav.hex, rows);
+    }
+
+    private void onReplaceColor() {
+        if (document == null) return;
+        PaletteEntry sel = list.getSelectedValue();
+        Favorite fav = favList.getSelectedValue();
+        JTextField findField = new JTextField(sel != null ? sel.hex : "", 12);
+        JTextField replaceField = new JTextField(fav != null ? fav.hex : "", 12);
+        String[] scopes = {"All entries", "Filtered entries", "Selected entries"};
+        JComboBox<String> scopeBox = new JComboBox<>(scopes);
+        if (list.getSelectedIndices().length > 1) scopeBox.setSelectedIndex(2);
+        else if (listModel.getSize() < store.size()) scopeBox.setSelectedIndex(1);
+
+        JPanel form = new JPanel(new GridLayout(0, 2, 8, 6));
+        form.add(new JLabel("Find color:"));
+        form.add(findField);
+        form.add(new JLabel("Replace with:"));
+        form.add(replaceField);
+        form.add(new JLabel("In:"));
+        form.add(scopeBox);
+        form.add(new JLabel("#RRGGBB matches any alpha;"));
+        form.add(new JLabel("#RRGGBBAA matches exactly."));
+        int ok = JOptionPane.showConfirmDialog(this, form, "Replace Color", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+        if (ok != JOptionPane.OK_OPTION) return;
+
+        String find = normalizeHex(findField.getText());
+        String replace = normalizeHex(replaceField.getText());
+        if (find == null || replace == null) {
+            JOptionPane.showMessageDialog(this,
+                    "Please enter valid hex colors like #RRGGBB or #RRGGBBAA.",
+                    "Invalid Hex", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        int[] scope;
+        switch (scopeBox.getSelectedIndex()) {
+            case 1: scope = listModel.visibleEntries(); break;
+            case 2: scope = selectedEntries(); break;
+            default: scope = null;
+        }
+        int[] matches = store.findColor(hexArgb(find), find.length() == 9, scope);
+        int changed = applyToEntries(replace, matches);
+        JOptionPane.showMessageDialog(this, "Replaced " + find + " in " + changed + " of "
+                + matches.length + " matching entries.");
+    }
+
+    /**
+     * Whole-theme adjustments with live preview. Slider changes re-run the {@link ColorTransform}
+     * over the packed colors of the chosen entries and show the result through the store's
+     * preview column, so only the visible cells are redrawn; the document is touched once,
+     * on Apply, as a single undo step.
+     */
+    private void onAdjustColors() {
+        if (document == null) return;
+        String[] scopes = {"All entries", "Filtered entries", "Selected entries"};
+        JComboBox<String> scopeBox = new JComboBox<>(scopes);
+        if (list.getSelectedIndices().length > 1) scopeBox.setSelectedIndex(2);
+        else if (listModel.getSize() < store.size()) scopeBox.setSelectedIndex(1);
+
+        JSlider hue = new JSlider(-180, 180, 0);
+        JSlider saturation = new JSlider(-100, 100, 0);
+        JSlider lightness = new JSlider(-100, 100, 0);
+        JSlider contrast = new JSlider(-100, 100, 0);
+        JSlider gamma = new JSlider(20, 500, 100);
+        JSlider temperature = new JSlider(-100, 100, 0);
+        JCheckBox invert = new JCheckBox("Invert");
+        JLabel timing = new JLabel(" ");
+
+        JPanel form = new JPanel(new GridLayout(0, 2, 8, 6));
+        form.add(new JLabel("Apply to:"));
+        form.add(scopeBox);
+        form.add(new JLabel("Hue rotate (°):"));
+        form.add(hue);
+        form.add(new JLabel("Saturation (%):"));
+        form.add(saturation);
+        form.add(new JLabel("Lightness (%):"));
+        form.add(lightness);
+        form.add(new JLabel("Contrast (%):"));
+        form.add(contrast);
+        form.add(new JLabel("Gamma (×0.01):"));
+        form.add(gamma);
+        form.add(new JLabel("Temperature (cool – warm):"));
+        form.add(temperature);
+        form.add(invert);
+        form.add(timing);
+
+        final ColorTransform t = new ColorTransform();
+        final AdjustPreview preview = new AdjustPreview();
+        final boolean[] queued = {false};
+        Runnable update = () -> {
+            queued[0] = false;
+            t.hue = hue.getValue();
+            t.saturation = saturation.getValue() / 100.0;
+            t.lightness = lightness.getValue() / 100.0;
+            t.contrast = contrast.getValue() / 100.0;
+            t.gamma = gamma.getValue() / 100.0;
+            t.temperature = temperature.getValue() / 100.0;
+            t.invert = invert.isSelected();
+            long t0 = System.nanoTime();
+            preview.show(scopeBox.getSelectedIndex(), t);
+            timing.setText(String.format("%,d entries, %.1f ms", preview.base.length, (System.nanoTime() - t0) / 1e6));
+            list.repaint();
+            keyTree.repaint();
+            refreshThemePreview();
+            showSelected();
+        };
+        // Drags fire faster than frames are drawn: compute at most once per pass of the event queue
+        javax.swing.event.ChangeListener onChange = e -> {
+            if (queued[0]) return;
+            queued[0] = true;
+            SwingUtilities.invokeLater(update);
+        };
+        for (JSlider sl : new JSlider[]{hue, saturation, lightness, contrast, gamma, temperature}) {
+            sl.addChangeListener(onChange);
+        }
+        invert.addActionListener(e -> onChange.stateChanged(null));
+        scopeBox.addActionListener(e -> onChange.stateChanged(null));
+
+        int ok;
+        try {
+            ok = JOptionPane.showConfirmDialog(this, form, "Adjust Colors", JOptionPane.OK_CANCEL_OPTION,
+                    JOptionPane.PLAIN_MESSAGE);
+        } finally {
+            store.setPreview(null);
+            list.repaint();
+            keyTree.repaint();
+            refreshThemePreview();
+            showSelected();
+        }
+        if (ok != JOptionPane.OK_OPTION || preview.base == null) return;
+        if (queued[0]) update.run(); // a last change may still be queued
+        store.setPreview(null);
+        preview.commit();
+    }
+
+    /** Colors of the entries an {@link #onAdjustColors} run works on, before and after the transform. */
+    private final class AdjustPreview {
+        int scope = -1;
+        int[] rows;   // entry indices, null = all
+        int[] base;   // their colors, packed
+        int[] out;    // transformed
+        int[] shown;  // full-size column handed to the store
+
+        void show(int newScope, ColorTransform t) {
+            if (newScope != scope) {
+                scope = newScope;
+                switch (scope) {
+                    case 1: rows = listModel.visibleEntries(); break;
+                    case 2: rows = selectedEntries(); break;
+                    default: rows = null;
+                }
+                base = rows == null ? store.argbs() : gather(store, rows);
+                out = new int[base.length];
+                shown = store.argbs();
+            }
+            t.apply(base, out);
+            if (rows == null) {
+                System.arraycopy(out, 0, shown, 0, out.length);
+            } else {
+                final int[] r = rows, o = out, dst = shown;
+                IntStream.range(0, r.length).parallel().forEach(k -> dst[r[k]] = o[k]);
+            }
+            store.setPreview(shown);
+        }
+
+        /** Writes the changed colors to the document as one batch. */
+        void commit() {
+            int n = out.length;
+            int[] changedRows = new int[n];
+            String[] hexes = new String[n];
+            int changed = 0;
+            for (int k = 0; k < n; k++) {
+                if (out[k] == base[k]) continue;
+                int i = rows == null ? k : rows[k];
+                changedRows[changed] = i;
+                hexes[changed++] = withTargetAlpha(out[k], store.hex(i));
+            }
+            updateEntriesHex(changedRows, hexes, changed);
+        }
+    }
+
+    private static int[] gather(PaletteStore store, int[] rows) {
+        int[] out = new int[rows.length];
+        for (int k = 0; k < rows.length; k++) out[k] = store.argb(rows[k]);
+        return out;
+    }
+
+    /** "#RRGGBB" of {@code argb}, keeping the target's alpha digits if it has them (as {@link #toHexPreservingAlphaFromEntryTarget}). */
+    private static String withTargetAlpha(int argb, String targetHex) {
+        return targetHex != null && targetHex.length() == 9
+                ? argbHex(argb & 0xFFFFFF | hexArgb(targetHex) & 0xFF000000, true) : rgbHex(argb);
+    }
+
+    private static String rgbHex(int argb) {
+        return argbHex(argb, false);
+    }
+
+    /** "#RRGGBBAA" of {@code argb} if {@code alpha}, else "#RRGGBB". */
+    private static String argbHex(int argb, boolean alpha) {
+        char[] c = new char[alpha ? 9 : 7];
+        ColorCodec.format(argb, ColorCodec.HEX, alpha, c, 0);
+        return new String(c);
+    }
+
+    // ===== Perceptual color lookups =====
+
+    /** OKLab index over the current theme's colors; item {@code i} is entry {@code i}. */
+    private OklabTree themeTree() {
+        if (themeTree == null || themeTreeStore != store || themeTreeEdit != editCount || themeTreeSize != store.size()) {
+            themeTree = new OklabTree(store.argbs(), store.size());
+            themeTreeStore = store;
+            themeTreeEdit = editCount;
+            themeTreeSize = store.size();
+        }
+        return themeTree;
+    }
+
+    /** Parses a ΔE typed by the user; warns and returns NaN if it isn't a non-negative number. */
+    private double parseDeltaE(String text) {
+        try {
+            double d = Double.parseDouble(text.trim());
+            if (d >= 0) return d;
+        } catch (NumberFormatException ignored) {
+            // falls through to the warning
+        }
+        JOptionPane.showMessageDialog(this, "Please enter a ΔE of 0 or more (about 2 is just noticeable).",
+                "Invalid ΔE", JOptionPane.WARNING_MESSAGE);
+        return Double.NaN;
+    }
+
+    /** Selects the entries whose color is within a ΔE of a given color. */
+    private void onFindSimilar() {
+        if (document == null) return;
+        PaletteEntry sel = list.getSelectedValue();
+        Favorite fav = favList.getSelectedValue();
+        JTextField colorField = new JTextField(sel != null ? sel.hex : fav != null ? fav.hex : "", 12);
+        JTextField deltaField = new JTextField("5", 12);
+        JPanel form = new JPanel(new GridLayout(0, 2, 8, 6));
+        form.add(new JLabel("Color:"));
+        form.add(colorField);
+        form.add(new JLabel("Within ΔE (OKLab × 100):"));
+        form.add(deltaField);
+        int ok = JOptionPane.showConfirmDialog(this, form, "Find Similar Colors", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+        if (ok != JOptionPane.OK_OPTION) return;
+
+        String color = normalizeHex(colorField.getText());
+        if (color == null) {
+            JOptionPane.showMessageDialog(this,
+                    "Please enter a valid hex color like #RRGGBB or #RRGGBBAA.",
+                    "Invalid Hex", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        double deltaE = parseDeltaE(deltaField.getText());
+        if (Double.isNaN(deltaE)) return;
+
+        BitSet found = new BitSet();
+        themeTree().within(hexArgb(color), deltaE, found::set);
+        int[] rows = new int[found.cardinality()];
+        int shown = 0;
+        for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+            int row = listModel.rowOf(i);
+            if (row >= 0) rows[shown++] = row;
+        }
+        list.clearSelection();
+        if (shown > 0) {
+            list.setSelectedIndices(Arrays.copyOf(rows, shown));
+            list.ensureIndexIsVisible(rows[0]);
+        }
+        String msg = found.cardinality() + " entr" + (found.cardinality() == 1 ? "y" : "ies")
+                + " within ΔE " + deltaE + " of " + color + ".";
+        if (shown < found.cardinality()) msg += "\n" + (found.cardinality() - shown) + " of them are hidden by the search filter.";
+        JOptionPane.showMessageDialog(this, msg);
+    }
+
+    /**
+     * Moves each entry in scope onto its perceptually nearest favorite, as if that
+     * favorite had been dropped on it (the entry's alpha rules apply). One undo step.
+     */
+    private void onSnapToFavorites() {
+        if (document == null) return;
+        if (favModel.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Add some favorites first.",
+                    "Snap to Favorites", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        String[] scopes = {"All entries", "Filtered entries", "Selected entries"};
+        JComboBox<String> scopeBox = new JComboBox<>(scopes);
+        if (list.getSelectedIndices().length > 1) scopeBox.setSelectedIndex(2);
+        else if (listModel.getSize() < store.size()) scopeBox.setSelectedIndex(1);
+        JTextField maxField = new JTextField("", 12);
+        maxField.setToolTipText("Leave empty to snap every entry, however far its nearest favorite is");
+        JPanel form = new JPanel(new GridLayout(0, 2, 8, 6));
+        form.add(new JLabel("Apply to:"));
+        form.add(scopeBox);
+        form.add(new JLabel("Only if within ΔE (optional):"));
+        form.add(maxField);
+        int ok = JOptionPane.showConfirmDialog(this, form, "Snap to Favorites", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+        if (ok != JOptionPane.OK_OPTION) return;
+        double maxDeltaE = Double.POSITIVE_INFINITY;
+        if (!maxField.getText().trim().isEmpty()) {
+            maxDeltaE = parseDeltaE(maxField.getText());
+            if (Double.isNaN(maxDeltaE)) return;
+        }
+
+        String[] favHexes = new String[favModel.size()];
+        int[] favArgb = new int[favHexes.length];
+        for (int k = 0; k < favHexes.length; k++) {
+            favHexes[k] = favModel.get(k).hex;
+            favArgb[k] = hexArgb(favHexes[k]);
+        }
+        OklabTree favorites = new OklabTree(favArgb, favArgb.length);
+        int[] rows;
+        switch (scopeBox.getSelectedIndex()) {
+            case 1: rows = listModel.visibleEntries(); break;
+            case 2: rows = selectedEntries(); break;
+            default:
+                rows = new int[store.size()];
+                for (int i = 0; i < rows.length; i++) rows[i] = i;
+        }
+        int n = rows.length, inRange = 0;
+        String[] hexes = new String[n];
+        for (int k = 0; k < n; k++) {
+            int argb = store.argb(rows[k]);
+            int f = favorites.nearest(argb);
+            if (OklabTree.deltaE(argb, favArgb[f]) > maxDeltaE) continue;
+            hexes[k] = mergeFavoriteOntoTarget(favHexes[f], store.hex(rows[k]));
+            inRange++;
+        }
+        int changed = updateEntriesHex(rows, hexes, n);
+        JOptionPane.showMessageDialog(this, "Snapped " + changed + " of " + n + " entries to favorites"
+                + (inRange < n ? " (" + (n - inRange) + " had no favorite within ΔE " + maxDeltaE + ")." : "."));
+    }
+
+    private void onHighlightNearDuplicates() {
+        if (!nearDuplicatesItem.isSelected()) {
+            nearDuplicatesTimer.stop();
+            if (nearDuplicatesTask != null) nearDuplicatesTask.cancel(true);
+            if (store != null) store.setNearDuplicates(null);
+            list.repaint();
+            return;
+        }
+        String answer = JOptionPane.showInputDialog(this,
+                "Highlight colors within this ΔE of a different color (about 2 is just noticeable):",
+                String.valueOf(nearDuplicateDeltaE));
+        double d = answer == null ? Double.NaN : parseDeltaE(answer);
+        if (Double.isNaN(d)) {
+            nearDuplicatesItem.setSelected(false);
+            return;
+        }
+        nearDuplicateDeltaE = d;
+        findNearDuplicates();
+    }
+
+    /** Recomputes the near-duplicate marks off the EDT; a result for an outdated theme is dropped. */
+    private void findNearDuplicates() {
+        if (nearDuplicatesTask != null) nearDuplicatesTask.cancel(true);
+        if (store == null || document == null) return;
+        final PaletteStore target = store;
+        final long edit = editCount;
+        final int[] colors = store.argbs();
+        final double deltaE = nearDuplicateDeltaE;
+        nearDuplicatesTask = new SwingWorker<BitSet, Void>() {
+            @Override protected BitSet doInBackground() {
+                return new OklabTree(colors, colors.length).nearDuplicates(deltaE);
+            }
+            @Override protected void done() {
+                if (nearDuplicatesTask != this || isCancelled()) return;
+                nearDuplicatesTask = null;
+                if (target != store || edit != editCount || !nearDuplicatesItem.isSelected()) return;
+                try {
+                    store.setNearDuplicates(get());
+                    list.repaint();
+                } catch (InterruptedException | ExecutionException ignored) {
+                    // superseded
+                }
+            }
+        };
+        nearDuplicatesTask.execute();
+    }
+
+    /**
+     * Groups the colors in scope into perceptual clusters off the EDT, then lists them with
+     * their member keys. Checked clusters are rewritten onto one color each, as one batch
+     * and one undo step.
+     */
+    private void onConsolidateColors() {
+        if (document == null) return;
+        String[] scopes = {"All entries", "Filtered entries", "Selected entries"};
+        JComboBox<String> scopeBox = new JComboBox<>(scopes);
+        if (list.getSelectedIndices().length > 1) scopeBox.setSelectedIndex(2);
+        else if (listModel.getSize() < store.size()) scopeBox.setSelectedIndex(1);
+        JTextField kField = new JTextField("32", 12);
+        JPanel form = new JPanel(new GridLayout(0, 2, 8, 6));
+        form.add(new JLabel("Clusters (at most " + ColorClusters.MAX_CLUSTERS + "):"));
+        form.add(kField);
+        form.add(new JLabel("Analyze:"));
+        form.add(scopeBox);
+        int ok = JOptionPane.showConfirmDialog(this, form, "Consolidate Colors", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE);
+        if (ok != JOptionPane.OK_OPTION) return;
+        int k;
+        try {
+            k = Integer.parseInt(kField.getText().trim());
+        } catch (NumberFormatException ex) {
+            k = 0;
+        }
+        if (k < 1 || k > ColorClusters.MAX_CLUSTERS) {
+            JOptionPane.showMessageDialog(this, "Please enter a number of clusters from 1 to "
+                    + ColorClusters.MAX_CLUSTERS + ".", "Invalid Count", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        final int[] rows;
+        switch (scopeBox.getSelectedIndex()) {
+            case 1: rows = listModel.visibleEntries(); break;
+            case 2: rows = selectedEntries(); break;
+            default: rows = null;
+        }
+        final PaletteStore target = store;
+        final long edit = editCount;
+        final int[] colors = rows == null ? store.argbs() : gather(store, rows);
+        final int clusters = k;
+
+        final JDialog progress = new JDialog(this, "Consolidate Colors", true);
+        JProgressBar bar = new JProgressBar();
+        bar.setIndeterminate(true);
+        JButton cancel = new JButton("Cancel");
+        JPanel busy = new JPanel(new BorderLayout(8, 8));
+        busy.setBorder(new EmptyBorder(12, 12, 12, 12));
+        busy.add(new JLabel("Clustering " + colors.length + " colors…"), BorderLayout.NORTH);
+        busy.add(bar, BorderLayout.CENTER);
+        busy.add(cancel, BorderLayout.EAST);
+        progress.setContentPane(busy);
+        progress.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+        progress.pack();
+        progress.setLocationRelativeTo(this);
+
+        final SwingWorker<ColorClusters, Void> task = new SwingWorker<ColorClusters, Void>() {
+            @Override protected ColorClusters doInBackground() {
+                Span span = Perf.CLUSTER.begin();
+                try {
+                    return ColorClusters.of(colors, clusters, this::isCancelled);
+                } finally {
+                    span.close();
+                }
+            }
+            @Override protected void done() {
+                progress.dispose();
+                if (isCancelled() || target != store || edit != editCount) return;
+                try {
+                    showClusters(get(), rows);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    showError("Failed to cluster colors:\n" + ex.getCause());
+                }
+            }
+        };
+        cancel.addActionListener(e -> task.cancel(true));
+        task.execute();
+        if (!task.isDone()) progress.setVisible(true); // blocks until done() disposes it
+    }
+
+    /**
+     * Lists clusters largest first; the selected cluster's keys are shown below. Each
+     * cluster consolidates onto its most used color unless another one is typed in; entry
+     * alpha is kept, as when a favorite is dropped. {@code rows} maps the clustered colors
+     * back to entries (null = all entries).
+     */
+    private void showClusters(final ColorClusters cl, final int[] rows) {
+        if (cl.k == 0) {
+            JOptionPane.showMessageDialog(this, "There are no colors to consolidate.",
+                    "Consolidate Colors", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        final PaletteStore target = store;
+        final boolean[] apply = new boolean[cl.k];
+        final String[] into = new String[cl.k];
+        for (int c = 0; c < cl.k; c++) {
+            apply[c] = cl.distinct[c] > 1;
+            into[c] = rgbHex(cl.representative[c]);
+        }
+        final String[] columns = {"Consolidate", "", "Into", "Entries", "Distinct", "Spread ΔE"};
+        final AbstractTableModel model = new AbstractTableModel() {
+            @Override public int getRowCount() { return cl.k; }
+            @Override public int getColumnCount() { return columns.length; }
+            @Override public String getColumnName(int c) { return columns[c]; }
+            @Override public Class<?> getColumnClass(int c) {
+                switch (c) {
+                    case 0: return Boolean.class;
+                    case 3: case 4: return Integer.class;
+                    case 5: return Float.class;
+                    default: return String.class;
+                }
+            }
+            @Override public boolean isCellEditable(int r, int c) { return c == 0 || c == 2; }
+            @Override public void setValueAt(Object v, int r, int c) {
+                if (c == 0) {
+                    apply[r] = (Boolean) v;
+                } else {
+                    String hex = normalizeHex((String) v);
+                    if (hex == null) return;
+                    into[r] = hex.substring(0, 7); // entries keep their own alpha
+                }
+                fireTableRowsUpdated(r, r);
+            }
+            @Override public Object getValueAt(int r, int c) {
+                switch (c) {
+                    case 0: return apply[r];
+                    case 1: return "";
+                    case 2: return into[r];
+                    case 3: return cl.size(r);
+                    case 4: return cl.distinct[r];
+                    default: return cl.spread[r];
+                }
+            }
+        };
+        final JTable table = new JTable(model);
+        table.setRowSorter(new TableRowSorter<AbstractTableModel>(model));
+        table.setFillsViewportHeight(true);
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.getColumnModel().getColumn(0).setMaxWidth(90);
+        table.getColumnModel().getColumn(1).setMaxWidth(40);
+        table.getColumnModel().getColumn(1).setCellRenderer(new javax.swing.table.DefaultTableCellRenderer() {
+            @Override public Component getTableCellRendererComponent(JTable t, Object v, boolean sel, boolean focus,
+                                                                     int r, int c) {
+                super.getTableCellRendererComponent(t, v, false, false, r, c);
+                setBackground(new Color(hexArgb(into[t.convertRowIndexToModel(r)])));
+                return this;
+            }
+        });
+        JScrollPane clusterScroll = new JScrollPane(table);
+        clusterScroll.setPreferredSize(new Dimension(560, 260));
+
+        // Member keys of the selected cluster, resolved as they scroll into view
+        final int[] shown = {0};
+        final AbstractListModel<String> memberModel = new AbstractListModel<String>() {
+            @Override public int getSize() { return cl.size(shown[0]); }
+            @Override public String getElementAt(int i) {
+                int m = cl.members[cl.start[shown[0]] + i];
+                int e = rows == null ? m : rows[m];
+                return store.hex(e) + "   " + store.name(e);
+            }
+        };
+        final JList<String> members = new JList<String>(memberModel);
+        members.setPrototypeCellValue("#RRGGBBAA   some.fairly.long.bitwig.theme.key.name");
+        members.setFont(new Font(Font.MONOSPACED, Font.PLAIN, members.getFont().getSize()));
+        JScrollPane memberScroll = new JScrollPane(members);
+        memberScroll.setPreferredSize(new Dimension(560, 180));
+        final JLabel memberLabel = new JLabel();
+        table.getSelectionModel().addListSelectionListener(e -> {
+            int r = table.getSelectedRow();
+            if (e.getValueIsAdjusting() || r < 0) return;
+            shown[0] = table.convertRowIndexToModel(r);
+            memberLabel.setText("Keys in cluster " + (shown[0] + 1) + " (" + cl.size(shown[0]) + "):");
+            members.setModel(new DefaultListModel<String>()); // drop cached cell sizes
+            members.setModel(memberModel);
+        });
+        table.setRowSelectionInterval(0, 0);
+
+        JButton all = new JButton("Check All");
+        JButton none = new JButton("Check None");
+        JButton select = new JButton("Select Keys in List");
+        all.addActionListener(e -> {
+            Arrays.fill(apply, true);
+            model.fireTableDataChanged();
+        });
+        none.addActionListener(e -> {
+            Arrays.fill(apply, false);
+            model.fireTableDataChanged();
+        });
+        select.addActionListener(e -> {
+            if (target != store) return;
+            int c = shown[0], hidden = 0;
+            int[] listRows = new int[cl.size(c)];
+            int n = 0;
+            for (int q = cl.start[c]; q < cl.start[c + 1]; q++) {
+                int row = listModel.rowOf(rows == null ? cl.members[q] : rows[cl.members[q]]);
+                if (row >= 0) listRows[n++] = row;
+                else hidden++;
+            }
+            list.clearSelection();
+            if (n > 0) {
+                list.setSelectedIndices(Arrays.copyOf(listRows, n));
+                list.ensureIndexIsVisible(listRows[0]);
+            }
+            if (hidden > 0) memberLabel.setText(hidden + " of these keys are hidden by the search filter.");
+        });
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 0));
+        buttons.add(all);
+        buttons.add(none);
+        buttons.add(select);
+
+        JPanel south = new JPanel(new BorderLayout(0, 4));
+        south.add(memberLabel, BorderLayout.NORTH);
+        south.add(memberScroll, BorderLayout.CENTER);
+        south.add(buttons, BorderLayout.SOUTH);
+        JPanel panel = new JPanel(new BorderLayout(0, 6));
+        panel.add(new JLabel(cl.entries + " entries, " + cl.colors.length + " distinct colors in " + cl.k
+                + " clusters (" + cl.passes + " k-means passes, " + Perf.nanos(cl.nanos) + ")."), BorderLayout.NORTH);
+        panel.add(clusterScroll, BorderLayout.CENTER);
+        panel.add(south, BorderLayout.SOUTH);
+
+        int ok = JOptionPane.showConfirmDialog(this, panel, "Consolidate Colors",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (ok != JOptionPane.OK_OPTION || target != store) return;
+        int n = 0;
+        for (int c = 0; c < cl.k; c++) if (apply[c]) n += cl.size(c);
+        int[] entries = new int[n];
+        String[] hexes = new String[n];
+        n = 0;
+        for (int c = 0; c < cl.k; c++) {
+            if (!apply[c]) continue;
+            for (int q = cl.start[c]; q < cl.start[c + 1]; q++) {
+                int e = rows == null ? cl.members[q] : rows[cl.members[q]];
+                entries[n] = e;
+                hexes[n++] = mergeFavoriteOntoTarget(into[c], store.hex(e));
+            }
+        }
+        int changed = updateEntriesHex(entries, hexes, n);
+        JOptionPane.showMessageDialog(this, "Consolidated " + changed + " of " + n + " entries.");
+    }
+
+    /**
+     * Edit → Contrast Report: WCAG contrast of the entry pairs named by a rule set, worst
+     * first. The report follows edits as they are made (see {@link #applyValues}) and is
+     * rebuilt when another theme is shown or the file is reloaded.
+     */
+    private void onContrastReport() {
+        if (contrastDialog != null) {
+            contrastDialog.setVisible(true);
+            contrastDialog.toFront();
+            if (contrast == null || contrast.store != store) analyzeContrast();
+            return;
+        }
+        final JTextArea rulesText = new JTextArea(contrastRules, 4, 60);
+        rulesText.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        final JCheckBox failingOnly = new JCheckBox("Failing pairs only", true);
+        JButton analyze = new JButton("Analyze");
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 0));
+        controls.add(analyze);
+        controls.add(failingOnly);
+        JPanel top = new JPanel(new BorderLayout(0, 6));
+        top.add(new JScrollPane(rulesText), BorderLayout.CENTER);
+        top.add(controls, BorderLayout.SOUTH);
+
+        final String[] columns = {"Sample", "Ratio", "Minimum", "Foreground", "Background", "Rule"};
+        contrastModel = new AbstractTableModel() {
+            @Override public int getRowCount() {
+                if (contrast == null) return 0;
+                return failingOnly.isSelected() ? contrast.failing() : contrast.pairs();
+            }
+            @Override public int getColumnCount() { return columns.length; }
+            @Override public String getColumnName(int c) { return columns[c]; }
+            @Override public Class<?> getColumnClass(int c) { return c == 1 || c == 2 ? Float.class : Object.class; }
+            @Override public Object getValueAt(int r, int c) {
+                if (contrast == null || r >= getRowCount()) return null;
+                int p = contrast.worst(r);
+                switch (c) {
+                    case 0: return p;
+                    case 1: return contrast.ratio(p);
+                    case 2: return contrast.rule(p).minimum;
+                    case 3: return store.name(contrast.foreground(p));
+                    case 4: return store.name(contrast.background(p));
+                    default: return contrast.rule(p).text;
+                }
+            }
+        };
+        final JTable table = new JTable(contrastModel);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(0).setMaxWidth(60);
+        table.getColumnModel().getColumn(1).setMaxWidth(70);
+        table.getColumnModel().getColumn(2).setMaxWidth(70);
+        table.getColumnModel().getColumn(3).setPreferredWidth(220);
+        table.getColumnModel().getColumn(4).setPreferredWidth(220);
+        table.getColumnModel().getColumn(0).setCellRenderer(new javax.swing.table.DefaultTableCellRenderer() {
+            @Override public Component getTableCellRendererComponent(JTable t, Object v, boolean sel, boolean focus,
+                                                                     int r, int c) {
+                super.getTableCellRendererComponent(t, "Aa", false, false, r, c);
+                setHorizontalAlignment(CENTER);
+                if (v != null && contrast != null) {
+                    int p = (Integer) v;
+                    setForeground(new Color(store.argb(contrast.foreground(p)) & 0xFFFFFF));
+                    setBackground(new Color(store.argb(contrast.background(p)) & 0xFFFFFF));
+                }
+                return this;
+            }
+        });
+        table.addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override public void mouseClicked(java.awt.event.MouseEvent e) {
+                int r = table.getSelectedRow();
+                if (e.getClickCount() != 2 || r < 0 || contrast == null) return;
+                int p = contrast.worst(r);
+                int a = listModel.rowOf(contrast.foreground(p)), b = listModel.rowOf(contrast.background(p));
+                list.clearSelection();
+                if (a >= 0) list.addSelectionInterval(a, a);
+                if (b >= 0) list.addSelectionInterval(b, b);
+                if (a >= 0) list.ensureIndexIsVisible(a);
+            }
+        });
+        table.setToolTipText("Double-click to select both entries in the list");
+        JScrollPane scroll = new JScrollPane(table);
+        scroll.setPreferredSize(new Dimension(820, 380));
+
+        contrastLabel = new JLabel(" ");
+        JPanel content = new JPanel(new BorderLayout(0, 6));
+        content.setBorder(new EmptyBorder(8, 8, 8, 8));
+        content.add(top, BorderLayout.NORTH);
+        content.add(scroll, BorderLayout.CENTER);
+        content.add(contrastLabel, BorderLayout.SOUTH);
+
+        analyze.addActionListener(e -> {
+            contrastRules = rulesText.getText();
+            analyzeContrast();
+        });
+        failingOnly.addActionListener(e -> contrastModel.fireTableDataChanged());
+
+        contrastDialog = new JDialog(this, "Contrast Report", false);
+        contrastDialog.setContentPane(content);
+        contrastDialog.addWindowListener(new WindowAdapter() {
+            @Override public void windowClosing(WindowEvent e) { // nothing to keep current while hidden
+                if (contrastTask != null) contrastTask.cancel(true);
+                contrast = null;
+                contrastModel.fireTableDataChanged();
+            }
+        });
+        contrastDialog.pack();
+        contrastDialog.setLocationRelativeTo(this);
+        contrastDialog.setVisible(true);
+        analyzeContrast();
+    }
+
+    /** Rebuilds the contrast report off the EDT; a result for an outdated theme is built again. */
+    private void analyzeContrast() {
+        if (contrastTask != null) contrastTask.cancel(true);
+        contrast = null;
+        contrastModel.fireTableDataChanged();
+        if (store == null || document == null) {
+            contrastLabel.setText("Open a theme to check its contrast.");
+            return;
+        }
+        final List<ContrastReport.Rule> rules;
+        try {
+            rules = ContrastReport.parseRules(contrastRules);
+        } catch (IllegalArgumentException ex) {
+            contrastLabel.setText(ex.getMessage());
+            return;
+        }
+        final PaletteStore target = store;
+        final long edit = editCount;
+        contrastLabel.setText("Analyzing…");
+        contrastTask = new SwingWorker<ContrastReport, Void>() {
+            @Override protected ContrastReport doInBackground() {
+                return new ContrastReport(target, rules, this::isCancelled);
+            }
+            @Override protected void done() {
+                if (contrastTask != this || isCancelled()) return;
+                contrastTask = null;
+                if (target != store || !contrastDialog.isShowing()) return;
+                if (edit != editCount) { // edited meanwhile: the cached luminances may be stale
+                    analyzeContrast();
+                    return;
+                }
+                try {
+                    contrast = get();
+                    contrastModel.fireTableDataChanged();
+                    updateContrastLabel();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    contrastLabel.setText(String.valueOf(ex.getCause().getMessage()));
+                }
+            }
+        };
+        contrastTask.execute();
+    }
+
+    /** Brings the contrast report up to date after entries {@code rows[k]}, {@code k < n}, changed color. */
+    private void contrastEdited(int[] rows, int n) {
+        if (contrast == null) return;
+        if (contrast.store != store) {
+            analyzeContrast();
+            return;
+        }
+        contrast.update(rows, n);
+        contrastModel.fireTableDataChanged();
+        updateContrastLabel();
+    }
+
+    private void updateContrastLabel() {
+        contrastLabel.setText(contrast.failing() + " of " + contrast.pairs() + " pairs are below their minimum contrast"
+                + " (" + contrast.rules.size() + " rule" + (contrast.rules.size() == 1 ? "" : "s")
+                + ", analyzed in " + Perf.nanos(contrast.nanos) + ").");
+    }
+
+    /**
+     * Edit → Theme Preview: the theme's colors on a schematic screen. Edits redraw only the
+     * parts bound to the edited keys (see {@link #applyValues}); the keys are bound again
+     * when another theme is shown or the file is reloaded.
+     */
+    private void onThemePreview() {
+        if (themePreviewDialog != null) {
+            themePreviewDialog.setVisible(true);
+            themePreviewDialog.toFront();
+            if (themePreview.store() != store) bindThemePreview();
+            return;
+        }
+        themePreview = new ThemePreview();
+        themePreview.addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override public void mouseClicked(java.awt.event.MouseEvent e) {
+                ThemePreview.Part part = themePreview.partAt(e.getPoint());
+                if (part == null || part.entry < 0 || themePreview.store() != store) return;
+                int row = listModel.rowOf(part.entry);
+                if (row < 0) {
+                    themePreviewLabel.setText(store.name(part.entry) + " is hidden by the current search.");
+                    return;
+                }
+                list.setSelectedIndex(row);
+                list.ensureIndexIsVisible(row);
+            }
+        });
+        themePreview.setTransferHandler(new TransferHandler() { // favorites dropped onto a part recolor its key
+            @Override public boolean canImport(TransferSupport support) {
+                if (!support.isDrop() || !support.isDataFlavorSupported(DataFlavor.stringFlavor)) return false;
+                ThemePreview.Part part = themePreview.partAt(support.getDropLocation().getDropPoint());
+                return part != null && part.entry >= 0 && themePreview.store() == store;
+            }
+            @Override public boolean importData(TransferSupport support) {
+                if (!canImport(support)) return false;
+                try {
+                    String favHex = normalizeHex((String) support.getTransferable().getTransferData(DataFlavor.stringFlavor));
+                    if (favHex == null) return false;
+                    ThemePreview.Part part = themePreview.partAt(support.getDropLocation().getDropPoint());
+                    applyToEntries(favHex, new int[]{part.entry});
+                    return true;
+                } catch (Exception ex) {
+                    showError("Drop failed:\n" + ex.getMessage());
+                    return false;
+                }
+            }
+        });
+
+        themePreviewLabel = new JLabel(" ");
+        JPanel content = new JPanel(new BorderLayout(0, 6));
+        content.setBorder(new EmptyBorder(8, 8, 8, 8));
+        content.add(themePreview, BorderLayout.CENTER);
+        content.add(themePreviewLabel, BorderLayout.SOUTH);
+
+        themePreviewDialog = new JDialog(this, "Theme Preview", false);
+        themePreviewDialog.setContentPane(content);
+        themePreviewDialog.addWindowListener(new WindowAdapter() {
+            @Override public void windowClosing(WindowEvent e) { // nothing to keep current while hidden
+                if (themePreviewTask != null) themePreviewTask.cancel(true);
+                themePreview.setStore(null, null);
+            }
+        });
+        themePreviewDialog.pack();
+        themePreviewDialog.setLocationRelativeTo(this);
+        themePreviewDialog.setVisible(true);
+        bindThemePreview();
+    }
+
+    /** Binds the preview's parts to the shown theme's keys off the EDT. */
+    private void bindThemePreview() {
+        if (themePreviewTask != null) themePreviewTask.cancel(true);
+        themePreview.setStore(null, null);
+        if (store == null || document == null) {
+            themePreviewLabel.setText("Open a theme to preview it.");
+            return;
+        }
+        final PaletteStore target = store;
+        themePreviewLabel.setText("Matching keys…");
+        themePreviewTask = new SwingWorker<int[], Void>() {
+            @Override protected int[] doInBackground() {
+                return ThemePreview.bind(target, themePreview.parts); // key names only: edits cannot outdate it
+            }
+            @Override protected void done() {
+                if (themePreviewTask != this || isCancelled()) return;
+                themePreviewTask = null;
+                if (target != store || !themePreviewDialog.isShowing()) return;
+                try {
+                    int[] entries = get();
+                    themePreview.setStore(target, entries);
+                    int bound = 0;
+                    for (int e : entries) if (e >= 0) bound++;
+                    themePreviewLabel.setText(bound + " of " + entries.length + " parts drawn from theme keys (grey: no match)."
+                            + " Click a part to select its key, drop a favorite on it to recolor it.");
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    themePreviewLabel.setText(String.valueOf(ex.getCause().getMessage()));
+                }
+            }
+        };
+        themePreviewTask.execute();
+    }
+
+    /** Redraws the whole preview after the store's preview column (Adjust Colors) changed. */
+    private void refreshThemePreview() {
+        if (themePreview != null && themePreview.store() == store) themePreview.refresh();
+    }
+
+    /** File → Scripting Server: serves the shown document on a loopback port until turned off or exit. */
+    private void startScriptServer() {
+        String answer = JOptionPane.showInputDialog(this, "Serve the shown theme to local tools on port:", scriptServerPort);
+        int port;
+        try {
+            port = answer == null ? -1 : Integer.parseInt(answer.trim());
+        } catch (NumberFormatException ex) {
+            port = -1;
+        }
+        if (port < 1 || port > 65535) {
+            scriptServerItem.setSelected(false);
+            return;
+        }
+        try {
+            scriptServer = new ScriptServer(new ScriptServer.Owner() {
+                @Override public void execute(Runnable r) { SwingUtilities.invokeLater(r); }
+                @Override public PaletteStore store() { return document != null ? store : null; }
+                @Override public int apply(int[] rows, String[] hexes, int n) {
+                    for (int k = 0; k < n; k++) hexes[k] = mergeFavoriteOntoTarget(hexes[k], store.hex(rows[k]));
+                    return updateEntriesHex(rows, hexes, n);
+                }
+                @Override public void addFavorites(List<String> hexes) {
+                    for (String h : hexes) favModel.addElement(new Favorite(h));
+                }
+            }, port);
+        } catch (IOException ex) {
+            scriptServerItem.setSelected(false);
+            showError("Could not start the scripting server on port " + port + ":\n" + ex.getMessage());
+            return;
+        }
+        scriptServerPort = port;
+        scriptServer.publish(document != null ? store : null);
+        scriptServerFavoritesChanged();
+        Path info = scriptServerInfoPath();
+        String saved;
+        try {
+            writeOwnerOnly(info, ("port=" + port + "\ntoken=" + scriptServer.token + "\n").getBytes(StandardCharsets.ISO_8859_1));
+            saved = "Tools can read both from " + info + " while it runs.";
+        } catch (IOException ex) {
+            saved = "(Could not write " + info + ": " + ex.getMessage() + ")";
+        }
+        JTextArea text = new JTextArea("http://127.0.0.1:" + port + "/\n"
+                + "Authorization: Bearer " + scriptServer.token + "\n\n"
+                + "curl -H \"Authorization: Bearer " + scriptServer.token + "\" \"http://127.0.0.1:" + port + "/entries?match=clip&limit=5\"\n\n"
+                + saved + "\nRequests: GET /status, GET /entries?match=, GET|POST /entry?key=&hex=, POST /entries,\n"
+                + "GET|POST /favorites, POST /favorites/apply?favorite=&match= (see README).", 8, 70);
+        text.setEditable(false);
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        JOptionPane.showMessageDialog(this, new JScrollPane(text), "Scripting Server", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private void stopScriptServer() {
+        if (scriptServer == null) return;
+        scriptServer.stop();
+        scriptServer = null;
+        try {
+            Files.deleteIfExists(scriptServerInfoPath());
+        } catch (IOException ignored) {
+            // stale info only points at a closed port
+        }
+    }
+
+    private void scriptServerFavoritesChanged() {
+        if (scriptServer == null) return;
+        List<String> hexes = new ArrayList<String>(favModel.size());
+        for (int i = 0; i < favModel.size(); i++) hexes.add(favModel.get(i).hex);
+        scriptServer.favoritesChanged(hexes);
+    }
+
+    // ===== User Palette (Favorites) Import/Export and the palette library =====
+
+    /** A chooser for *.palette files, starting in the last used directory. */
+    private JFileChooser paletteChooser(String title) {
+        JFileChooser fc = new JFileChooser();
+        fc.setDialogTitle(title);
+        fc.setAcceptAllFileFilterUsed(false);
+        FileNameExtensionFilter palFilter = new FileNameExtensionFilter("Palette files (*.palette)", "palette");
+        fc.addChoosableFileFilter(palFilter);
+        fc.setFileFilter(palFilter);
+        if (lastDirectory != null) fc.setCurrentDirectory(lastDirectory.toFile());
+        return fc;
+    }
+
+    /** Asks where to export a palette; null if cancelled. Appends .palette if missing. */
+    private Path choosePaletteExport(String title) {
+        JFileChooser fc = paletteChooser(title);
+        if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return null;
+        Path out = fc.getSelectedFile().toPath();
+        if (!out.getFileName().toString().toLowerCase().endsWith(".palette")) {
+            out = out.resolveSibling(out.getFileName().toString() + ".palette");
+        }
+        return out;
+    }
+
+    private void onSaveUserPalette() {
+        Path out = choosePaletteExport("Export Favorites (*.palette)");
+        if (out == null) return;
+        try {
+            saveUserPaletteTo(out);
+            lastDirectory = out.getParent();
+            JOptionPane.showMessageDialog(this, "Saved user palette:\n" + out.toAbsolutePath());
+        } catch (IOException ex) {
+            showError("Failed to save user palette:\n" + ex.getMessage());
+        }
+    }
+
+    private void onLoadUserPalette() {
+        JFileChooser fc = paletteChooser("Import Favorites (*.palette)");
+        if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path in = fc.getSelectedFile().toPath();
+        try {
+            loadUserPaletteFrom(in, true);
+            lastDirectory = in.getParent();
+        } catch (Exception ex) {
+            showError("Failed to load user palette:\n" + ex.getMessage());
+        }
+    }
+
+    /**
+     * User Palette → Library: the named palettes of the library. Palettes load into (or are
+     * added to) the favorites, the favorites can be stored under a name, and *.palette files
+     * can be imported as palettes and palettes exported as *.palette files.
+     */
+    private void onPaletteLibrary() {
+        final PaletteLibrary lib = library;
+        if (lib == null) {
+            showError(libraryError != null ? "The palette library could not be opened:\n" + libraryError.getMessage()
+                    : "The palette library is still loading.");
+            return;
+        }
+        final DefaultListModel<String> names = new DefaultListModel<String>();
+        for (String n : lib.names()) names.addElement(n);
+        final JList<String> palettes = new JList<String>(names);
+        palettes.setCellRenderer(new DefaultListCellRenderer() {
+            @Override public Component getListCellRendererComponent(JList<?> l, Object v, int i, boolean sel, boolean focus) {
+                int n = lib.colors((String) v);
+                return super.getListCellRendererComponent(l, v + "  (" + n + (n == 1 ? " color)" : " colors)"), i, sel, focus);
+            }
+        });
+        palettes.setVisibleRowCount(12);
+        if (!names.isEmpty()) palettes.setSelectedIndex(0);
+        JScrollPane scroll = new JScrollPane(palettes);
+        scroll.setPreferredSize(new Dimension(320, 240));
+
+        JButton load = new JButton("Load");
+        JButton add = new JButton("Add to Favorites");
+        JButton saveAs = new JButton("Save Favorites As…");
+        JButton delete = new JButton("Delete");
+        JButton importBtn = new JButton("Import…");
+        JButton exportBtn = new JButton("Export…");
+        load.setToolTipText("Replace the favorites with the selected palette");
+        load.addActionListener(e -> {
+            try {
+                PaletteLibrary.Palette p = palettes.getSelectedValue() != null ? lib.load(palettes.getSelectedValue()) : null;
+                if (p == null) return;
+                favModel.clear();
+                addFavorites(p, favModel.size());
+            } catch (IOException ex) {
+                showError("Failed to load palette:\n" + ex.getMessage());
+            }
+        });
+        add.addActionListener(e -> {
+            try {
+                PaletteLibrary.Palette p = palettes.getSelectedValue() != null ? lib.load(palettes.getSelectedValue()) : null;
+                if (p != null) addFavorites(p, favModel.size());
+            } catch (IOException ex) {
+                showError("Failed to load palette:\n" + ex.getMessage());
+            }
+        });
+        saveAs.addActionListener(e -> {
+            String name = JOptionPane.showInputDialog(this, "Palette name:",
+                    palettes.getSelectedValue() != null ? palettes.getSelectedValue() : "");
+            if (name == null || name.trim().isEmpty()) return;
+            name = name.trim();
+            if (names.contains(name) && JOptionPane.showConfirmDialog(this, "Replace palette \"" + name + "\"?",
+                    "Palette Library", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
+            try {
+                lib.save(favoritesPalette(name));
+                if (!names.contains(name)) names.addElement(name);
+                palettes.setSelectedValue(name, true);
+                palettes.repaint();
+            } catch (IOException ex) {
+                showError("Failed to save palette:\n" + ex.getMessage());
+            }
+        });
+        delete.addActionListener(e -> {
+            String name = palettes.getSelectedValue();
+            if (name == null || JOptionPane.showConfirmDialog(this, "Delete palette \"" + name + "\"?",
+                    "Palette Library", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
+            try {
+                lib.delete(name);
+                names.removeElement(name);
+            } catch (IOException ex) {
+                showError("Failed to delete palette:\n" + ex.getMessage());
+            }
+        });
+        importBtn.addActionListener(e -> {
+            JFileChooser fc = paletteChooser("Import Palette (*.palette)");
+            if (fc.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            Path in = fc.getSelectedFile().toPath();
+            String file = in.getFileName().toString();
+            String name = file.toLowerCase().endsWith(".palette") ? file.substring(0, file.length() - 8) : file;
+            try {
+                lib.save(readPalette(in, name));
+                lastDirectory = in.getParent();
+                if (!names.contains(name)) names.addElement(name);
+                palettes.setSelectedValue(name, true);
+                palettes.repaint();
+            } catch (Exception ex) {
+                showError("Failed to import palette:\n" + ex.getMessage());
+            }
+        });
+        exportBtn.addActionListener(e -> {
+            String name = palettes.getSelectedValue();
+            if (name == null) return;
+            Path out = choosePaletteExport("Export Palette (*.palette)");
+            if (out == null) return;
+            try {
+                PaletteLibrary.Palette p = lib.load(name);
+                List<String> hexes = new ArrayList<String>(p.size());
+                for (int k = 0; k < p.size(); k++) hexes.add(p.hex(k));
+                writePaletteHexes(out, hexes);
+                lastDirectory = out.getParent();
+            } catch (IOException ex) {
+                showError("Failed to export palette:\n" + ex.getMessage());
+            }
+        });
+
+        JPanel buttons = new JPanel(new GridLayout(0, 1, 0, 6));
+        for (JButton b : new JButton[]{load, add, saveAs, delete, importBtn, exportBtn}) buttons.add(b);
+        JPanel east = new JPanel(new BorderLayout());
+        east.add(buttons, BorderLayout.NORTH);
+        JPanel panel = new JPanel(new BorderLayout(8, 0));
+        panel.add(scroll, BorderLayout.CENTER);
+        panel.add(east, BorderLayout.EAST);
+        JOptionPane.showOptionDialog(this, panel, "Palette Library", JOptionPane.DEFAULT_OPTION,
+                JOptionPane.PLAIN_MESSAGE, null, new Object[]{"Close"}, "Close");
+    }
+
+    /** Inserts the colors of {@code p} into the favorites at {@code at}. */
+    private void addFavorites(PaletteLibrary.Palette p, int at) {
+        for (int k = 0; k < p.size(); k++) favModel.add(at + k, new Favorite(p.argb[k], p.alpha.get(k), p.name(k)));
+    }
+
+    /** The favorites as a library palette called {@code name}. */
+    private PaletteLibrary.Palette favoritesPalette(String name) {
+        int n = favModel.size();
+        int[] argb = new int[n];
+        BitSet alpha = new BitSet(n);
+        String[] names = null;
+        for (int k = 0; k < n; k++) {
+            Favorite f = favModel.get(k);
+            argb[k] = hexArgb(f.hex);
+            alpha.set(k, f.hex.length() == 9);
+            if (f.name != null) {
+                if (names == null) names = new String[n];
+                names[k] = f.name;
+            }
+        }
+        return new PaletteLibrary.Palette(name, argb, alpha, names);
+    }
+
+    // ===== Auto-load/save helpers =====
+
+    /**
+     * Opens the palette library and reads its favorites palette in the background, so the
+     * window shows without waiting for the disk. A *.palette file from before the library
+     * is imported once. Favorites added in the meantime stay after the loaded ones.
+     */
+    private void tryAutoLoadDefaultUserPalette() {
+        new SwingWorker<PaletteLibrary.Palette, Void>() {
+            private PaletteLibrary lib;
+
+            @Override protected PaletteLibrary.Palette doInBackground() throws IOException {
+                Path path = getPaletteLibraryPath();
+                Path legacy = getDefaultUserPalettePath();
+                boolean migrate = !Files.exists(path) && Files.exists(legacy);
+                lib = PaletteLibrary.open(path);
+                if (migrate) lib.save(readPalette(legacy, PaletteLibrary.FAVORITES));
+                return lib.load(PaletteLibrary.FAVORITES);
+            }
+
+            @Override protected void done() {
+                try {
+                    PaletteLibrary.Palette p = get();
+                    if (p != null) addFavorites(p, 0);
+                    library = lib;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    libraryError = ex.getCause(); // quiet on startup; the Library dialog reports it
+                }
+            }
+        }.execute();
+    }
+
+    private void tryAutoSaveDefaultUserPalette() {
+        try {
+            if (library != null && favModel != null) library.save(favoritesPalette(PaletteLibrary.FAVORITES));
+        } catch (Exception ignored) {
+            // Don't block exit
+        }
+    }
+
+    /** The library file, next to where the single auto-loaded *.palette used to live. */
+    private Path getPaletteLibraryPath() {
+        return getDefaultUserPalettePath().resolveSibling("palettes.library");
+    }
+
+    /** Port and token of the running scripting server, for local tools to find it. */
+    private static Path scriptServerInfoPath() {
+        return getDefaultUserPalettePath().resolveSibling("script-server.properties");
+    }
+
+    /**
+     * Writes a secret to {@code target} readable by the current user only: a temp file is
+     * created owner-only (POSIX rw------- or an owner-only ACL) before anything is written
+     * to it, then moved into place, so the secret is never readable by others.
+     */
+    private static void writeOwnerOnly(Path target, byte[] data) throws IOException {
+        ensureParentDir(target);
+        Path tmp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        try {
+            FileSystem fs = target.getFileSystem();
+            if (fs.supportedFileAttributeViews().contains("posix")) {
+                Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } else {
+                Files.createFile(tmp);
+                AclFileAttributeView acl = Files.getFileAttributeView(tmp, AclFileAttributeView.class);
+                if (acl == null) throw new IOException("Can't restrict access to " + target + " on this file system.");
+                acl.setAcl(Collections.singletonList(AclEntry.newBuilder()
+                        .setType(AclEntryType.ALLOW)
+                        .setPrincipal(acl.getOwner())
+                        .setPermissions(EnumSet.allOf(AclEntryPermission.class))
+                        .build()));
+            }
+            Files.write(tmp, data, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static Path getDefaultUserPalettePath() {
+        String os = System.getProperty("os.name", "").toLowerCase();
+        if (os.contains("win")) {
+            String appdata = System.getenv("APPDATA");
+            if (appdata != null && !appdata.isEmpty()) {
+                return Paths.get(appdata, "ColorJsonEditor", "user-palette.palette");
+            }
+        }
+        String home = System.getProperty("user.home", ".");
+        return Paths.get(home, ".colorjsoneditor", "user-palette.palette");
+    }
+
+    private static void ensureParentDir(Path file) throws IOException {
+        Path parent = file.getParent();
+        if (parent != null && !Files.exists(parent)) {
+            Files.createDirectories(parent);
+        }
+    }
+
+    private void saveUserPaletteTo(Path out) throws IOException {
+        List<String> hexes = new ArrayList<String>();
+        for (int i = 0; i < favModel.size(); i++) hexes.add(favModel.get(i).hex);
+        writePaletteHexes(out, hexes);
+    }
+
+    /** Writes a *.palette file (JSON array of hex strings). */
+    private static void writePaletteHexes(Path out, List<String> hexes) throws IOException {
+        ensureParentDir(out);
+        StringBuilder sb = new StringBuilder();
+        sb.append("[\n");
+        for (int i = 0; i < hexes.size(); i++) {
+            sb.append("  \"").append(hexes.get(i)).append("\"");
+            if (i < hexes.size() - 1) sb.append(",");
+            sb.append("\n");
+        }
+        sb.append("]\n");
+        Files.write(out, sb.toString().getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private void loadUserPaletteFrom(Path in, boolean replace) throws IOException {
+        PaletteLibrary.Palette p = readPalette(in, null);
+        if (replace) favModel.clear();
+        addFavorites(p, favModel.size());
+    }
+
+    /** Reads a *.palette file (JSON array of hex strings); invalid items are skipped. */
+    private static List<String> readPaletteHexes(Path in) throws IOException {
+        PaletteLibrary.Palette p = readPalette(in, null);
+        List<String> hexes = new ArrayList<String>(p.size());
+        for (int k = 0; k < p.size(); k++) hexes.add(p.hex(k));
+        return hexes;
+    }
+
+    /**
+     * Reads a *.palette file (JSON array of hex strings) in one pass over its bytes, packing
+     * each item straight into ARGB; items that aren't #RRGGBB or #RRGGBBAA (the # is
+     * optional, surrounding blanks are ignored) are skipped.
+     */
+    private static PaletteLibrary.Palette readPalette(Path in, String name) throws IOException {
+        byte[] b = Files.readAllBytes(in);
+        int from = 0, to = b.length;
+        while (from < to && (b[from] & 0xFF) <= ' ') from++;
+        while (to > from && (b[to - 1] & 0xFF) <= ' ') to--;
+        if (to - from < 2 || b[from] != '[' || b[to - 1] != ']') {
+            throw new IllegalArgumentException("Expected JSON array of hex strings.");
+        }
+        int[] argb = new int[16];
+        BitSet alpha = new BitSet();
+        int n = 0;
+        for (int item = from + 1, end; item < to - 1; item = end + 1) {
+            end = item;
+            while (end < to - 1 && b[end] != ',') end++;
+            int s = item, e = end;
+            while (s < e && (b[s] & 0xFF) <= ' ') s++;
+            while (e > s && (b[e - 1] & 0xFF) <= ' ') e--;
+            if (e - s >= 2 && b[s] == '"' && b[e - 1] == '"') {
+                s++;
+                e--;
+                while (s < e && (b[s] & 0xFF) <= ' ') s++;
+                while (e > s && (b[e - 1] & 0xFF) <= ' ') e--;
+            }
+            if (s < e && b[s] == '#') s++;
+            if (e - s != 6 && e - s != 8) continue;
+            int v = 0, q = s;
+            for (; q < e; q++) {
+                int d = Character.digit(b[q], 16);
+                if (d < 0) break;
+                v = v << 4 | d;
+            }
+            if (q < e) continue;
+            if (n == argb.length) argb = Arrays.copyOf(argb, 2 * n);
+            if (e - s == 8) {
+                argb[n] = v << 24 | v >>> 8; // RRGGBBAA -> AARRGGBB
+                alpha.set(n);
+            } else {
+                argb[n] = 0xFF000000 | v;
+            }
+            n++;
+        }
+        return new PaletteLibrary.Palette(name, Arrays.copyOf(argb, n), alpha, null);
+    }
+
+    // ===== Helpers =====
+
+    /** Packs "#RRGGBB" (opaque), "#RRGGBBAA" or any other {@link ColorCodec} value into an ARGB int. The input must be valid. */
+    private static int hexArgb(CharSequence hex) {
+        return (int) ColorCodec.parse(hex);
+    }
+
+    /**
+     * Normalize to "#RRGGBB" or "#RRGGBBAA"; returns null if invalid. Takes hex with or
+     * without the '#', "#RGB[A]", rgb() and hsl(); canonical input comes back as is.
+     */
+    private static String normalizeHex(String text) {
+        if (text == null) return null;
+        int start = 0, end = text.length();
+        while (start < end && text.charAt(start) <= ' ') start++;
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+        if (start == end) return null;
+        boolean bare = text.charAt(start) != '#' && (end - start == 6 || end - start == 8);
+        long p = bare ? ColorCodec.hex(null, text, start, end) : ColorCodec.parse(text, start, end, false);
+        if (p < 0) return null;
+        int format = ColorCodec.formatOf(p);
+        boolean alpha = ColorCodec.hasAlpha(format, end - start + (bare ? 1 : 0));
+        if (!bare && format == ColorCodec.HEX && start == 0 && end == text.length()) {
+            int i = 1;
+            while (i < end && (text.charAt(i) < 'a' || text.charAt(i) > 'f')) i++;
+            if (i == end) return text;
+        }
+        return argbHex((int) p, alpha);
+    }
+
+    /** Keep target alpha if target was 8-digit. */
+    private static String toHexPreservingAlphaFromEntryTarget(Color c, String targetHex) {
+        return withTargetAlpha(c.getRGB(), targetHex);
+    }
+
+    /** Merge favorite hex onto target hex using alpha rules. */
+    private static String mergeFavoriteOntoTarget(String favoriteHex, String targetHex) {
+        if (favoriteHex == null || targetHex == null) return favoriteHex;
+        boolean favHasAlpha = favoriteHex.length() == 9;
+        boolean tgtHasAlpha = targetHex.length() == 9;
+        if (favHasAlpha) {
+            if (tgtHasAlpha) return favoriteHex;            // RGBA -> RGBA
+            return favoriteHex.substring(0, 7);             // RGBA -> RGB (drop AA)
+        } else {
+            if (tgtHasAlpha) return favoriteHex + targetHex.substring(7, 9); // RGB + keep target AA
+            return favoriteHex;                              // RGB -> RGB
+        }
+    }
+
+    private void showError(String msg) {
+        JOptionPane.showMessageDialog(this, msg, "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    /**
+     * Help → Performance: per-operation counts, p50/p99/max latencies and allocation, heap,
+     * process allocation rate and GC, and the latest EDT stalls with their stacks. Refreshes
+     * every second while shown.
+     */
+    private void onPerformance() {
+        if (perfDialog != null) {
+            perfDialog.setVisible(true);
+            perfDialog.toFront();
+            perfTimer.restart();
+            return;
+        }
+        final String[] columns = {"Operation", "Count", "p50", "p99", "Max", "Mean", "Alloc/op"};
+        final AbstractTableModel model = new AbstractTableModel() {
+            @Override public int getRowCount() { return Perf.ALL.length; }
+            @Override public int getColumnCount() { return columns.length; }
+            @Override public String getColumnName(int c) { return columns[c]; }
+            @Override public Object getValueAt(int r, int c) {
+                Metric m = Perf.ALL[r];
+                if (c == 0) return m.label;
+                if (c == 1) return m.count();
+                if (m.count() == 0) return "";
+                switch (c) {
+                    case 2: return Perf.nanos(m.percentile(0.50));
+                    case 3: return Perf.nanos(m.percentile(0.99));
+                    case 4: return Perf.nanos(m.maxNanos());
+                    case 5: return Perf.nanos(m.meanNanos());
+                    default: return Perf.bytes(m.bytesPerOp());
+                }
+            }
+        };
+        JTable table = new JTable(model);
+        table.getColumnModel().getColumn(0).setPreferredWidth(200);
+        JScrollPane tableScroll = new JScrollPane(table);
+        tableScroll.setPreferredSize(new Dimension(660, table.getRowHeight() * (Perf.ALL.length + 1) + 8));
+
+        final JLabel summary = new JLabel(" ");
+        final JTextArea stallText = new JTextArea(12, 60);
+        stallText.setEditable(false);
+        stallText.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+
+        final JSpinner threshold = new JSpinner(new SpinnerNumberModel((int) watchdog.thresholdMs, 20, 10_000, 50));
+        threshold.addChangeListener(e -> watchdog.thresholdMs = (Integer) threshold.getValue());
+        JButton reset = new JButton("Reset");
+        JButton copy = new JButton("Copy Report");
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT, 6, 0));
+        controls.add(new JLabel("Report EDT stalls over (ms):"));
+        controls.add(threshold);
+        controls.add(reset);
+        controls.add(copy);
+
+        JPanel top = new JPanel(new BorderLayout(0, 6));
+        top.add(summary, BorderLayout.NORTH);
+        top.add(tableScroll, BorderLayout.CENTER);
+        top.add(controls, BorderLayout.SOUTH);
+        JPanel content = new JPanel(new BorderLayout(0, 6));
+        content.setBorder(new EmptyBorder(8, 8, 8, 8));
+        content.add(top, BorderLayout.NORTH);
+        content.add(new JScrollPane(stallText), BorderLayout.CENTER);
+
+        Runnable refresh = () -> {
+            model.fireTableDataChanged();
+            summary.setText(perfSummary());
+            String stalls = stallReport();
+            if (!stalls.equals(stallText.getText())) stallText.setText(stalls);
+        };
+        perfTimer = new Timer(PERF_REFRESH_MS, e -> {
+            if (perfDialog.isShowing()) refresh.run();
+            else perfTimer.stop();
+        });
+        reset.addActionListener(e -> {
+            for (Metric m : Perf.ALL) m.reset();
+            watchdog.clear();
+            refresh.run();
+        });
+        copy.addActionListener(e -> Toolkit.getDefaultToolkit().getSystemClipboard()
+                .setContents(new StringSelection(perfReport()), null));
+
+        perfDialog = new JDialog(this, "Performance", false);
+        perfDialog.setContentPane(content);
+        perfDialog.pack();
+        perfDialog.setLocationRelativeTo(this);
+        perfDialog.setVisible(true);
+        perfTimer.setInitialDelay(0);
+        perfTimer.start();
+    }
+
+    /** Heap, allocation rate since the last call, GC totals and JFR state, on one line. */
+    private String perfSummary() {
+        Runtime rt = Runtime.getRuntime();
+        long now = System.nanoTime(), allocated = Perf.allocatedByAll();
+        String rate = "–";
+        if (allocated >= 0 && perfAllocated >= 0 && now > perfAllocatedAt) {
+            rate = Perf.bytes(Math.max(0, allocated - perfAllocated) * 1e9 / (now - perfAllocatedAt)) + "/s";
+        }
+        perfAllocated = allocated;
+        perfAllocatedAt = now;
+        long gcs = 0, gcMs = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcs += Math.max(0, gc.getCollectionCount());
+            gcMs += Math.max(0, gc.getCollectionTime());
+        }
+        return "Heap " + Perf.bytes(rt.totalMemory() - rt.freeMemory()) + " of " + Perf.bytes(rt.maxMemory())
+                + "  ·  allocating " + rate + "  ·  GC " + gcs + "× (" + gcMs + " ms)"
+                + "  ·  JFR " + Perf.OPEN.jfrStatus();
+    }
+
+    private String stallReport() {
+        List<EdtWatchdog.Stall> stalls = watchdog.stalls();
+        if (stalls.isEmpty()) return "No EDT stalls over " + watchdog.thresholdMs + " ms.";
+        StringBuilder sb = new StringBuilder();
+        java.text.SimpleDateFormat time = new java.text.SimpleDateFormat("HH:mm:ss.SSS");
+        for (int k = stalls.size() - 1; k >= 0; k--) { // newest first
+            EdtWatchdog.Stall s = stalls.get(k);
+            sb.append(time.format(new java.util.Date(s.at))).append("  EDT blocked ")
+                    .append(s.nanos < 0 ? "(still running)" : Perf.nanos(s.nanos)).append('\n')
+                    .append(EdtWatchdog.stackText(s.stack, 24)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** Plain-text copy of the panel, for bug reports. */
+    private String perfReport() {
+        StringBuilder sb = new StringBuilder(perfSummary()).append("\n\n");
+        sb.append(String.format(Locale.ROOT, "%-28s %8s %10s %10s %10s %10s %10s%n",
+                "Operation", "Count", "p50", "p99", "Max", "Mean", "Alloc/op"));
+        for (Metric m : Perf.ALL) {
+            sb.append(String.format(Locale.ROOT, "%-28s %8d %10s %10s %10s %10s %10s%n", m.label, m.count(),
+                    Perf.nanos(m.percentile(0.50)), Perf.nanos(m.percentile(0.99)), Perf.nanos(m.maxNanos()),
+                    Perf.nanos(m.meanNanos()), Perf.bytes(m.bytesPerOp())));
+        }
+        return sb.append('\n').append(stallReport()).toString();
+    }
+
+    private void showAboutDialog() {
+        String version = getVersion();
+        String aboutText = String.format(
+            "<html><div style='text-align: center;'>" +
+            "<h2>JSON Color Palette Editor</h2>" +
+            "<p><b>Version:</b> %s</p>" +
+            "<p><b>Author:</b> jpbed</p>" +
+            "<p><b>GitHub:</b> <a href='https://github.com/jpbed/ColorJsonEditor'>https://github.com/jpbed/ColorJsonEditor</a></p>" +
+            "<p>A tool for editing color palettes in JSON files</p>" +
+            "</div></html>",
+            version
+        );
+        
+        JOptionPane.showMessageDialog(this, aboutText, "About", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    /**
+     * The version build.bat embeds in the jar (version.properties), read once and cached;
+     * "1.0.0" when running from loose classes.
+     */
+    private static String getVersion() {
+        if (version != null) return version;
+        Span span = Perf.VERSION.begin();
+        try {
+            String v = "1.0.0";
+            try (InputStream in = ColorJsonEditor.class.getResourceAsStream("/version.properties")) {
+                if (in != null) {
+                    Properties props = new Properties();
+                    props.load(in);
+                    v = props.getProperty("version", v).trim();
+                }
+            } catch (IOException ignored) {
+                // fall back to the default version
+            }
+            return version = v;
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Whole-theme color adjustment over packed ARGB values. Only RGB changes; the alpha byte
+     * passes through, so 8-digit entries keep their alpha as with
+     * {@link #toHexPreservingAlphaFromEntryTarget}. Per-channel steps (invert, contrast,
+     * gamma, temperature) become 256-entry lookup tables built once per run; hue, saturation
+     * and lightness go through HSL. The values are processed as a parallel stream over a
+     * plain int[], fast enough to re-run on every slider change.
+     */
+    private static final class ColorTransform {
+        double hue;         // degrees
+        double saturation;  // -1..1, added to HSL saturation
+        double lightness;   // -1..1, added to HSL lightness
+        double contrast;    // -1..1, stretches around mid grey
+        double gamma = 1;   // > 0; above 1 brightens
+        double temperature; // -1..1; warm raises red and lowers blue
+        boolean invert;
+
+        boolean isIdentity() {
+            return hue % 360 == 0 && saturation == 0 && lightness == 0 && contrast == 0
+                    && gamma == 1 && temperature == 0 && !invert;
+        }
+
+        void apply(int[] src, int[] dst) {
+            if (isIdentity()) {
+                System.arraycopy(src, 0, dst, 0, src.length);
+                return;
+            }
+            final int[] pre = new int[256];
+            final int[][] post = new int[3][256];
+            for (int v = 0; v < 256; v++) {
+                pre[v] = invert ? 255 - v : v;
+                for (int ch = 0; ch < 3; ch++) post[ch][v] = postChannel(v, ch);
+            }
+            final boolean hsl = hue % 360 != 0 || saturation != 0 || lightness != 0;
+            final double hueShift = ((hue / 360) % 1 + 1) % 1;
+            IntStream.range(0, src.length).parallel().forEach(i -> {
+                int c = src[i];
+                int r = pre[c >>> 16 & 0xFF], g = pre[c >>> 8 & 0xFF], b = pre[c & 0xFF];
+                if (hsl) {
+                    int rgb = adjustHsl(r, g, b, hueShift);
+                    r = rgb >>> 16 & 0xFF;
+                    g = rgb >>> 8 & 0xFF;
+                    b = rgb & 0xFF;
+                }
+                dst[i] = c & 0xFF000000 | post[0][r] << 16 | post[1][g] << 8 | post[2][b];
+            });
+        }
+
+        private int postChannel(int v, int channel) {
+            double x = v / 255.0;
+            double k = contrast >= 0 ? 1 / Math.max(1e-3, 1 - contrast) : 1 + contrast;
+            x = (x - 0.5) * k + 0.5;
+            x = Math.pow(clamp01(x), 1 / gamma);
+            if (channel == 0) x += 0.2 * temperature;
+            else if (channel == 2) x -= 0.2 * temperature;
+            return (int) Math.round(clamp01(x) * 255);
+        }
+
+        private int adjustHsl(int r8, int g8, int b8, double hueShift) {
+            double r = r8 / 255.0, g = g8 / 255.0, b = b8 / 255.0;
+            double max = Math.max(r, Math.max(g, b)), min = Math.min(r, Math.min(g, b));
+            double l = (max + min) / 2, h = 0, s = 0, d = max - min;
+            if (d > 0) {
+                s = l > 0.5 ? d / (2 - max - min) : d / (max + min);
+                if (max == r) h = (g - b) / d + (g < b ? 6 : 0);
+                else if (max == g) h = (b - r) / d + 2;
+                else h = (r - g) / d + 4;
+                h /= 6;
+            }
+            h += hueShift;
+            if (h >= 1) h -= 1;
+            s = clamp01(s + saturation);
+            l = clamp01(l + lightness);
+            if (s == 0) {
+                int v = (int) (l * 255 + 0.5);
+                return v << 16 | v << 8 | v;
+            }
+            double q = l < 0.5 ? l * (1 + s) : l + s - l * s, p = 2 * l - q;
+            return channel(p, q, h + 1.0 / 3) << 16 | channel(p, q, h) << 8 | channel(p, q, h - 1.0 / 3);
+        }
+
+        private static int channel(double p, double q, double t) {
+            if (t < 0) t += 1;
+            if (t > 1) t -= 1;
+            double v = t < 1.0 / 6 ? p + (q - p) * 6 * t
+                    : t < 0.5 ? q
+                    : t < 2.0 / 3 ? p + (q - p) * (2.0 / 3 - t) * 6
+                    : p;
+            return (int) (clamp01(v) * 255 + 0.5);
+        }
+
+        private static double clamp01(double x) {
+            return x < 0 ? 0 : x > 1 ? 1 : x;
+        }
+    }
+
+    /**
+     * Nearest-neighbour index over colors in OKLab, where straight-line distance follows
+     * perceived difference. The points are the distinct RGB values of the items (alpha is
+     * ignored), kept as an implicit k-d tree: the middle of each range is its node, split on
+     * L, a and b in turn. Items are the caller's indices, grouped per distinct color.
+     * ΔE is OKLab distance × 100, roughly the scale of CIE ΔE (about 2 is just noticeable).
+     */
+    private static final class OklabTree {
+        static final float[] LINEAR = new float[256]; // sRGB byte -> linear light; also used by ContrastReport
+        static {
+            for (int v = 0; v < 256; v++) {
+                double c = v / 255.0;
+                LINEAR[v] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+            }
+        }
+
+        private final int[] rgb;       // node colors in tree order
+        private final float[] lab;     // L, a, b per node
+        private final int[] groupStart; // node k owns members [groupStart[k], groupStart[k + 1])
+        private final int[] members;
+
+        /** Indexes items {@code 0..n-1} with colors {@code argb[i]}. */
+        OklabTree(int[] argb, int n) {
+            long[] keyed = new long[n];
+            for (int i = 0; i < n; i++) keyed[i] = (long) (argb[i] & 0xFFFFFF) << 32 | i;
+            Arrays.sort(keyed);
+            int distinct = 0;
+            for (int k = 0; k < n; k++) if (k == 0 || keyed[k] >>> 32 != keyed[k - 1] >>> 32) distinct++;
+            int[] colors = new int[distinct], start = new int[distinct + 1], order = new int[n];
+            for (int k = 0, d = -1; k < n; k++) {
+                if (k == 0 || keyed[k] >>> 32 != keyed[k - 1] >>> 32) {
+                    colors[++d] = (int) (keyed[k] >>> 32);
+                    start[d] = k;
+                }
+                order[k] = (int) keyed[k];
+            }
+            start[distinct] = n;
+            float[] points = new float[3 * distinct];
+            for (int d = 0; d < distinct; d++) oklab(colors[d], points, 3 * d);
+
+            int[] perm = new int[distinct];
+            for (int d = 0; d < distinct; d++) perm[d] = d;
+            build(perm, points, 0, distinct, 0);
+
+            rgb = new int[distinct];
+            lab = new float[3 * distinct];
+            groupStart = new int[distinct + 1];
+            members = new int[n];
+            for (int k = 0, m = 0; k < distinct; k++) {
+                int d = perm[k];
+                rgb[k] = colors[d];
+                System.arraycopy(points, 3 * d, lab, 3 * k, 3);
+                groupStart[k] = m;
+                for (int j = start[d]; j < start[d + 1]; j++) members[m++] = order[j];
+            }
+            groupStart[distinct] = n;
+        }
+
+        /** Orders {@code perm[lo, hi)} so its middle element splits the range on {@code axis}. */
+        private static void build(int[] perm, float[] points, int lo, int hi, int axis) {
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                select(perm, points, lo, hi - 1, mid, axis);
+                int next = (axis + 1) % 3;
+                build(perm, points, lo, mid, next);
+                lo = mid + 1;
+                axis = next;
+            }
+        }
+
+        private static void select(int[] perm, float[] points, int lo, int hi, int k, int axis) {
+            while (lo < hi) {
+                float pivot = points[3 * perm[(lo + hi) >>> 1] + axis];
+                int i = lo, j = hi;
+                while (i <= j) {
+                    while (points[3 * perm[i] + axis] < pivot) i++;
+                    while (points[3 * perm[j] + axis] > pivot) j--;
+                    if (i <= j) {
+                        int t = perm[i]; perm[i] = perm[j]; perm[j] = t;
+                        i++;
+                        j--;
+                    }
+                }
+                if (k <= j) hi = j;
+                else if (k >= i) lo = i;
+                else return;
+            }
+        }
+
+        static void oklab(int rgb, float[] out, int at) {
+            float r = LINEAR[rgb >>> 16 & 0xFF], g = LINEAR[rgb >>> 8 & 0xFF], b = LINEAR[rgb & 0xFF];
+            double l = Math.cbrt(0.4122214708 * r + 0.5363325363 * g + 0.0514459929 * b);
+            double m = Math.cbrt(0.2119034982 * r + 0.6806995451 * g + 0.1073969566 * b);
+            double s = Math.cbrt(0.0883024619 * r + 0.2817188376 * g + 0.6299787005 * b);
+            out[at] = (float) (0.2104542553 * l + 0.7936177850 * m - 0.0040720468 * s);
+            out[at + 1] = (float) (1.9779984951 * l - 2.4285922050 * m + 0.4505937099 * s);
+            out[at + 2] = (float) (0.0259040371 * l + 0.7827717662 * m - 0.8086757660 * s);
+        }
+
+        /** Perceived difference of two colors' RGB parts, as ΔE (OKLab distance × 100). */
+        static double deltaE(int argb1, int argb2) {
+            float[] p = new float[6];
+            oklab(argb1, p, 0);
+            oklab(argb2, p, 3);
+            double dl = p[0] - p[3], da = p[1] - p[4], db = p[2] - p[5];
+            return 100 * Math.sqrt(dl * dl + da * da + db * db);
+        }
+
+        boolean isEmpty() { return rgb.length == 0; }
+
+        /** An item with the color closest to {@code argb}, or -1 if there are none. */
+        int nearest(int argb) {
+            if (rgb.length == 0) return -1;
+            float[] q = new float[3];
+            oklab(argb, q, 0);
+            int[] best = {-1};
+            float[] bestD = {Float.MAX_VALUE};
+            nearest(q, 0, rgb.length, 0, best, bestD);
+            return members[groupStart[best[0]]];
+        }
+
+        private void nearest(float[] q, int lo, int hi, int axis, int[] best, float[] bestD) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                float d = dist2(q, mid);
+                if (d < bestD[0]) {
+                    bestD[0] = d;
+                    best[0] = mid;
+                }
+                float diff = q[axis] - lab[3 * mid + axis];
+                int next = (axis + 1) % 3;
+                boolean left = diff < 0;
+                if (left) nearest(q, lo, mid, next, best, bestD);
+                else nearest(q, mid + 1, hi, next, best, bestD);
+                if (diff * diff >= bestD[0]) return;
+                if (left) lo = mid + 1;
+                else hi = mid;
+                axis = next;
+            }
+        }
+
+        /** Reports every item whose color is within {@code deltaE} of {@code argb}. */
+        void within(int argb, double deltaE, IntConsumer items) {
+            float[] q = new float[3];
+            oklab(argb, q, 0);
+            float r = (float) (deltaE / 100);
+            withinNodes(q, r * r, r, 0, rgb.length, 0, node -> {
+                for (int m = groupStart[node]; m < groupStart[node + 1]; m++) items.accept(members[m]);
+            });
+        }
+
+        private void withinNodes(float[] q, float r2, float r, int lo, int hi, int axis, IntConsumer nodes) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (dist2(q, mid) <= r2) nodes.accept(mid);
+                float diff = q[axis] - lab[3 * mid + axis];
+                int next = (axis + 1) % 3;
+                if (diff - r <= 0) withinNodes(q, r2, r, lo, mid, next, nodes);
+                if (diff + r < 0) return;
+                lo = mid + 1;
+                axis = next;
+            }
+        }
+
+        /**
+         * Items whose color has at least one other, different color within {@code deltaE}:
+         * colors that were probably meant to be the same.
+         */
+        BitSet nearDuplicates(double deltaE) {
+            BitSet near = new BitSet(rgb.length); // by node; the relation is symmetric
+            float r = (float) (deltaE / 100);
+            float[] q = new float[3];
+            for (int k = 0; k < rgb.length; k++) {
+                if (near.get(k)) continue;
+                System.arraycopy(lab, 3 * k, q, 0, 3);
+                final int self = k;
+                withinNodes(q, r * r, r, 0, rgb.length, 0, node -> {
+                    if (node != self) {
+                        near.set(node);
+                        near.set(self);
+                    }
+                });
+            }
+            BitSet out = new BitSet();
+            for (int k = near.nextSetBit(0); k >= 0; k = near.nextSetBit(k + 1)) {
+                for (int m = groupStart[k]; m < groupStart[k + 1]; m++) out.set(members[m]);
+            }
+            return out;
+        }
+
+        private float dist2(float[] q, int node) {
+            float dl = q[0] - lab[3 * node], da = q[1] - lab[3 * node + 1], db = q[2] - lab[3 * node + 2];
+            return dl * dl + da * da + db * db;
+        }
+    }
+
+    /**
+     * Groups a theme's colors into at most k perceptual clusters. Colors are first
+     * deduplicated exactly on packed ARGB (parallel sort, then run lengths), so the work
+     * scales with distinct colors, each weighted by how many entries use it. Weighted
+     * median cut in OKLab seeds the centers; Lloyd's k-means then refines them until at
+     * most 0.1% of the colors change cluster, every pass assigning the distinct colors in
+     * parallel chunks whose partial sums are merged afterwards. Clusters are numbered
+     * largest first (by entries).
+     */
+    private static final class ColorClusters {
+        static final int MAX_CLUSTERS = 1024;
+        static final int MAX_PASSES = 16;
+        private static final int CHUNK = 1 << 14; // distinct colors per parallel task
+
+        final int entries;
+        final int[] colors;         // distinct ARGB, ascending
+        final int[] uses;           // entries per distinct color
+        final int k;                // clusters formed (<= requested, <= distinct colors)
+        final int[] clusterOf;      // distinct color -> cluster
+        final int[] start;          // cluster c owns members[start[c], start[c + 1])
+        final int[] members;        // entry indices grouped by cluster, ascending within one
+        final int[] representative; // cluster -> its most used color (nearest the center on ties)
+        final int[] distinct;       // cluster -> distinct colors in it
+        final float[] spread;       // cluster -> ΔE of its farthest color from the center
+        int passes;
+        long nanos;
+
+        private final float[] lab;  // distinct color -> L, a, b
+        private float[] center;     // cluster -> L, a, b
+        private float[] upper, lower, shift; // k-means bounds, see lloydPass
+
+        private ColorClusters(int[] argb, int requested, BooleanSupplier cancelled) {
+            long t0 = System.nanoTime();
+            entries = argb.length;
+            int[] sorted = argb.clone();
+            Arrays.parallelSort(sorted);
+            int d = 0;
+            for (int i = 0; i < sorted.length; i++) if (i == 0 || sorted[i] != sorted[i - 1]) d++;
+            colors = new int[d];
+            uses = new int[d];
+            for (int i = 0, j = -1; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) colors[++j] = sorted[i];
+                uses[j]++;
+            }
+            lab = new float[3 * d];
+            IntStream.range(0, d).parallel().forEach(j -> OklabTree.oklab(colors[j], lab, 3 * j));
+
+            center = medianCut(Math.min(requested, d), cancelled);
+            clusterOf = new int[d];
+            while (passes < MAX_PASSES) {
+                if (cancelled.getAsBoolean()) throw new CancellationException();
+                passes++;
+                int moved = lloydPass();
+                if (passes > 1 && moved <= d / 1000) break; // settled: centers barely move any more
+            }
+
+            // Renumber largest first and drop clusters that ended up empty
+            int raw = center.length / 3;
+            long[] size = new long[raw];
+            for (int j = 0; j < d; j++) size[clusterOf[j]] += uses[j];
+            Integer[] order = new Integer[raw];
+            for (int c = 0; c < raw; c++) order[c] = c;
+            Arrays.sort(order, (x, y) -> Long.compare(size[y], size[x]));
+            int[] renumber = new int[raw];
+            int kept = 0;
+            float[] kc = new float[3 * raw];
+            for (int r = 0; r < raw; r++) {
+                int c = order[r];
+                if (size[c] == 0) continue;
+                System.arraycopy(center, 3 * c, kc, 3 * kept, 3);
+                renumber[c] = kept++;
+            }
+            k = kept;
+            center = Arrays.copyOf(kc, 3 * k);
+            for (int j = 0; j < d; j++) clusterOf[j] = renumber[clusterOf[j]];
+
+            representative = new int[k];
+            distinct = new int[k];
+            spread = new float[k];
+            int[] best = new int[k];
+            float[] bestDist = new float[k];
+            Arrays.fill(best, -1);
+            for (int j = 0; j < d; j++) {
+                int c = clusterOf[j];
+                float dist = dist2(j, c);
+                distinct[c]++;
+                if (dist > spread[c]) spread[c] = dist;
+                int b = best[c];
+                if (b < 0 || uses[j] > uses[b] || uses[j] == uses[b] && dist < bestDist[c]) {
+                    best[c] = j;
+                    bestDist[c] = dist;
+                }
+            }
+            for (int c = 0; c < k; c++) {
+                representative[c] = colors[best[c]];
+                spread[c] = (float) (100 * Math.sqrt(spread[c]));
+            }
+
+            // Group the entries: exact color -> distinct index -> cluster, then a counting sort
+            int[] clusterOfEntry = new int[entries];
+            IntStream.range(0, entries).parallel()
+                    .forEach(i -> clusterOfEntry[i] = clusterOf[Arrays.binarySearch(colors, argb[i])]);
+            start = new int[k + 1];
+            for (int c : clusterOfEntry) start[c + 1]++;
+            for (int c = 0; c < k; c++) start[c + 1] += start[c];
+            members = new int[entries];
+            int[] fill = Arrays.copyOf(start, k);
+            for (int i = 0; i < entries; i++) members[fill[clusterOfEntry[i]]++] = i;
+            nanos = System.nanoTime() - t0;
+        }
+
+        /** Clusters colors {@code argb}; may run off the EDT and stops once {@code cancelled} says so. */
+        static ColorClusters of(int[] argb, int k, BooleanSupplier cancelled) {
+            if (k < 1) throw new IllegalArgumentException("k < 1");
+            return new ColorClusters(argb, Math.min(k, MAX_CLUSTERS), cancelled);
+        }
+
+        int size(int c) { return start[c + 1] - start[c]; }
+
+        /**
+         * Splits the heaviest box (entries × widest extent) at the weighted median of its
+         * widest axis until there are {@code k} boxes; returns their weighted means.
+         */
+        private float[] medianCut(int k, BooleanSupplier cancelled) {
+            if (k == 0) return new float[0];
+            int d = colors.length;
+            int[] idx = new int[d];
+            for (int j = 0; j < d; j++) idx[j] = j;
+            int[] lo = new int[k], hi = new int[k];
+            lo[0] = 0;
+            hi[0] = d;
+            int boxes = 1;
+            long[] keys = new long[d];
+            double[] score = new double[k];
+            int[] axisOf = new int[k];
+            measureBox(idx, lo[0], hi[0], score, axisOf, 0);
+            while (boxes < k) {
+                if (cancelled.getAsBoolean()) throw new CancellationException();
+                int pick = -1;
+                for (int b = 0; b < boxes; b++) if (score[b] > 0 && (pick < 0 || score[b] > score[pick])) pick = b;
+                if (pick < 0) break; // every box is a single color
+                int axis = axisOf[pick];
+                int from = lo[pick], to = hi[pick];
+                for (int q = from; q < to; q++) {
+                    int bits = Float.floatToIntBits(lab[3 * idx[q] + axis]);
+                    keys[q] = (long) (bits ^ (bits >> 31 & 0x7FFFFFFF)) << 32 | idx[q];
+                }
+                if (to - from > CHUNK) Arrays.parallelSort(keys, from, to);
+                else Arrays.sort(keys, from, to);
+                long total = 0, half = 0;
+                for (int q = from; q < to; q++) idx[q] = (int) keys[q];
+                for (int q = from; q < to; q++) total += uses[idx[q]];
+                int split = from + 1;
+                for (int q = from; q < to - 1; q++) {
+                    half += uses[idx[q]];
+                    split = q + 1;
+                    if (2 * half >= total) break;
+                }
+                lo[boxes] = split;
+                hi[boxes] = to;
+                hi[pick] = split;
+                measureBox(idx, lo[pick], hi[pick], score, axisOf, pick);
+                measureBox(idx, lo[boxes], hi[boxes], score, axisOf, boxes);
+                boxes++;
+            }
+            float[] c = new float[3 * boxes];
+            for (int b = 0; b < boxes; b++) {
+                double sl = 0, sa = 0, sb = 0;
+                long w = 0;
+                for (int q = lo[b]; q < hi[b]; q++) {
+                    int j = idx[q];
+                    sl += (double) uses[j] * lab[3 * j];
+                    sa += (double) uses[j] * lab[3 * j + 1];
+                    sb += (double) uses[j] * lab[3 * j + 2];
+                    w += uses[j];
+                }
+                c[3 * b] = (float) (sl / w);
+                c[3 * b + 1] = (float) (sa / w);
+                c[3 * b + 2] = (float) (sb / w);
+            }
+            return c;
+        }
+
+        /** Scores box {@code b} (entries × widest extent, 0 if it can't split) and notes its widest axis. */
+        private void measureBox(int[] idx, int from, int to, double[] score, int[] axisOf, int b) {
+            score[b] = 0;
+            if (to - from < 2) return;
+            float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+            float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+            long w = 0;
+            for (int q = from; q < to; q++) {
+                int j = idx[q];
+                w += uses[j];
+                for (int a = 0; a < 3; a++) {
+                    float v = lab[3 * j + a];
+                    if (v < min[a]) min[a] = v;
+                    if (v > max[a]) max[a] = v;
+                }
+            }
+            int wide = 0;
+            for (int a = 1; a < 3; a++) if (max[a] - min[a] > max[wide] - min[wide]) wide = a;
+            score[b] = w * (double) (max[wide] - min[wide]);
+            axisOf[b] = wide;
+        }
+
+        /**
+         * One k-means step: assigns every color to its nearest center, then moves the centers.
+         * Returns the number of reassignments. Hamerly's bounds skip most of the distance
+         * work once the centers settle: a color whose (grown) distance to its own center is
+         * below both its (shrunk) distance to the next nearest and half the gap from its
+         * center to any other one can't have changed cluster.
+         */
+        private int lloydPass() {
+            int kk = center.length / 3, d = colors.length;
+            if (upper == null) {
+                upper = new float[d];
+                lower = new float[d];
+                Arrays.fill(upper, Float.MAX_VALUE);
+                shift = new float[kk];
+            }
+            float[] halfGap = new float[kk];
+            Arrays.fill(halfGap, Float.MAX_VALUE);
+            for (int c = 0; c < kk; c++) {
+                for (int e = c + 1; e < kk; e++) {
+                    float gap = (float) Math.sqrt(centerDist2(c, e)) / 2;
+                    if (gap < halfGap[c]) halfGap[c] = gap;
+                    if (gap < halfGap[e]) halfGap[e] = gap;
+                }
+            }
+            float maxShift = 0;
+            for (float v : shift) maxShift = Math.max(maxShift, v);
+            final float grow = maxShift;
+            int chunks = (d + CHUNK - 1) / CHUNK;
+            double[][] sums = new double[chunks][];
+            int[] moved = new int[chunks];
+            IntStream.range(0, chunks).parallel().forEach(t -> {
+                double[] s = new double[4 * kk]; // weight, L, a, b
+                int m = 0;
+                for (int j = t * CHUNK, end = Math.min(d, j + CHUNK); j < end; j++) {
+                    int own = clusterOf[j];
+                    float u = upper[j] + shift[own]; // MAX_VALUE until first assigned
+                    float low = lower[j] - grow;
+                    float bound = Math.max(low, halfGap[own]);
+                    if (u > bound) {
+                        u = (float) Math.sqrt(dist2(j, own));
+                        if (u > bound) { // full scan for the nearest and second nearest
+                            float best = Float.MAX_VALUE, second = Float.MAX_VALUE;
+                            int near = own;
+                            for (int c = 0; c < kk; c++) {
+                                float dist = dist2(j, c);
+                                if (dist < best) {
+                                    second = best;
+                                    best = dist;
+                                    near = c;
+                                } else if (dist < second) {
+                                    second = dist;
+                                }
+                            }
+                            if (near != own) m++;
+                            clusterOf[j] = own = near;
+                            u = (float) Math.sqrt(best);
+                            low = (float) Math.sqrt(second);
+                        }
+                    }
+                    upper[j] = u;
+                    lower[j] = low;
+                    double w = uses[j];
+                    s[4 * own] += w;
+                    s[4 * own + 1] += w * lab[3 * j];
+                    s[4 * own + 2] += w * lab[3 * j + 1];
+                    s[4 * own + 3] += w * lab[3 * j + 2];
+                }
+                sums[t] = s;
+                moved[t] = m;
+            });
+            int total = 0;
+            for (int t = 0; t < chunks; t++) total += moved[t];
+            for (int c = 0; c < kk; c++) {
+                double w = 0, l = 0, a = 0, b = 0;
+                for (double[] s : sums) {
+                    w += s[4 * c];
+                    l += s[4 * c + 1];
+                    a += s[4 * c + 2];
+                    b += s[4 * c + 3];
+                }
+                shift[c] = 0;
+                if (w == 0) continue; // empty: keep its center, it may win colors back
+                float nl = (float) (l / w), na = (float) (a / w), nb = (float) (b / w);
+                float dl = nl - center[3 * c], da = na - center[3 * c + 1], db = nb - center[3 * c + 2];
+                shift[c] = (float) Math.sqrt(dl * dl + da * da + db * db);
+                center[3 * c] = nl;
+                center[3 * c + 1] = na;
+                center[3 * c + 2] = nb;
+            }
+            return total;
+        }
+
+        private float centerDist2(int c, int e) {
+            float dl = center[3 * c] - center[3 * e], da = center[3 * c + 1] - center[3 * e + 1], db = center[3 * c + 2] - center[3 * e + 2];
+            return dl * dl + da * da + db * db;
+        }
+
+        private float dist2(int j, int c) {
+            float dl = lab[3 * j] - center[3 * c], da = lab[3 * j + 1] - center[3 * c + 1], db = lab[3 * j + 2] - center[3 * c + 2];
+            return dl * dl + da * da + db * db;
+        }
+    }
+
+    /**
+     * Schematic Bitwig-like screen (transport, browser, arranger with clips, mixer with
+     * meters, device panel) whose parts take their colors from theme keys. A part binds to
+     * the shortest key holding every word of its first candidate that any key matches (the
+     * most general one); unbound parts stay grey. Each layer (panels, controls, text) is
+     * rendered once into its own image and painting just stacks the images. When entries
+     * change, only the parts bound to them are redrawn into their layer, and only their
+     * bounds are repainted.
+     */
+    private static final class ThemePreview extends JComponent {
+        private static final long serialVersionUID = 1L;
+
+        static final int W = 1000, H = 640; // layout units, scaled to fit
+        private static final int PANELS = 0, CONTROLS = 1, TEXT = 2, LAYERS = 3;
+        private static final int FILL = 0, ROUND = 1, LABEL = 2, METER = 3;
+        private static final Color UNBOUND = new Color(0x808080);
+
+        static final class Part {
+            final int layer, kind;
+            final int x, y, w, h;  // layout units
+            final String label;    // text of LABEL parts, tooltip of all
+            final String[] keys;   // candidates, each a few lowercase words
+            final Rectangle bounds = new Rectangle(); // pixels at the current size
+            int entry = -1;
+
+            Part(int layer, int kind, int x, int y, int w, int h, String label, String... keys) {
+                this.layer = layer;
+                this.kind = kind;
+                this.x = x;
+                this.y = y;
+                this.w = w;
+                this.h = h;
+                this.label = label;
+                this.keys = keys;
+            }
+        }
+
+        final List<Part> parts = screen();
+        private PaletteStore store;
+        private final Map<Integer, List<Part>> byEntry = new HashMap<Integer, List<Part>>();
+        private final java.awt.image.BufferedImage[] layers = new java.awt.image.BufferedImage[LAYERS];
+        private int renderedW = -1, renderedH = -1;
+        private double scale = 1;
+
+        ThemePreview() {
+            setPreferredSize(new Dimension(W, H));
+            setOpaque(true);
+            ToolTipManager.sharedInstance().registerComponent(this);
+        }
+
+        /** The schematic screen, back to front within each layer. */
+        private static List<Part> screen() {
+            List<Part> p = new ArrayList<Part>();
+            p.add(new Part(PANELS, FILL, 0, 0, W, H, "Window", "window background", "background"));
+            p.add(new Part(PANELS, FILL, 0, 0, W, 48, "Transport", "transport background", "header background", "panel background"));
+            p.add(new Part(PANELS, FILL, 0, 48, 200, 432, "Browser", "browser background", "panel background"));
+            p.add(new Part(PANELS, FILL, 200, 48, 600, 24, "Arranger ruler", "arranger header", "ruler", "header background"));
+            p.add(new Part(PANELS, FILL, 200, 72, 600, 408, "Arranger", "arranger background", "timeline background"));
+            p.add(new Part(PANELS, FILL, 800, 48, 200, 432, "Mixer", "mixer background", "panel background"));
+            p.add(new Part(PANELS, FILL, 0, 480, W, H - 480, "Device panel", "device background", "panel background"));
+            p.add(new Part(PANELS, FILL, 0, 479, W, 2, "Divider", "divider", "border"));
+            for (int t = 0; t < 6; t++) {
+                int y = 76 + 66 * t;
+                p.add(new Part(PANELS, FILL, 204, y, 116, 62, "Track header", "track header background", "track background", "header background"));
+                p.add(new Part(PANELS, FILL, 320, y + 61, 476, 1, "Track divider", "track divider", "grid", "border"));
+            }
+            for (int c = 0; c < 4; c++) {
+                int x = 820 + 44 * c;
+                p.add(new Part(PANELS, FILL, x, 60, 36, 410, "Mixer channel", "mixer channel background", "channel background", "panel background"));
+            }
+
+            p.add(new Part(CONTROLS, ROUND, 16, 10, 40, 28, "Play button", "play", "transport button", "button background"));
+            p.add(new Part(CONTROLS, ROUND, 64, 10, 40, 28, "Record button", "record", "transport button", "button background"));
+            p.add(new Part(CONTROLS, ROUND, 112, 10, 40, 28, "Loop button", "loop", "transport button", "button background"));
+            p.add(new Part(CONTROLS, ROUND, 400, 10, 200, 28, "Position display", "transport display", "display background", "field background"));
+            p.add(new Part(CONTROLS, ROUND, 12, 60, 176, 24, "Search field", "browser search", "search field", "field background"));
+            for (int r = 0; r < 10; r++) {
+                p.add(new Part(CONTROLS, FILL, 8, 96 + 34 * r, 184, 30, r == 2 ? "Browser selection" : "Browser item",
+                        r == 2 ? new String[]{"browser selection", "selection background", "selection"}
+                                : new String[]{"browser item", "list background", "panel background"}));
+            }
+            int[][] clips = {{0, 340, 120}, {0, 480, 180}, {1, 330, 90}, {2, 420, 200}, {3, 360, 140}, {3, 540, 110}, {4, 330, 260}, {5, 500, 220}};
+            for (int k = 0; k < clips.length; k++) {
+                int y = 80 + 66 * clips[k][0];
+                boolean selected = k == 3;
+                p.add(new Part(CONTROLS, ROUND, clips[k][1], y, clips[k][2], 54, selected ? "Selected clip" : "Clip",
+                        selected ? new String[]{"clip selected", "selected clip", "selection"}
+                                : new String[]{"clip background", "clip", "launcher clip"}));
+                p.add(new Part(CONTROLS, FILL, clips[k][1] + 6, y + 20, clips[k][2] - 12, 28, "Clip content",
+                        "clip content", "waveform", "clip foreground"));
+            }
+            p.add(new Part(CONTROLS, FILL, 560, 72, 2, 408, "Playhead", "playhead", "cursor", "play position"));
+            for (int t = 0; t < 6; t++) {
+                int y = 76 + 66 * t;
+                p.add(new Part(CONTROLS, ROUND, 212, y + 36, 22, 18, "Mute button", "mute", "button background"));
+                p.add(new Part(CONTROLS, ROUND, 240, y + 36, 22, 18, "Solo button", "solo", "button background"));
+            }
+            for (int c = 0; c < 4; c++) {
+                int x = 820 + 44 * c;
+                p.add(new Part(CONTROLS, FILL, x + 8, 80, 20, 300, "Meter", "meter background", "meter"));
+                p.add(new Part(CONTROLS, METER, x + 8, 80, 20, 300, "Meter level", "meter level", "meter fill", "meter"));
+                p.add(new Part(CONTROLS, FILL, x + 8, 80, 20, 20, "Meter peak", "meter peak", "meter clip", "clip indicator"));
+                p.add(new Part(CONTROLS, ROUND, x + 2, 400, 32, 32, "Knob", "knob", "dial", "control"));
+            }
+            for (int d = 0; d < 3; d++) {
+                int x = 16 + 328 * d;
+                p.add(new Part(CONTROLS, ROUND, x, 492, 312, 136, "Device", "device background", "device", "panel background"));
+                p.add(new Part(CONTROLS, FILL, x, 492, 312, 22, "Device header", "device header", "header background"));
+                for (int k = 0; k < 4; k++) {
+                    p.add(new Part(CONTROLS, ROUND, x + 16 + 74 * k, 540, 52, 52, "Device knob", "device knob", "knob", "control"));
+                }
+            }
+
+            p.add(new Part(TEXT, LABEL, 164, 16, 200, 16, "PLAY  ·  120.00 BPM", "transport text", "text"));
+            p.add(new Part(TEXT, LABEL, 420, 16, 160, 16, "1.1.1.00", "display text", "transport text", "text"));
+            for (int r = 0; r < 10; r++) {
+                p.add(new Part(TEXT, LABEL, 16, 104 + 34 * r, 170, 16, r == 2 ? "Selected preset" : "Preset " + (r + 1),
+                        r == 2 ? new String[]{"selection text", "selected text", "text"} : new String[]{"browser text", "list text", "text"}));
+            }
+            for (int t = 0; t < 6; t++) {
+                p.add(new Part(TEXT, LABEL, 212, 82 + 66 * t, 100, 16, "Track " + (t + 1), "track name", "track text", "text"));
+            }
+            for (int k = 0; k < clips.length; k++) {
+                int y = 80 + 66 * clips[k][0];
+                p.add(new Part(TEXT, LABEL, clips[k][1] + 6, y + 2, clips[k][2] - 12, 16, "Clip " + (k + 1), "clip text", "clip name", "text"));
+            }
+            for (int d = 0; d < 3; d++) {
+                p.add(new Part(TEXT, LABEL, 24 + 328 * d, 495, 280, 16, new String[]{"Polysynth", "EQ+", "Delay+"}[d],
+                        "device text", "header text", "text"));
+            }
+            return p;
+        }
+
+        /**
+         * Binds every part to its key in {@code store}; the matching may run off the EDT, it
+         * only reads key names. Returns the entry per part, in part order.
+         */
+        static int[] bind(PaletteStore store, List<Part> parts) {
+            int n = store.size();
+            String[] names = new String[n];
+            IntStream.range(0, n).parallel().forEach(e -> names[e] = store.name(e).toLowerCase(Locale.ROOT));
+            Map<String, Integer> best = new HashMap<String, Integer>();
+            int[] entries = new int[parts.size()];
+            for (int k = 0; k < parts.size(); k++) {
+                entries[k] = -1;
+                for (String candidate : parts.get(k).keys) {
+                    Integer e = best.get(candidate);
+                    if (e == null) {
+                        String[] words = candidate.split(" ");
+                        e = IntStream.range(0, n).parallel()
+                                .filter(i -> containsAll(names[i], words))
+                                .boxed()
+                                .min((a, b) -> names[a].length() != names[b].length()
+                                        ? names[a].length() - names[b].length() : a - b)
+                                .orElse(-1);
+                        best.put(candidate, e);
+                    }
+                    if (e >= 0) {
+                        entries[k] = e;
+                        break;
+                    }
+                }
+            }
+            return entries;
+        }
+
+        private static boolean containsAll(String name, String[] words) {
+            for (String w : words) if (!name.contains(w)) return false;
+            return true;
+        }
+
+        /** Shows {@code store}'s colors with the binding from {@link #bind}; null clears. */
+        void setStore(PaletteStore store, int[] entries) {
+            this.store = store;
+            byEntry.clear();
+            for (int k = 0; k < parts.size(); k++) {
+                Part part = parts.get(k);
+                part.entry = store != null ? entries[k] : -1;
+                if (part.entry < 0) continue;
+                List<Part> l = byEntry.get(part.entry);
+                if (l == null) byEntry.put(part.entry, l = new ArrayList<Part>());
+                l.add(part);
+            }
+            renderedW = -1; // re-render everything
+            repaint();
+        }
+
+        PaletteStore store() { return store; }
+
+        /** Redraws every layer, e.g. after the store's preview column changed. */
+        void refresh() {
+            renderedW = -1;
+            repaint();
+        }
+
+        /** Entries {@code rows[k]}, {@code k < n}, changed color: redraws just the parts bound to them. */
+        void entriesChanged(int[] rows, int n) {
+            if (store == null || renderedW < 0) return;
+            Rectangle[] dirty = new Rectangle[LAYERS];
+            for (int k = 0; k < n; k++) {
+                List<Part> l = byEntry.get(rows[k]);
+                if (l == null) continue;
+                for (Part part : l) {
+                    dirty[part.layer] = dirty[part.layer] == null ? new Rectangle(part.bounds) : dirty[part.layer].union(part.bounds);
+                }
+            }
+            for (int layer = 0; layer < LAYERS; layer++) {
+                if (dirty[layer] == null) continue;
+                render(layer, dirty[layer]);
+                repaint(dirty[layer]);
+            }
+        }
+
+        /** The part on top at {@code p}, or null. */
+        Part partAt(Point p) {
+            for (int k = parts.size() - 1; k >= 0; k--) {
+                Part part = parts.get(k);
+                if (part.kind != LABEL && part.bounds.contains(p)) return part;
+            }
+            return null;
+        }
+
+        @Override public String getToolTipText(java.awt.event.MouseEvent e) {
+            Part part = partAt(e.getPoint());
+            if (part == null) return null;
+            return part.label + ": " + (part.entry >= 0 && store != null ? store.name(part.entry) + " " + store.hex(part.entry) : "no matching key");
+        }
+
+        @Override protected void paintComponent(Graphics g) {
+            int w = getWidth(), h = getHeight();
+            if (w <= 0 || h <= 0) return;
+            if (w != renderedW || h != renderedH) {
+                scale = Math.min(w / (double) W, h / (double) H);
+                for (Part part : parts) {
+                    part.bounds.setBounds((int) Math.round(part.x * scale), (int) Math.round(part.y * scale),
+                            (int) Math.round(part.w * scale), (int) Math.round(part.h * scale));
+                }
+                for (int layer = 0; layer < LAYERS; layer++) {
+                    if (layers[layer] == null || layers[layer].getWidth() != w || layers[layer].getHeight() != h) {
+                        layers[layer] = new java.awt.image.BufferedImage(w, h, java.awt.image.BufferedImage.TYPE_INT_ARGB_PRE);
+                    }
+                    render(layer, new Rectangle(0, 0, w, h));
+                }
+                renderedW = w;
+                renderedH = h;
+            }
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) clip = new Rectangle(0, 0, w, h);
+            g.setColor(getBackground() != null ? getBackground() : Color.DARK_GRAY);
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            for (java.awt.image.BufferedImage img : layers) g.drawImage(img, 0, 0, null);
+        }
+
+        /** Clears {@code area} of one layer's image and draws that layer's parts over it again. */
+        private void render(int layer, Rectangle area) {
+            Graphics2D g = layers[layer].createGraphics();
+            try {
+                g.setClip(area);
+                g.setComposite(AlphaComposite.Clear);
+                g.fillRect(area.x, area.y, area.width, area.height);
+                g.setComposite(AlphaComposite.SrcOver);
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                g.setFont(getFont() != null ? getFont().deriveFont(Math.max(9f, 12f * (float) scale)) : null);
+                for (Part part : parts) {
+                    if (part.layer != layer || !part.bounds.intersects(area)) continue;
+                    g.setColor(colorOf(part));
+                    Rectangle b = part.bounds;
+                    switch (part.kind) {
+                        case ROUND: {
+                            int arc = Math.max(4, Math.min(b.width, b.height) / 4);
+                            g.fillRoundRect(b.x, b.y, b.width, b.height, arc, arc);
+                            break;
+                        }
+                        case METER: {
+                            int level = b.height * 2 / 3; // a steady level; the peak part sits on top
+                            g.fillRect(b.x, b.y + b.height - level, b.width, level);
+                            break;
+                        }
+                        case LABEL: {
+                            FontMetrics fm = g.getFontMetrics();
+                            Shape old = g.getClip();
+                            g.clip(b);
+                            g.drawString(part.label, b.x, b.y + (b.height + fm.getAscent() - fm.getDescent()) / 2);
+                            g.setClip(old);
+                            break;
+                        }
+                        default:
+                            g.fillRect(b.x, b.y, b.width, b.height);
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+
+        private Color colorOf(Part part) {
+            if (part.entry < 0 || store == null) return UNBOUND;
+            return new Color(store.shownArgb(part.entry), true); // follows Adjust Colors previews
+        }
+    }
+
+    /**
+     * WCAG 2 contrast of foreground/background entry pairs. Rules name the pairs with key
+     * patterns ({@code *} matches any text, case is ignored): the entries matching the
+     * foreground pattern are joined with those matching the background pattern on the text
+     * their wildcards matched, so {@code *Text* on *Background*} pairs "Clip Text Hover"
+     * with "Clip Background Hover". A pattern without wildcards pairs its one key with every
+     * match of the other side. Relative luminance is cached per entry (alpha is ignored);
+     * ratios are computed in parallel and kept sorted by how far they fall short of their
+     * rule's minimum, worst first. After an edit only the pairs touching the edited entries
+     * are recomputed and moved.
+     */
+    private static final class ContrastReport {
+        static final String DEFAULT_RULES = "// foreground on background [>= minimum ratio], * matches any text\n"
+                + "*Text* on *Background* >= 4.5\n";
+        static final int MAX_PAIRS = 5_000_000;
+        static final int MAX_RULES = 1 << 15; // pairs store their rule as a short
+
+        /** One line of the rule set. */
+        static final class Rule {
+            final String text;
+            final Pattern fg, bg;
+            final int fgWildcards, bgWildcards;
+            final float minimum;
+
+            Rule(String text, String fg, String bg, float minimum) {
+                this.text = text;
+                this.fg = glob(fg);
+                this.bg = glob(bg);
+                this.fgWildcards = this.fg.matcher("").groupCount();
+                this.bgWildcards = this.bg.matcher("").groupCount();
+                this.minimum = minimum;
+            }
+
+            private static Pattern glob(String p) {
+                StringBuilder re = new StringBuilder();
+                int from = 0;
+                for (int star; (star = p.indexOf('*', from)) >= 0; from = star + 1) {
+                    if (star > from) re.append(Pattern.quote(p.substring(from, star)));
+                    re.append("(.*)");
+                }
+                if (from < p.length()) re.append(Pattern.quote(p.substring(from)));
+                return Pattern.compile(re.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+            }
+
+            String fgStem(String key) { return stem(fg, key); }
+
+            String bgStem(String key) { return stem(bg, key); }
+
+            /** What the wildcards matched in {@code key}, or null if it doesn't match. */
+            private static String stem(Pattern p, String key) {
+                Matcher m = p.matcher(key);
+                if (!m.matches()) return null;
+                if (m.groupCount() == 0) return "";
+                StringBuilder sb = new StringBuilder();
+                for (int g = 1; g <= m.groupCount(); g++) sb.append(m.group(g).toLowerCase(Locale.ROOT)).append('\0');
+                return sb.toString();
+            }
+        }
+
+        /**
+         * Parses one rule per line, {@code <foreground> on <background> [>= <ratio>]}; blank
+         * lines and lines starting with // are skipped. Both patterns need the same number of
+         * wildcards unless one has none.
+         */
+        static List<Rule> parseRules(String text) {
+            List<Rule> rules = new ArrayList<Rule>();
+            int lineNo = 0;
+            for (String line : text.split("\n")) {
+                lineNo++;
+                String t = line.trim();
+                if (t.isEmpty() || t.startsWith("//")) continue;
+                float minimum = 4.5f;
+                int ge = t.lastIndexOf(">=");
+                String pair = t;
+                if (ge >= 0) {
+                    try {
+                        minimum = Float.parseFloat(t.substring(ge + 2).trim());
+                    } catch (NumberFormatException ex) {
+                        throw new IllegalArgumentException("Line " + lineNo + ": bad minimum ratio: " + t);
+                    }
+                    if (!(minimum >= 1 && minimum <= 21)) {
+                        throw new IllegalArgumentException("Line " + lineNo + ": a minimum ratio is from 1 to 21: " + t);
+                    }
+                    pair = t.substring(0, ge).trim();
+                }
+                int on = pair.toLowerCase(Locale.ROOT).indexOf(" on ");
+                if (on < 0) throw new IllegalArgumentException("Line " + lineNo + ": expected '<foreground> on <background>': " + t);
+                String fg = pair.substring(0, on).trim(), bg = pair.substring(on + 4).trim();
+                if (fg.isEmpty() || bg.isEmpty()) throw new IllegalArgumentException("Line " + lineNo + ": missing key pattern: " + t);
+                Rule r = new Rule(t, fg, bg, minimum);
+                if (r.fgWildcards != r.bgWildcards && r.fgWildcards > 0 && r.bgWildcards > 0) {
+                    throw new IllegalArgumentException("Line " + lineNo
+                            + ": both patterns need the same number of * (or one needs none): " + t);
+                }
+                if (rules.size() == MAX_RULES) {
+                    throw new IllegalArgumentException("Line " + lineNo + ": at most " + MAX_RULES + " rules are supported.");
+                }
+                rules.add(r);
+            }
+            return rules;
+        }
+
+        final PaletteStore store;
+        final List<Rule> rules;
+        private final float[] luminance; // per entry
+        private int[] fg, bg;            // per pair
+        private short[] rule;
+        private float[] ratio;
+        private final int[] touchStart, touching; // entry e's pairs: touching[touchStart[e] .. touchStart[e + 1])
+        private final long[] sorted;     // margin (ratio / rule minimum) bits << 32 | pair, ascending
+        private int failing;
+        long nanos;
+
+        /** Builds the report for {@code store}'s colors; may run off the EDT. */
+        ContrastReport(PaletteStore store, List<Rule> rules, BooleanSupplier cancelled) {
+            long t0 = System.nanoTime();
+            this.store = store;
+            this.rules = rules;
+            int n = store.size();
+            luminance = new float[n];
+            IntStream.range(0, n).parallel().forEach(e -> luminance[e] = luminance(store.argb(e)));
+            String[] names = new String[n];
+            IntStream.range(0, n).parallel().forEach(e -> names[e] = store.name(e));
+
+            fg = new int[1024];
+            bg = new int[1024];
+            rule = new short[1024];
+            int pairs = 0;
+            if (rules.size() > MAX_RULES) throw new IllegalArgumentException("At most " + MAX_RULES + " rules are supported.");
+            for (int r = 0; r < rules.size(); r++) {
+                if (cancelled.getAsBoolean()) throw new CancellationException();
+                Rule rl = rules.get(r);
+                String[] fgStem = new String[n], bgStem = new String[n];
+                IntStream.range(0, n).parallel().forEach(e -> {
+                    fgStem[e] = rl.fgStem(names[e]);
+                    bgStem[e] = rl.bgStem(names[e]);
+                });
+                boolean cross = rl.fgWildcards == 0 || rl.bgWildcards == 0;
+                Map<String, List<Integer>> backgrounds = new HashMap<String, List<Integer>>();
+                for (int e = 0; e < n; e++) {
+                    if (bgStem[e] == null) continue;
+                    String key = cross ? "" : bgStem[e];
+                    List<Integer> l = backgrounds.get(key);
+                    if (l == null) backgrounds.put(key, l = new ArrayList<Integer>());
+                    l.add(e);
+                }
+                for (int e = 0; e < n; e++) {
+                    if (fgStem[e] == null) continue;
+                    List<Integer> l = backgrounds.get(cross ? "" : fgStem[e]);
+                    if (l == null) continue;
+                    for (int b : l) {
+                        if (b == e) continue;
+                        if (pairs == MAX_PAIRS) {
+                            throw new IllegalArgumentException("The rules pair more than " + MAX_PAIRS + " entries.");
+                        }
+                        if (pairs == fg.length) {
+                            fg = Arrays.copyOf(fg, 2 * pairs);
+                            bg = Arrays.copyOf(bg, 2 * pairs);
+                            rule = Arrays.copyOf(rule, 2 * pairs);
+                        }
+                        fg[pairs] = e;
+                        bg[pairs] = b;
+                        rule[pairs++] = (short) r;
+                    }
+                }
+            }
+            fg = Arrays.copyOf(fg, pairs);
+            bg = Arrays.copyOf(bg, pairs);
+            rule = Arrays.copyOf(rule, pairs);
+            ratio = new float[pairs];
+            IntStream.range(0, pairs).parallel().forEach(p -> ratio[p] = ratioOf(p));
+
+            // Pairs by entry (counting sort), so an edit finds its pairs directly
+            touchStart = new int[n + 1];
+            for (int p = 0; p < pairs; p++) {
+                touchStart[fg[p] + 1]++;
+                touchStart[bg[p] + 1]++;
+            }
+            for (int e = 0; e < n; e++) touchStart[e + 1] += touchStart[e];
+            touching = new int[2 * pairs];
+            int[] fill = Arrays.copyOf(touchStart, n);
+            for (int p = 0; p < pairs; p++) {
+                touching[fill[fg[p]]++] = p;
+                touching[fill[bg[p]]++] = p;
+            }
+
+            sorted = new long[pairs];
+            resort();
+            nanos = System.nanoTime() - t0;
+        }
+
+        int pairs() { return ratio.length; }
+
+        int failing() { return failing; }
+
+        /** The pair with the {@code rank}-th lowest ratio relative to its rule's minimum; failing pairs rank first. */
+        int worst(int rank) { return (int) sorted[rank]; }
+
+        int foreground(int p) { return fg[p]; }
+
+        int background(int p) { return bg[p]; }
+
+        float ratio(int p) { return ratio[p]; }
+
+        Rule rule(int p) { return rules.get(rule[p]); }
+
+        boolean fails(int p) { return ratio[p] < rules.get(rule[p]).minimum; }
+
+        /**
+         * Takes over the new colors of entries {@code rows[k]}, {@code k < n}, recomputing the
+         * pairs that touch them. Returns the number of pairs recomputed.
+         */
+        int update(int[] rows, int n) {
+            int touched = 0;
+            for (int k = 0; k < n; k++) touched += touchStart[rows[k] + 1] - touchStart[rows[k]];
+            boolean few = touched <= 64;
+            for (int k = 0; k < n; k++) {
+                int e = rows[k];
+                luminance[e] = luminance(store.argb(e));
+                for (int q = touchStart[e]; q < touchStart[e + 1]; q++) {
+                    int p = touching[q];
+                    float r = ratioOf(p);
+                    if (r == ratio[p]) continue;
+                    if (few) move(p, r);
+                    else ratio[p] = r;
+                }
+            }
+            if (!few) resort();
+            return touched;
+        }
+
+        /** Gives pair {@code p} ratio {@code r}, shifting it to its new rank. */
+        private void move(int p, float r) {
+            boolean failed = fails(p);
+            int from = Arrays.binarySearch(sorted, key(p));
+            ratio[p] = r;
+            long key = key(p);
+            int to = -Arrays.binarySearch(sorted, key) - 1;
+            if (to > from) {
+                System.arraycopy(sorted, from + 1, sorted, from, to - 1 - from);
+                sorted[to - 1] = key;
+            } else {
+                System.arraycopy(sorted, to, sorted, to + 1, from - to);
+                sorted[to] = key;
+            }
+            if (failed != fails(p)) failing += failed ? -1 : 1;
+        }
+
+        private void resort() {
+            int f = 0;
+            for (int p = 0; p < sorted.length; p++) {
+                sorted[p] = key(p);
+                if (fails(p)) f++;
+            }
+            Arrays.parallelSort(sorted);
+            failing = f;
+        }
+
+        private long key(int p) { return (long) Float.floatToIntBits(ratio[p] / rules.get(rule[p]).minimum) << 32 | p; }
+
+        private float ratioOf(int p) {
+            float a = luminance[fg[p]], b = luminance[bg[p]];
+            return a > b ? (a + 0.05f) / (b + 0.05f) : (b + 0.05f) / (a + 0.05f);
+        }
+
+        /** WCAG relative luminance of the RGB part of {@code argb}. */
+        static float luminance(int argb) {
+            float[] linear = OklabTree.LINEAR;
+            return 0.2126f * linear[argb >>> 16 & 0xFF] + 0.7152f * linear[argb >>> 8 & 0xFF] + 0.0722f * linear[argb & 0xFF];
+        }
+    }
+
+    /**
+     * Key-aligned comparison of a parsed theme ("ours") with another theme file ("theirs").
+     * Their file is scanned once and its rows are joined against ours as they stream by,
+     * through a hash table over our keys: linear time, and nothing of theirs is kept but
+     * the differences. Entries match by container path and raw key bytes; a key that
+     * occurs several times pairs up in order. Values compare as colors, so hex case
+     * doesn't count as a change.
+     */
+    private static final class ThemeDiff {
+        final PaletteStore ours;
+        int unchanged;
+        // Changed: our row, their value, ΔE between the two colors (alpha not included)
+        int changed;
+        int[] changedRow = new int[16];
+        String[] changedHex = new String[16];
+        float[] changedDeltaE = new float[16];
+        // Added: keys only they have
+        int added;
+        String[] addedName = new String[16];
+        String[] addedHex = new String[16];
+        // Removed: keys only we have
+        int[] removedRow = new int[0];
+
+        private final int[] ourArgb;    // our colors when the diff was started
+        private final BitSet ourAlpha = new BitSet();
+        private int[] slots;            // open addressing over our rows, row + 1 (0 = free)
+        private final int[] pathHash;   // our path id -> hash
+        private final BitSet matched = new BitSet();
+        private final List<String> theirPaths = new ArrayList<String>();
+        private final List<Integer> theirPath = new ArrayList<Integer>(); // their path id -> ours, -1 = none
+        private final Map<String, Integer> ourPathIds = new HashMap<String, Integer>();
+
+        /** Takes our current colors; on the EDT when {@code ours} is the editor's store. */
+        ThemeDiff(PaletteStore ours) {
+            this.ours = ours;
+            ourArgb = ours.argbs();
+            for (int i = 0; i < ourArgb.length; i++) if (ours.hasAlpha(i)) ourAlpha.set(i);
+            pathHash = new int[ours.paths.size()];
+            for (int p = 0; p < pathHash.length; p++) {
+                pathHash[p] = ours.paths.get(p).hashCode();
+                ourPathIds.put(ours.paths.get(p), p);
+            }
+        }
+
+        /** {@code --diff ours.json theirs.json}: prints the differences; exit code 1 if there are any. */
+        static int run(String[] args) {
+            if (args.length != 2) {
+                System.err.println("Usage: java -jar ColorJsonEditor.jar --diff <ours.json> <theirs.json>");
+                return 2;
+            }
+            try {
+                long t0 = System.nanoTime();
+                PaletteStore ours = PaletteStore.parse(ThemeDocument.read(Paths.get(args[0])));
+                ThemeDiff d = new ThemeDiff(ours).compare(ThemeDocument.read(Paths.get(args[1])));
+                long ns = System.nanoTime() - t0;
+                for (int k = 0; k < d.changed; k++) {
+                    int i = d.changedRow[k];
+                    System.out.printf("~ %s  %s -> %s  dE %.1f%n", ours.name(i), ours.hex(i), d.changedHex[k], d.changedDeltaE[k]);
+                }
+                for (int k = 0; k < d.added; k++) System.out.println("+ " + d.addedName[k] + "  " + d.addedHex[k]);
+                for (int i : d.removedRow) System.out.println("- " + ours.name(i) + "  " + ours.hex(i));
+                System.out.printf("%d changed, %d added, %d removed, %d unchanged in %.1f ms%n",
+                        d.changed, d.added, d.removedRow.length, d.unchanged, ns / 1e6);
+                return d.changed + d.added + d.removedRow.length > 0 ? 1 : 0;
+            } catch (IOException | IllegalArgumentException ex) {
+                System.err.println("Error: " + ex.getMessage());
+                return 2;
+            }
+        }
+
+        /**
+         * Joins {@code theirs} against our keys, streaming it through the scanner. Only reads
+         * what doesn't change after parsing (key spans and paths), so it may run off the EDT.
+         */
+        ThemeDiff compare(ThemeDocument theirs) {
+            int n = ourArgb.length;
+            slots = new int[Integer.highestOneBit(Math.max(2, 2 * n - 1)) << 1];
+            ByteBuffer src = ours.doc.source();
+            int mask = slots.length - 1;
+            for (int i = 0; i < n; i++) {
+                int slot = hash(pathHash[ours.pathId[i]], src, ours.keyStart[i], ours.keyEnd[i]) & mask;
+                while (slots[slot] != 0) slot = (slot + 1) & mask;
+                slots[slot] = i + 1;
+            }
+            reparse(theirs, chunk -> join(chunk, theirs.source()));
+            removedRow = new int[n - matched.cardinality()];
+            for (int i = matched.nextClearBit(0), k = 0; i < n; i = matched.nextClearBit(i + 1)) removedRow[k++] = i;
+            return this;
+        }
+
+        private static int hash(int pathHash, ByteBuffer src, int from, int to) {
+            int h = pathHash;
+            for (int b = from; b < to; b++) h = 31 * h + src.get(b);
+            return h ^ h >>> 16;
+        }
+
+        private void join(RowChunk c, ByteBuffer theirs) {
+            for (String p : c.newPaths) {
+                theirPaths.add(p);
+                Integer id = ourPathIds.get(p);
+                theirPath.add(id != null ? id : -1);
+            }
+            ByteBuffer src = ours.doc.source();
+            int mask = slots.length - 1;
+            for (int k = 0; k < c.count; k++) {
+                int path = theirPath.get(c.pathId[k]);
+                int from = c.keyStart[k], len = c.keyEnd[k] - from;
+                int row = -1;
+                if (path >= 0) {
+                    for (int slot = hash(pathHash[path], theirs, from, c.keyEnd[k]) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                        int i = slots[slot] - 1;
+                        if (ours.pathId[i] != path || ours.keyEnd[i] - ours.keyStart[i] != len || matched.get(i)) continue;
+                        int a = ours.keyStart[i], b = 0;
+                        while (b < len && src.get(a + b) == theirs.get(from + b)) b++;
+                        if (b == len) {
+                            row = i;
+                            break;
+                        }
+                    }
+                }
+                if (row < 0) {
+                    if (added == addedName.length) {
+                        addedName = Arrays.copyOf(addedName, added * 2);
+                        addedHex = Arrays.copyOf(addedHex, added * 2);
+                    }
+                    addedName[added] = JsonSpanScanner.qualify(theirPaths.get(c.pathId[k]), JsonSpanScanner.decode(theirs, from, c.keyEnd[k]));
+                    addedHex[added++] = JsonSpanScanner.decode(theirs, c.valueStart[k], c.valueEnd[k]);
+                    continue;
+                }
+                matched.set(row);
+                boolean alpha = ColorCodec.hasAlpha(c.format[k], c.valueEnd[k] - c.valueStart[k]);
+                if (ourArgb[row] == c.argb[k] && ourAlpha.get(row) == alpha) {
+                    unchanged++;
+                    continue;
+                }
+                if (changed == changedRow.length) {
+                    changedRow = Arrays.copyOf(changedRow, changed * 2);
+                    changedHex = Arrays.copyOf(changedHex, changed * 2);
+                    changedDeltaE = Arrays.copyOf(changedDeltaE, changed * 2);
+                }
+                changedRow[changed] = row;
+                changedHex[changed] = JsonSpanScanner.decode(theirs, c.valueStart[k], c.valueEnd[k]);
+                changedDeltaE[changed++] = (float) OklabTree.deltaE(ourArgb[row], c.argb[k]);
+            }
+        }
+    }
+
+    // ===== Instrumentation =====
+
+    /**
+     * Always-on timing of the editor's main operations. Each {@link Metric} keeps a
+     * log-linear latency histogram (8 sub-buckets per power of two, so percentiles are
+     * within about 6%), a count, and the bytes allocated by the measuring thread. Where the
+     * JVM has Flight Recorder (9+), each span is also committed as a JFR event in category
+     * "ColorJsonEditor". Those event types are made at runtime through
+     * {@code jdk.jfr.EventFactory}, by reflection, as the build targets Java 8 where that
+     * API doesn't exist; there the JFR side is a no-op.
+     */
+    private static final class Perf {
+        static final Metric OPEN = new Metric("Open", "Open file (until shown)", true);
+        static final Metric LOAD = new Metric("Load", "Load + parse (background)", true);
+        static final Metric REPARSE = new Metric("Reparse", "Reparse", true);
+        static final Metric EDIT = new Metric("Edit", "Edit (apply values)", true);
+        static final Metric SEARCH = new Metric("Search", "Search refilter", true);
+        static final Metric SAVE = new Metric("Save", "Save (write file)", true);
+        static final Metric CLUSTER = new Metric("Cluster", "Color clustering", true);
+        static final Metric VERSION = new Metric("Version", "Version lookup", true);
+        static final Metric SCRIPT = new Metric("Script", "Scripting request", false); // thousands per second under load
+        static final Metric EDT = new Metric("EdtDispatch", "EDT event dispatch", false); // far too many for JFR
+        static final Metric[] ALL = {OPEN, LOAD, REPARSE, EDIT, SEARCH, SAVE, CLUSTER, VERSION, SCRIPT, EDT};
+
+        private static final com.sun.management.ThreadMXBean MX = threadMx();
+
+        static com.sun.management.ThreadMXBean threadMx() {
+            java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+            if (mx instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) mx;
+                if (sun.isThreadAllocatedMemorySupported()) {
+                    sun.setThreadAllocatedMemoryEnabled(true);
+                    return sun;
+                }
+            }
+            return null;
+        }
+
+        /** Bytes allocated so far by the current thread, or -1 if the JVM can't tell. */
+        static long allocated() {
+            return MX != null ? MX.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+        }
+
+        /** Bytes allocated so far by all live threads, or -1 if the JVM can't tell. */
+        static long allocatedByAll() {
+            if (MX == null) return -1;
+            long sum = 0;
+            for (long b : MX.getThreadAllocatedBytes(MX.getAllThreadIds())) if (b > 0) sum += b;
+            return sum;
+        }
+
+        static String nanos(double ns) {
+            if (ns < 1e3) return String.format(Locale.ROOT, "%.0f ns", ns);
+            if (ns < 1e6) return String.format(Locale.ROOT, "%.1f µs", ns / 1e3);
+            if (ns < 1e9) return String.format(Locale.ROOT, "%.1f ms", ns / 1e6);
+            return String.format(Locale.ROOT, "%.2f s", ns / 1e9);
+        }
+
+        static String bytes(double b) {
+            if (b < 0) return "–";
+            if (b < 1 << 10) return String.format(Locale.ROOT, "%.0f B", b);
+            if (b < 1 << 20) return String.format(Locale.ROOT, "%.1f KB", b / (1 << 10));
+            return String.format(Locale.ROOT, "%.1f MB", b / (1 << 20));
+        }
+    }
+
+    /** Latency histogram and counters of one kind of operation; see {@link Perf}. */
+    private static final class Metric {
+        private static final int SUB_BITS = 3, SUB = 1 << SUB_BITS;
+
+        final String label;
+        private final JfrType jfr;
+        private final long[] buckets = new long[(64 - SUB_BITS + 1) * SUB];
+        private long count, totalNanos, maxNanos, measured, totalBytes; // measured: spans with a byte count
+
+        Metric(String name, String label, boolean jfr) {
+            this.label = label;
+            this.jfr = jfr ? new JfrType(name, label, "allocated", true) : null;
+        }
+
+        /** Starts a span to be closed on this thread; it also counts what the thread allocates. */
+        Span begin() { return new Span(this, Perf.allocated()); }
+
+        /** Starts a span that may be closed on another thread (no allocation count). */
+        Span beginAsync() { return new Span(this, -1); }
+
+        synchronized void record(long nanos, long bytes) {
+            if (nanos < 0) nanos = 0;
+            buckets[bucket(nanos)]++;
+            count++;
+            totalNanos += nanos;
+            if (nanos > maxNanos) maxNanos = nanos;
+            if (bytes >= 0) {
+                measured++;
+                totalBytes += bytes;
+            }
+        }
+
+        /** See {@link JfrType#status()}. */
+        String jfrStatus() { return jfr != null ? jfr.status() : "unavailable"; }
+
+        synchronized void reset() {
+            Arrays.fill(buckets, 0);
+            count = totalNanos = maxNanos = measured = totalBytes = 0;
+        }
+
+        synchronized long count() { return count; }
+        synchronized long maxNanos() { return maxNanos; }
+        synchronized double meanNanos() { return count == 0 ? 0 : (double) totalNanos / count; }
+        synchronized double bytesPerOp() { return measured == 0 ? -1 : (double) totalBytes / measured; }
+
+        /** Upper bound of the bucket holding quantile {@code q} (0..1), capped at the maximum seen. */
+        synchronized long percentile(double q) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * count)), seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b];
+                if (seen >= rank) return Math.min(maxNanos, upperBound(b));
+            }
+            return maxNanos;
+        }
+
+        private static int bucket(long v) {
+            if (v < SUB) return (int) v;
+            int e = 63 - Long.numberOfLeadingZeros(v); // >= SUB_BITS
+            return (e - SUB_BITS + 1) * SUB + (int) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+        }
+
+        private static long upperBound(int b) {
+            if (b < SUB) return b;
+            int e = b / SUB + SUB_BITS - 1;
+            return ((long) (SUB + b % SUB + 1) << (e - SUB_BITS)) - 1;
+        }
+    }
+
+    /** One timed run of a {@link Metric}, from {@link Metric#begin()} until {@link #close()}, which callers do in a {@code finally} block. */
+    private static final class Span implements AutoCloseable {
+        private final Metric metric;
+        private final long start = System.nanoTime();
+        private final long allocStart;
+        private final Object event;
+
+        Span(Metric metric, long allocStart) {
+            this.metric = metric;
+            this.allocStart = allocStart;
+            this.event = metric.jfr != null ? metric.jfr.begin() : null;
+        }
+
+        @Override public void close() {
+            long bytes = allocStart >= 0 ? Perf.allocated() - allocStart : -1;
+            metric.record(System.nanoTime() - start, bytes);
+            if (event != null) metric.jfr.commit(event, bytes);
+        }
+    }
+
+    /**
+     * A Flight Recorder event type built at runtime: a duration, one long field and any
+     * number of text fields. Every method is a no-op when jdk.jfr is missing or when no
+     * recording asks for the event.
+     */
+    private static final class JfrType {
+        private static final Method NEW_EVENT, BEGIN, COMMIT, SET, IS_ENABLED;
+        static {
+            Method[] m = new Method[5];
+            try {
+                Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+                Class<?> event = Class.forName("jdk.jfr.Event");
+                m[0] = factory.getMethod("newEvent");
+                m[1] = event.getMethod("begin");
+                m[2] = event.getMethod("commit");
+                m[3] = event.getMethod("set", int.class, Object.class);
+                m[4] = event.getMethod("isEnabled");
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                Arrays.fill(m, null); // Java 8: no JFR API
+            }
+            NEW_EVENT = m[0];
+            BEGIN = m[1];
+            COMMIT = m[2];
+            SET = m[3];
+            IS_ENABLED = m[4];
+        }
+
+        private static final List<JfrType> PENDING = new ArrayList<JfrType>();
+        private static boolean created; // guarded by PENDING
+
+        private final String name, label, longField;
+        private final boolean stackTrace;
+        private final String[] textFields;
+        private volatile Object factory;
+        private volatile boolean ready;
+
+        /**
+         * Declares an event type. Generating it is slow (the JFR module loads and a class is
+         * spun per type), so types declared before {@link #createAll()} wait for it; until
+         * then their events aren't recorded, only the in-process histograms count.
+         */
+        JfrType(String name, String label, String longField, boolean stackTrace, String... textFields) {
+            this.name = name;
+            this.label = label;
+            this.longField = longField;
+            this.stackTrace = stackTrace;
+            this.textFields = textFields;
+            synchronized (PENDING) {
+                if (!created) {
+                    PENDING.add(this);
+                    return;
+                }
+            }
+            create();
+        }
+
+        /** Generates every declared type and, from now on, types as they are declared. */
+        static void createAll() {
+            List<JfrType> types;
+            synchronized (PENDING) {
+                created = true;
+                types = new ArrayList<JfrType>(PENDING);
+                PENDING.clear();
+            }
+            for (JfrType t : types) t.create();
+        }
+
+        private void create() {
+            Object f = null;
+            if (NEW_EVENT != null) {
+                try {
+                    Class<?> element = Class.forName("jdk.jfr.AnnotationElement");
+                    Constructor<?> annotation = element.getConstructor(Class.class, Object.class);
+                    Constructor<?> value = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+                    List<Object> annotations = Arrays.asList(
+                            annotation.newInstance(Class.forName("jdk.jfr.Name"), "colorjsoneditor." + name),
+                            annotation.newInstance(Class.forName("jdk.jfr.Label"), label),
+                            annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"ColorJsonEditor"}),
+                            annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), stackTrace));
+                    List<Object> fields = new ArrayList<Object>();
+                    fields.add(value.newInstance(long.class, longField));
+                    for (String t : textFields) fields.add(value.newInstance(String.class, t));
+                    f = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class)
+                            .invoke(null, annotations, fields);
+                } catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+                    f = null; // no Flight Recorder in this JVM
+                }
+            }
+            factory = f;
+            ready = true;
+        }
+
+        /** A started event, or null if nothing is recording it. */
+        Object begin() {
+            if (factory == null) return null;
+            try {
+                Object e = NEW_EVENT.invoke(factory);
+                if (!(Boolean) IS_ENABLED.invoke(e)) return null;
+                BEGIN.invoke(e);
+                return e;
+            } catch (ReflectiveOperationException ex) {
+                return null;
+            }
+        }
+
+        /** Ends and writes {@code event} (from {@link #begin()}); {@code text} fills the text fields in order. */
+        void commit(Object event, long value, String... text) {
+            try {
+                SET.invoke(event, 0, value);
+                for (int k = 0; k < text.length; k++) SET.invoke(event, k + 1, text[k]);
+                COMMIT.invoke(event);
+            } catch (ReflectiveOperationException ex) {
+                // dropped event; the in-process histogram still has it
+            }
+        }
+
+        /** "recording", "available" (JFR present, nothing recording this type), "starting" or "unavailable". */
+        String status() {
+            if (!ready) return "starting";
+            if (factory == null) return "unavailable";
+            try {
+                return (Boolean) IS_ENABLED.invoke(NEW_EVENT.invoke(factory)) ? "recording" : "available";
+            } catch (ReflectiveOperationException ex) {
+                return "unavailable";
+            }
+        }
+    }
+
+    /**
+     * Event queue that times every event the EDT dispatches, plus a daemon thread that
+     * catches dispatches running longer than a threshold and samples the EDT's stack while
+     * it is still stuck, so the trace shows what blocked it. Nested dispatch loops (modal
+     * dialogs) restart the clock, so a dialog left open doesn't count as a stall. The last
+     * {@link #KEEP} stalls are kept for the Performance panel.
+     */
+    private static final class EdtWatchdog extends EventQueue {
+        static final int KEEP = 20;
+
+        /** One stall; {@code nanos} is -1 while the EDT is still blocked. */
+        static final class Stall {
+            final long at = System.currentTimeMillis();
+            final long dispatchStart;
+            final StackTraceElement[] stack;
+            final Object event;
+            volatile long nanos = -1;
+
+            Stall(long dispatchStart, StackTraceElement[] stack, Object event) {
+                this.dispatchStart = dispatchStart;
+                this.stack = stack;
+                this.event = event;
+            }
+        }
+
+        volatile long thresholdMs = 200;
+        private volatile long dispatchStart; // innermost running dispatch, 0 = idle
+        private volatile Thread edt;
+        private volatile Stall current;
+        private final java.util.ArrayDeque<Stall> stalls = new java.util.ArrayDeque<Stall>();
+        private final JfrType jfr = new JfrType("EdtStall", "EDT stall", "blockedNanos", false, "stack"); // the EDT's stack, sampled while stuck
+
+        /** Replaces the system event queue and starts watching. */
+        static EdtWatchdog install() {
+            EdtWatchdog w = new EdtWatchdog();
+            Toolkit.getDefaultToolkit().getSystemEventQueue().push(w);
+            Thread t = new Thread(w::watch, "edt-watchdog");
+            t.setDaemon(true);
+            t.start();
+            return w;
+        }
+
+        @Override protected void dispatchEvent(AWTEvent e) {
+            edt = Thread.currentThread();
+            long outer = dispatchStart;
+            long start = System.nanoTime();
+            dispatchStart = start;
+            try {
+                super.dispatchEvent(e);
+            } finally {
+                long end = System.nanoTime();
+                if (dispatchStart == start) Perf.EDT.record(end - start, -1); // no nested loop ran inside
+                Stall s = current;
+                if (s != null && s.dispatchStart == start) {
+                    s.nanos = end - start;
+                    current = null;
+                    if (s.event != null) jfr.commit(s.event, s.nanos, stackText(s.stack, 64));
+                }
+                dispatchStart = outer == 0 ? 0 : end;
+            }
+        }
+
+        private void watch() {
+            long reported = 0;
+            while (true) {
+                long threshold = thresholdMs * 1_000_000L;
+                try {
+                    Thread.sleep(Math.max(10, Math.min(100, thresholdMs / 4)));
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                long s = dispatchStart;
+                Thread t = edt;
+                if (s == 0 || s == reported || t == null || System.nanoTime() - s < threshold) continue;
+                Object event = jfr.begin();
+                StackTraceElement[] stack = t.getStackTrace();
+                if (dispatchStart != s) continue; // finished while we looked
+                reported = s;
+                Stall stall = new Stall(s, stack, event);
+                synchronized (stalls) {
+                    if (stalls.size() == KEEP) stalls.removeFirst();
+                    stalls.addLast(stall);
+                }
+                current = stall;
+            }
+        }
+
+        List<Stall> stalls() {
+            synchronized (stalls) {
+                return new ArrayList<Stall>(stalls);
+            }
+        }
+
+        void clear() {
+            synchronized (stalls) {
+                stalls.clear();
+            }
+        }
+
+        static String stackText(StackTraceElement[] stack, int max) {
+            StringBuilder sb = new StringBuilder();
+            for (int k = 0; k < stack.length && k < max; k++) sb.append("  at ").append(stack[k]).append('\n');
+            if (stack.length > max) sb.append("  … ").append(stack.length - max).append(" more\n");
+            return sb.toString();
+        }
+    }
+
+    // ===== Headless batch mode =====
+
+    /**
+     * Recolors many theme files without the GUI:
+     * <pre>
+     *   java -jar ColorJsonEditor.jar --batch --map &lt;mapping&gt; [--out &lt;dir&gt;] [--threads &lt;n&gt;] &lt;dir|glob&gt;...
+     * </pre>
+     * The mapping is either a *.palette file (every entry snaps to its nearest palette
+     * color) or a text file of {@code left = #RRGGBB[AA]} lines, where {@code left} is a
+     * key (nested keys path-qualified) or an old color. A 6-digit old color matches
+     * regardless of the entry's alpha. New colors go through
+     * {@link #mergeFavoriteOntoTarget} so the target's alpha rules apply. Files are
+     * processed in parallel on a fork-join pool and written in place unless
+     * {@code --out} is given. Exit code: 0 = all files done, 1 = some failed, 2 = usage.
+     */
+    private static final class BatchRecolor {
+        private final Map<String, String> byKey = new HashMap<String, String>();
+        private final Map<Integer, String> byArgb = new HashMap<Integer, String>(); // old #RRGGBBAA
+        private final Map<Integer, String> byRgb = new HashMap<Integer, String>();  // old #RRGGBB, any alpha
+        private OklabTree palette;  // *.palette mapping
+        private String[] paletteHex;
+
+        /** Outcome of one file. */
+        private static final class Result {
+            final Path file;
+            int entries, changed;
+            long bytes, nanos;
+            Exception error;
+
+            Result(Path file) { this.file = file; }
+        }
+
+        static int run(String[] args) {
+            Path map = null, out = null;
+            int threads = Runtime.getRuntime().availableProcessors();
+            List<String> inputs = new ArrayList<String>();
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "--map": map = Paths.get(args[++i]); break;
+                        case "--out": out = Paths.get(args[++i]); break;
+                        case "--threads": threads = Integer.parseInt(args[++i]); break;
+                        default: inputs.add(args[i]);
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+                map = null;
+            }
+            if (map == null || inputs.isEmpty() || threads < 1) {
+                System.err.println("Usage: java -jar ColorJsonEditor.jar --batch --map <mapping> "
+                        + "[--out <dir>] [--threads <n>] <dir|glob>...");
+                System.err.println("  mapping: *.palette (snap to nearest color) or lines of "
+                        + "'key = #RRGGBB[AA]' / '#OLD = #NEW'");
+                return 2;
+            }
+
+            BatchRecolor batch = new BatchRecolor();
+            List<Path[]> files = new ArrayList<Path[]>(); // {file, base directory}
+            try {
+                batch.loadMapping(map);
+                for (String in : inputs) collectInputs(in, files);
+                if (out != null) Files.createDirectories(out);
+            } catch (IOException | IllegalArgumentException ex) {
+                System.err.println("Error: " + ex.getMessage());
+                return 2;
+            }
+            if (files.isEmpty()) {
+                System.err.println("No *.json files matched.");
+                return 2;
+            }
+
+            final Path outDir = out;
+            List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+            for (Path[] f : files) tasks.add(() -> batch.process(f[0], outDir == null ? f[0] : outDir.resolve(f[1].toAbsolutePath().relativize(f[0].toAbsolutePath()))));
+
+            long t0 = System.nanoTime();
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            int failed = 0, changed = 0;
+            long bytes = 0;
+            try {
+                for (Future<Result> fr : pool.invokeAll(tasks)) {
+                    Result r = fr.get();
+                    bytes += r.bytes;
+                    if (r.error != null) {
+                        failed++;
+                        System.out.printf("FAIL %s: %s%n", r.file, r.error.getMessage());
+                    } else {
+                        changed += r.changed;
+                        System.out.printf("ok   %s  %d/%d entries changed  %.1f ms  %.1f MB/s%n",
+                                r.file, r.changed, r.entries, r.nanos / 1e6, mbPerSecond(r.bytes, r.nanos));
+                    }
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                System.err.println("Error: " + ex);
+                return 1;
+            } finally {
+                pool.shutdown();
+            }
+            long nanos = System.nanoTime() - t0;
+            System.out.printf("%d files (%d failed), %d entries changed, %.1f MB in %.1f ms: %.1f MB/s, %.1f files/s on %d threads%n",
+                    files.size(), failed, changed, bytes / 1e6, nanos / 1e6, mbPerSecond(bytes, nanos),
+                    files.size() / (nanos / 1e9), threads);
+            return failed == 0 ? 0 : 1;
+        }
+
+        private static double mbPerSecond(long bytes, long nanos) {
+            return nanos == 0 ? 0 : (bytes / 1e6) / (nanos / 1e9);
+        }
+
+        /** Adds the *.json files under a directory, or those matching a glob such as {@code themes/**.json}. */
+        private static void collectInputs(String in, List<Path[]> files) throws IOException {
+            Path p = Paths.get(in);
+            if (Files.isDirectory(p)) {
+                walkJson(p, p, null, files);
+                return;
+            }
+            if (Files.isRegularFile(p)) {
+                files.add(new Path[]{p, p.toAbsolutePath().getParent()});
+                return;
+            }
+            // Glob: walk from the deepest directory without wildcards
+            String norm = in.replace('\\', '/');
+            int wild = norm.length();
+            for (char ch : "*?[{".toCharArray()) {
+                int k = norm.indexOf(ch);
+                if (k >= 0) wild = Math.min(wild, k);
+            }
+            int slash = norm.lastIndexOf('/', wild);
+            Path base = slash < 0 ? Paths.get(".") : Paths.get(norm.substring(0, Math.max(slash, 1)));
+            if (!Files.isDirectory(base)) throw new IOException("No such file or directory: " + in);
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+                    "glob:" + (slash < 0 ? norm : norm.substring(slash + 1)));
+            walkJson(base, base, matcher, files);
+        }
+
+        private static void walkJson(Path base, Path dir, PathMatcher matcher, List<Path[]> files) throws IOException {
+            try (Stream<Path> s = Files.walk(dir)) {
+                s.filter(Files::isRegularFile)
+                        .filter(f -> matcher != null ? matcher.matches(base.relativize(f))
+                                : f.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".json"))
+                        .sorted()
+                        .forEach(f -> files.add(new Path[]{f, base}));
+            }
+        }
+
+        private void loadMapping(Path map) throws IOException {
+            if (map.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".palette")) {
+                List<String> hexes = readPaletteHexes(map);
+                if (hexes.isEmpty()) throw new IllegalArgumentException("Palette has no colors: " + map);
+                paletteHex = hexes.toArray(new String[0]);
+                int[] argbs = new int[paletteHex.length];
+                for (int i = 0; i < paletteHex.length; i++) argbs[i] = hexArgb(paletteHex[i]);
+                palette = new OklabTree(argbs, argbs.length);
+                return;
+            }
+            int lineNo = 0;
+            for (String line : Files.readAllLines(map, StandardCharsets.UTF_8)) {
+                lineNo++;
+                String t = line.trim();
+                if (t.isEmpty() || t.startsWith("//")) continue;
+                int eq = t.lastIndexOf('=');
+                String right = eq < 0 ? null : normalizeHex(t.substring(eq + 1));
+                if (right == null) throw new IllegalArgumentException(map + ":" + lineNo + ": expected 'key = #RRGGBB[AA]' or '#OLD = #NEW'");
+                String left = t.substring(0, eq).trim();
+                if (left.length() >= 2 && left.startsWith("\"") && left.endsWith("\"")) {
+                    left = left.substring(1, left.length() - 1);
+                }
+                String old = left.startsWith("#") ? normalizeHex(left) : null;
+                if (old == null) byKey.put(left, right);
+                else if (old.length() == 9) byArgb.put(hexArgb(old), right);
+                else byRgb.put(hexArgb(old) & 0xFFFFFF, right);
+            }
+        }
+
+        /** Color to drop onto entry {@code i}, before alpha merging; null = leave unchanged. */
+        private String mappedHex(PaletteStore store, int i) {
+            int argb = store.argb(i);
+            if (palette != null) return paletteHex[palette.nearest(argb)];
+            if (!byKey.isEmpty()) {
+                String h = byKey.get(store.name(i));
+                if (h != null) return h;
+            }
+            String h = store.hasAlpha(i) ? byArgb.get(argb) : null;
+            return h != null ? h : byRgb.get(argb & 0xFFFFFF);
+        }
+
+        private Result process(Path in, Path out) {
+            Result r = new Result(in);
+            long t0 = System.nanoTime();
+            try {
+                ThemeDocument doc = ThemeDocument.read(in);
+                r.bytes = doc.source().limit();
+                PaletteStore store = PaletteStore.parse(doc);
+                r.entries = store.size();
+                int[] rows = new int[store.size()];
+                String[] hexes = new String[store.size()];
+                for (int i = 0; i < store.size(); i++) {
+                    String fav = mappedHex(store, i);
+                    if (fav == null) continue;
+                    String current = store.hex(i);
+                    String merged = mergeFavoriteOntoTarget(fav, current);
+                    if (!merged.equalsIgnoreCase(current)) {
+                        rows[r.changed] = i;
+                        hexes[r.changed++] = merged;
+                    }
+                }
+                store.setHexes(rows, hexes, r.changed);
+                if (r.changed > 0 || !out.equals(in)) {
+                    Path parent = out.toAbsolutePath().getParent();
+                    if (parent != null) Files.createDirectories(parent);
+                    writeDocument(doc, out);
+                }
+            } catch (IOException | RuntimeException ex) {
+                r.error = ex;
+            }
+            r.nanos = System.nanoTime() - t0;
+            return r;
+        }
+    }
+
+    // ===== Scripting server =====
+
+    /**
+     * Opt-in HTTP interface to the open document for local tools (build scripts, controller
+     * bridges), bound to the loopback address and guarded by a random token that clients
+     * send as {@code Authorization: Bearer <token>}. Request threads never touch the editor:
+     * they read an immutable {@link View} that the document's owner (the EDT) publishes after
+     * every edit, copying only the chunks of colors the edit touched. Writes are checked on
+     * the request thread, queued, and applied by the owner in one batch per pass, so a burst
+     * of requests becomes one document update and one undo step.
+     * <pre>
+     *   GET  /status                                  entries, version, favorites, write batches
+     *   GET  /entries?match=text&amp;offset=0&amp;limit=100  keys containing text (case ignored)
+     *   GET  /entry?key=Name                          or ?index=i
+     *   POST /entry?key=Name&amp;hex=%23RRGGBB            or ?index=i; alpha kept as by Apply Hex
+     *   POST /entries                                 body: lines 'key = #RRGGBB[AA]', one batch
+     *   GET  /favorites
+     *   POST /favorites                               body: one hex per line, appended
+     *   POST /favorites/apply?favorite=i&amp;match=text   favorite i onto every matching key
+     * </pre>
+     * Replies are JSON; failures are {@code {"error": "..."}} with a 4xx or 5xx status.
+     */
+    private static final class ScriptServer {
+        static final int DEFAULT_PORT = 8765;
+        private static final int CHUNK_BITS = 12, CHUNK = 1 << CHUNK_BITS;
+        private static final int MAX_LIMIT = 10_000;
+        private static final long WRITE_TIMEOUT_MS = 10_000;
+
+        /** The document's owner. {@link #execute} may be called from any thread, the rest run on the owner's. */
+        interface Owner {
+            void execute(Runnable r);
+
+            /** The open document's store, or null while none is open or it is still loading. */
+            PaletteStore store();
+
+            /** Drops typed colors onto entries {@code rows[k]}, {@code k < n}, as one edit; returns how many changed. */
+            int apply(int[] rows, String[] hexes, int n);
+
+            void addFavorites(List<String> hexes);
+        }
+
+        /** Colors and keys of one version of the document; never changes once published. */
+        static final class View {
+            final PaletteStore store; // null = no document
+            final long version;
+            final int size;
+            private final long[][] colors; // per chunk: (has alpha digits ? 1L << 32 : 0) | argb
+            private final Keys keys;
+
+            View(PaletteStore store, long version, int size, long[][] colors, Keys keys) {
+                this.store = store;
+                this.version = version;
+                this.size = size;
+                this.colors = colors;
+                this.keys = keys;
+            }
+
+            String hex(int i) {
+                long c = colors[i >>> CHUNK_BITS][i & (CHUNK - 1)];
+                return argbHex((int) c, (c >>> 32) != 0);
+            }
+        }
+
+        /** Key names of one store, decoded on first use (they don't change with edits). */
+        static final class Keys {
+            private final PaletteStore store;
+            private String[] names, lower;
+            private volatile Map<String, Integer> index; // set last: non-null means loaded
+
+            Keys(PaletteStore store) { this.store = store; }
+
+            private synchronized void load() {
+                if (index != null) return;
+                int n = store.size();
+                String[] nm = new String[n], lw = new String[n];
+                IntStream.range(0, n).parallel().forEach(i -> {
+                    nm[i] = store.name(i);
+                    lw[i] = nm[i].toLowerCase(Locale.ROOT);
+                });
+                Map<String, Integer> idx = new HashMap<String, Integer>(n * 2);
+                for (int i = n - 1; i >= 0; i--) idx.put(nm[i], i); // first entry wins for a repeated key
+                names = nm;
+                lower = lw;
+                index = idx;
+            }
+
+            String name(int i) {
+                if (index == null) load();
+                return names[i];
+            }
+
+            String[] lower() {
+                if (index == null) load();
+                return lower;
+            }
+
+            Integer find(String key) {
+                if (index == null) load();
+                return index.get(key);
+            }
+        }
+
+        private static final class Write {
+            final PaletteStore store;
+            final int[] rows;
+            final String[] hexes;
+            final int n;
+            final java.util.concurrent.CompletableFuture<Long> done = new java.util.concurrent.CompletableFuture<Long>();
+
+            Write(PaletteStore store, int[] rows, String[] hexes, int n) {
+                this.store = store;
+                this.rows = rows;
+                this.hexes = hexes;
+                this.n = n;
+            }
+        }
+
+        /** A reply other than 200. */
+        private static final class Failure extends Exception {
+            private static final long serialVersionUID = 1L;
+
+            final int status;
+
+            Failure(int status, String message) {
+                super(message);
+                this.status = status;
+            }
+        }
+
+        final int port;
+        final String token;
+        private final Owner owner;
+        private final com.sun.net.httpserver.HttpServer http;
+        private final ExecutorService workers;
+        private volatile View view = new View(null, 0, 0, new long[0][], new Keys(null));
+        private volatile List<String> favorites = Collections.emptyList();
+        private final Queue<Write> pending = new ConcurrentLinkedQueue<Write>();
+        private final java.util.concurrent.atomic.AtomicBoolean drainQueued = new java.util.concurrent.atomic.AtomicBoolean();
+        private volatile long batches, batchedWrites; // written by the owner only
+
+        /** Starts serving on {@code port} (0 = any free port) of the loopback address. */
+        ScriptServer(Owner owner, int port) throws IOException {
+            this.owner = owner;
+            byte[] secret = new byte[16];
+            new java.security.SecureRandom().nextBytes(secret);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : secret) sb.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            token = sb.toString();
+            http = com.sun.net.httpserver.HttpServer.create(new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), port), 64);
+            workers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "script server");
+                t.setDaemon(true);
+                return t;
+            });
+            http.setExecutor(workers);
+            http.createContext("/", this::handle);
+            http.start();
+            this.port = http.getAddress().getPort();
+        }
+
+        void stop() {
+            http.stop(0);
+            workers.shutdownNow();
+        }
+
+        // ----- publishing, on the owner's thread -----
+
+        /** A different store (or none) is shown: publishes all of it. */
+        void publish(PaletteStore store) {
+            View old = view;
+            if (store == null) {
+                view = new View(null, old.version + 1, 0, new long[0][], new Keys(null));
+                return;
+            }
+            int n = store.size();
+            long[][] colors = new long[(n + CHUNK - 1) >>> CHUNK_BITS][];
+            for (int c = 0; c < colors.length; c++) {
+                int from = c << CHUNK_BITS;
+                long[] chunk = colors[c] = new long[Math.min(CHUNK, n - from)];
+                for (int k = 0; k < chunk.length; k++) chunk[k] = pack(store, from + k);
+            }
+            view = new View(store, old.version + 1, n, colors, old.store == store ? old.keys : new Keys(store));
+        }
+
+        /** Entries {@code rows[k]}, {@code k < n}, of {@code store} changed color: copies just their chunks. */
+        void edited(PaletteStore store, int[] rows, int n) {
+            View old = view;
+            if (old.store != store || old.size != store.size()) {
+                publish(store);
+                return;
+            }
+            long[][] colors = old.colors.clone();
+            for (int k = 0; k < n; k++) {
+                int i = rows[k], c = i >>> CHUNK_BITS;
+                if (colors[c] == old.colors[c]) colors[c] = colors[c].clone();
+                colors[c][i & (CHUNK - 1)] = pack(store, i);
+            }
+            view = new View(store, old.version + 1, old.size, colors, old.keys);
+        }
+
+        void favoritesChanged(List<String> hexes) {
+            favorites = Collections.unmodifiableList(new ArrayList<String>(hexes));
+        }
+
+        private static long pack(PaletteStore store, int i) {
+            return (store.hasAlpha(i) ? 1L << 32 : 0) | (store.argb(i) & 0xFFFFFFFFL);
+        }
+
+        /** Applies every queued write as one batch; later writes to an entry win. */
+        private void drain() {
+            drainQueued.set(false);
+            List<Write> batch = new ArrayList<Write>();
+            for (Write w; (w = pending.poll()) != null; ) batch.add(w);
+            PaletteStore store = owner.store();
+            int total = 0;
+            for (Iterator<Write> it = batch.iterator(); it.hasNext(); ) {
+                Write w = it.next();
+                if (store == null || w.store != store) {
+                    w.done.completeExceptionally(new Failure(409, store == null ? "no document is open"
+                            : "the document was replaced; read it again"));
+                    it.remove();
+                } else {
+                    total += w.n;
+                }
+            }
+            if (batch.isEmpty()) return;
+            long[] order = new long[total]; // entry << 32 | arrival
+            String[] typed = new String[total];
+            int t = 0;
+            for (Write w : batch) {
+                for (int k = 0; k < w.n; k++, t++) {
+                    order[t] = (long) w.rows[k] << 32 | t;
+                    typed[t] = w.hexes[k];
+                }
+            }
+            Arrays.sort(order);
+            int[] rows = new int[total];
+            String[] hexes = new String[total];
+            int n = 0;
+            for (int q = 0; q < total; q++) {
+                if (q + 1 < total && order[q + 1] >>> 32 == order[q] >>> 32) continue; // overwritten later
+                rows[n] = (int) (order[q] >>> 32);
+                hexes[n++] = typed[(int) order[q]];
+            }
+            batches++;
+            batchedWrites += batch.size();
+            try {
+                owner.apply(rows, hexes, n);
+                for (Write w : batch) w.done.complete(view.version);
+            } catch (RuntimeException ex) {
+                for (Write w : batch) w.done.completeExceptionally(ex);
+            }
+        }
+
+        // ----- requests, on the server's threads -----
+
+        private void handle(com.sun.net.httpserver.HttpExchange ex) throws IOException {
+            Span span = Perf.SCRIPT.begin();
+            try {
+                int status = 200;
+                StringBuilder out = new StringBuilder(256);
+                try {
+                    String body = readBody(ex);
+                    String auth = ex.getRequestHeaders().getFirst("Authorization");
+                    if (auth == null || !java.security.MessageDigest.isEqual(auth.getBytes(StandardCharsets.UTF_8),
+                            ("Bearer " + token).getBytes(StandardCharsets.UTF_8))) {
+                        throw new Failure(401, "missing or wrong token");
+                    }
+                    route(ex.getRequestMethod(), ex.getRequestURI().getPath(), query(ex.getRequestURI().getRawQuery()), body, out);
+                } catch (Failure f) {
+                    status = f.status;
+                    out.setLength(0);
+                    out.append("{\"error\": ");
+                    quote(out, f.getMessage());
+                    out.append('}');
+                } catch (RuntimeException e) {
+                    status = 500;
+                    out.setLength(0);
+                    out.append("{\"error\": ");
+                    quote(out, String.valueOf(e));
+                    out.append('}');
+                }
+                out.append('\n');
+                byte[] bytes = out.toString().getBytes(StandardCharsets.UTF_8);
+                ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                ex.sendResponseHeaders(status, bytes.length);
+                try (java.io.OutputStream os = ex.getResponseBody()) {
+                    os.write(bytes);
+                }
+            } finally {
+                span.close();
+            }
+        }
+
+        private void route(String method, String path, Map<String, String> q, String body, StringBuilder out) throws Failure {
+            View v = view;
+            switch (method + " " + path) {
+                case "GET /status":
+                    out.append("{\"entries\": ").append(v.size).append(", \"version\": ").append(v.version)
+                            .append(", \"favorites\": ").append(favorites.size())
+                            .append(", \"batches\": ").append(batches).append(", \"batchedWrites\": ").append(batchedWrites).append('}');
+                    return;
+                case "GET /entries": {
+                    String match = q.get("match");
+                    if (match != null) match = match.toLowerCase(Locale.ROOT);
+                    int offset = intParam(q, "offset", 0), limit = Math.min(intParam(q, "limit", 100), MAX_LIMIT);
+                    if (offset < 0) throw new Failure(400, "offset must not be negative");
+                    if (limit < 0) throw new Failure(400, "limit must not be negative");
+                    String[] lower = match != null && v.size > 0 ? v.keys.lower() : null;
+                    out.append("{\"version\": ").append(v.version).append(", \"entries\": [");
+                    int total = 0;
+                    for (int i = 0; i < v.size; i++) {
+                        if (match != null && !lower[i].contains(match)) continue;
+                        if (total >= offset && total - offset < limit) {
+                            if (total > offset) out.append(", ");
+                            entry(v, i, out);
+                        }
+                        total++;
+                    }
+                    out.append("], \"total\": ").append(total).append('}');
+                    return;
+                }
+                case "GET /entry":
+                    entry(v, resolve(v, q), out);
+                    return;
+                case "POST /entry": {
+                    int i = resolve(v, q);
+                    String hex = normalizeHex(q.get("hex"));
+                    if (hex == null) throw new Failure(400, "hex must be #RRGGBB or #RRGGBBAA");
+                    written(write(v, new int[]{i}, new String[]{hex}, 1), 1, out);
+                    return;
+                }
+                case "POST /entries": {
+                    List<String> lines = lines(body);
+                    int[] rows = new int[lines.size()];
+                    String[] hexes = new String[lines.size()];
+                    int n = 0;
+                    for (String t : lines) {
+                        int eq = t.lastIndexOf('=');
+                        String hex = eq < 0 ? null : normalizeHex(t.substring(eq + 1));
+                        if (hex == null) throw new Failure(400, "line " + (n + 1) + ": expected 'key = #RRGGBB[AA]'");
+                        String key = t.substring(0, eq).trim();
+                        if (key.length() >= 2 && key.startsWith("\"") && key.endsWith("\"")) key = key.substring(1, key.length() - 1);
+                        Integer i = v.keys.find(key);
+                        if (i == null) throw new Failure(404, "no key " + key);
+                        rows[n] = i;
+                        hexes[n++] = hex;
+                    }
+                    written(write(v, rows, hexes, n), n, out);
+                    return;
+                }
+                case "GET /favorites": {
+                    out.append("{\"favorites\": [");
+                    List<String> f = favorites;
+                    for (int k = 0; k < f.size(); k++) {
+                        if (k > 0) out.append(", ");
+                        quote(out, f.get(k));
+                    }
+                    out.append("]}");
+                    return;
+                }
+                case "POST /favorites": {
+                    List<String> hexes = new ArrayList<String>();
+                    for (String t : lines(body)) {
+                        String hex = normalizeHex(t);
+                        if (hex == null) throw new Failure(400, "not a hex color: " + t);
+                        hexes.add(hex);
+                    }
+                    java.util.concurrent.CompletableFuture<Void> added = new java.util.concurrent.CompletableFuture<Void>();
+                    owner.execute(() -> {
+                        owner.addFavorites(hexes);
+                        added.complete(null);
+                    });
+                    await(added);
+                    out.append("{\"added\": ").append(hexes.size()).append(", \"favorites\": ").append(favorites.size()).append('}');
+                    return;
+                }
+                case "POST /favorites/apply": {
+                    List<String> f = favorites;
+                    int fav = intParam(q, "favorite", -1);
+                    if (fav < 0 || fav >= f.size()) throw new Failure(400, "favorite must be 0.." + (f.size() - 1));
+                    String match = q.get("match");
+                    if (match == null || match.isEmpty()) throw new Failure(400, "match is required");
+                    match = match.toLowerCase(Locale.ROOT);
+                    String[] lower = v.keys.lower();
+                    int[] rows = new int[v.size];
+                    int n = 0;
+                    for (int i = 0; i < v.size; i++) if (lower[i].contains(match)) rows[n++] = i;
+                    String[] hexes = new String[n];
+                    Arrays.fill(hexes, f.get(fav));
+                    written(write(v, rows, hexes, n), n, out);
+                    return;
+                }
+                default:
+                    throw new Failure(404, "no such request: " + method + " " + path);
+            }
+        }
+
+        /** Queues a write for the owner and waits until it is applied; returns the version it made. */
+        private long write(View v, int[] rows, String[] hexes, int n) throws Failure {
+            if (v.store == null) throw new Failure(409, "no document is open");
+            if (n == 0) return v.version;
+            Write w = new Write(v.store, rows, hexes, n);
+            pending.add(w);
+            if (drainQueued.compareAndSet(false, true)) owner.execute(this::drain);
+            return await(w.done);
+        }
+
+        private static <T> T await(java.util.concurrent.Future<T> f) throws Failure {
+            try {
+                return f.get(WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new Failure(503, "interrupted");
+            } catch (java.util.concurrent.TimeoutException ex) {
+                throw new Failure(503, "the editor is busy; try again");
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof Failure) throw (Failure) ex.getCause();
+                throw new Failure(500, String.valueOf(ex.getCause()));
+            }
+        }
+
+        private static void written(long version, int n, StringBuilder out) {
+            out.append("{\"entries\": ").append(n).append(", \"version\": ").append(version).append('}');
+        }
+
+        private static int resolve(View v, Map<String, String> q) throws Failure {
+            if (v.store == null) throw new Failure(409, "no document is open");
+            String key = q.get("key");
+            if (key != null) {
+                Integer i = v.keys.find(key);
+                if (i == null) throw new Failure(404, "no key " + key);
+                return i;
+            }
+            int i = intParam(q, "index", -1);
+            if (i < 0 || i >= v.size) throw new Failure(404, "key or index 0.." + (v.size - 1) + " required");
+            return i;
+        }
+
+        private static void entry(View v, int i, StringBuilder out) {
+            out.append("{\"index\": ").append(i).append(", \"key\": ");
+            quote(out, v.keys.name(i));
+            out.append(", \"hex\": \"").append(v.hex(i)).append("\"}");
+        }
+
+        private static int intParam(Map<String, String> q, String name, int dflt) throws Failure {
+            String s = q.get(name);
+            if (s == null) return dflt;
+            try {
+                return Integer.parseInt(s.trim());
+            } catch (NumberFormatException ex) {
+                throw new Failure(400, name + " must be a number");
+            }
+        }
+
+        private static Map<String, String> query(String raw) throws Failure {
+            Map<String, String> q = new HashMap<String, String>();
+            if (raw == null || raw.isEmpty()) return q;
+            try {
+                for (String pair : raw.split("&")) {
+                    int eq = pair.indexOf('=');
+                    String name = java.net.URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+                    q.put(name, eq < 0 ? "" : java.net.URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            } catch (IllegalArgumentException | java.io.UnsupportedEncodingException ex) {
+                throw new Failure(400, "bad query: " + ex.getMessage());
+            }
+            return q;
+        }
+
+        /** Reads the whole request body, which keep-alive connections need anyway. */
+        private static String readBody(com.sun.net.httpserver.HttpExchange ex) throws IOException {
+            try (InputStream in = ex.getRequestBody()) {
+                java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                for (int r; (r = in.read(buf)) > 0; ) bytes.write(buf, 0, r);
+                return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+
+        /** Non-blank lines of a request body, trimmed, without {@code //} comments. */
+        private static List<String> lines(String body) {
+            List<String> out = new ArrayList<String>();
+            for (String line : body.split("\r?\n")) {
+                String t = line.trim();
+                if (!t.isEmpty() && !t.startsWith("//")) out.add(t);
+            }
+            return out;
+        }
+
+        static void quote(StringBuilder out, String s) {
+            out.append('"');
+            for (int k = 0; k < s.length(); k++) {
+                char c = s.charAt(k);
+                if (c == '"' || c == '\\') out.append('\\').append(c);
+                else if (c < 0x20) out.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                else out.append(c);
+            }
+            out.append('"');
+        }
+    }
+
+    // ===== Benchmarks =====
+
+    /**
+     * Cold-start benchmark:
+     * <pre>
+     *   java -cp ColorJsonEditor.jar ColorJsonEditor --startup-bench [--entries 100000] [--runs 5]
+     * </pre>
+     * Starts fresh JVMs that each open a synthetic theme given on the command line
+     * ({@code --startup-probe}) and report, counted from JVM start, when the window was first
+     * shown (time to first frame) and when the theme was loaded and listed (time to
+     * interactive). If build.bat left a class-data-sharing archive next to the jar, the runs
+     * are repeated with it. Needs a display.
+     */
+    private static final class StartupBench {
+        static boolean probing;
+        private static long firstFrame = -1;
+
+        static int run(String[] args) {
+            int entries = 100_000, runs = 5;
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "--entries": entries = Integer.parseInt(args[++i]); break;
+                        case "--runs": runs = Integer.parseInt(args[++i]); break;
+                        default: throw new IllegalArgumentException(args[i]);
+                    }
+                }
+                if (entries < 1 || runs < 1) throw new IllegalArgumentException();
+            } catch (RuntimeException ex) {
+                System.err.println("Usage: ColorJsonEditor --startup-bench [--entries 100000] [--runs 5]");
+                return 2;
+            }
+            String cp = classPath();
+            Path archive = cp.endsWith(".jar") ? Paths.get(cp).resolveSibling("ColorJsonEditor.jsa") : null;
+            Path theme = null;
+            try {
+                theme = Files.createTempFile("startup-theme-", ".json");
+                Benchmarks.writeSyntheticTheme(theme, entries, 42);
+                System.out.printf("-- cold start, %d entries, %d runs each (ms from JVM start, median / min)%n", entries, runs);
+                measure("default", theme, runs, null);
+                if (archive != null && Files.exists(archive)) measure("app CDS archive", theme, runs, archive);
+                else System.out.println("(no ColorJsonEditor.jsa next to the jar; run build.bat on JDK 13+ to compare with one)");
+                return 0;
+            } catch (IOException | InterruptedException ex) {
+                System.err.println("Startup benchmark failed: " + ex.getMessage());
+                return 1;
+            } finally {
+                if (theme != null) {
+                    try {
+                        Files.deleteIfExists(theme);
+                    } catch (IOException ignored) {
+                        // temp file
+                    }
+                }
+            }
+        }
+
+        private static void measure(String label, Path theme, int runs, Path archive) throws IOException, InterruptedException {
+            long[] frame = new long[runs], ready = new long[runs];
+            for (int r = 0; r < runs; r++) {
+                List<String> cmd = new ArrayList<String>();
+                cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                if (archive != null) {
+                    cmd.add("-XX:SharedArchiveFile=" + archive);
+                    cmd.add("-Xshare:auto");
+                }
+                cmd.add("-cp");
+                cmd.add(classPath());
+                cmd.add("ColorJsonEditor");
+                cmd.add("--startup-probe");
+                cmd.add(theme.toString());
+                Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+                String out = new String(readAll(p), StandardCharsets.UTF_8);
+                p.waitFor();
+                Matcher m = Pattern.compile("startup firstFrame=(\\d+) interactive=(\\d+)").matcher(out);
+                if (!m.find()) throw new IOException("probe run failed:\n" + out.trim());
+                frame[r] = Long.parseLong(m.group(1));
+                ready[r] = Long.parseLong(m.group(2));
+            }
+            Arrays.sort(frame);
+            Arrays.sort(ready);
+            System.out.printf("%-18s first frame %6d / %6d   interactive %6d / %6d%n",
+                    label, frame[runs / 2], frame[0], ready[runs / 2], ready[0]);
+        }
+
+        /** This JVM's class path; a jar as an absolute path, the form build.bat trains the archive with. */
+        private static String classPath() {
+            String cp = System.getProperty("java.class.path");
+            return cp.endsWith(".jar") ? Paths.get(cp).toAbsolutePath().toString() : cp;
+        }
+
+        private static byte[] readAll(Process p) throws IOException {
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = p.getInputStream().read(buf)) != -1; ) bytes.write(buf, 0, n);
+            return bytes.toByteArray();
+        }
+
+        /**
+         * {@code --startup-probe [theme.json]}: one measured start. Without a theme a small
+         * synthetic one is used, which is how build.bat trains the CDS archive.
+         */
+        static Path probe(String[] args) throws IOException {
+            if (GraphicsEnvironment.isHeadless()) throw new IOException("the startup probe needs a display");
+            probing = true;
+            Thread guard = new Thread(() -> {
+                try {
+                    Thread.sleep(120_000);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+                System.out.println("startup probe timed out");
+                System.exit(1);
+            }, "startup probe timeout");
+            guard.setDaemon(true);
+            guard.start();
+            if (args.length > 1) return Paths.get(args[1]);
+            Path theme = Files.createTempFile("startup-probe-", ".json");
+            theme.toFile().deleteOnExit();
+            Benchmarks.writeSyntheticTheme(theme, 20_000, 42);
+            return theme;
+        }
+
+        /** EDT: the window is up. */
+        static void frameShown() {
+            if (firstFrame < 0) firstFrame = sinceJvmStart();
+        }
+
+        /** EDT: the theme is loaded and listed; reports once the events already queued (its painting) are done. */
+        static void themeShown() {
+            SwingUtilities.invokeLater(() -> {
+                System.out.println("startup firstFrame=" + firstFrame + " interactive=" + sinceJvmStart());
+                System.exit(0);
+            });
+        }
+
+        private static long sinceJvmStart() {
+            return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        }
+    }
+
+    /**
+     * Load test of the {@link ScriptServer}: client threads issue single-entry reads, key
+     * searches and writes as fast as the server answers, then report throughput, latency
+     * percentiles and how many writes each document update carried. By default it serves
+     * a synthetic theme (or the given file) from a private server with a stand-in for the
+     * EDT; {@code --connect} drives the running editor's server instead (read-only unless
+     * {@code --writes} is given, since writes change the open document).
+     */
+    private static final class ScriptLoadTest {
+        static int run(String[] args) {
+            int threads = 8, seconds = 10, writes = -1, entries = 100_000;
+            boolean connect = false;
+            Path theme = null;
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "--threads": threads = Integer.parseInt(args[++i]); break;
+                        case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                        case "--writes": writes = Integer.parseInt(args[++i]); break;
+                        case "--entries": entries = Integer.parseInt(args[++i]); break;
+                        case "--connect": connect = true; break;
+                        default:
+                            if (args[i].startsWith("--") || theme != null) throw new IllegalArgumentException(args[i]);
+                            theme = Paths.get(args[i]);
+                    }
+                }
+                if (threads < 1 || seconds < 1 || writes > 100 || entries < 1 || (connect && theme != null)) {
+                    throw new IllegalArgumentException();
+                }
+            } catch (RuntimeException ex) {
+                System.err.println("Usage: ColorJsonEditor --server-load [theme.json | --entries 100000 | --connect] "
+                        + "[--threads 8] [--seconds 10] [--writes <percent>]");
+                return 2;
+            }
+            if (writes < 0) writes = connect ? 0 : 10;
+            System.setProperty("http.maxConnections", String.valueOf(threads)); // keep every client's connection alive
+
+            ScriptServer server = null;
+            ExecutorService owner = null;
+            Path synthetic = null;
+            try {
+                String base, token;
+                if (connect) {
+                    Properties info = new Properties();
+                    try (InputStream in = Files.newInputStream(scriptServerInfoPath())) {
+                        info.load(in);
+                    } catch (IOException ex) {
+                        System.err.println("No running scripting server found (" + scriptServerInfoPath() + "); turn it on in File → Scripting Server.");
+                        return 1;
+                    }
+                    base = "http://127.0.0.1:" + info.getProperty("port");
+                    token = info.getProperty("token");
+                } else {
+                    if (theme == null) {
+                        theme = synthetic = Files.createTempFile("server-load-", ".json");
+                        Benchmarks.writeSyntheticTheme(theme, entries, 42);
+                    }
+                    owner = Executors.newSingleThreadExecutor(r -> {
+                        Thread t = new Thread(r, "document owner");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    server = standalone(PaletteStore.parse(ThemeDocument.read(theme)), owner);
+                    base = "http://127.0.0.1:" + server.port;
+                    token = server.token;
+                }
+                Matcher size = Pattern.compile("\"entries\": (\\d+)").matcher(get(base + "/status", token));
+                int n = size.find() ? Integer.parseInt(size.group(1)) : 0;
+                if (n == 0) {
+                    System.err.println("The server has no document open.");
+                    return 1;
+                }
+                System.out.printf("-- %d entries, %d client threads, %d s, %d%% writes, 4%% key searches%n", n, threads, seconds, writes);
+                return measure(base, token, n, threads, seconds, writes);
+            } catch (IOException | InterruptedException | ExecutionException ex) {
+                System.err.println("Load test failed: " + ex);
+                return 1;
+            } finally {
+                if (server != null) server.stop();
+                if (owner != null) owner.shutdownNow();
+                if (synthetic != null) {
+                    try {
+                        Files.deleteIfExists(synthetic);
+                    } catch (IOException ignored) {
+                        // temp file
+                    }
+                }
+            }
+        }
+
+        /** A server over {@code store} whose owner is a single thread, as the EDT is in the editor. */
+        private static ScriptServer standalone(PaletteStore store, ExecutorService thread)
+                throws IOException, InterruptedException, ExecutionException {
+            List<String> favorites = new ArrayList<String>(Arrays.asList("#FF0000", "#00FF00", "#0000FF"));
+            ScriptServer[] server = new ScriptServer[1];
+            server[0] = new ScriptServer(new ScriptServer.Owner() {
+                @Override public void execute(Runnable r) { thread.execute(r); }
+                @Override public PaletteStore store() { return store; }
+                @Override public int apply(int[] rows, String[] hexes, int n) {
+                    for (int k = 0; k < n; k++) hexes[k] = mergeFavoriteOntoTarget(hexes[k], store.hex(rows[k]));
+                    store.setHexes(rows, hexes, n);
+                    server[0].edited(store, rows, n);
+                    return n;
+                }
+                @Override public void addFavorites(List<String> hexes) {
+                    favorites.addAll(hexes);
+                    server[0].favoritesChanged(favorites);
+                }
+            }, 0);
+            thread.submit(() -> {
+                server[0].publish(store);
+                server[0].favoritesChanged(favorites);
+            }).get();
+            return server[0];
+        }
+
+        private static int measure(String base, String token, int n, int threads, int seconds, int writes)
+                throws IOException, InterruptedException {
+            Metric reads = new Metric("LoadRead", "GET /entry", false);
+            Metric searches = new Metric("LoadSearch", "GET /entries?match", false);
+            Metric written = new Metric("LoadWrite", "POST /entry", false);
+            java.util.concurrent.atomic.AtomicLong errors = new java.util.concurrent.atomic.AtomicLong();
+            String before = get(base + "/status", token);
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            List<Thread> clients = new ArrayList<Thread>();
+            for (int c = 0; c < threads; c++) {
+                final Random rnd = new Random(c);
+                Thread t = new Thread(() -> {
+                    while (System.nanoTime() < end) {
+                        int op = rnd.nextInt(100), i = rnd.nextInt(n);
+                        long t0 = System.nanoTime();
+                        try {
+                            int status;
+                            Metric m;
+                            if (op < writes) {
+                                status = request("POST", base + "/entry?index=" + i + "&hex=%23" + rgbHex(rnd.nextInt()).substring(1), token, null);
+                                m = written;
+                            } else if (op < writes + 4) {
+                                status = request("GET", base + "/entries?limit=20&match=" + (char) ('a' + rnd.nextInt(26)) + (char) ('a' + rnd.nextInt(26)), token, null);
+                                m = searches;
+                            } else {
+                                status = request("GET", base + "/entry?index=" + i, token, null);
+                                m = reads;
+                            }
+                            m.record(System.nanoTime() - t0, -1);
+                            if (status != 200) errors.incrementAndGet();
+                        } catch (IOException ex) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }, "load client " + c);
+                clients.add(t);
+                t.start();
+            }
+            for (Thread t : clients) t.join();
+            String after = get(base + "/status", token);
+
+            long total = reads.count() + searches.count() + written.count();
+            System.out.printf("%,d requests, %,.0f requests/s, %d errors%n", total, total / (double) seconds, errors.get());
+            for (Metric m : new Metric[]{reads, searches, written}) {
+                if (m.count() == 0) continue;
+                System.out.printf("  %-20s %,9d  p50 %9s  p99 %9s  max %9s%n", m.label, m.count(),
+                        Perf.nanos(m.percentile(0.5)), Perf.nanos(m.percentile(0.99)), Perf.nanos(m.maxNanos()));
+            }
+            long batches = counter(after, "batches") - counter(before, "batches");
+            long batched = counter(after, "batchedWrites") - counter(before, "batchedWrites");
+            if (batches > 0) {
+                System.out.printf("  %,d writes applied in %,d document updates (%.1f per update)%n", batched, batches, batched / (double) batches);
+            }
+            return errors.get() == 0 ? 0 : 1;
+        }
+
+        private static long counter(String status, String name) {
+            Matcher m = Pattern.compile("\"" + name + "\": (\\d+)").matcher(status);
+            return m.find() ? Long.parseLong(m.group(1)) : 0;
+        }
+
+        private static String get(String url, String token) throws IOException {
+            StringBuilder body = new StringBuilder();
+            int status = request("GET", url, token, body);
+            if (status != 200) throw new IOException(url + ": HTTP " + status + " " + body);
+            return body.toString();
+        }
+
+        /** Sends one request on a kept-alive connection; the reply goes to {@code body} if given. */
+        private static int request(String method, String url, String token, StringBuilder body) throws IOException {
+            java.net.HttpURLConnection c = (java.net.HttpURLConnection) new java.net.URL(url).openConnection();
+            c.setRequestMethod(method);
+            c.setRequestProperty("Authorization", "Bearer " + token);
+            if (method.equals("POST")) {
+                c.setDoOutput(true);
+                c.setFixedLengthStreamingMode(0);
+                c.getOutputStream().close();
+            }
+            int status = c.getResponseCode();
+            try (InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream()) {
+                if (in == null) return status;
+                byte[] buf = new byte[8192];
+                for (int r; (r = in.read(buf)) > 0; ) {
+                    if (body != null) body.append(new String(buf, 0, r, StandardCharsets.UTF_8));
+                }
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Micro-benchmark harness for the hot paths (parse, edit, search, hex helpers, palette I/O):
+     * <pre>
+     *   java -cp ColorJsonEditor.jar ColorJsonEditor --bench [--sizes 1000,100000,1000000]
+     *        [--filter name] [--out results.json] [--baseline old.json]
+     * </pre>
+     * Works like JMH in miniature: operations are batched until a sample takes at least a
+     * millisecond, warmed up, then sampled for a fixed time. Each result reports mean, p50
+     * and min ns/op plus bytes allocated per op. Results are written as JSON, one result
+     * per line. Against a {@code --baseline} from an earlier run, results more than 10%
+     * slower are flagged and the exit code is 1.
+     * JMH itself needs benchmarks in a named package and Maven dependencies, which the
+     * single-file, default-package build cannot provide; see bench.bat.
+     */
+    private static final class Benchmarks {
+        private static final long WARMUP_NS = 500_000_000L;
+        private static final long MEASURE_NS = 1_000_000_000L;
+        private static final double REGRESSION = 0.10;
+        static volatile long sink; // keeps results observable so the JIT can't drop the work
+
+        interface Op { long run(int invocation) throws Exception; }
+
+        private static final class Result {
+            final String benchmark;
+            final int size;
+            double nsPerOp, p50, min, bytesPerOp;
+            int samples;
+
+            Result(String benchmark, int size) {
+                this.benchmark = benchmark;
+                this.size = size;
+            }
+
+            String key() { return benchmark + "@" + size; }
+        }
+
+        static int run(String[] args) {
+            int[] sizes = {1_000, 100_000, 1_000_000};
+            String filter = null;
+            Path out = Paths.get("bench-results.json"), baseline = null;
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "--sizes":
+                            String[] parts = args[++i].split(",");
+                            sizes = new int[parts.length];
+                            for (int k = 0; k < parts.length; k++) sizes[k] = Integer.parseInt(parts[k].trim());
+                            break;
+                        case "--filter": filter = args[++i]; break;
+                        case "--out": out = Paths.get(args[++i]); break;
+                        case "--baseline": baseline = Paths.get(args[++i]); break;
+                        default: throw new IllegalArgumentException(args[i]);
+                    }
+                }
+            } catch (RuntimeException ex) {
+                System.err.println("Usage: ColorJsonEditor --bench [--sizes 1000,100000] [--filter name] "
+                        + "[--out results.json] [--baseline old.json]");
+                return 2;
+            }
+
+            List<Result> results = new ArrayList<Result>();
+            JfrType.createAll(); // measure spans as the editor runs them once started
+            try {
+                Benchmarks b = new Benchmarks(filter, results);
+                b.helpers();
+                for (int size : sizes) b.theme(size);
+                writeResults(out, results);
+                System.out.println("Results written to " + out.toAbsolutePath());
+                return baseline != null && compare(baseline, results) ? 1 : 0;
+            } catch (Exception ex) {
+                System.err.println("Benchmark failed: " + ex);
+                return 1;
+            }
+        }
+
+        private final String filter;
+        private final List<Result> results;
+
+        private Benchmarks(String filter, List<Result> results) {
+            this.filter = filter;
+            this.results = results;
+        }
+
+        /** Hex helpers, instrumentation and palette I/O; independent of the theme size. */
+        private void helpers() throws Exception {
+            String[] inputs = {"#1a2B3c", "ff5733", " #FF573380 ", "#zzzzzz", "#12345"};
+            bench("normalizeHex", 0, i -> {
+                String n = normalizeHex(inputs[i % inputs.length]);
+                return n == null ? 0 : n.length();
+            });
+            Color c = new Color(0x336699);
+            String[] values = {"#1A2B3C", "#1A2B3C80", "#1AB", "rgb(26, 43, 60)", "hsla(210, 40%, 17%, 0.5)", "4280953660"};
+            String[] labels = {"hex", "hex+alpha", "#RGB", "rgb()", "hsla()", "integer"};
+            for (int k = 0; k < values.length; k++) {
+                String v = values[k], label = labels[k];
+                byte[] bytes = v.getBytes(StandardCharsets.US_ASCII);
+                ByteBuffer span = ByteBuffer.wrap(bytes);
+                long parsed = ColorCodec.parse(span, 0, bytes.length, true);
+                int format = ColorCodec.formatOf(parsed);
+                bench("ColorCodec.parse " + label, 0, i -> (int) ColorCodec.parse(span, 0, bytes.length, true));
+                char[] out = new char[ColorCodec.MAX_LENGTH];
+                bench("ColorCodec.format " + label + " (to buffer)", 0,
+                        i -> ColorCodec.format((int) parsed ^ (i & 0xFF), format, bytes.length == 9, out, 0));
+            }
+            bench("toHexPreservingAlphaFromEntryTarget", 0,
+                    i -> toHexPreservingAlphaFromEntryTarget(c, (i & 1) == 0 ? "#112233" : "#11223380").length());
+            bench("mergeFavoriteOntoTarget", 0,
+                    i -> mergeFavoriteOntoTarget((i & 1) == 0 ? "#AABBCC" : "#AABBCCDD", (i & 2) == 0 ? "#112233" : "#11223380").length());
+            Metric probe = new Metric("Bench", "bench probe", true);
+            bench("instrumentation span", 0, i -> {
+                Span span = probe.begin();
+                try {
+                    return i;
+                } finally {
+                    span.close();
+                }
+            });
+
+            Path pal = Files.createTempFile("bench", ".palette");
+            try {
+                List<String> hexes = new ArrayList<String>();
+                Random rnd = new Random(7);
+                for (int k = 0; k < 256; k++) hexes.add(String.format("#%06X", rnd.nextInt(1 << 24)));
+                bench("saveUserPaletteTo", 256, i -> { writePaletteHexes(pal, hexes); return 1; });
+                bench("loadUserPaletteFrom", 256, i -> readPaletteHexes(pal).size());
+                Path libFile = pal.resolveSibling(pal.getFileName() + ".library");
+                try {
+                    writePaletteHexes(pal, hexes);
+                    PaletteLibrary.Palette p = readPalette(pal, PaletteLibrary.FAVORITES);
+                    int[] shifted = p.argb.clone();
+                    PaletteLibrary lib = PaletteLibrary.open(libFile);
+                    for (int k = 0; k < 64; k++) lib.save(new PaletteLibrary.Palette("palette " + k, p.argb, p.alpha, null));
+                    bench("palette library save (64 palettes)", 256, i -> {
+                        shifted[0] = i;
+                        lib.save(new PaletteLibrary.Palette(PaletteLibrary.FAVORITES, shifted, p.alpha, null));
+                        return 1;
+                    });
+                    bench("palette library open + list", 64, i -> PaletteLibrary.open(libFile).names().size());
+                    bench("palette library load", 256, i -> lib.load(PaletteLibrary.FAVORITES).size());
+                } finally {
+                    Files.deleteIfExists(libFile);
+                }
+            } finally {
+                Files.deleteIfExists(pal);
+            }
+        }
+
+        /** Document-level benchmarks on a synthetic theme of {@code size} entries. */
+        private void theme(int size) throws Exception {
+            Path file = Files.createTempFile("bench-theme-" + size + "-", ".json");
+            try {
+                writeSyntheticTheme(file, size, 42);
+                ThemeDocument doc = ThemeDocument.read(file);
+                System.out.printf("-- synthetic theme: %d entries, %.1f MB%n", size, doc.source().limit() / 1e6);
+
+                bench("reparse", size, i -> PaletteStore.parse(new ThemeDocument(doc.source())).size());
+                Path mixed = file.resolveSibling("bench-mixed-" + size + ".json");
+                try {
+                    writeSyntheticTheme(mixed, size, 42, true);
+                    ThemeDocument mixedDoc = ThemeDocument.read(mixed);
+                    bench("reparse (mixed formats)", size, i -> PaletteStore.parse(new ThemeDocument(mixedDoc.source())).size());
+                } finally {
+                    Files.deleteIfExists(mixed);
+                }
+
+                Path changed = file.resolveSibling("bench-sync-" + size + ".json");
+                try {
+                    byte[] bytes = new byte[doc.source().limit()];
+                    doc.source().duplicate().get(bytes);
+                    int mid = new String(bytes, StandardCharsets.ISO_8859_1).indexOf('#', bytes.length / 2);
+                    bytes[mid + 1] = (byte) (bytes[mid + 1] == '0' ? '1' : '0');
+                    Files.write(changed, bytes);
+                    PaletteStore base = PaletteStore.parse(ThemeDocument.read(file));
+                    SearchIndex baseIndex = new SearchIndex(new NameTable());
+                    reparse(base.doc, chunk -> baseIndex.append(chunk, base.doc.source()));
+                    bench("resync (one value changed on disk)", size, i -> {
+                        ThemeSync sync = new ThemeSync(changed, base, baseIndex, 0);
+                        sync.run();
+                        return sync.rescanned;
+                    });
+                    ThemeDocument theirs = ThemeDocument.read(changed);
+                    bench("diff vs file (one value changed)", size, i -> new ThemeDiff(base).compare(theirs).changed);
+                } finally {
+                    Files.deleteIfExists(changed);
+                }
+
+                PaletteStore store = PaletteStore.parse(new ThemeDocument(doc.source()));
+                SearchIndex index = new SearchIndex(new NameTable());
+                reparse(store.doc, chunk -> index.append(chunk, doc.source()));
+                String[] hexes = {"#102030", "#A0B0C0", "#FFEEDD80", "#00000000"};
+                Op edit = i -> {
+                    int e = (int) ((i * 2654435761L) % store.size());
+                    String hex = mergeFavoriteOntoTarget(hexes[i & 3], store.hex(e));
+                    store.setHex(e, hex);
+                    index.setHex(e, store.argb(e), store.hasAlpha(e));
+                    return store.doc.start(store.size() - 1);
+                };
+                bench("updateEntryHex", size, edit);
+                bench("updateEntryHex x1000", size, i -> {
+                    long sum = 0;
+                    for (int k = 0; k < 1000; k++) sum += edit.run(i * 1000 + k);
+                    return sum;
+                });
+
+                int[] all = new int[store.size()];
+                String[] bulk = new String[store.size()];
+                for (int k = 0; k < all.length; k++) all[k] = k;
+                bench("bulk replace (all entries)", size, i -> {
+                    for (int k = 0; k < all.length; k++) {
+                        bulk[k] = mergeFavoriteOntoTarget(hexes[(i + k) & 3], store.hex(k));
+                    }
+                    store.setHexes(all, bulk, all.length);
+                    return store.doc.length();
+                });
+
+                EditHistory history = new EditHistory();
+                String[] before = new String[all.length];
+                for (int k = 0; k < all.length; k++) before[k] = store.doc.replacementAt(k);
+                history.record(all, before, bulk, all.length);
+                bench("undo + redo (bulk step)", size, i -> {
+                    EditHistory.Delta d = history.undo();
+                    store.setHexes(d.rows, d.values, d.rows.length);
+                    d = history.redo();
+                    store.setHexes(d.rows, d.values, d.rows.length);
+                    return store.doc.length();
+                });
+
+                int[] colors = store.argbs(), transformed = new int[colors.length];
+                ColorTransform transform = new ColorTransform();
+                bench("color transform preview (all entries)", size, i -> {
+                    transform.hue = i % 360;
+                    transform.saturation = 0.1;
+                    transform.gamma = 1.2;
+                    transform.apply(colors, transformed);
+                    return transformed[i % transformed.length];
+                });
+
+                bench("perceptual index build (OKLab)", size, i -> new OklabTree(colors, colors.length).nearest(i));
+                OklabTree tree = new OklabTree(colors, colors.length);
+                bench("perceptual nearest color", size, i -> tree.nearest(i * 0x9E3779B1));
+                bench("color clusters k=32 (dedupe + median cut + k-means)", size,
+                        i -> ColorClusters.of(colors, 32, () -> false).k);
+                List<ContrastReport.Rule> contrastRules = ContrastReport.parseRules(
+                        "*Text* on *Background*\n* Text * on " + store.name(0) + " >= 3");
+                bench("contrast report build (parallel)", size,
+                        i -> new ContrastReport(store, contrastRules, () -> false).failing());
+                ContrastReport contrast = new ContrastReport(store, contrastRules, () -> false);
+                int[] one = new int[1];
+                bench("contrast update after one edit", size, i -> {
+                    one[0] = 1 + (int) ((i * 2654435761L) % (store.size() - 1)); // entry 0 is in most pairs
+                    store.setHex(one[0], mergeFavoriteOntoTarget(hexes[i & 3], store.hex(one[0])));
+                    return contrast.update(one, 1);
+                });
+                bench("perceptual colors within dE 5", size, i -> {
+                    int[] n = {0};
+                    tree.within(i * 0x9E3779B1, 5, e -> n[0]++);
+                    return n[0];
+                });
+
+                bench("search refilter", size, i -> index.snapshot().query("launcher 1", null, null).length);
+                int[] broad = index.snapshot().query("clip", null, null);
+                bench("search refilter (narrowing)", size, i -> index.snapshot().query("clip 9", broad, null).length);
+                bench("search refilter (hex)", size, i -> index.snapshot().query("#ff", null, null).length);
+                bench("search index from columns (tab switch)", size, i -> SearchIndex.of(store, index.table).snapshot().count);
+
+                listPainting(store, size);
+                themePreviewPainting(store, size);
+
+                bench("key tree sort + first level", size, i -> {
+                    KeyTree keys = new KeyTree(store, all, KeyTree.WORDS, () -> false);
+                    return keys.getChildCount(keys.root);
+                });
+                bench("key tree sort + expand all", size, i -> {
+                    KeyTree keys = new KeyTree(store, all, KeyTree.WORDS, () -> false);
+                    return expandAll(keys, keys.root);
+                });
+
+                bench("save (stream pieces)", size, i -> {
+                    long[] written = {0};
+                    store.doc.writeTo(new WritableByteChannel() {
+                        public int write(ByteBuffer src) {
+                            int n = src.remaining();
+                            src.position(src.limit());
+                            written[0] += n;
+                            return n;
+                        }
+                        public boolean isOpen() { return true; }
+                        public void close() { }
+                    });
+                    return written[0];
+                });
+
+                Path saved = file.resolveSibling("bench-save-" + size + ".json");
+                try {
+                    bench("save (atomic, fsync)", size, i -> {
+                        writeDocument(store.doc, saved);
+                        return Files.size(saved);
+                    });
+                } finally {
+                    Files.deleteIfExists(saved);
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        /**
+         * The parameters list as the editor shows it: the layout pass a new or refiltered
+         * model triggers, with and without the fixed cell size, and painting one screenful
+         * of rows at a new scroll position into an offscreen image.
+         */
+        private void listPainting(PaletteStore store, int size) throws Exception {
+            FilteredPaletteModel model = new FilteredPaletteModel();
+            PaletteCellRenderer renderer = new PaletteCellRenderer();
+            JList<PaletteEntry> measured = new JList<PaletteEntry>(model);
+            measured.setCellRenderer(renderer);
+            JList<PaletteEntry> fixed = new JList<PaletteEntry>(model);
+            fixed.setCellRenderer(renderer);
+            renderer.install(fixed, 240);
+            bench("list layout (rows measured)", size, i -> {
+                model.setSource(store);
+                return measured.getPreferredSize().height;
+            });
+            bench("list layout (fixed cell size)", size, i -> {
+                model.setSource(store);
+                return fixed.getPreferredSize().height;
+            });
+
+            int width = 480, height = 700;
+            model.setSource(store);
+            fixed.setSize(width, fixed.getPreferredSize().height);
+            java.awt.image.BufferedImage screen = new java.awt.image.BufferedImage(width, height,
+                    java.awt.image.BufferedImage.TYPE_INT_RGB);
+            int rows = size - height / renderer.rowHeight();
+            bench("list scroll + repaint (one screen)", size, i -> {
+                int y = (int) ((i * 2654435761L) % rows) * renderer.rowHeight();
+                Graphics2D g = screen.createGraphics();
+                try {
+                    g.translate(0, -y);
+                    g.setClip(0, y, width, height);
+                    fixed.paint(g);
+                } finally {
+                    g.dispose();
+                }
+                return screen.getRGB(width / 2, height / 2);
+            });
+        }
+
+        /** Number of nodes under {@code node}, expanding every group. */
+        private static int expandAll(KeyTree tree, Object node) {
+            int n = 1;
+            for (int c = tree.getChildCount(node) - 1; c >= 0; c--) n += expandAll(tree, tree.getChild(node, c));
+            return n;
+        }
+
+        private void themePreviewPainting(PaletteStore store, int size) throws Exception {
+            ThemePreview preview = new ThemePreview();
+            bench("theme preview bind keys", size, i -> ThemePreview.bind(store, preview.parts).length);
+            int[] entries = ThemePreview.bind(store, preview.parts);
+            for (int k = 0; k < entries.length; k++) {
+                if (entries[k] < 0) entries[k] = k % store.size(); // draw every part from some entry
+            }
+            preview.setStore(store, entries);
+            preview.setSize(ThemePreview.W, ThemePreview.H);
+            java.awt.image.BufferedImage screen = new java.awt.image.BufferedImage(ThemePreview.W, ThemePreview.H,
+                    java.awt.image.BufferedImage.TYPE_INT_RGB);
+            bench("theme preview full render", size, i -> {
+                preview.refresh();
+                Graphics2D g = screen.createGraphics();
+                try {
+                    preview.paint(g);
+                } finally {
+                    g.dispose();
+                }
+                return screen.getRGB(ThemePreview.W / 2, ThemePreview.H / 2);
+            });
+            int[] one = new int[1];
+            bench("theme preview redraw after one edit", size, i -> {
+                ThemePreview.Part part = preview.parts.get(i % preview.parts.size());
+                one[0] = part.entry;
+                store.setHex(one[0], mergeFavoriteOntoTarget(i % 2 == 0 ? "#336699" : "#CC8844", store.hex(one[0])));
+                preview.entriesChanged(one, 1);
+                Graphics2D g = screen.createGraphics();
+                try {
+                    g.setClip(part.bounds);
+                    preview.paint(g);
+                } finally {
+                    g.dispose();
+                }
+                return screen.getRGB(part.bounds.x, part.bounds.y);
+            });
+        }
+
+        private void bench(String name, int size, Op op) throws Exception {
+            if (filter != null && !name.contains(filter)) return;
+            com.sun.management.ThreadMXBean mx = Perf.threadMx();
+            long tid = Thread.currentThread().getId();
+
+            int invocation = 0;
+            long until = System.nanoTime() + WARMUP_NS;
+            while (System.nanoTime() < until) sink += op.run(invocation++);
+            int batch = 1; // ops per sample: grow until one (warm) sample takes >= 1 ms
+            while (true) {
+                long t = System.nanoTime();
+                for (int k = 0; k < batch; k++) sink += op.run(invocation++);
+                if (System.nanoTime() - t >= 1_000_000L || batch >= (1 << 24)) break;
+                batch *= 2;
+            }
+
+            List<Double> samples = new ArrayList<Double>();
+            long totalOps = 0, totalNs = 0;
+            long alloc0 = mx != null ? mx.getThreadAllocatedBytes(tid) : 0;
+            until = System.nanoTime() + MEASURE_NS;
+            do {
+                long t = System.nanoTime();
+                for (int k = 0; k < batch; k++) sink += op.run(invocation++);
+                long dt = System.nanoTime() - t;
+                samples.add((double) dt / batch);
+                totalNs += dt;
+                totalOps += batch;
+            } while (System.nanoTime() < until || samples.size() < 5);
+            long alloc = mx != null ? mx.getThreadAllocatedBytes(tid) - alloc0 : -1;
+
+            Collections.sort(samples);
+            Result r = new Result(name, size);
+            r.samples = samples.size();
+            r.nsPerOp = (double) totalNs / totalOps;
+            r.p50 = samples.get(samples.size() / 2);
+            r.min = samples.get(0);
+            r.bytesPerOp = alloc < 0 ? -1 : (double) alloc / totalOps;
+            results.add(r);
+            System.out.printf("%-40s %9d %14.1f ns/op  p50 %14.1f  min %14.1f  %12.1f B/op%n",
+                    name, size, r.nsPerOp, r.p50, r.min, r.bytesPerOp);
+        }
+
+        /**
+         * Writes a Bitwig-like theme: flat "Area Element State" keys, a few nested groups,
+         * about a fifth of the colors with alpha.
+         */
+        static void writeSyntheticTheme(Path out, int entries, long seed) throws IOException {
+            writeSyntheticTheme(out, entries, seed, false);
+        }
+
+        /** With {@code mixedFormats}, values cycle through hex, "#RGB", rgb(), hsla() and integer ARGB. */
+        static void writeSyntheticTheme(Path out, int entries, long seed, boolean mixedFormats) throws IOException {
+            int[] formats = {ColorCodec.HEX, ColorCodec.SHORT, ColorCodec.RGB | ColorCodec.SPACED, ColorCodec.HSLA, ColorCodec.INT};
+            char[] value = new char[ColorCodec.MAX_LENGTH];
+            String[] areas = {"Arranger", "Mixer", "Browser", "Device", "Clip Launcher", "Inspector", "Transport", "Piano Roll"};
+            String[] elements = {"Background", "Text", "Border", "Button", "Knob", "Meter", "Selection", "Header"};
+            String[] states = {"", " Hover", " Pressed", " Disabled", " Focused"};
+            Random rnd = new Random(seed);
+            try (Writer w = Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+                w.write("{\n");
+                int group = -1;
+                for (int i = 0; i < entries; i++) {
+                    boolean nested = i % 1000 >= 900; // every 1000 entries, the last 100 sit in a group
+                    if (nested && group != i / 1000) {
+                        group = i / 1000;
+                        w.write("  \"group " + group + "\": {\n");
+                    }
+                    String key = areas[rnd.nextInt(areas.length)] + " " + elements[rnd.nextInt(elements.length)]
+                            + states[rnd.nextInt(states.length)] + " " + i;
+                    String hex = rnd.nextInt(5) == 0
+                            ? String.format("#%08X", rnd.nextInt())
+                            : String.format("#%06X", rnd.nextInt(1 << 24));
+                    int format = mixedFormats ? formats[i % formats.length] : ColorCodec.HEX;
+                    if (format == ColorCodec.INT) key += " Color"; // integers count under color keys only
+                    if (format != ColorCodec.HEX) {
+                        int argb = hexArgb(hex) | (format == ColorCodec.INT ? 0x01000000 : 0); // integers need a nonzero alpha
+                        hex = new String(value, 0, ColorCodec.format(argb, format, hex.length() == 9, value, 0));
+                    }
+                    String quote = format == ColorCodec.INT ? "" : "\"";
+                    w.write((nested ? "    " : "  ") + "\"" + key + "\": " + quote + hex + quote);
+                    boolean closeGroup = nested && (i % 1000 == 999 || i == entries - 1);
+                    if (closeGroup) w.write("\n  }");
+                    w.write(i < entries - 1 ? ",\n" : "\n");
+                }
+                w.write("}\n");
+            }
+        }
+
+        private static void writeResults(Path out, List<Result> results) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\n");
+            sb.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+            sb.append("  \"cpus\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+            sb.append("  \"timestamp\": ").append(System.currentTimeMillis()).append(",\n");
+            sb.append("  \"results\": [\n");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                sb.append(String.format(Locale.ROOT,
+                        "    {\"benchmark\": \"%s\", \"size\": %d, \"nsPerOp\": %.2f, \"p50\": %.2f, \"min\": %.2f, \"bytesPerOp\": %.1f, \"samples\": %d}",
+                        r.benchmark, r.size, r.nsPerOp, r.p50, r.min, r.bytesPerOp, r.samples));
+                sb.append(i < results.size() - 1 ? ",\n" : "\n");
+            }
+            sb.append("  ]\n}\n");
+            Files.write(out, sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        /** Prints the change against a previous results file; returns true if anything regressed. */
+        private static boolean compare(Path baseline, List<Result> results) throws IOException {
+            Map<String, Double> before = new HashMap<String, Double>();
+            Pattern line = Pattern.compile("\"benchmark\": \"([^\"]*)\", \"size\": (\\d+), \"nsPerOp\": ([0-9.]+)");
+            for (String l : Files.readAllLines(baseline, StandardCharsets.UTF_8)) {
+                Matcher m = line.matcher(l);
+                if (m.find()) before.put(m.group(1) + "@" + m.group(2), Double.parseDouble(m.group(3)));
+            }
+            boolean regressed = false;
+            System.out.println("-- compared with " + baseline);
+            for (Result r : results) {
+                Double old = before.get(r.key());
+                if (old == null) continue;
+                double change = r.nsPerOp / old - 1;
+                boolean bad = change > REGRESSION;
+                regressed |= bad;
+                System.out.printf("%s %-40s %9d %+7.1f%%%n", bad ? "!!" : "  ", r.benchmark, r.size, change * 100);
+            }
+            return regressed;
+        }
+    }
+
+    /**
+     * Randomized self-check of the document model, run by build.bat:
+     * <pre>
+     *   java -cp ColorJsonEditor.jar ColorJsonEditor --self-test [--seed n] [--rounds 2000]
+     * </pre>
+     * <ul>
+     * <li>codecs: every value written in each format must parse back to the same color and format;</li>
+     * <li>edits: random single and bulk edits, undos and redos on synthetic themes must leave the
+     *     document, its offsets and colors as a plain array of values says they should be;</li>
+     * <li>resync: random changes on disk, between unsaved edits and saves, must give the same
+     *     entries as a full reparse of the file, with the edits carried over.</li>
+     * </ul>
+     * Prints the failures and exits with 1 if there were any; the seed printed repeats the run.
+     */
+    private static final class SelfTest {
+        private static final int MAX_REPORTED = 20;
+
+        static int run(String[] args) {
+            long seed = System.nanoTime();
+            int rounds = 2_000;
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    switch (args[i]) {
+                        case "--seed": seed = Long.parseLong(args[++i]); break;
+                        case "--rounds": rounds = Integer.parseInt(args[++i]); break;
+                        default: throw new IllegalArgumentException(args[i]);
+                    }
+                }
+            } catch (RuntimeException ex) {
+                System.err.println("Usage: ColorJsonEditor --self-test [--seed n] [--rounds 2000]");
+                return 2;
+            }
+            SelfTest t = new SelfTest(seed, rounds);
+            try {
+                t.codec();
+                t.edits();
+                t.sync();
+            } catch (Exception ex) {
+                t.fail("unexpected " + ex);
+                ex.printStackTrace();
+            }
+            System.out.println(t.checks + " checks, " + t.failures + " failed (seed " + seed + ")");
+            return t.failures == 0 ? 0 : 1;
+        }
+
+        private final Random random;
+        private final int rounds;
+        private int checks, failures;
+
+        private SelfTest(long seed, int rounds) {
+            this.random = new Random(seed);
+            this.rounds = rounds;
+        }
+
+        private void check(boolean ok, String what) {
+            checks++;
+            if (!ok) fail(what);
+        }
+
+        private void fail(String what) {
+            if (failures++ < MAX_REPORTED) System.err.println("FAIL " + what);
+        }
+
+        /** format -> parse for every format, spacing and alpha, from both text and bytes; and toFormat. */
+        private void codec() {
+            int[] edges = {0, -1, 0x00FFFFFF, 0xFF000000, 0x01000000, 0x80000000, 0x7FFFFFFF, 0x00112233, 0xFFFFFFFE};
+            char[] out = new char[ColorCodec.MAX_LENGTH];
+            for (int n = 0; n < rounds + edges.length; n++) {
+                int argb = n < edges.length ? edges[n] : random.nextInt();
+                for (int format = 0; format <= (ColorCodec.KIND | ColorCodec.SPACED); format++) {
+                    int kind = format & ColorCodec.KIND;
+                    if ((format & ColorCodec.SPACED) != 0 && (kind < ColorCodec.RGB || kind > ColorCodec.HSLA)) continue;
+                    for (int alpha = 0; alpha < 2; alpha++) {
+                        if (alpha == 0 && kind > ColorCodec.SHORT) continue; // only the hex formats take the flag
+                        int end = ColorCodec.format(argb, format, alpha == 1, out, 0);
+                        String text = new String(out, 0, end);
+                        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+                        long parsed = ColorCodec.parse(text);
+                        String what = "format " + format + " of " + argbHex(argb, true) + ": " + text;
+                        check(ColorCodec.parse(ByteBuffer.wrap(bytes), 0, bytes.length, true) == parsed, what + " parses the same from bytes");
+                        check(parsed >= 0 && (int) parsed == expectedArgb(argb, kind, alpha == 1), what + " reads back as " + argbHex((int) parsed, true));
+                        check(parsed >= 0 && ColorCodec.formatOf(parsed) == expectedFormat(argb, format, alpha == 1),
+                                what + " reads back in format " + ColorCodec.formatOf(parsed));
+                        check(ColorCodec.hasAlpha(format, end) == (kind <= ColorCodec.SHORT ? alpha == 1 : kind != ColorCodec.RGB && kind != ColorCodec.HSL),
+                                what + " alpha flag");
+                    }
+                    String edited = ColorCodec.toFormat(argbHex(argb, true), format);
+                    long parsed = ColorCodec.parse(edited);
+                    check(parsed >= 0 && (int) parsed == expectedArgb(argb, kind, true),
+                            "toFormat(" + argbHex(argb, true) + ", " + format + ") = " + edited + " reads back as " + argbHex((int) parsed, true));
+                }
+            }
+        }
+
+        /** Edits, undos and redos as the editor applies them, against an array of expected values. */
+        private void edits() throws IOException {
+            Path file = Files.createTempFile("self-test-", ".json");
+            try {
+                for (int theme = 0; theme < 4; theme++) {
+                    // a tiny theme, then ones large enough for bulk edits both below and above replaceAll's rebuild threshold
+                    Benchmarks.writeSyntheticTheme(file, 1 + random.nextInt(theme == 0 ? 8 : 2000), random.nextLong(), true);
+                    PaletteStore store = PaletteStore.parse(ThemeDocument.read(file));
+                    ThemeDocument doc = store.doc;
+                    int size = store.size();
+                    String[] original = new String[size], expected = new String[size];
+                    for (int i = 0; i < size; i++) original[i] = expected[i] = doc.valueAt(i);
+                    EditHistory history = new EditHistory();
+                    List<int[]> stepRows = new ArrayList<int[]>();
+                    List<String[]> stepBefore = new ArrayList<String[]>(), stepAfter = new ArrayList<String[]>();
+                    int applied = 0; // steps not undone
+                    int[] order = new int[size];
+                    for (int i = 0; i < size; i++) order[i] = i;
+
+                    for (int op = 0; op < rounds / 8; op++) {
+                        int kind = random.nextInt(10);
+                        if (kind < 6) { // one entry, or a bulk edit of distinct entries
+                            int n = kind < 4 ? 1 : 1 + random.nextInt(size);
+                            int[] rows = new int[n];
+                            String[] values = new String[n], before = new String[n], was = new String[n], now = new String[n];
+                            for (int k = 0; k < n; k++) {
+                                int swap = k + random.nextInt(size - k);
+                                int t = order[k];
+                                order[k] = order[swap];
+                                order[swap] = t;
+                                rows[k] = order[k];
+                                values[k] = random.nextInt(8) == 0 ? null : randomValue();
+                                before[k] = doc.replacementAt(rows[k]);
+                                was[k] = expected[rows[k]];
+                                now[k] = values[k] == null ? original[rows[k]] : ColorCodec.toFormat(values[k], store.format(rows[k]));
+                            }
+                            history.record(rows, before, values, n);
+                            store.setHexes(rows, values, n);
+                            while (stepRows.size() > applied) {
+                                stepRows.remove(applied);
+                                stepBefore.remove(applied);
+                                stepAfter.remove(applied);
+                            }
+                            stepRows.add(rows);
+                            stepBefore.add(was);
+                            stepAfter.add(now);
+                            applied++;
+                            for (int k = 0; k < n; k++) expected[rows[k]] = now[k];
+                        } else {
+                            boolean undo = kind < 8;
+                            EditHistory.Delta d = undo ? history.undo() : history.redo();
+                            boolean possible = undo ? applied > 0 : applied < stepRows.size();
+                            check((d != null) == possible, (undo ? "undo" : "redo") + " available: " + possible);
+                            if (d == null || !possible) continue;
+                            store.setHexes(d.rows, d.values, d.rows.length);
+                            int step = undo ? --applied : applied++;
+                            int[] rows = stepRows.get(step);
+                            String[] values = undo ? stepBefore.get(step) : stepAfter.get(step);
+                            for (int k = 0; k < rows.length; k++) expected[rows[k]] = values[k];
+                        }
+                        boolean whole = op % 16 == 15 || op == rounds / 8 - 1; // writing it all out is the slow part
+                        if (!sameDocument(store, expected, whole, "op " + op + " on " + size + " entries")) break;
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        /** Whether {@code store} holds {@code expected}: offsets, values and colors, and if {@code whole} the written text. */
+        private boolean sameDocument(PaletteStore store, String[] expected, boolean whole, String what) throws IOException {
+            ThemeDocument doc = store.doc;
+            int before = failures, shift = 0, bad = -1;
+            for (int i = 0; i < expected.length && bad < 0; i++) {
+                if (doc.start(i) != doc.sourceStart(i) + shift || !doc.valueAt(i).equals(expected[i])
+                        || store.argb(i) != (int) ColorCodec.parse(expected[i])) bad = i;
+                shift += expected[i].length() - (doc.sourceEnd(i) - doc.sourceStart(i));
+            }
+            check(bad < 0, what + ": entry " + bad + (bad < 0 ? "" : " is " + doc.valueAt(bad) + " at " + doc.start(bad)
+                    + " with color " + argbHex(store.argb(bad), true) + ", expected " + expected[bad]));
+            if (bad >= 0) return false;
+            ByteBuffer src = doc.source();
+            check(doc.length() == src.limit() + shift, what + ": length");
+            if (!whole) return failures == before;
+            StringBuilder text = new StringBuilder();
+            int pos = 0;
+            for (int i = 0; i < expected.length; i++) {
+                text.append(slice(src, pos, doc.sourceStart(i))).append(expected[i]);
+                pos = doc.sourceEnd(i);
+            }
+            text.append(slice(src, pos, src.limit()));
+            check(written(doc, null).equals(text.toString()), what + ": written text");
+            return failures == before;
+        }
+
+        private static String slice(ByteBuffer src, int from, int to) {
+            byte[] bytes = new byte[to - from];
+            ByteBuffer b = src.duplicate();
+            b.position(from);
+            b.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /** The document as saving writes it: the current pieces, or {@code pieces} when given. */
+        private static String written(ThemeDocument doc, String[] pieces) throws IOException {
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            if (pieces != null) doc.writeTo(java.nio.channels.Channels.newChannel(out), pieces);
+            else doc.writeTo(java.nio.channels.Channels.newChannel(out));
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Chains of resyncs against a full reparse. Each round makes a few unsaved edits, sometimes
+         * saves, then changes values, deletes, inserts and renames entries on disk; the next round
+         * syncs from the result, so checkpoints and colors carried over are checked as well.
+         */
+        private void sync() throws IOException {
+            Path file = Files.createTempFile("self-test-sync-", ".json");
+            try {
+                int added = 0; // keeps inserted and renamed keys unique
+                for (int theme = 0; theme < 3; theme++) {
+                    Benchmarks.writeSyntheticTheme(file, 1 + random.nextInt(2000), random.nextLong(), true);
+                    PaletteStore store = PaletteStore.parse(ThemeDocument.read(file));
+                    SearchIndex firstIndex = new SearchIndex(new NameTable());
+                    ThemeDocument first = store.doc;
+                    reparse(first, chunk -> firstIndex.append(chunk, first.source()));
+                    SearchIndex index = firstIndex;
+                    for (int round = 0; round < rounds / 80; round++) {
+                        for (int e = random.nextInt(4); e > 0 && store.size() > 0; e--) {
+                            int i = random.nextInt(store.size());
+                            store.setHex(i, randomValue());
+                            index.setHex(i, store.argb(i), store.hasAlpha(i));
+                        }
+                        if (random.nextInt(4) == 0) {
+                            Files.write(file, written(store.doc, null).getBytes(StandardCharsets.UTF_8));
+                            store.doc.markSaved();
+                        }
+                        String saved = written(store.doc, store.doc.savedPieces());
+                        String disk = changeOnDisk(saved, added);
+                        added += 8;
+                        Files.write(file, disk.getBytes(StandardCharsets.UTF_8));
+
+                        ThemeSync sync = new ThemeSync(file, store, index, 0);
+                        sync.run();
+                        String what = "sync round " + round + " of theme " + theme;
+                        check(sync.unchanged == disk.equals(saved), what + ": unchanged is " + sync.unchanged);
+                        if (sync.unchanged) continue;
+                        if (!sameAsReparse(sync, disk, what)) break;
+                        store = sync.store;
+                        index = sync.index;
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        /** {@code text} with one to three entries changed in value, removed, added after, renamed or reindented. */
+        private String changeOnDisk(String text, int added) {
+            PaletteStore entries = PaletteStore.parse(new ThemeDocument(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8))));
+            int n = entries.size();
+            if (n == 0) return text;
+            int[] rows = new int[1 + random.nextInt(3)];
+            for (int k = 0; k < rows.length; k++) rows[k] = random.nextInt(n);
+            Arrays.sort(rows);
+            StringBuilder sb = new StringBuilder(text);
+            for (int k = rows.length - 1; k >= 0; k--) { // from the end, so earlier offsets stay valid
+                int i = rows[k];
+                if (k + 1 < rows.length && rows[k + 1] == i) continue;
+                int keyStart = entries.keyStart[i], keyEnd = entries.keyEnd[i];
+                int valueStart = entries.doc.sourceStart(i), valueEnd = entries.doc.sourceEnd(i);
+                int lineStart = sb.lastIndexOf("\n", keyStart) + 1, lineEnd = sb.indexOf("\n", valueEnd) + 1;
+                boolean comma = sb.charAt(lineEnd - 2) == ','; // not the last entry of its object
+                switch (random.nextInt(5)) {
+                    case 0:
+                        sb.replace(valueStart, valueEnd, ColorCodec.format(random.nextInt(), entries.format(i), random.nextBoolean()));
+                        break;
+                    case 1:
+                        if (comma) sb.delete(lineStart, lineEnd);
+                        break;
+                    case 2:
+                        if (comma) sb.insert(lineEnd, sb.substring(lineStart, keyStart) + "Added " + (added + k) + "\": \""
+                                + ColorCodec.format(random.nextInt(), ColorCodec.HEX, random.nextBoolean()) + "\",\n");
+                        break;
+                    case 3:
+                        sb.insert(keyEnd, " renamed " + (added + k));
+                        break;
+                    default:
+                        sb.insert(lineEnd - 1, ' ');
+                        break;
+                }
+            }
+            return sb.toString();
+        }
+
+        /** Whether the synced store has the entries of a full reparse of {@code disk}, the unsaved edits carried over. */
+        private boolean sameAsReparse(ThemeSync sync, String disk, String what) {
+            PaletteStore s = sync.store, old = sync.old;
+            PaletteStore full = PaletteStore.parse(new ThemeDocument(ByteBuffer.wrap(disk.getBytes(StandardCharsets.UTF_8))));
+            int before = failures;
+            check(s.size() == full.size(), what + ": " + s.size() + " entries, reparse has " + full.size());
+            if (failures != before) return false;
+            BitSet edited = new BitSet();
+            for (int i = 0; i < old.size(); i++) {
+                String r = old.doc.replacementAt(i), saved = old.doc.savedAt(i);
+                if (r == saved || r != null && r.equals(saved)) continue;
+                int j = sync.remap[i];
+                if (j < 0) continue; // entry gone: edit dropped
+                String ours = r != null ? r : JsonSpanScanner.decode(old.doc.source(), old.doc.sourceStart(i), old.doc.sourceEnd(i));
+                String now = s.doc.valueAt(j);
+                check(s.name(j).equals(old.name(i)), what + ": edit of " + old.name(i) + " went to " + s.name(j));
+                check(now.equalsIgnoreCase(ours) || now.equalsIgnoreCase(ColorCodec.toFormat(ours, s.format(j))),
+                        what + ": edit " + ours + " of " + old.name(i) + " became " + now);
+                edited.set(j);
+            }
+            int[] indexed = sync.index.frozenSnapshot().argb;
+            int bad = -1;
+            for (int j = 0; j < s.size() && bad < 0; j++) {
+                boolean same = s.name(j).equals(full.name(j)) && s.format(j) == full.format(j)
+                        && s.keyStart[j] == full.keyStart[j] && s.keyEnd[j] == full.keyEnd[j]
+                        && s.doc.sourceStart(j) == full.doc.sourceStart(j) && s.doc.sourceEnd(j) == full.doc.sourceEnd(j)
+                        && s.argb(j) == (int) ColorCodec.parse(s.doc.valueAt(j)) && indexed[j] == s.argb(j)
+                        && (edited.get(j) || s.doc.valueAt(j).equals(full.doc.valueAt(j)));
+                if (!same) bad = j;
+            }
+            check(bad < 0, what + ": entry " + bad + (bad < 0 ? "" : " is " + s.name(bad) + " = " + s.doc.valueAt(bad)
+                    + " at " + s.doc.sourceStart(bad) + " (search index " + argbHex(indexed[bad], true) + "), reparse has "
+                    + full.name(bad) + " = " + full.doc.valueAt(bad) + " at " + full.doc.sourceStart(bad)));
+            return failures == before;
+        }
+
+        /** A color as an edit may set it: mostly hex, sometimes another format. */
+        private String randomValue() {
+            int format = random.nextInt(3) == 0 ? random.nextInt(ColorCodec.KIND + 1) : ColorCodec.HEX;
+            return ColorCodec.format(random.nextInt(), format, random.nextBoolean());
+        }
+
+        /** The color a value written in {@code kind} holds: with only the alpha it can carry. */
+        private static int expectedArgb(int argb, int kind, boolean alpha) {
+            switch (kind) {
+                case ColorCodec.HEX: case ColorCodec.SHORT: return alpha ? argb : argb | 0xFF000000;
+                case ColorCodec.RGB: case ColorCodec.HSL: return argb | 0xFF000000;
+                case ColorCodec.INT: case ColorCodec.INT_SIGNED: return argb >>> 24 == 0 ? argb | 0x01000000 : argb;
+                default: return argb;
+            }
+        }
+
+        /** The format a value written in {@code format} reads back in. */
+        private static int expectedFormat(int argb, int format, boolean alpha) {
+            int kind = format & ColorCodec.KIND;
+            int r = argb >> 16 & 0xFF, g = argb >> 8 & 0xFF, b = argb & 0xFF;
+            if (kind == ColorCodec.SHORT && !(r % 17 == 0 && g % 17 == 0 && b % 17 == 0 && (!alpha || (argb >>> 24) % 17 == 0))) {
+                return ColorCodec.HEX; // written in full
+            }
+            if (kind == ColorCodec.INT_SIGNED) return expectedArgb(argb, kind, true) < 0 && argb != -1 ? kind : ColorCodec.INT;
+            return format;
+        }
+    }
+
+    // ===== Data models & renderers =====
+
+    /**
+     * Piece-table model of the theme JSON, addressed in UTF-8 byte offsets.
+     * The original bytes are never copied: every color value span is a piece that
+     * points either back into the original or at its replacement hex, and the
+     * bytes between spans are always original. Current offsets are resolved through
+     * a Fenwick tree of per-span length deltas, so editing one value is O(log n)
+     * and allocates nothing beyond the new hex string.
+     */
+    private static final class ThemeDocument {
+        /** Files at least this large are memory-mapped instead of read onto the heap. */
+        private static final long MAP_THRESHOLD = 32L << 20;
+        private static final String SNAPSHOT_PREFIX = "colorjsoneditor-";
+        private static final String SNAPSHOT_SUFFIX = ".snapshot";
+        private static final java.util.concurrent.atomic.AtomicBoolean snapshotsSwept = new java.util.concurrent.atomic.AtomicBoolean();
+
+        private final ByteBuffer source; // heap or mapped; only absolute reads
+        private int[] origStart = new int[16];
+        private int[] origEnd = new int[16];
+        private String[] replacement = new String[16]; // null = original piece
+        private String[] saved = new String[16];       // replacements as of last save
+        private int[] tree = new int[17];              // Fenwick tree of length deltas (1-based)
+        private int size;
+
+        ThemeDocument(ByteBuffer source) {
+            this.source = source;
+        }
+
+        static ThemeDocument read(Path p) throws IOException {
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                long size = ch.size();
+                if (size > Integer.MAX_VALUE) throw new IOException("File too large: " + size + " bytes");
+                if (size >= MAP_THRESHOLD) return new ThemeDocument(mapSnapshot(ch, size));
+                ByteBuffer buf = ByteBuffer.allocate((int) size);
+                while (buf.hasRemaining() && ch.read(buf) >= 0) { /* keep reading */ }
+                buf.flip();
+                return new ThemeDocument(buf);
+            }
+        }
+
+        /**
+         * Maps a private copy of the file in the temp directory rather than the file itself:
+         * Windows refuses to replace a file with a live mapping, and Java 8 can't unmap on
+         * demand, so mapping the theme would make every later save of it fail. The copy is
+         * unlinked right away where the platform allows; elsewhere it goes at the next start.
+         */
+        private static MappedByteBuffer mapSnapshot(FileChannel in, long size) throws IOException {
+            Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+            if (snapshotsSwept.compareAndSet(false, true)) {
+                try (DirectoryStream<Path> old = Files.newDirectoryStream(dir, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+                    for (Path p : old) {
+                        try {
+                            Files.deleteIfExists(p);
+                        } catch (IOException ignored) {
+                            // mapped by a running instance (Windows)
+                        }
+                    }
+                } catch (IOException ignored) {
+                    // best effort
+                }
+            }
+            Path snapshot = Files.createTempFile(dir, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+            MappedByteBuffer map;
+            try (FileChannel out = FileChannel.open(snapshot, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                for (long pos = 0; pos < size; ) pos += in.transferTo(pos, size - pos, out);
+                map = out.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (IOException | RuntimeException ex) {
+                Files.deleteIfExists(snapshot);
+                throw ex;
+            }
+            try {
+                Files.delete(snapshot); // the mapping stays valid on Unix
+            } catch (IOException ex) {
+                snapshot.toFile().deleteOnExit();
+            }
+            return map;
+        }
+
+        ByteBuffer source() { return source; }
+
+        int size() { return size; }
+
+        /** Approximate heap held: the source if it isn't mapped, the span arrays and the replaced values. */
+        long heapBytes() {
+            long bytes = (source.hasArray() ? source.capacity() : 0) + 4L * (origStart.length + origEnd.length + tree.length)
+                    + 8L * replacement.length;
+            for (int i = 0; i < size; i++) if (replacement[i] != null) bytes += 56;
+            return bytes;
+        }
+
+        /** Registers the next value span (spans must be added in document order). */
+        int addSpan(int start, int end) {
+            if (size == origStart.length) {
+                int cap = size * 2;
+                origStart = Arrays.copyOf(origStart, cap);
+                origEnd = Arrays.copyOf(origEnd, cap);
+                replacement = Arrays.copyOf(replacement, cap);
+                saved = Arrays.copyOf(saved, cap);
+                tree = Arrays.copyOf(tree, cap + 1);
+            }
+            origStart[size] = start;
+            origEnd[size] = end;
+            return size++;
+        }
+
+        /** Current start offset of span {@code i} in the edited text. */
+        int start(int i) { return origStart[i] + prefixDelta(i); }
+
+        int end(int i) { return start(i) + valueLength(i); }
+
+        /** Length of the edited document in bytes. */
+        int length() { return source.limit() + prefixDelta(size); }
+
+        String valueAt(int i) {
+            String r = replacement[i];
+            return r != null ? r : JsonSpanScanner.decode(source, origStart[i], origEnd[i]);
+        }
+
+        /** Packed ARGB of span {@code i}, parsed in place without materializing the hex. */
+        int argbAt(int i) {
+            String r = replacement[i];
+            return r != null ? hexArgb(r) : (int) ColorCodec.parse(source, origStart[i], origEnd[i], true);
+        }
+
+        /** Sets the value of span {@code i}; null restores the original bytes. */
+        void replace(int i, String value) {
+            int newLength = value != null ? value.length() : origEnd[i] - origStart[i];
+            int delta = newLength - valueLength(i);
+            replacement[i] = value;
+            if (delta != 0) {
+                for (int k = i + 1; k < tree.length; k += k & -k) tree[k] += delta;
+            }
+        }
+
+        /**
+         * Replaces the values of spans {@code rows[k]} for {@code k < n}. Large batches
+         * rebuild the delta tree once in O(size) instead of n O(log size) updates.
+         */
+        void replaceAll(int[] rows, String[] values, int n) {
+            if ((long) n * (32 - Integer.numberOfLeadingZeros(size)) < size) {
+                for (int k = 0; k < n; k++) replace(rows[k], values[k]);
+                return;
+            }
+            for (int k = 0; k < n; k++) replacement[rows[k]] = values[k];
+            rebuildTree();
+        }
+
+        void markSaved() {
+            System.arraycopy(replacement, 0, saved, 0, size);
+        }
+
+        /**
+         * Copy of the current pieces, for writing while edits continue. Original bytes never
+         * change, so the copy together with the source is a complete, immutable version.
+         */
+        String[] pieces() { return Arrays.copyOf(replacement, size); }
+
+        /** Records {@code pieces} (from {@link #pieces()}) as the saved version. */
+        void markSaved(String[] pieces) {
+            System.arraycopy(pieces, 0, saved, 0, pieces.length);
+        }
+
+        /** Raw piece of span {@code i}: its replacement, or null while it shows the original bytes. */
+        String replacementAt(int i) { return replacement[i]; }
+
+        /** Spans whose value differs from the last save, ascending. */
+        int[] changedSinceSave() {
+            int[] out = new int[16];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                String r = replacement[i], s = saved[i];
+                if (r == s || r != null && r.equals(s)) continue;
+                if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                out[n++] = i;
+            }
+            return Arrays.copyOf(out, n);
+        }
+
+        /** Raw piece of span {@code i} as of the last save (null = original bytes). */
+        String savedAt(int i) { return saved[i]; }
+
+        /** Copy of the pieces as of the last save: the version on disk. */
+        String[] savedPieces() { return Arrays.copyOf(saved, size); }
+
+        /** Span {@code i} in the source bytes, i.e. before any replacement. */
+        int sourceStart(int i) { return origStart[i]; }
+
+        int sourceEnd(int i) { return origEnd[i]; }
+
+        /** Length of the longest common prefix of the version {@code pieces} and {@code other}. */
+        int commonPrefix(String[] pieces, ByteBuffer other) {
+            int limit = other.limit();
+            int matched = 0, src = 0;
+            for (int i = 0; i <= pieces.length; i++) {
+                if (i < pieces.length && pieces[i] == null) continue; // original piece: part of the run
+                int runEnd = i < pieces.length ? origStart[i] : source.limit();
+                int n = Math.min(runEnd - src, limit - matched);
+                int m = matchForward(source, src, other, matched, n);
+                matched += m;
+                if (m < runEnd - src) return matched;
+                if (i == pieces.length) break;
+                String r = pieces[i];
+                for (int k = 0; k < r.length(); k++, matched++) {
+                    if (matched == limit || r.charAt(k) != other.get(matched)) return matched;
+                }
+                src = origEnd[i];
+            }
+            return matched;
+        }
+
+        /** Length of the longest common suffix (at most {@code max}) of the version {@code pieces} and {@code other}. */
+        int commonSuffix(String[] pieces, ByteBuffer other, int max) {
+            int o = other.limit() - 1;
+            int matched = 0, src = source.limit();
+            for (int i = pieces.length - 1; i >= -1; i--) {
+                if (i >= 0 && pieces[i] == null) continue;
+                int runStart = i >= 0 ? origEnd[i] : 0;
+                int n = Math.min(src - runStart, max - matched);
+                int m = matchBackward(source, src, other, o + 1 - matched, n);
+                matched += m;
+                if (m < src - runStart) return matched;
+                if (i < 0) break;
+                String r = pieces[i];
+                for (int k = r.length() - 1; k >= 0; k--, matched++) {
+                    if (matched == max || r.charAt(k) != other.get(o - matched)) return matched;
+                }
+                src = origStart[i];
+            }
+            return matched;
+        }
+
+        /** Streams all pieces in order; runs of original bytes are written as single slices. */
+        void writeTo(WritableByteChannel out) throws IOException {
+            writeTo(out, replacement, size);
+        }
+
+        /** Streams a version taken with {@link #pieces()}; safe to call off the EDT. */
+        void writeTo(WritableByteChannel out, String[] pieces) throws IOException {
+            writeTo(out, pieces, pieces.length);
+        }
+
+        private void writeTo(WritableByteChannel out, String[] pieces, int size) throws IOException {
+            int pos = 0;
+            for (int i = 0; i < size; i++) {
+                String r = pieces[i];
+                if (r == null) continue; // original piece: stays in the current run
+                writeSlice(out, pos, origStart[i]);
+                writeFully(out, ByteBuffer.wrap(r.getBytes(StandardCharsets.US_ASCII)));
+                pos = origEnd[i];
+            }
+            writeSlice(out, pos, source.limit());
+        }
+
+        /** Number of equal bytes (at most {@code n}) from {@code a[from]} and {@code b[at]} on; mapped buffers go a word at a time. */
+        private static int matchForward(ByteBuffer a, int from, ByteBuffer b, int at, int n) {
+            if (a.hasArray() && b.hasArray()) {
+                byte[] x = a.array(), y = b.array();
+                int i = a.arrayOffset() + from, j = b.arrayOffset() + at, k = 0;
+                while (k < n && x[i + k] == y[j + k]) k++;
+                return k;
+            }
+            int k = 0;
+            while (k + 8 <= n && a.getLong(from + k) == b.getLong(at + k)) k += 8;
+            while (k < n && a.get(from + k) == b.get(at + k)) k++;
+            return k;
+        }
+
+        /** Number of equal bytes (at most {@code n}) going back from just before {@code a[end]} and {@code b[bEnd]}. */
+        private static int matchBackward(ByteBuffer a, int end, ByteBuffer b, int bEnd, int n) {
+            if (a.hasArray() && b.hasArray()) {
+                byte[] x = a.array(), y = b.array();
+                int i = a.arrayOffset() + end - 1, j = b.arrayOffset() + bEnd - 1, k = 0;
+                while (k < n && x[i - k] == y[j - k]) k++;
+                return k;
+            }
+            int k = 0;
+            while (k + 8 <= n && a.getLong(end - k - 8) == b.getLong(bEnd - k - 8)) k += 8;
+            while (k < n && a.get(end - k - 1) == b.get(bEnd - k - 1)) k++;
+            return k;
+        }
+
+        private void writeSlice(WritableByteChannel out, int from, int to) throws IOException {
+            if (from >= to) return;
+            ByteBuffer slice = source.duplicate();
+            slice.limit(to);
+            slice.position(from);
+            writeFully(out, slice);
+        }
+
+        private static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) out.write(buf);
+        }
+
+        int valueLength(int i) {
+            String r = replacement[i];
+            return r != null ? r.length() : origEnd[i] - origStart[i];
+        }
+
+        /** Sum of the length deltas of spans {@code [0, i)}. */
+        private int prefixDelta(int i) {
+            int sum = 0;
+            for (int k = i; k > 0; k -= k & -k) sum += tree[k];
+            return sum;
+        }
+
+        /** O(n) bottom-up Fenwick construction. */
+        private void rebuildTree() {
+            Arrays.fill(tree, 0);
+            for (int i = 0; i < size; i++) {
+                String r = replacement[i];
+                if (r != null) tree[i + 1] += r.length() - (origEnd[i] - origStart[i]);
+            }
+            for (int k = 1; k <= size; k++) {
+                int parent = k + (k & -k);
+                if (parent <= size) tree[parent] += tree[k];
+            }
+        }
+    }
+
+    /**
+     * Color value formats a theme may use, parsed straight to packed ARGB and written back
+     * without intermediate objects. A parse result is {@code (long) format << 32 | argb}, or -1
+     * if the text isn't a color. The formats:
+     * <ul>
+     * <li>{@link #HEX}: "#RRGGBB", "#RRGGBBAA"</li>
+     * <li>{@link #SHORT}: "#RGB", "#RGBA"</li>
+     * <li>{@link #RGB}, {@link #RGBA}: "rgb(255, 87, 51)", "rgba(255, 87, 51, 0.5)"; channels may be percentages</li>
+     * <li>{@link #HSL}, {@link #HSLA}: "hsl(11, 100%, 60%)", "hsla(11, 100%, 60%, 0.5)"</li>
+     * <li>{@link #INT}, {@link #INT_SIGNED}: bare JSON numbers holding a 32-bit ARGB, either unsigned
+     *     from 16777216 (0x01000000) up or negative as {@code Color.getRGB()} gives them. -1 is a
+     *     common "unset" value and is left alone. The scanner only asks for these under keys
+     *     that name a color, see {@link JsonSpanScanner#isColorKey}.</li>
+     * </ul>
+     * {@link #SPACED} marks functional values written with ", " so that edits keep the spacing.
+     * Every entry keeps the format it was read in; {@link #toFormat} writes an edited color in it.
+     */
+    private static final class ColorCodec {
+        static final int HEX = 0, SHORT = 1, RGB = 2, RGBA = 3, HSL = 4, HSLA = 5, INT = 6, INT_SIGNED = 7;
+        static final int SPACED = 8;
+        static final int KIND = 7;
+        /** Enough for any value {@link #format(int, int, boolean, char[], int)} writes. */
+        static final int MAX_LENGTH = 40;
+        private static final byte[] HEX_VALUE = new byte[128];
+        private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+        static {
+            Arrays.fill(HEX_VALUE, (byte) -1);
+            for (int d = 0; d < 16; d++) {
+                HEX_VALUE[DIGITS[d]] = (byte) d;
+                HEX_VALUE[Character.toLowerCase(DIGITS[d])] = (byte) d;
+            }
+        }
+
+        private ColorCodec() {}
+
+        static int formatOf(long parsed) { return (int) (parsed >>> 32); }
+
+        /** Whether a value of {@code format} and {@code length} characters carries its own alpha. */
+        static boolean hasAlpha(int format, int length) {
+            switch (format & KIND) {
+                case HEX: case SHORT: return length == 9 || length == 5;
+                case RGB: case HSL: return false;
+                default: return true;
+            }
+        }
+
+        /** Parses a value span of the theme's source; bare numbers count only if {@code integers}. */
+        static long parse(ByteBuffer buf, int start, int end, boolean integers) {
+            return parse(buf, null, start, end, integers);
+        }
+
+        static long parse(CharSequence text, int start, int end, boolean integers) {
+            return parse(null, text, start, end, integers);
+        }
+
+        /** Any supported value, numbers included, e.g. a span's replacement text. */
+        static long parse(CharSequence text) {
+            return parse(null, text, 0, text.length(), true);
+        }
+
+        /** {@code value} written in {@code format}: as it is if it already is, else re-encoded. */
+        static String toFormat(String value, int format) {
+            if (value == null) return null;
+            long p = parse(value);
+            if (p < 0 || formatOf(p) == format) return value;
+            return format((int) p, format, hasAlpha(formatOf(p), value.length()));
+        }
+
+        static String format(int argb, int format, boolean alpha) {
+            char[] out = new char[MAX_LENGTH];
+            return new String(out, 0, format(argb, format, alpha, out, 0));
+        }
+
+        /**
+         * Writes {@code argb} in {@code format} into {@code out} at {@code at} and returns the end.
+         * {@code alpha} matters for the hex formats only; a {@link #SHORT} color that doesn't fit
+         * in 3 or 4 digits is written in full, and the integer formats write alpha 0 as 1.
+         */
+        static int format(int argb, int format, boolean alpha, char[] out, int at) {
+            boolean spaced = (format & SPACED) != 0;
+            int a = argb >>> 24, r = argb >> 16 & 0xFF, g = argb >> 8 & 0xFF, b = argb & 0xFF;
+            if ((format & KIND) == SHORT && r % 17 == 0 && g % 17 == 0 && b % 17 == 0 && (!alpha || a % 17 == 0)) {
+                out[at++] = '#';
+                out[at++] = DIGITS[r & 0xF];
+                out[at++] = DIGITS[g & 0xF];
+                out[at++] = DIGITS[b & 0xF];
+                if (alpha) out[at++] = DIGITS[a & 0xF];
+                return at;
+            }
+            switch (format & KIND) {
+                case SHORT: case HEX:
+                    out[at++] = '#';
+                    at = hexByte(r, out, at);
+                    at = hexByte(g, out, at);
+                    at = hexByte(b, out, at);
+                    return alpha ? hexByte(a, out, at) : at;
+                case RGB: case RGBA: {
+                    boolean withAlpha = (format & KIND) == RGBA;
+                    at = name(withAlpha ? "rgba(" : "rgb(", out, at);
+                    at = decimal(r, out, at);
+                    at = separator(spaced, out, at);
+                    at = decimal(g, out, at);
+                    at = separator(spaced, out, at);
+                    at = decimal(b, out, at);
+                    if (withAlpha) at = alpha(a, out, separator(spaced, out, at));
+                    out[at++] = ')';
+                    return at;
+                }
+                case HSL: case HSLA: {
+                    boolean withAlpha = (format & KIND) == HSLA;
+                    int max = Math.max(r, Math.max(g, b)), min = Math.min(r, Math.min(g, b));
+                    double l = (max + min) / 510.0, d = (max - min) / 255.0, h = 0, s = 0;
+                    if (d > 0) {
+                        s = d / (1 - Math.abs(2 * l - 1));
+                        if (max == r) h = (g - b) / 255.0 / d + (g < b ? 6 : 0);
+                        else if (max == g) h = (b - r) / 255.0 / d + 2;
+                        else h = (r - g) / 255.0 / d + 4;
+                        h *= 60;
+                    }
+                    int scale = 1; // fewest decimals that still read back as this color
+                    while (scale < 100 && hslRgb(Math.round(h * scale) / (double) scale, Math.round(s * 100 * scale) / (100.0 * scale),
+                            Math.round(l * 100 * scale) / (100.0 * scale)) != (argb & 0xFFFFFF)) {
+                        scale *= 10;
+                    }
+                    at = name(withAlpha ? "hsla(" : "hsl(", out, at);
+                    at = fixed(h, scale, out, at);
+                    at = separator(spaced, out, at);
+                    at = fixed(s * 100, scale, out, at);
+                    out[at++] = '%';
+                    at = separator(spaced, out, at);
+                    at = fixed(l * 100, scale, out, at);
+                    out[at++] = '%';
+                    if (withAlpha) at = alpha(a, out, separator(spaced, out, at));
+                    out[at++] = ')';
+                    return at;
+                }
+                case INT_SIGNED:
+                    if (a == 0) argb |= 0x01000000; // as for INT below
+                    if (argb == -1) return decimal(0xFFFFFFFFL, out, at); // -1 wouldn't be read back as a color
+                    if (argb < 0) out[at++] = '-';
+                    return decimal(Math.abs((long) argb), out, at);
+                default:
+                    // alpha 0 would give a number below 16777216, which isn't read back as a color: write alpha 1
+                    return decimal((a == 0 ? argb | 0x01000000 : argb) & 0xFFFFFFFFL, out, at);
+            }
+        }
+
+        private static int hexByte(int v, char[] out, int at) {
+            out[at++] = DIGITS[v >> 4];
+            out[at++] = DIGITS[v & 0xF];
+            return at;
+        }
+
+        private static int name(String name, char[] out, int at) {
+            name.getChars(0, name.length(), out, at);
+            return at + name.length();
+        }
+
+        private static int separator(boolean spaced, char[] out, int at) {
+            out[at++] = ',';
+            if (spaced) out[at++] = ' ';
+            return at;
+        }
+
+        private static int decimal(long v, char[] out, int at) {
+            int digits = 1;
+            for (long t = v; t >= 10; t /= 10) digits++;
+            for (int k = at + digits - 1; k >= at; k--, v /= 10) out[k] = (char) ('0' + v % 10);
+            return at + digits;
+        }
+
+        /** {@code v} rounded to 1/{@code scale} (a power of ten), trailing zeros dropped. */
+        private static int fixed(double v, int scale, char[] out, int at) {
+            long n = Math.round(v * scale);
+            at = decimal(n / scale, out, at);
+            long frac = n % scale;
+            if (frac == 0) return at;
+            out[at++] = '.';
+            for (int unit = scale / 10; frac != 0; unit /= 10) {
+                out[at++] = (char) ('0' + frac / unit);
+                frac %= unit;
+            }
+            return at;
+        }
+
+        /** Alpha as 0-1 with two decimals, or three where two don't read back as {@code a}. */
+        private static int alpha(int a, char[] out, int at) {
+            int scale = Math.round(Math.round(a / 2.55) * 2.55f) == a ? 100 : 1000;
+            return fixed(a / 255.0, scale, out, at);
+        }
+
+        private static int charAt(ByteBuffer buf, CharSequence text, int i) {
+            return buf != null ? buf.get(i) & 0xFF : text.charAt(i);
+        }
+
+        private static int hexDigit(int c) { return c < 128 ? HEX_VALUE[c] : -1; }
+
+        private static int lower(int c) { return c >= 'A' && c <= 'Z' ? c + 32 : c; }
+
+        private static long parse(ByteBuffer buf, CharSequence text, int start, int end, boolean integers) {
+            if (start >= end) return -1;
+            int c = charAt(buf, text, start);
+            if (c == '#') return hex(buf, text, start + 1, end);
+            if (c == 'r' || c == 'R' || c == 'h' || c == 'H') return functional(buf, text, start, end);
+            return integers ? integer(buf, text, start, end) : -1;
+        }
+
+        /** The digits of a hex color, after the '#'. */
+        static long hex(ByteBuffer buf, CharSequence text, int from, int end) {
+            int n = end - from;
+            if (n != 6 && n != 8 && n != 3 && n != 4) return -1;
+            int v = 0;
+            for (int i = from; i < end; i++) {
+                int d = hexDigit(charAt(buf, text, i));
+                if (d < 0) return -1;
+                v = v << 4 | d;
+            }
+            if (n == 6) return (long) HEX << 32 | (0xFF000000 | v) & 0xFFFFFFFFL;
+            if (n == 8) return (long) HEX << 32 | (v << 24 | v >>> 8) & 0xFFFFFFFFL;
+            if (n == 3) v = v << 4 | 0xF; // as an opaque "#RGBA"
+            int argb = (v & 0xF) << 24 | (v >> 12 & 0xF) << 16 | (v >> 8 & 0xF) << 8 | (v >> 4 & 0xF);
+            return (long) SHORT << 32 | (argb * 0x11) & 0xFFFFFFFFL;
+        }
+
+        /** "rgb(" / "rgba(" / "hsl(" / "hsla(" with comma-separated arguments. */
+        private static long functional(ByteBuffer buf, CharSequence text, int start, int end) {
+            if (end - start < 10) return -1;
+            int c1 = lower(charAt(buf, text, start)), c2 = lower(charAt(buf, text, start + 1)), c3 = lower(charAt(buf, text, start + 2));
+            boolean hsl;
+            if (c1 == 'r' && c2 == 'g' && c3 == 'b') hsl = false;
+            else if (c1 == 'h' && c2 == 's' && c3 == 'l') hsl = true;
+            else return -1;
+            int p = start + 3;
+            boolean withAlpha = lower(charAt(buf, text, p)) == 'a';
+            if (withAlpha) p++;
+            if (charAt(buf, text, p++) != '(') return -1;
+            int m0 = 0, m1 = 0, m2 = 0, m3 = 0, percent = 0, n = 0;
+            boolean spaced = false;
+            while (true) {
+                long num = number(buf, text, p, end);
+                if (num < 0) return -1;
+                int v = (int) num;
+                if ((num & 1L << 32) != 0) percent |= 1 << n;
+                switch (n++) {
+                    case 0: m0 = v; break;
+                    case 1: m1 = v; break;
+                    case 2: m2 = v; break;
+                    default: m3 = v;
+                }
+                p = (int) (num >>> 33);
+                if (p >= end) return -1;
+                int c = charAt(buf, text, p++);
+                if (c == ')') break;
+                if (c != ',' || n == 4) return -1;
+                if (p < end && charAt(buf, text, p) == ' ') spaced = true;
+            }
+            if (p != end || n != (withAlpha ? 4 : 3)) return -1;
+            int a = withAlpha ? unit(m3, (percent & 8) != 0 ? 100000 : 1000) : 255;
+            int rgb;
+            if (hsl) {
+                rgb = hslRgb(m0 / 1000.0, clamp01(m1 / 100000.0), clamp01(m2 / 100000.0));
+            } else {
+                rgb = channel(m0, (percent & 1) != 0) << 16 | channel(m1, (percent & 2) != 0) << 8 | channel(m2, (percent & 4) != 0);
+            }
+            int format = (hsl ? HSL : RGB) + (withAlpha ? 1 : 0) + (spaced ? SPACED : 0);
+            return (long) format << 32 | (a << 24 | rgb) & 0xFFFFFFFFL;
+        }
+
+        /** An rgb() channel in thousandths: 0-255, or a percentage. */
+        private static int channel(int milli, boolean percent) {
+            return percent ? unit(milli, 100000) : Math.max(0, Math.min(255, (milli + 500) / 1000));
+        }
+
+        /** {@code milli / full} of 255, rounded and clamped. */
+        private static int unit(int milli, int full) {
+            return Math.max(0, Math.min(255, (int) ((milli * 255L + full / 2) / full)));
+        }
+
+        private static double clamp01(double v) { return Math.max(0, Math.min(1, v)); }
+
+        private static int hslRgb(double h, double s, double l) {
+            h = (h % 360 + 360) % 360 / 60;
+            double c = (1 - Math.abs(2 * l - 1)) * s, x = c * (1 - Math.abs(h % 2 - 1)), m = l - c / 2;
+            double r, g, b;
+            switch ((int) h) {
+                case 0: r = c; g = x; b = 0; break;
+                case 1: r = x; g = c; b = 0; break;
+                case 2: r = 0; g = c; b = x; break;
+                case 3: r = 0; g = x; b = c; break;
+                case 4: r = x; g = 0; b = c; break;
+                default: r = c; g = 0; b = x;
+            }
+            return (int) Math.round((r + m) * 255) << 16 | (int) Math.round((g + m) * 255) << 8 | (int) Math.round((b + m) * 255);
+        }
+
+        /**
+         * A decimal number at {@code p}, spaces around it skipped, with an optional '%' or "deg".
+         * Packs the value in thousandths (low 32 bits), a '%' flag (bit 32) and the position after
+         * it (from bit 33); -1 if there is no number.
+         */
+        private static long number(ByteBuffer buf, CharSequence text, int p, int end) {
+            while (p < end && charAt(buf, text, p) == ' ') p++;
+            boolean negative = false;
+            if (p < end && (charAt(buf, text, p) == '-' || charAt(buf, text, p) == '+')) negative = charAt(buf, text, p++) == '-';
+            long whole = 0, frac = 0;
+            int digits = 0;
+            for (int c; p < end && (c = charAt(buf, text, p) - '0') >= 0 && c <= 9; p++, digits++) {
+                if (whole < 1000000) whole = whole * 10 + c;
+            }
+            if (p < end && charAt(buf, text, p) == '.') {
+                p++;
+                for (int c, unit = 100; p < end && (c = charAt(buf, text, p) - '0') >= 0 && c <= 9; p++, digits++, unit /= 10) {
+                    frac += c * unit;
+                }
+            }
+            if (digits == 0) return -1;
+            long milli = whole * 1000 + frac;
+            boolean percent = false;
+            if (p < end && charAt(buf, text, p) == '%') {
+                percent = true;
+                p++;
+            } else if (end - p >= 3 && lower(charAt(buf, text, p)) == 'd' && lower(charAt(buf, text, p + 1)) == 'e'
+                    && lower(charAt(buf, text, p + 2)) == 'g') {
+                p += 3;
+            }
+            while (p < end && charAt(buf, text, p) == ' ') p++;
+            return (long) p << 33 | (percent ? 1L << 32 : 0) | (negative ? -milli : milli) & 0xFFFFFFFFL;
+        }
+
+        /** A bare JSON integer in the ARGB ranges described on the class. */
+        private static long integer(ByteBuffer buf, CharSequence text, int start, int end) {
+            int p = start;
+            boolean negative = charAt(buf, text, p) == '-';
+            if (negative) p++;
+            if (p == end || end - p > 10) return -1;
+            long v = 0;
+            for (; p < end; p++) {
+                int c = charAt(buf, text, p) - '0';
+                if (c < 0 || c > 9) return -1;
+                v = v * 10 + c;
+            }
+            if (negative) return v < 2 || v > 0x80000000L ? -1 : (long) INT_SIGNED << 32 | -v & 0xFFFFFFFFL;
+            return v < 0x01000000L || v > 0xFFFFFFFFL ? -1 : (long) INT << 32 | v;
+        }
+    }
+
+    /**
+     * Single-pass JSON tokenizer over raw UTF-8 bytes.
+     * Reports every member whose value is a color ({@link ColorCodec}: a hex, rgb() or
+     * hsl() string, or an integer ARGB under a key that names a color) as byte spans
+     * instead of substrings; keys of nested objects are qualified by their container path
+     * ({@code outer.inner.key}). Escaped quotes and nesting are handled properly,
+     * and only container paths (a handful per theme) are ever decoded while scanning.
+     */
+    private static final class JsonSpanScanner {
+        interface Sink {
+            /** Key and value spans exclude the surrounding quotes; an integer's value span is the number. */
+            void color(String path, int keyStart, int keyEnd, int valueStart, int valueEnd);
+
+            /**
+             * Called right after each color value with the scanner's state there (valid only
+             * during the call). Returning false stops the scan.
+             */
+            default boolean afterColor(State state) { return true; }
+        }
+
+        /**
+         * Where the scanner is and which containers it is in. Taken right after a color value,
+         * it is enough to resume scanning from that point without looking at earlier bytes.
+         */
+        static final class State {
+            int pos;
+            int depth;
+            boolean[] isObject = new boolean[16];
+            String[] paths = new String[16];
+            int[] elementIndex = new int[16];
+            int entry; // stored copies: the color they follow (their position moves with its span)
+
+            /** Copy for resuming after color {@code entry}; only the open containers are kept. */
+            State copy(int entry) {
+                State c = new State();
+                c.pos = pos;
+                c.depth = depth;
+                c.isObject = Arrays.copyOf(isObject, Math.max(depth, 1));
+                c.paths = Arrays.copyOf(paths, Math.max(depth, 1));
+                c.elementIndex = Arrays.copyOf(elementIndex, Math.max(depth, 1));
+                c.entry = entry;
+                return c;
+            }
+
+            /** Same open containers; what follows the two positions then scans identically. */
+            boolean sameContainers(State o) {
+                if (depth != o.depth) return false;
+                for (int d = 0; d < depth; d++) {
+                    if (isObject[d] != o.isObject[d] || elementIndex[d] != o.elementIndex[d]
+                            || !paths[d].equals(o.paths[d])) return false;
+                }
+                return true;
+            }
+        }
+
+        private JsonSpanScanner() {}
+
+        static void scan(ByteBuffer buf, Sink sink) {
+            scan(buf, new State(), sink);
+        }
+
+        /**
+         * Scans from {@code st.pos}, in the containers {@code st} describes, until the end of
+         * the buffer or until the sink stops it. A state at position 0 is a fresh start.
+         * {@code st} is updated as the scan goes, so pass a copy of a stored state.
+         */
+        static void scan(ByteBuffer buf, State st, Sink sink) {
+            final int limit = buf.limit();
+            int cap = Math.max(16, st.isObject.length); // own copies: st may be a stored checkpoint
+            boolean[] isObject = Arrays.copyOf(st.isObject, cap);
+            String[] paths = Arrays.copyOf(st.paths, cap);
+            int[] elementIndex = Arrays.copyOf(st.elementIndex, cap);
+            int depth = st.depth;
+            boolean expectKey = false;
+            int keyStart = -1, keyEnd = -1;
+            int pos = st.pos;
+            if (pos == 0 && limit >= 3 && buf.get(0) == (byte) 0xEF && buf.get(1) == (byte) 0xBB && buf.get(2) == (byte) 0xBF) {
+                pos = 3; // UTF-8 BOM
+            }
+            while (pos < limit) {
+                byte b = buf.get(pos);
+                switch (b) {
+                    case ' ': case '\t': case '\n': case '\r':
+                        pos++;
+                        break;
+                    case ',':
+                        if (depth > 0) {
+                            if (isObject[depth - 1]) { expectKey = true; keyStart = -1; }
+                            else elementIndex[depth - 1]++;
+                        }
+                        pos++;
+                        break;
+                    case ':':
+                        expectKey = false;
+                        pos++;
+                        break;
+                    case '"': {
+                        int end = skipString(buf, pos + 1, limit);
+                        if (expectKey && depth > 0 && isObject[depth - 1]) {
+                            keyStart = pos + 1;
+                            keyEnd = end;
+                            expectKey = false;
+                        } else if (keyStart >= 0 && ColorCodec.parse(buf, pos + 1, end, false) >= 0) {
+                            sink.color(paths[depth - 1], keyStart, keyEnd, pos + 1, end);
+                            st.pos = end + 1;
+                            st.depth = depth;
+                            st.isObject = isObject;
+                            st.paths = paths;
+                            st.elementIndex = elementIndex;
+                            if (!sink.afterColor(st)) return;
+                        }
+                        pos = end + 1;
+                        break;
+                    }
+                    case '{': case '[': {
+                        String path;
+                        if (depth == 0) path = "";
+                        else if (!isObject[depth - 1]) path = paths[depth - 1] + "[" + elementIndex[depth - 1] + "]";
+                        else if (keyStart >= 0) path = qualify(paths[depth - 1], decode(buf, keyStart, keyEnd));
+                        else path = paths[depth - 1];
+                        if (depth == isObject.length) {
+                            isObject = Arrays.copyOf(isObject, depth * 2);
+                            paths = Arrays.copyOf(paths, depth * 2);
+                            elementIndex = Arrays.copyOf(elementIndex, depth * 2);
+                        }
+                        isObject[depth] = b == '{';
+                        paths[depth] = path;
+                        elementIndex[depth] = 0;
+                        depth++;
+                        expectKey = b == '{';
+                        keyStart = -1;
+                        pos++;
+                        break;
+                    }
+                    case '}': case ']':
+                        if (depth == 0) throw new IllegalArgumentException("Unbalanced '" + (char) b + "' at byte " + pos + ".");
+                        depth--;
+                        expectKey = false;
+                        keyStart = -1;
+                        pos++;
+                        break;
+                    default: {
+                        int from = pos;
+                        pos = skipLiteral(buf, pos, limit); // number, true, false, null
+                        if (keyStart >= 0 && isColorKey(buf, keyStart, keyEnd) && ColorCodec.parse(buf, from, pos, true) >= 0) {
+                            sink.color(paths[depth - 1], keyStart, keyEnd, from, pos);
+                            st.pos = pos;
+                            st.depth = depth;
+                            st.isObject = isObject;
+                            st.paths = paths;
+                            st.elementIndex = elementIndex;
+                            if (!sink.afterColor(st)) return;
+                        }
+                    }
+                }
+            }
+            if (depth != 0) throw new IllegalArgumentException("Unexpected end of JSON (unclosed object or array).");
+        }
+
+        /** Returns the index of the closing quote of a string whose content starts at {@code from}. */
+        private static int skipString(ByteBuffer buf, int from, int limit) {
+            for (int pos = from; pos < limit; pos++) {
+                byte b = buf.get(pos);
+                if (b == '\\') pos++;
+                else if (b == '"') return pos;
+            }
+            throw new IllegalArgumentException("Unterminated string starting at byte " + (from - 1) + ".");
+        }
+
+        private static int skipLiteral(ByteBuffer buf, int pos, int limit) {
+            pos++;
+            while (pos < limit) {
+                switch (buf.get(pos)) {
+                    case ',': case ':': case '}': case ']': case '{': case '[': case '"':
+                    case ' ': case '\t': case '\n': case '\r':
+                        return pos;
+                    default:
+                        pos++;
+                }
+            }
+            return pos;
+        }
+
+        /**
+         * Whether a key names a color ("color", "colour" or "rgb" in any case, as in "textColor"
+         * or "bg_argb"). Only such keys may hold integer ARGB values: elsewhere a large number
+         * is much more likely a timestamp, id or version than a color.
+         */
+        static boolean isColorKey(ByteBuffer buf, int start, int end) {
+            return contains(buf, start, end, "color") || contains(buf, start, end, "colour") || contains(buf, start, end, "rgb");
+        }
+
+        /** ASCII case-insensitive search for lowercase {@code word} in {@code [start, end)}. */
+        private static boolean contains(ByteBuffer buf, int start, int end, String word) {
+            outer:
+            for (int i = start, last = end - word.length(); i <= last; i++) {
+                for (int k = 0; k < word.length(); k++) {
+                    int c = buf.get(i + k);
+                    if ((c >= 'A' && c <= 'Z' ? c + 32 : c) != word.charAt(k)) continue outer;
+                }
+                return true;
+            }
+            return false;
+        }
+
+        static String qualify(String path, String key) {
+            return path.isEmpty() ? key : path + "." + key;
+        }
+
+        /** Decodes the UTF-8 content of a JSON string span, resolving escapes. */
+        static String decode(ByteBuffer buf, int start, int end) {
+            byte[] bytes = new byte[end - start];
+            ByteBuffer d = buf.duplicate();
+            d.position(start);
+            d.get(bytes);
+            int esc = 0;
+            while (esc < bytes.length && bytes[esc] != '\\') esc++;
+            if (esc == bytes.length) return new String(bytes, StandardCharsets.UTF_8);
+
+            StringBuilder sb = new StringBuilder(bytes.length);
+            int run = 0;
+            for (int i = esc; i < bytes.length; i++) {
+                if (bytes[i] != '\\' || i + 1 >= bytes.length) continue;
+                sb.append(new String(bytes, run, i - run, StandardCharsets.UTF_8));
+                char c = (char) bytes[++i];
+                switch (c) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (i + 4 < bytes.length) {
+                            sb.append((char) Integer.parseInt(new String(bytes, i + 1, 4, StandardCharsets.US_ASCII), 16));
+                            i += 4;
+                        }
+                        break;
+                    default: sb.append(c); // \" \\ \/
+                }
+                run = i + 1;
+            }
+            sb.append(new String(bytes, run, bytes.length - run, StandardCharsets.UTF_8));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Brings a document in line with a newer version of its file without a full reparse.
+     * The new bytes are compared with the version last read or saved; scanning resumes at
+     * the last {@link RowCollector} checkpoint before the first difference and stops at the
+     * first checkpoint past the last difference where the scanner is in the same containers
+     * as before. Rows outside that window are carried over with shifted offsets.
+     * <p>
+     * Unsaved edits are kept. Inside the window they are matched to the new rows by name;
+     * an edit whose entry also changed on disk is kept and flagged as a conflict, and an
+     * edit whose entry disappeared is dropped. {@link #run()} works on copies of the
+     * document's pieces taken by the constructor, so it may run off the EDT.
+     */
+    private static final class ThemeSync {
+        final Path path;
+        final PaletteStore old;
+        final long editCount;         // editor edit count the copies belong to
+        private final SearchIndex.Snapshot oldIndex;
+        private final String[] pieces; // current values
+        private final String[] saved;  // values on disk
+        private final BitSet conflicts; // edits already flagged by an earlier sync
+
+        // Results of run()
+        boolean unchanged;
+        ThemeDocument doc;
+        PaletteStore store;
+        SearchIndex index;
+        int[] remap;   // old row -> new row, -1 if gone
+        int rescanned; // new rows produced by the scanner
+        int dropped;   // edits whose entry disappeared
+
+        ThemeSync(Path path, PaletteStore old, SearchIndex oldIndex, long editCount) {
+            this.path = path;
+            this.old = old;
+            this.oldIndex = oldIndex.frozenSnapshot();
+            this.editCount = editCount;
+            this.pieces = old.doc.pieces();
+            this.saved = old.doc.savedPieces();
+            this.conflicts = (BitSet) old.conflicts.clone();
+        }
+
+        void run() throws IOException {
+            final ThemeDocument od = old.doc;
+            final ByteBuffer src = od.source();
+            final int n = old.size();
+            final ThemeDocument nd = ThemeDocument.read(path);
+            final ByteBuffer nb = nd.source();
+
+            // shift[i]: offset of the disk version minus source offset, between values i - 1 and i
+            final int[] shift = new int[n + 1];
+            for (int i = 0; i < n; i++) {
+                int len = saved[i] != null ? saved[i].length() : od.sourceEnd(i) - od.sourceStart(i);
+                shift[i + 1] = shift[i] + len - (od.sourceEnd(i) - od.sourceStart(i));
+            }
+            final int lenD = src.limit() + shift[n];
+            final int lenN = nb.limit();
+            final int prefix = od.commonPrefix(saved, nb);
+            if (prefix == lenD && lenD == lenN) {
+                unchanged = true;
+                return;
+            }
+            final int suffix = od.commonSuffix(saved, nb, Math.min(lenD, lenN) - prefix);
+            final int delta = lenN - lenD;
+            final List<JsonSpanScanner.State> cps = old.checkpoints;
+            // Disk position right after the value a checkpoint follows: past the closing quote unless it's a number
+            final IntUnaryOperator cpPos = k -> {
+                int e = cps.get(k).entry, kind = old.format(e) & ColorCodec.KIND;
+                return od.sourceEnd(e) + shift[e + 1] + (kind == ColorCodec.INT || kind == ColorCodec.INT_SIGNED ? 0 : 1);
+            };
+
+            int lo = -1, hi = cps.size() - 1; // last checkpoint at or before the first difference
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (cpPos.applyAsInt(mid) <= prefix) lo = mid; else hi = mid - 1;
+            }
+            final int resumeCp = lo;
+            JsonSpanScanner.State start = new JsonSpanScanner.State();
+            int first = 0;
+            if (resumeCp >= 0) {
+                JsonSpanScanner.State cp = cps.get(resumeCp);
+                start = cp.copy(cp.entry);
+                start.pos = cpPos.applyAsInt(resumeCp);
+                first = cp.entry + 1;
+            }
+
+            doc = nd;
+            store = new PaletteStore(nd);
+            index = new SearchIndex(oldIndex.table);
+            Map<String, Integer> pathIds = new HashMap<String, Integer>();
+            for (String p : old.paths) pathIds.put(p, pathIds.size());
+            final int[] stopAfter = {-1}; // old row at which the rescan rejoined the old rows
+            final boolean[] scanning = {false};
+            // Rows outside the window keep their search entries, only rescanned ones are indexed anew
+            RowCollector rows = new RowCollector(nb, pathIds, 0, chunk -> {
+                store.append(chunk);
+                if (scanning[0]) index.append(chunk, nb);
+                else index.addPaths(chunk.newPaths);
+            }) {
+                @Override public boolean afterColor(JsonSpanScanner.State st) {
+                    super.afterColor(st);
+                    if (st.pos < lenN - suffix) return true;
+                    int k = findCheckpoint(cps, cpPos, resumeCp + 1, st.pos - delta);
+                    if (k < 0 || !cps.get(k).sameContainers(st)) return true;
+                    if (rows % CHECKPOINT_INTERVAL != 0) checkpoint(st.copy(rows - 1));
+                    stopAfter[0] = cps.get(k).entry;
+                    return false;
+                }
+            };
+            rows.chunk.newPaths.addAll(old.paths); // path ids carry over
+
+            // Rows before the window: same bytes, disk offsets. Their colors are the current ones,
+            // which differ from the disk only for edited rows, and those are set again below.
+            int cp = 0;
+            for (int i = 0; i < first; i++) {
+                rows.add(old.keyStart[i] + shift[i], old.keyEnd[i] + shift[i],
+                        od.sourceStart(i) + shift[i], od.sourceEnd(i) + shift[i + 1], old.pathId[i], oldIndex.argb[i], old.format[i]);
+                if (cp < cps.size() && cps.get(cp).entry == i) rows.checkpoint(cps.get(cp++));
+                rows.flushIfFull();
+            }
+            rows.flush();
+            index.appendFrom(oldIndex, 0, first);
+            scanning[0] = true;
+            JsonSpanScanner.scan(nb, start, rows);
+            rows.flush();
+            scanning[0] = false;
+            int rejoin = stopAfter[0] + 1; // first old row after the window
+            if (stopAfter[0] < 0) rejoin = n;
+            int newEnd = rows.rows;
+            rescanned = newEnd - first;
+            int moved = newEnd - rejoin;
+
+            // Rows after the window: same bytes, shifted by the length change
+            cp = findCheckpointAfter(cps, rejoin - 1);
+            for (int i = rejoin; i < n; i++) {
+                rows.add(old.keyStart[i] + shift[i] + delta, old.keyEnd[i] + shift[i] + delta,
+                        od.sourceStart(i) + shift[i] + delta, od.sourceEnd(i) + shift[i + 1] + delta, old.pathId[i], oldIndex.argb[i], old.format[i]);
+                if (cp < cps.size() && cps.get(cp).entry == i) rows.checkpoint(cps.get(cp++).copy(i + moved));
+                rows.flushIfFull();
+            }
+            rows.flush();
+            index.appendFrom(oldIndex, rejoin, n);
+
+            remap = new int[n];
+            for (int i = 0; i < first; i++) remap[i] = i;
+            for (int i = rejoin; i < n; i++) remap[i] = i + moved;
+            Map<String, List<Integer>> byName = new HashMap<String, List<Integer>>();
+            for (int j = newEnd - 1; j >= first; j--) {
+                byName.computeIfAbsent(store.name(j), k -> new ArrayList<Integer>()).add(j);
+            }
+            for (int i = first; i < rejoin; i++) {
+                List<Integer> js = byName.get(old.name(i));
+                remap[i] = js == null || js.isEmpty() ? -1 : js.remove(js.size() - 1);
+            }
+
+            // Carry unsaved edits over
+            int[] editRows = new int[16];
+            String[] editValues = new String[16];
+            int edits = 0;
+            for (int i = 0; i < n; i++) {
+                if (pieces[i] == saved[i] || pieces[i] != null && pieces[i].equals(saved[i])) continue;
+                int j = remap[i];
+                if (j < 0) {
+                    dropped++;
+                    continue;
+                }
+                String original = JsonSpanScanner.decode(src, od.sourceStart(i), od.sourceEnd(i));
+                String ours = pieces[i] != null ? pieces[i] : original;
+                if (i >= first && i < rejoin) {
+                    String before = saved[i] != null ? saved[i] : original;
+                    String now = nd.valueAt(j);
+                    if (now.equalsIgnoreCase(ours)) continue; // disk caught up with the edit
+                    if (!now.equalsIgnoreCase(before)) store.conflicts.set(j);
+                }
+                if (conflicts.get(i)) store.conflicts.set(j);
+                if (edits == editRows.length) {
+                    editRows = Arrays.copyOf(editRows, edits * 2);
+                    editValues = Arrays.copyOf(editValues, edits * 2);
+                }
+                editRows[edits] = j;
+                editValues[edits++] = ours;
+            }
+            store.setHexes(editRows, editValues, edits);
+            for (int k = 0; k < edits; k++) {
+                index.setHex(editRows[k], store.argb(editRows[k]), store.hasAlpha(editRows[k]));
+            }
+        }
+
+        /** Checkpoint at or after {@code from} whose disk position is {@code pos}, or -1. */
+        private static int findCheckpoint(List<JsonSpanScanner.State> cps, IntUnaryOperator cpPos, int from, int pos) {
+            int lo = from, hi = cps.size() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int p = cpPos.applyAsInt(mid);
+                if (p < pos) lo = mid + 1;
+                else if (p > pos) hi = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+
+        /** Index of the first checkpoint following a row after {@code row}. */
+        private static int findCheckpointAfter(List<JsonSpanScanner.State> cps, int row) {
+            int lo = 0, hi = cps.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cps.get(mid).entry <= row) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+    }
+
+    /**
+     * Undo/redo history kept as span deltas: a step is a run of (entry, value before,
+     * value after) triples in packed arrays, where a null value stands for the entry's
+     * original bytes. Values are the short hex strings the document already holds
+     * (pooled), never document copies, so each edited entry costs a few bytes no
+     * matter how large the theme is. A bulk edit is a single step. Beyond
+     * {@link #MAX_DELTAS} the oldest steps are dropped to keep memory bounded; the pool
+     * is rebuilt from the live deltas once values of dropped steps make up most of it.
+     */
+    private static final class EditHistory {
+        private static final int MAX_DELTAS = 4_000_000;
+
+        /** Values to write back for one undo or redo. */
+        static final class Delta {
+            final int[] rows;
+            final String[] values;
+
+            Delta(int[] rows, String[] values) {
+                this.rows = rows;
+                this.values = values;
+            }
+        }
+
+        private int[] rows = new int[64];
+        private String[] before = new String[64];
+        private String[] after = new String[64];
+        private int[] stepEnd = new int[16]; // step s owns deltas [s == 0 ? 0 : stepEnd[s - 1], stepEnd[s])
+        private int steps;                   // recorded steps
+        private int current;                 // steps [0, current) are applied, the rest can be redone
+        private final Map<String, String> pool = new HashMap<String, String>();
+
+        /** Approximate heap held by the recorded steps. */
+        long heapBytes() { return 12L * rows.length + 4L * stepEnd.length + 64L * pool.size(); }
+
+        void clear() {
+            steps = current = 0;
+            rows = new int[64];
+            before = new String[64];
+            after = new String[64];
+            stepEnd = new int[16];
+            pool.clear();
+        }
+
+        void record(int[] r, String[] b, String[] a, int n) {
+            int start = deltaEnd(current);
+            Arrays.fill(before, start, deltaEnd(steps), null); // a new edit discards the redo branch
+            Arrays.fill(after, start, deltaEnd(steps), null);
+            steps = current;
+            int need = start + n;
+            if (need > rows.length) {
+                int cap = Math.max(need, rows.length * 2);
+                rows = Arrays.copyOf(rows, cap);
+                before = Arrays.copyOf(before, cap);
+                after = Arrays.copyOf(after, cap);
+            }
+            System.arraycopy(r, 0, rows, start, n);
+            for (int k = 0; k < n; k++) {
+                before[start + k] = pooled(b[k]);
+                after[start + k] = pooled(a[k]);
+            }
+            if (steps == stepEnd.length) stepEnd = Arrays.copyOf(stepEnd, steps * 2);
+            stepEnd[steps++] = need;
+            current = steps;
+            while (deltaEnd(steps) > MAX_DELTAS && steps > 1) dropOldest();
+            prunePool();
+        }
+
+        /**
+         * Follows a change of row numbering: row {@code r} becomes {@code map[r]}; deltas of
+         * rows mapped to -1 are dropped, as are steps left empty. A null value ("original
+         * bytes") is pinned to {@code oldOriginal} of its row first, since the new
+         * document's original bytes may differ.
+         */
+        void remap(int[] map, IntFunction<String> oldOriginal) {
+            int out = 0, outSteps = 0, outCurrent = 0, from = 0;
+            for (int st = 0; st < steps; st++) {
+                int to = stepEnd[st];
+                int stepStart = out;
+                for (int k = from; k < to; k++) {
+                    int r = map[rows[k]];
+                    if (r < 0) continue;
+                    before[out] = pooled(before[k] != null ? before[k] : oldOriginal.apply(rows[k]));
+                    after[out] = pooled(after[k] != null ? after[k] : oldOriginal.apply(rows[k]));
+                    rows[out++] = r;
+                }
+                from = to;
+                if (out == stepStart) continue;
+                stepEnd[outSteps++] = out;
+                if (st < current) outCurrent = outSteps;
+            }
+            Arrays.fill(before, out, from, null);
+            Arrays.fill(after, out, from, null);
+            steps = outSteps;
+            current = outCurrent;
+            prunePool();
+        }
+
+        /** Values restoring the state before the last applied step, or null. */
+        Delta undo() {
+            if (current == 0) return null;
+            current--;
+            return slice(current, before);
+        }
+
+        /** Values re-applying the next undone step, or null. */
+        Delta redo() {
+            if (current == steps) return null;
+            return slice(current++, after);
+        }
+
+        private Delta slice(int step, String[] values) {
+            int from = deltaEnd(step), to = stepEnd[step];
+            return new Delta(Arrays.copyOfRange(rows, from, to), Arrays.copyOfRange(values, from, to));
+        }
+
+        /** End of the deltas of steps {@code [0, step)}. */
+        private int deltaEnd(int step) { return step == 0 ? 0 : stepEnd[step - 1]; }
+
+        private void dropOldest() {
+            int cut = stepEnd[0];
+            int total = stepEnd[steps - 1];
+            System.arraycopy(rows, cut, rows, 0, total - cut);
+            System.arraycopy(before, cut, before, 0, total - cut);
+            System.arraycopy(after, cut, after, 0, total - cut);
+            Arrays.fill(before, total - cut, total, null);
+            Arrays.fill(after, total - cut, total, null);
+            for (int s = 1; s < steps; s++) stepEnd[s - 1] = stepEnd[s] - cut;
+            steps--;
+            current--;
+        }
+
+        /**
+         * Rebuilds the pool from the live deltas once it holds more than twice as many values
+         * as they can reference, so values of dropped or discarded steps don't accumulate;
+         * each rebuild at least halves the pool, which keeps the cost amortized.
+         */
+        private void prunePool() {
+            int live = deltaEnd(steps);
+            if (pool.size() <= 4 * live + 64) return;
+            pool.clear();
+            for (int k = 0; k < live; k++) {
+                before[k] = pooled(before[k]);
+                after[k] = pooled(after[k]);
+            }
+        }
+
+        private String pooled(String hex) {
+            if (hex == null) return null;
+            String p = pool.putIfAbsent(hex, hex);
+            return p != null ? p : hex;
+        }
+    }
+
+    /** Rows scanned by the loader, handed over whole to a {@link PaletteStore}. */
+    private static final class RowChunk {
+        static final int CAPACITY = 4096;
+        final int[] keyStart = new int[CAPACITY];
+        final int[] keyEnd = new int[CAPACITY];
+        final int[] valueStart = new int[CAPACITY];
+        final int[] valueEnd = new int[CAPACITY];
+        final int[] pathId = new int[CAPACITY];
+        final int[] argb = new int[CAPACITY];
+        final byte[] format = new byte[CAPACITY]; // ColorCodec format of the value
+        final List<String> newPaths = new ArrayList<String>(2); // container paths first seen in this chunk
+        final List<JsonSpanScanner.State> checkpoints = new ArrayList<JsonSpanScanner.State>(CAPACITY / RowCollector.CHECKPOINT_INTERVAL);
+        int count;
+    }
+
+    /**
+     * Struct-of-arrays store of the color entries of a {@link ThemeDocument}.
+     * Row {@code i} is value span {@code i} of the document. Per row the store keeps
+     * only primitives: the packed ARGB color, the {@link ColorCodec} format its value
+     * is written in, the key's byte span in the source and the id of its container path. Name, hex and {@link Color} objects exist only
+     * in the short-lived {@link PaletteEntry} views created for rows being shown.
+     * <p>
+     * Heap per entry, measured with 200k entries and ~35-character keys on JDK 17:
+     * the old layout (PaletteEntry + name/hex Strings + Color, list-model and search
+     * copies) took ~284 bytes plus 100 bytes of decoded text; the columns, document
+     * spans and search index take ~100 bytes (growth slack included) plus 50 bytes
+     * of source.
+     */
+    private static final class PaletteStore {
+        final ThemeDocument doc;
+        private int[] argb = new int[256];
+        private byte[] format = new byte[256];
+        private int[] keyStart = new int[256];
+        private int[] keyEnd = new int[256];
+        private int[] pathId = new int[256];
+        private final List<String> paths = new ArrayList<String>();
+        private final List<JsonSpanScanner.State> checkpoints = new ArrayList<JsonSpanScanner.State>(); // ascending entry
+        private final BitSet conflicts = new BitSet(); // edits kept over a newer value on disk
+        private BitSet nearDuplicates = new BitSet();  // highlighted as perceptually close to another color
+        private int[] preview;
+        private int size;
+
+        PaletteStore(ThemeDocument doc) { this.doc = doc; }
+
+        /** Scans {@code doc} on the calling thread. */
+        static PaletteStore parse(ThemeDocument doc) {
+            PaletteStore store = new PaletteStore(doc);
+            reparse(doc, store::append);
+            return store;
+        }
+
+        int size() { return size; }
+
+        /** Approximate heap held by the columns and the document. */
+        long heapBytes() { return 17L * argb.length + 200L * checkpoints.size() + doc.heapBytes(); }
+
+        /** Drops the columns' growth slack, e.g. while the theme sits in a background tab. */
+        void trim() {
+            if (argb.length == size) return;
+            argb = Arrays.copyOf(argb, size);
+            format = Arrays.copyOf(format, size);
+            keyStart = Arrays.copyOf(keyStart, size);
+            keyEnd = Arrays.copyOf(keyEnd, size);
+            pathId = Arrays.copyOf(pathId, size);
+        }
+
+        void append(RowChunk c) {
+            int need = size + c.count;
+            if (need > argb.length) {
+                int cap = Math.max(need, argb.length * 2);
+                argb = Arrays.copyOf(argb, cap);
+                format = Arrays.copyOf(format, cap);
+                keyStart = Arrays.copyOf(keyStart, cap);
+                keyEnd = Arrays.copyOf(keyEnd, cap);
+                pathId = Arrays.copyOf(pathId, cap);
+            }
+            paths.addAll(c.newPaths);
+            checkpoints.addAll(c.checkpoints);
+            System.arraycopy(c.argb, 0, argb, size, c.count);
+            System.arraycopy(c.format, 0, format, size, c.count);
+            System.arraycopy(c.keyStart, 0, keyStart, size, c.count);
+            System.arraycopy(c.keyEnd, 0, keyEnd, size, c.count);
+            System.arraycopy(c.pathId, 0, pathId, size, c.count);
+            for (int k = 0; k < c.count; k++) doc.addSpan(c.valueStart[k], c.valueEnd[k]);
+            size = need;
+        }
+
+        String name(int i) {
+            return JsonSpanScanner.qualify(paths.get(pathId[i]), JsonSpanScanner.decode(doc.source(), keyStart[i], keyEnd[i]));
+        }
+
+        /** "#RRGGBB[AA]" of entry {@code i}; hex values as written, other formats converted. */
+        String hex(int i) {
+            return (format[i] & ColorCodec.KIND) == ColorCodec.HEX ? doc.valueAt(i) : argbHex(argb[i], hasAlpha(i));
+        }
+
+        int argb(int i) { return argb[i]; }
+
+        /** The {@link ColorCodec} format entry {@code i} is written in; edits keep it. */
+        int format(int i) { return format[i]; }
+
+        boolean hasAlpha(int i) { return ColorCodec.hasAlpha(format[i], doc.valueLength(i)); }
+
+        /** Copy of the color column. */
+        int[] argbs() { return Arrays.copyOf(argb, size); }
+
+        /** Colors shown instead of the document's while a transform is previewed (null = none). */
+        void setPreview(int[] preview) { this.preview = preview; }
+
+        /** Color as shown: the preview's while one is active. */
+        int shownArgb(int i) { return preview != null ? preview[i] : argb[i]; }
+
+        /** Hex as shown: the preview's (keeping the entry's alpha digits) while one is active. */
+        String shownHex(int i) {
+            String hex = hex(i);
+            return preview == null || preview[i] == argb[i] ? hex : withTargetAlpha(preview[i], hex);
+        }
+
+        boolean isConflict(int i) { return conflicts.get(i); }
+
+        int conflictCount() { return conflicts.cardinality(); }
+
+        void clearConflicts() { conflicts.clear(); }
+
+        boolean isNearDuplicate(int i) { return nearDuplicates.get(i); }
+
+        void setNearDuplicates(BitSet entries) { nearDuplicates = entries != null ? entries : new BitSet(); }
+
+        /** Sets entry {@code i} to {@code hex} (or any {@link ColorCodec} value), written in the entry's format. */
+        void setHex(int i, String hex) {
+            String value = ColorCodec.toFormat(hex, format[i]);
+            doc.replace(i, value);
+            argb[i] = hexArgb(value);
+        }
+
+        /**
+         * Batch form of {@link #setHex}: one offset shift for the whole batch.
+         * A null hex restores the entry's original value.
+         */
+        void setHexes(int[] rows, String[] hexes, int n) {
+            String[] values = hexes;
+            for (int k = 0; k < n; k++) {
+                String v = ColorCodec.toFormat(hexes[k], format[rows[k]]);
+                if (v == hexes[k]) continue;
+                if (values == hexes) values = hexes.clone(); // the caller's array may be in the undo history
+                values[k] = v;
+            }
+            doc.replaceAll(rows, values, n);
+            for (int k = 0; k < n; k++) argb[rows[k]] = doc.argbAt(rows[k]);
         }
+
+        /**
+         * Entries showing {@code color}, ascending, limited to {@code scope} when given.
+         * Without alpha, only the RGB part has to match.
+         */
+        int[] findColor(int color, boolean withAlpha, int[] scope) {
+            int mask = withAlpha ? 0xFFFFFFFF : 0xFFFFFF;
+            int n = scope != null ? scope.length : size;
+            int[] out = new int[n];
+            int found = 0;
+            for (int k = 0; k < n; k++) {
+                int i = scope != null ? scope[k] : k;
+                if ((argb[i] & mask) == (color & mask) && (!withAlpha || hasAlpha(i))) out[found++] = i;
+            }
+            return Arrays.copyOf(out, found);
+        }
+
+        PaletteEntry entry(int i) { return new PaletteEntry(this, i); }
     }
 
-    private void showError(String msg) {
-        JOptionPane.showMessageDialog(this, msg, "Error", JOptionPane.ERROR_MESSAGE);
+    /** View of one {@link PaletteStore} row, created on demand (typically per rendered cell). */
+    private static final class PaletteEntry {
+        final int index;
+        final String name;
+        final String hex;
+        final boolean conflict;
+        final boolean nearDuplicate;
+        private final int argb;
+        private Color awtColorRGB;
+
+        PaletteEntry(PaletteStore store, int index) {
+            this.index = index;
+            this.name = store.name(index);
+            this.hex = store.shownHex(index);
+            this.argb = store.shownArgb(index);
+            this.conflict = store.isConflict(index);
+            this.nearDuplicate = store.isNearDuplicate(index);
+        }
+
+        Color getAwtColorRGB() {
+            if (awtColorRGB == null) awtColorRGB = new Color(argb & 0xFFFFFF);
+            return awtColorRGB;
+        }
+
+        public String toString() { return name + "  " + hex; }
     }
 
-    private void showAboutDialog() {
-        String version = getVersion();
-        String aboutText = String.format(
-            "<html><div style='text-align: center;'>" +
-            "<h2>JSON Color Palette Editor</h2>" +
-            "<p><b>Version:</b> %s</p>" +
-            "<p><b>Author:</b> jpbed</p>" +
-            "<p><b>GitHub:</b> <a href='https://github.com/jpbed/ColorJsonEditor'>https://github.com/jpbed/ColorJsonEditor</a></p>" +
-            "<p>A tool for editing color palettes in JSON files</p>" +
-            "</div></html>",
-            version
-        );
-        
-        JOptionPane.showMessageDialog(this, aboutText, "About", JOptionPane.INFORMATION_MESSAGE);
+    /**
+     * Qualified entry names ("path.key", ASCII-lowercased) shared by every open theme.
+     * Each distinct name is stored once and known by its id; Bitwig themes share most
+     * of their keys, so another open theme mostly adds ids, not text. The table only
+     * grows: a reader that took {@link #bytes()} and {@link #offsets()} after an id was
+     * interned can use that id without locking.
+     */
+    private static final class NameTable {
+        private byte[] bytes = new byte[1 << 14];
+        private int[] offset = new int[257]; // name id spans [offset[id], offset[id + 1])
+        private int[] slots = new int[512];  // open addressing, id + 1 (0 = free)
+        private int count;
+
+        /** Id of the folded name {@code prefix + src[from, to)}, adding it if new. */
+        synchronized int intern(byte[] prefix, ByteBuffer src, int from, int to) {
+            int pos = offset[count], len = prefix.length + to - from;
+            if (pos + len > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(pos + len, bytes.length * 2));
+            System.arraycopy(prefix, 0, bytes, pos, prefix.length); // staged past the last name
+            int h = 0;
+            for (int k = 0; k < prefix.length; k++) h = 31 * h + prefix[k];
+            for (int b = from, at = pos + prefix.length; b < to; b++) {
+                byte ch = src.get(b);
+                if (ch >= 'A' && ch <= 'Z') ch += 32;
+                bytes[at++] = ch;
+                h = 31 * h + ch;
+            }
+            int mask = slots.length - 1;
+            for (int slot = (h ^ h >>> 16) & mask; ; slot = (slot + 1) & mask) {
+                int id = slots[slot] - 1;
+                if (id < 0) {
+                    slots[slot] = count + 1;
+                    offset[count + 1] = pos + len;
+                    id = count++;
+                    if (count + 1 == offset.length) offset = Arrays.copyOf(offset, offset.length * 2);
+                    if (2 * count > slots.length) rehash();
+                    return id;
+                }
+                if (sameName(id, pos, len)) return id;
+            }
+        }
+
+        private boolean sameName(int id, int pos, int len) {
+            int start = offset[id];
+            if (offset[id + 1] - start != len) return false;
+            for (int k = 0; k < len; k++) if (bytes[start + k] != bytes[pos + k]) return false;
+            return true;
+        }
+
+        private void rehash() {
+            int[] grown = new int[slots.length * 2];
+            int mask = grown.length - 1;
+            for (int id = 0; id < count; id++) {
+                int h = 0;
+                for (int k = offset[id]; k < offset[id + 1]; k++) h = 31 * h + bytes[k];
+                int slot = (h ^ h >>> 16) & mask;
+                while (grown[slot] != 0) slot = (slot + 1) & mask;
+                grown[slot] = id + 1;
+            }
+            slots = grown;
+        }
+
+        synchronized byte[] bytes() { return bytes; }
+
+        synchronized int[] offsets() { return offset; }
+
+        synchronized int size() { return count; }
+
+        synchronized long heapBytes() { return bytes.length + 4L * (offset.length + slots.length); }
     }
 
-    private String getVersion() {
-        try {
-            // Try to get version from git
-            ProcessBuilder pb = new ProcessBuilder("git", "rev-parse", "--short", "HEAD");
-            pb.redirectErrorStream(true);
-            Process p = pb.start();
-            
-            // Read the output manually for Java 8 compatibility
-            StringBuilder output = new StringBuilder();
-            byte[] buffer = new byte[1024];
-            int bytesRead;
-            while ((bytesRead = p.getInputStream().read(buffer)) != -1) {
-                output.append(new String(buffer, 0, bytesRead, StandardCharsets.UTF_8));
-            }
-            
-            String version = output.toString().trim();
-            int exitCode = p.waitFor();
-            if (exitCode == 0 && !version.isEmpty()) {
-                return "1.0." + version;
-            }
-        } catch (Exception e) {
-            // Fall back to default version if git command fails
-        }
-        return "1.0.0";
+    /**
+     * Search columns of the entries, built once while parsing so that a keystroke
+     * never decodes, lowercases or allocates per entry: each entry refers to its
+     * qualified name in a shared {@link NameTable}, and hex matches are tested against
+     * the packed ARGB value. Appends and updates happen on one thread at a time; queries
+     * run on a {@link Snapshot} that may be handed to a worker thread.
+     */
+    private static final class SearchIndex {
+        final NameTable table;
+        private int[] nameId = new int[256];
+        private int[] argb = new int[256];
+        private boolean[] alpha = new boolean[256];
+        private final List<byte[]> pathBytes = new ArrayList<byte[]>(); // folded "path." prefixes
+        private int count;
+        private int version; // bumped whenever a color changes
+
+        SearchIndex(NameTable table) { this.table = table; }
+
+        void append(RowChunk c, ByteBuffer src) {
+            addPaths(c.newPaths);
+            int need = count + c.count;
+            ensureRows(need);
+            for (int k = 0; k < c.count; k++) {
+                int i = count + k;
+                nameId[i] = table.intern(pathBytes.get(c.pathId[k]), src, c.keyStart[k], c.keyEnd[k]);
+                argb[i] = c.argb[k];
+                alpha[i] = ColorCodec.hasAlpha(c.format[k], c.valueEnd[k] - c.valueStart[k]);
+            }
+            count = need;
+        }
+
+        /**
+         * Index of a parsed theme, from the store's columns instead of a scan: the names are
+         * usually in {@code table} already, so this is mostly lookups. Used when a background
+         * tab comes back.
+         */
+        static SearchIndex of(PaletteStore store, NameTable table) {
+            SearchIndex index = new SearchIndex(table);
+            index.addPaths(store.paths);
+            int n = store.size();
+            index.ensureRows(n);
+            ByteBuffer src = store.doc.source();
+            for (int i = 0; i < n; i++) {
+                index.nameId[i] = table.intern(index.pathBytes.get(store.pathId[i]), src, store.keyStart[i], store.keyEnd[i]);
+                index.argb[i] = store.argb(i);
+                index.alpha[i] = store.hasAlpha(i);
+            }
+            index.count = n;
+            return index;
+        }
+
+        /** Approximate heap held by this index alone (the shared name table not included). */
+        long heapBytes() { return 9L * nameId.length; }
+
+        /** Registers container paths whose rows are added through {@link #appendFrom}. */
+        void addPaths(List<String> newPaths) {
+            for (String p : newPaths) {
+                pathBytes.add(p.isEmpty() ? new byte[0]
+                        : (p + ".").toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        /** Appends entries {@code [from, to)} of another index over the same name table as they are. */
+        void appendFrom(Snapshot other, int from, int to) {
+            int n = to - from;
+            ensureRows(count + n);
+            System.arraycopy(other.nameId, from, nameId, count, n);
+            System.arraycopy(other.argb, from, argb, count, n);
+            System.arraycopy(other.alpha, from, alpha, count, n);
+            count += n;
+        }
+
+        private void ensureRows(int need) {
+            if (need > nameId.length) {
+                int cap = Math.max(need, nameId.length * 2);
+                nameId = Arrays.copyOf(nameId, cap);
+                argb = Arrays.copyOf(argb, cap);
+                alpha = Arrays.copyOf(alpha, cap);
+            }
+        }
+
+        void setHex(int i, int newArgb, boolean hasAlpha) {
+            argb[i] = newArgb;
+            alpha[i] = hasAlpha;
+            version++;
+        }
+
+        int version() { return version; }
+
+        Snapshot snapshot() { return new Snapshot(table, nameId, argb, alpha, count); }
+
+        /** Snapshot whose colors stay as they are now while this index keeps changing. */
+        Snapshot frozenSnapshot() {
+            return new Snapshot(table, nameId, Arrays.copyOf(argb, count), Arrays.copyOf(alpha, count), count);
+        }
+
+        static final class Snapshot {
+            private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+            final NameTable table;
+            final byte[] names;
+            final int[] nameOffset, nameId, argb;
+            final boolean[] alpha;
+            final int count;
+
+            Snapshot(NameTable table, int[] nameId, int[] argb, boolean[] alpha, int count) {
+                this.table = table;
+                this.names = table.bytes();
+                this.nameOffset = table.offsets();
+                this.nameId = nameId;
+                this.argb = argb;
+                this.alpha = alpha;
+                this.count = count;
+            }
+
+            /**
+             * Returns the ascending entry indices matching {@code q} (already lowercase),
+             * restricted to {@code within} when given; returns early if {@code cancelled} says so.
+             */
+            int[] query(String q, int[] within, BooleanSupplier cancelled) {
+                byte[] qb = q.getBytes(StandardCharsets.UTF_8);
+                boolean hexLike = q.matches("#?[0-9a-f]{1,8}|#");
+                byte[] hex = new byte[9];
+                int n = within != null ? within.length : count;
+                int[] out = new int[n];
+                int found = 0;
+                for (int k = 0; k < n; k++) {
+                    if (cancelled != null && (k & 0xFFF) == 0 && cancelled.getAsBoolean()) break;
+                    int i = within != null ? within[k] : k;
+                    int id = nameId[i];
+                    if (indexOf(names, nameOffset[id], nameOffset[id + 1], qb) >= 0
+                            || (hexLike && indexOf(hex, 0, formatHex(hex, argb[i], alpha[i]), qb) >= 0)) {
+                        out[found++] = i;
+                    }
+                }
+                return Arrays.copyOf(out, found);
+            }
+
+            /** Writes "#rrggbb[aa]" into {@code dst}, returning its length. */
+            private static int formatHex(byte[] dst, int argb, boolean alpha) {
+                dst[0] = '#';
+                for (int k = 0; k < 6; k++) dst[1 + k] = HEX[(argb >>> (20 - 4 * k)) & 0xF];
+                if (!alpha) return 7;
+                dst[7] = HEX[(argb >>> 28) & 0xF];
+                dst[8] = HEX[(argb >>> 24) & 0xF];
+                return 9;
+            }
+
+            private static int indexOf(byte[] hay, int from, int to, byte[] needle) {
+                outer:
+                for (int i = from, last = to - needle.length; i <= last; i++) {
+                    for (int j = 0; j < needle.length; j++) {
+                        if (hay[i + j] != needle[j]) continue outer;
+                    }
+                    return i;
+                }
+                return -1;
+            }
+        }
     }
 
-    // ===== Data models & renderers =====
+    /**
+     * Read-only tree of entries grouped by the segments of their key names: the nesting path
+     * ("a.b.Key" → a › b › Key) or, in addition, the words and camel-case parts of each key.
+     * Entries are sorted once by their segments joined with {@code \0}, so every group is a
+     * range of that order; a group's children are found on first expansion by binary
+     * searching for the end of each child's range, and nothing below unexpanded groups is
+     * built. A group holding one entry shows as that entry, and a group whose entries all
+     * share the next segment is merged with it.
+     */
+    private static final class KeyTree implements javax.swing.tree.TreeModel {
+        static final int WORDS = 0, NESTING = 1;
+        static final String[] MODES = {"Key words", "Nesting path"};
 
-    /** Represents one "name":"#hex" occurrence and its span in the JSON text. */
-    private static class PaletteEntry {
-        final String name;
-        String hex;
-        int start, end;
-        private transient Color awtColorRGB;
+        /** Entries {@code order[from..to)}, whose first segments are those of {@code path}. */
+        static final class Group {
+            final String path; // lowercase segments joined with \0, "" for the root
+            final String label;
+            final int from, to;
+            List<Object> children; // Group or Integer entry; null until expanded
 
-        PaletteEntry(String name, String hex, int start, int end) {
-            this.name = name;
-            this.hex = hex;
-            this.start = start;
-            this.end = end;
-            refreshColor();
+            Group(String path, String label, int from, int to) {
+                this.path = path;
+                this.label = label;
+                this.from = from;
+                this.to = to;
+            }
+
+            int size() { return to - from; }
+
+            @Override public String toString() { return label + "  (" + size() + ")"; }
         }
 
-        void refreshColor() {
-            int r = Integer.parseInt(hex.substring(1, 3), 16);
-            int g = Integer.parseInt(hex.substring(3, 5), 16);
-            int b = Integer.parseInt(hex.substring(5, 7), 16);
-            awtColorRGB = new Color(r, g, b);
+        final PaletteStore store;
+        final int mode;
+        final Group root;
+        private final int[] order;    // entries by key
+        private final String[] keys;  // keys[p]: the sort key of order[p]
+
+        /** Sorts {@code entries} by key; runs off the EDT. */
+        KeyTree(PaletteStore store, int[] entries, int mode, BooleanSupplier cancelled) {
+            this.store = store;
+            this.mode = mode;
+            int n = entries.length;
+            String[] byEntry = new String[n];
+            IntStream.range(0, n).parallel().forEach(j -> {
+                if (!cancelled.getAsBoolean()) byEntry[j] = key(store.name(entries[j]), mode);
+            });
+            if (cancelled.getAsBoolean()) throw new CancellationException();
+            Integer[] sorted = new Integer[n];
+            for (int j = 0; j < n; j++) sorted[j] = j;
+            Arrays.parallelSort(sorted, (a, b) -> {
+                int c = byEntry[a].compareTo(byEntry[b]);
+                return c != 0 ? c : Integer.compare(entries[a], entries[b]);
+            });
+            order = new int[n];
+            keys = new String[n];
+            for (int p = 0; p < n; p++) {
+                order[p] = entries[sorted[p]];
+                keys[p] = byEntry[sorted[p]];
+            }
+            root = new Group("", "All keys", 0, n);
         }
 
-        Color getAwtColorRGB() { return awtColorRGB; }
+        /** The segments of {@code name}: split at dots, and in WORDS mode also at separators and case changes. */
+        static List<String> segments(String name, int mode) {
+            List<String> out = new ArrayList<String>();
+            int start = 0, n = name.length();
+            for (int i = 0; i <= n; i++) {
+                char c = i < n ? name.charAt(i) : '.';
+                boolean cut = c == '.' || (mode == WORDS && (c == ' ' || c == '_' || c == '-' || c == '/' || c == ':'));
+                if (cut) {
+                    if (i > start) out.add(name.substring(start, i));
+                    start = i + 1;
+                } else if (mode == WORDS && i > start && Character.isUpperCase(c)) {
+                    char prev = name.charAt(i - 1);
+                    boolean next = i + 1 < n && Character.isLowerCase(name.charAt(i + 1));
+                    if (Character.isLowerCase(prev) || Character.isDigit(prev) || (Character.isUpperCase(prev) && next)) {
+                        out.add(name.substring(start, i)); // "clipText" → clip|Text, "RGBValue" → RGB|Value
+                        start = i;
+                    }
+                }
+            }
+            return out;
+        }
 
-        public String toString() { return name + "  " + hex; }
+        /** Sort key of {@code name}: its lowercase segments joined with \0. */
+        static String key(String name, int mode) {
+            List<String> segs = segments(name, mode);
+            StringBuilder sb = new StringBuilder(name.length());
+            for (int s = 0; s < segs.size(); s++) {
+                if (s > 0) sb.append('\0');
+                sb.append(segs.get(s).toLowerCase(Locale.ROOT));
+            }
+            return sb.toString();
+        }
+
+        /** Entries of {@code node} (a group or an entry), ascending. */
+        int[] entries(Object node) {
+            if (node instanceof Integer) return new int[]{(Integer) node};
+            Group g = (Group) node;
+            int[] rows = Arrays.copyOfRange(order, g.from, g.to);
+            Arrays.sort(rows);
+            return rows;
+        }
+
+        /** Nodes from the root to the group with sort path {@code path}, expanding on the way; null if gone. */
+        Object[] pathTo(String path) {
+            List<Object> nodes = new ArrayList<Object>();
+            Group g = root;
+            nodes.add(g);
+            while (!g.path.equals(path)) {
+                Group next = null;
+                for (Object c : children(g)) {
+                    if (c instanceof Group && (path.equals(((Group) c).path) || path.startsWith(((Group) c).path + '\0'))) {
+                        next = (Group) c;
+                        break;
+                    }
+                }
+                if (next == null) return null;
+                nodes.add(g = next);
+            }
+            return nodes.toArray();
+        }
+
+        private List<Object> children(Group g) {
+            if (g.children != null) return g.children;
+            List<Object> out = new ArrayList<Object>();
+            int base = g.path.isEmpty() ? 0 : g.path.length() + 1; // where the next segment starts
+            int depth = g.path.isEmpty() ? 0 : segmentCount(g.path);
+            int p = g.from;
+            while (p < g.to && keys[p].length() < base) out.add(order[p++]); // keys ending at this group
+            while (p < g.to) {
+                String path = keys[p].substring(0, nextCut(keys[p], base));
+                int end = upperBound(path, p, g.to);
+                if (end - p == 1) {
+                    out.add(order[p++]);
+                    continue;
+                }
+                List<String> original = segments(store.name(order[p]), mode);
+                StringBuilder label = new StringBuilder(original.get(depth));
+                int segs = depth + 1;
+                while (keys[p].length() > path.length()) { // merge while every entry shares the next segment
+                    String longer = keys[p].substring(0, nextCut(keys[p], path.length() + 1));
+                    if (upperBound(longer, p, end) != end) break;
+                    path = longer;
+                    label.append(mode == NESTING ? "." : " ").append(original.get(segs++));
+                }
+                out.add(new Group(path, label.toString(), p, end));
+                p = end;
+            }
+            return g.children = out;
+        }
+
+        /** First position in {@code [from, to)} past the entries whose key is {@code path} or extends it by segments. */
+        private int upperBound(String path, int from, int to) {
+            String limit = path + '\u0001';
+            int lo = from, hi = to;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid].compareTo(limit) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        private static int nextCut(String key, int from) {
+            int cut = key.indexOf('\0', from);
+            return cut < 0 ? key.length() : cut;
+        }
+
+        private static int segmentCount(String path) {
+            int n = 1;
+            for (int i = 0; i < path.length(); i++) if (path.charAt(i) == '\0') n++;
+            return n;
+        }
+
+        @Override public Object getRoot() { return root; }
+        @Override public Object getChild(Object parent, int index) { return children((Group) parent).get(index); }
+        @Override public int getChildCount(Object parent) { return parent instanceof Group ? children((Group) parent).size() : 0; }
+        @Override public boolean isLeaf(Object node) { return node instanceof Integer; }
+        @Override public int getIndexOfChild(Object parent, Object child) {
+            return parent instanceof Group && child != null ? children((Group) parent).indexOf(child) : -1;
+        }
+        @Override public void valueForPathChanged(javax.swing.tree.TreePath path, Object newValue) { }
+        @Override public void addTreeModelListener(javax.swing.event.TreeModelListener l) { } // never changes
+        @Override public void removeTreeModelListener(javax.swing.event.TreeModelListener l) { }
     }
 
-    /** Renderer for parameters list (swatch + name + hex). */
-    private static class PaletteCellRenderer extends JPanel implements ListCellRenderer<PaletteEntry> {
-        private final JPanel swatch = new JPanel();
-        private final JLabel name = new JLabel();
-        private final JLabel hex = new JLabel();
+    /**
+     * List model showing the entries that match the current search.
+     * Rows map through an ascending int[] of entry indices (null = every entry),
+     * and a new query result replaces it with a single change event instead of
+     * one event per row.
+     */
+    private static final class FilteredPaletteModel extends AbstractListModel<PaletteEntry> {
+        private static final long serialVersionUID = 1L;
 
+        private PaletteStore source;
+        private int[] rows; // null = unfiltered
+        private int size;
+
+        @Override public int getSize() { return size; }
+
+        /** Creates the row's view on demand; nothing per row is kept by the model. */
+        @Override public PaletteEntry getElementAt(int row) {
+            return source.entry(rows == null ? row : rows[row]);
+        }
+
+        /** Shows every entry of {@code source} (may be null). Callers clear the selection first. */
+        void setSource(PaletteStore source) {
+            this.source = source;
+            setRows(null);
+        }
+
+        /** Shows only {@code rows} (ascending entry indices), or everything if null. */
+        void setRows(int[] rows) {
+            int oldSize = size;
+            this.rows = rows;
+            size = rows != null ? rows.length : source != null ? source.size() : 0;
+            int max = Math.max(oldSize, size);
+            if (max > 0) fireContentsChanged(this, 0, max - 1);
+        }
+
+        /** Source entries {@code [from, source.size())} were appended; shows those accepted by {@code filter}. */
+        void sourceGrew(int from, IntPredicate filter) {
+            int oldSize = size;
+            if (rows == null) {
+                size = source.size();
+            } else {
+                for (int i = from; i < source.size(); i++) {
+                    if (filter != null && !filter.test(i)) continue;
+                    if (size == rows.length) rows = Arrays.copyOf(rows, Math.max(16, size * 2));
+                    rows[size++] = i;
+                }
+            }
+            if (size > oldSize) fireIntervalAdded(this, oldSize, size - 1);
+        }
+
+        int entryIndexAt(int row) { return rows == null ? row : rows[row]; }
+
+        /** Entry indices of all visible rows, ascending. */
+        int[] visibleEntries() {
+            if (rows != null) return Arrays.copyOf(rows, size);
+            int[] all = new int[size];
+            for (int i = 0; i < size; i++) all[i] = i;
+            return all;
+        }
+
+        /** Row showing entry {@code entryIndex}, or -1 if it is filtered out. */
+        int rowOf(int entryIndex) {
+            if (rows == null) return entryIndex < size ? entryIndex : -1;
+            int r = Arrays.binarySearch(rows, 0, size, entryIndex);
+            return r >= 0 ? r : -1;
+        }
+    }
+
+    /**
+     * Base of the list renderers: paints a swatch and one or two lines of text straight
+     * onto the cell instead of laying out child components. Fonts and metrics are fixed
+     * at construction, so every row has the same {@link #rowHeight()} and the lists can
+     * use a fixed cell size instead of measuring each row. Like
+     * {@link javax.swing.DefaultListCellRenderer}, the invalidation and repaint calls
+     * a renderer receives while being stamped are no-ops.
+     */
+    private abstract static class PaintedCellRenderer extends JComponent {
+        private static final long serialVersionUID = 1L;
+
+        private static final int PAD_X = 8, PAD_Y = 6, SWATCH_W = 36, SWATCH_H = 18, GAP = 8;
+        private final Font font1, font2;
+        private final FontMetrics fm1, fm2;
+        private final int lineHeight, height;
+        private final Map<?, ?> textHints;
+        protected Color swatch;
+        protected String line1, line2; // line2 null = a single line
+
+        PaintedCellRenderer(Font font1, Font font2) {
+            this.font1 = font1;
+            this.font2 = font2;
+            fm1 = getFontMetrics(font1);
+            fm2 = font2 != null ? getFontMetrics(font2) : null;
+            lineHeight = fm2 != null ? Math.max(fm1.getHeight(), fm2.getHeight()) : fm1.getHeight();
+            height = 2 * PAD_Y + Math.max(SWATCH_H, fm2 != null ? 2 * lineHeight : lineHeight);
+            textHints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+            setOpaque(true);
+        }
+
+        /** Height of every row; lists using this renderer set it as their fixed cell height. */
+        int rowHeight() { return height; }
+
+        /** Sets the fixed cell size of {@code list}, so it never asks the renderer to measure rows. */
+        void install(JList<?> list, int cellWidth) {
+            list.setFixedCellHeight(height);
+            list.setFixedCellWidth(cellWidth);
+        }
+
+        protected void stamp(JList<?> list, boolean isSelected) {
+            setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+            setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+        }
+
+        @Override protected void paintComponent(Graphics g) {
+            int w = getWidth(), h = getHeight();
+            g.setColor(getBackground());
+            g.fillRect(0, 0, w, h);
+            if (swatch != null) {
+                g.setColor(swatch);
+                g.fillRect(PAD_X, (h - SWATCH_H) / 2, SWATCH_W, SWATCH_H);
+            }
+            if (textHints != null) ((Graphics2D) g).addRenderingHints(textHints);
+            g.setColor(getForeground());
+            int x = PAD_X + SWATCH_W + GAP, room = w - x - PAD_X;
+            int lines = line2 != null ? 2 : 1;
+            int top = (h - lines * lineHeight) / 2;
+            drawLine(g, line1, font1, fm1, x, top, room);
+            if (line2 != null) drawLine(g, line2, font2, fm2, x, top + lineHeight, room);
+        }
+
+        private void drawLine(Graphics g, String text, Font font, FontMetrics fm, int x, int top, int room) {
+            if (text == null || text.isEmpty()) return;
+            g.setFont(font);
+            g.drawString(fitted(text, fm, room), x, top + (lineHeight - fm.getHeight()) / 2 + fm.getAscent());
+        }
+
+        /** {@code text}, cut to {@code room} pixels with a trailing ellipsis if it doesn't fit. */
+        private static String fitted(String text, FontMetrics fm, int room) {
+            if (fm.stringWidth(text) <= room) return text;
+            int ellipsis = fm.stringWidth("…"), w = 0, n = 0;
+            while (n < text.length() && w + fm.charWidth(text.charAt(n)) + ellipsis <= room) w += fm.charWidth(text.charAt(n++));
+            return text.substring(0, n) + "…";
+        }
+
+        // Stamped, not displayed: skip the bookkeeping a live component would do
+        @Override public void invalidate() { }
+        @Override public void validate() { }
+        @Override public void revalidate() { }
+        @Override public void repaint(long tm, int x, int y, int width, int height) { }
+        @Override public void repaint(Rectangle r) { }
+        @Override public void repaint() { }
+        @Override protected void firePropertyChange(String propertyName, Object oldValue, Object newValue) { }
+        @Override public void firePropertyChange(String propertyName, boolean oldValue, boolean newValue) { }
+    }
+
+    /** Renderer for parameters list (swatch + name + hex). */
+    private static class PaletteCellRenderer extends PaintedCellRenderer implements ListCellRenderer<PaletteEntry> {
         PaletteCellRenderer() {
-            setLayout(new BorderLayout(8, 0));
-            setBorder(new EmptyBorder(6, 8, 6, 8));
-            swatch.setPreferredSize(new Dimension(36, 18));
-            JPanel text = new JPanel(new GridLayout(2, 1));
-            name.setFont(name.getFont().deriveFont(Font.PLAIN, 14f));
-            hex.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-            text.add(name);
-            text.add(hex);
-            add(swatch, BorderLayout.WEST);
-            add(text, BorderLayout.CENTER);
+            super(UIManager.getFont("Label.font").deriveFont(Font.PLAIN, 14f), new Font(Font.MONOSPACED, Font.PLAIN, 12));
         }
 
         public Component getListCellRendererComponent(JList<? extends PaletteEntry> list,
                                                       PaletteEntry value, int index,
                                                       boolean isSelected, boolean cellHasFocus) {
             if (value != null) {
-                swatch.setBackground(value.getAwtColorRGB());
-                name.setText(value.name);
-                hex.setText(value.hex);
+                swatch = value.getAwtColorRGB();
+                line1 = value.name;
+                String text = value.nearDuplicate ? value.hex + "   ≈ near-duplicate" : value.hex;
+                line2 = value.conflict ? text + "   ⚠ also changed on disk" : text;
             } else {
-                swatch.setBackground(list.getBackground());
-                name.setText("");
-                hex.setText("");
+                swatch = null;
+                line1 = line2 = "";
+            }
+            stamp(list, isSelected);
+            return this;
+        }
+    }
+
+    /**
+     * Named user palettes in one binary file. Layout (big-endian):
+     * a header (magic, version, index offset), then one block per saved palette (n packed
+     * ARGB ints, (n + 7) / 8 bytes of "written with alpha" bits, then optionally n names as
+     * length-prefixed UTF-8), then the index (per palette: name, block offset, colors, block
+     * bytes). Listing reads only the index and loading reads only one block. Saving appends
+     * the new block and a new index and then points the header at it, so an interrupted
+     * save leaves the previous index in force; once superseded blocks take up more room than
+     * the live ones, the next save compacts into a fresh file that atomically replaces it.
+     * The file is read with positional reads into heap buffers and never kept open or mapped
+     * (Windows can't replace a file with a live mapping, and Java 8 can't unmap on demand).
+     */
+    private static final class PaletteLibrary {
+        static final String FAVORITES = "Favorites";
+        private static final int MAGIC = 0x434A4550; // "CJEP"
+        private static final int VERSION = 1;
+        private static final int HEADER = 16;        // magic, version, index offset
+        private static final long COMPACT_MIN = 1 << 16;
+
+        /** Colors of one palette; {@code alpha} marks those written as #RRGGBBAA, {@code names} may be null. */
+        static final class Palette {
+            final String name;
+            final int[] argb;
+            final BitSet alpha;
+            final String[] names;
+
+            Palette(String name, int[] argb, BitSet alpha, String[] names) {
+                this.name = name;
+                this.argb = argb;
+                this.alpha = alpha;
+                this.names = names;
+            }
+
+            int size() { return argb.length; }
+
+            String hex(int k) { return argbHex(argb[k], alpha.get(k)); }
+
+            String name(int k) { return names != null ? names[k] : null; }
+        }
+
+        private static final class Slot {
+            final String name;
+            final long offset;
+            final int colors, bytes;
+
+            Slot(String name, long offset, int colors, int bytes) {
+                this.name = name;
+                this.offset = offset;
+                this.colors = colors;
+                this.bytes = bytes;
+            }
+        }
+
+        private final Path file;
+        private final List<Slot> slots = new ArrayList<Slot>();
+        private boolean exists; // false until the first save creates the file
+        private long length;
+
+        private PaletteLibrary(Path file) { this.file = file; }
+
+        /** Opens the library at {@code file}; a missing file is an empty library, created on the first save. */
+        static PaletteLibrary open(Path file) throws IOException {
+            PaletteLibrary lib = new PaletteLibrary(file);
+            if (Files.exists(file)) lib.readIndex();
+            return lib;
+        }
+
+        synchronized List<String> names() {
+            List<String> names = new ArrayList<String>(slots.size());
+            for (Slot s : slots) names.add(s.name);
+            return names;
+        }
+
+        /** Number of colors in palette {@code name}, or -1 if there is none. */
+        synchronized int colors(String name) {
+            Slot s = slot(name);
+            return s != null ? s.colors : -1;
+        }
+
+        /** Palette {@code name}, or null if there is none. */
+        synchronized Palette load(String name) throws IOException {
+            Slot s = slot(name);
+            if (s == null) return null;
+            ByteBuffer b;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                b = read(ch, s.offset, s.bytes);
+            }
+            int n = s.colors;
+            int[] argb = new int[n];
+            b.asIntBuffer().get(argb);
+            b.position(b.position() + 4 * n);
+            byte[] bits = new byte[(n + 7) / 8];
+            b.get(bits);
+            String[] names = null;
+            if (s.bytes > 4 * n + bits.length) {
+                names = new String[n];
+                for (int k = 0; k < n; k++) {
+                    String t = readString(b);
+                    names[k] = t.isEmpty() ? null : t;
+                }
+            }
+            return new Palette(s.name, argb, BitSet.valueOf(bits), names);
+        }
+
+        /** Adds {@code p}, or replaces the palette of the same name; an identical one is left alone. */
+        synchronized void save(Palette p) throws IOException {
+            int at = indexOf(p.name);
+            byte[] block = encode(p);
+            if (at >= 0 && slots.get(at).bytes == block.length && exists) {
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    if (read(ch, slots.get(at).offset, block.length).equals(ByteBuffer.wrap(block))) return;
+                }
             }
-            if (isSelected) {
-                setBackground(list.getSelectionBackground());
-                setForeground(list.getSelectionForeground());
+            List<Slot> next = new ArrayList<Slot>(slots);
+            Slot added = new Slot(p.name, -1, p.size(), block.length);
+            if (at >= 0) next.set(at, added);
+            else next.add(added);
+            write(next, added, block);
+        }
+
+        synchronized void delete(String name) throws IOException {
+            int at = indexOf(name);
+            if (at < 0) return;
+            List<Slot> next = new ArrayList<Slot>(slots);
+            next.remove(at);
+            write(next, null, null);
+        }
+
+        private Slot slot(String name) {
+            int at = indexOf(name);
+            return at >= 0 ? slots.get(at) : null;
+        }
+
+        private int indexOf(String name) {
+            for (int s = 0; s < slots.size(); s++) if (slots.get(s).name.equals(name)) return s;
+            return -1;
+        }
+
+        /**
+         * Makes {@code next} the library's index; {@code added} (offset still -1) is stored as
+         * {@code block}. Appends unless the dead blocks would outweigh the live ones.
+         */
+        private void write(List<Slot> next, Slot added, byte[] block) throws IOException {
+            long live = 0;
+            for (Slot s : next) live += s.bytes;
+            long appended = Math.max(length, HEADER) + (block != null ? block.length : 0) + indexBytes(next);
+            if (!exists || appended > COMPACT_MIN && appended > 2 * (HEADER + live + indexBytes(next))) {
+                compact(next, added, block);
             } else {
-                setBackground(list.getBackground());
-                setForeground(list.getForeground());
+                append(next, added, block);
             }
-            return this;
+            readIndex();
+        }
+
+        private void append(List<Slot> next, Slot added, byte[] block) throws IOException {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                long pos = length;
+                if (block != null) {
+                    next.set(next.indexOf(added), new Slot(added.name, pos, added.colors, added.bytes));
+                    writeFully(ch, ByteBuffer.wrap(block), pos);
+                    pos += block.length;
+                }
+                writeFully(ch, encodeIndex(next), pos);
+                ch.force(true);
+                writeFully(ch, header(pos), 0); // the switch-over: one small write at the start
+                ch.force(true);
+            }
+        }
+
+        /** Writes the live blocks and the index to a fresh file that replaces the library atomically. */
+        private void compact(List<Slot> next, Slot added, byte[] block) throws IOException {
+            ensureParentDir(file);
+            Path tmp = file.resolveSibling("." + file.getFileName() + ".tmp");
+            try {
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                     FileChannel old = exists ? FileChannel.open(file, StandardOpenOption.READ) : null) {
+                    long pos = HEADER;
+                    for (int s = 0; s < next.size(); s++) {
+                        Slot slot = next.get(s);
+                        ByteBuffer data = slot == added ? ByteBuffer.wrap(block) : read(old, slot.offset, slot.bytes);
+                        next.set(s, new Slot(slot.name, pos, slot.colors, slot.bytes));
+                        writeFully(ch, data, pos);
+                        pos += slot.bytes;
+                    }
+                    writeFully(ch, encodeIndex(next), pos);
+                    writeFully(ch, header(pos), 0);
+                    ch.force(true);
+                }
+                try {
+                    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+                syncDirectory(file.toAbsolutePath().getParent());
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        /** Reads the header and the index; the blocks stay on disk until loaded. */
+        private void readIndex() throws IOException {
+            long size, at;
+            ByteBuffer b;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                size = ch.size();
+                if (size > Integer.MAX_VALUE) throw new IOException("Palette library too large: " + file);
+                if (size < HEADER + 4) throw new IOException("Not a palette library: " + file);
+                ByteBuffer h = read(ch, 0, HEADER);
+                if (h.getInt(0) != MAGIC) throw new IOException("Not a palette library: " + file);
+                if (h.getInt(4) != VERSION) throw new IOException("Unsupported palette library version: " + file);
+                at = h.getLong(8);
+                if (at < HEADER || at > size - 4) throw new IOException("Damaged palette library: " + file);
+                b = read(ch, at, (int) (size - at));
+            }
+            List<Slot> read = new ArrayList<Slot>();
+            try {
+                for (int s = b.getInt(); s > 0; s--) {
+                    String name = readString(b);
+                    long offset = b.getLong();
+                    int colors = b.getInt(), bytes = b.getInt();
+                    if (offset < HEADER || colors < 0 || bytes < 0 || offset + bytes > at) {
+                        throw new IOException("Damaged palette library: " + file);
+                    }
+                    read.add(new Slot(name, offset, colors, bytes));
+                }
+            } catch (BufferUnderflowException ex) {
+                throw new IOException("Damaged palette library: " + file);
+            }
+            slots.clear();
+            slots.addAll(read);
+            length = size;
+            exists = true;
+        }
+
+        /** {@code bytes} bytes of {@code ch} from {@code pos} on, in a heap buffer. */
+        private ByteBuffer read(FileChannel ch, long pos, int bytes) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(bytes);
+            while (b.hasRemaining()) {
+                if (ch.read(b, pos + b.position()) < 0) throw new IOException("Damaged palette library: " + file);
+            }
+            b.flip();
+            return b;
+        }
+
+        private static byte[] encode(Palette p) {
+            int n = p.size(), bits = (n + 7) / 8;
+            byte[][] names = null;
+            int size = 4 * n + bits;
+            if (p.names != null) {
+                names = new byte[n][];
+                for (int k = 0; k < n; k++) {
+                    names[k] = utf8(p.names[k]);
+                    size += 2 + names[k].length;
+                }
+            }
+            ByteBuffer b = ByteBuffer.allocate(size);
+            b.asIntBuffer().put(p.argb);
+            b.position(4 * n);
+            b.put(Arrays.copyOf(p.alpha.toByteArray(), bits));
+            if (names != null) {
+                for (byte[] name : names) {
+                    b.putShort((short) name.length);
+                    b.put(name);
+                }
+            }
+            return b.array();
+        }
+
+        private static ByteBuffer encodeIndex(List<Slot> slots) {
+            ByteBuffer b = ByteBuffer.allocate((int) indexBytes(slots));
+            b.putInt(slots.size());
+            for (Slot s : slots) {
+                byte[] name = utf8(s.name);
+                b.putShort((short) name.length);
+                b.put(name);
+                b.putLong(s.offset);
+                b.putInt(s.colors);
+                b.putInt(s.bytes);
+            }
+            b.flip();
+            return b;
+        }
+
+        private static long indexBytes(List<Slot> slots) {
+            long n = 4;
+            for (Slot s : slots) n += 2 + utf8(s.name).length + 16;
+            return n;
+        }
+
+        private static ByteBuffer header(long index) {
+            ByteBuffer b = ByteBuffer.allocate(HEADER);
+            b.putInt(MAGIC).putInt(VERSION).putLong(index);
+            b.flip();
+            return b;
+        }
+
+        /** UTF-8 bytes of {@code s} (null = empty), cut to what a length prefix can hold. */
+        private static byte[] utf8(String s) {
+            byte[] b = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+            return b.length <= 0xFFFF ? b : Arrays.copyOf(b, 0xFFFF);
+        }
+
+        private static String readString(ByteBuffer b) {
+            byte[] s = new byte[b.getShort() & 0xFFFF];
+            b.get(s);
+            return new String(s, StandardCharsets.UTF_8);
+        }
+
+        private static void writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+            while (b.hasRemaining()) pos += ch.write(b, pos);
         }
     }
 
@@ -723,51 +9691,37 @@ public class ColorJsonEditor extends JFrame {
     private static class Favorite {
         final String hex;
         final Color color;
+        final String name; // optional, from a named library palette
+
+        Favorite(int argb, boolean alpha, String name) {
+            this.hex = argbHex(argb, alpha);
+            this.color = new Color(argb & 0xFFFFFF);
+            this.name = name;
+        }
 
         Favorite(String hex) {
             String normalized = normalizeHex(hex);
             if (normalized == null) throw new IllegalArgumentException("Bad hex: " + hex);
             this.hex = normalized;
-            int r = Integer.parseInt(this.hex.substring(1, 3), 16);
-            int g = Integer.parseInt(this.hex.substring(3, 5), 16);
-            int b = Integer.parseInt(this.hex.substring(5, 7), 16);
-            this.color = new Color(r, g, b);
+            this.color = new Color(hexArgb(normalized) & 0xFFFFFF);
+            this.name = null;
         }
 
-        public String toString() { return hex; }
+        public String toString() { return name != null ? hex + "  " + name : hex; }
     }
 
     /** Renderer for favorites list (swatch + hex). */
-    private static class FavoriteCellRenderer extends JPanel implements ListCellRenderer<Favorite> {
-        private final JPanel swatch = new JPanel();
-        private final JLabel label = new JLabel();
-
+    private static class FavoriteCellRenderer extends PaintedCellRenderer implements ListCellRenderer<Favorite> {
         FavoriteCellRenderer() {
-            setLayout(new BorderLayout(8, 0));
-            setBorder(new EmptyBorder(6, 8, 6, 8));
-            swatch.setPreferredSize(new Dimension(36, 18));
-            label.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-            add(swatch, BorderLayout.WEST);
-            add(label, BorderLayout.CENTER);
+            super(new Font(Font.MONOSPACED, Font.PLAIN, 12), null);
         }
 
         public Component getListCellRendererComponent(JList<? extends Favorite> list,
                                                       Favorite value, int index,
                                                       boolean isSelected, boolean cellHasFocus) {
-            if (value != null) {
-                swatch.setBackground(value.color);
-                label.setText(value.hex);
-            } else {
-                swatch.setBackground(list.getBackground());
-                label.setText("");
-            }
-            if (isSelected) {
-                setBackground(list.getSelectionBackground());
-                setForeground(list.getSelectionForeground());
-            } else {
-                setBackground(list.getBackground());
-                setForeground(list.getForeground());
-            }
+            swatch = value != null ? value.color : null;
+            line1 = value != null ? value.toString() : "";
+            stamp(list, isSelected);
             return this;
         }
     }
@@ -809,7 +9763,11 @@ public class ColorJsonEditor extends JFrame {
                 int index = dl.getIndex();
                 if (index < 0 || index >= listModel.getSize()) return false;
 
-                PaletteEntry entry = listModel.get(index);
+                if (list.isSelectedIndex(index) && list.getSelectedIndices().length > 1) {
+                    applyToEntries(favHex, selectedEntries()); // dropped onto a multi-selection
+                    return true;
+                }
+                PaletteEntry entry = listModel.getElementAt(index);
                 String merged = mergeFavoriteOntoTarget(favHex, entry.hex);
                 updateEntryHex(entry, merged);
                 list.setSelectedIndex(index);
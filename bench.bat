@@ -0,0 +1,2 @@
+call build.bat
+java -Xms1g -Xmx4g -cp ColorJsonEditor.jar ColorJsonEditor --bench --out bench-results.json %*
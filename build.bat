@@ -1,4 +1,13 @@
 del ColorJsonEditor*.class 2>nul
+set REV=
+for /f %%v in ('git rev-parse --short HEAD 2^>nul') do set REV=%%v
+if "%REV%"=="" (set VERSION=1.0.0) else (set VERSION=1.0.%REV%)
+>version.properties echo version=%VERSION%
 javac --release 8 -encoding UTF-8 ColorJsonEditor.java
-jar cfe ColorJsonEditor.jar ColorJsonEditor ColorJsonEditor*.class
-
+rem Randomized checks of the codecs, edits/undo and resync; a failure stops the build
+java -Djava.awt.headless=true -cp . ColorJsonEditor --self-test
+if errorlevel 1 exit /b 1
+jar cfe ColorJsonEditor.jar ColorJsonEditor ColorJsonEditor*.class version.properties
+rem Class-data-sharing archive of the classes a start loads (JDK 13+; skipped on older JDKs)
+del ColorJsonEditor.jsa 2>nul
+java -XX:ArchiveClassesAtExit=ColorJsonEditor.jsa -cp "%~dp0ColorJsonEditor.jar" ColorJsonEditor --startup-probe >nul 2>&1
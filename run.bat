@@ -0,0 +1,6 @@
+rem Starts the editor, with the class-data-sharing archive from build.bat when there is one
+if exist "%~dp0ColorJsonEditor.jsa" (
+  start "" javaw -XX:SharedArchiveFile="%~dp0ColorJsonEditor.jsa" -Xshare:auto -cp "%~dp0ColorJsonEditor.jar" ColorJsonEditor %*
+) else (
+  start "" javaw -jar "%~dp0ColorJsonEditor.jar" %*
+)